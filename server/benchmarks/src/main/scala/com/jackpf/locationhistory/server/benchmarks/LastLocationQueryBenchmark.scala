@@ -0,0 +1,103 @@
+package com.jackpf.locationhistory.server.benchmarks
+
+import com.jackpf.locationhistory.server.db.{DataSourceFactory, Database}
+import com.jackpf.locationhistory.server.model.StorageType
+import org.openjdk.jmh.annotations.*
+
+import java.nio.file.{Files, Paths}
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+import scala.compiletime.uninitialized
+
+/** Compares the previous window function last location query against the
+  * correlated per-device seek `SQLiteLocationRepo` now runs on each of its partitions,
+  * here over a single table with the same schema
+  * The window function's cost grows with history depth, the seek's shouldn't
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class LastLocationQueryBenchmark {
+  @Param(Array("10"))
+  var deviceCount: Int = 0
+
+  @Param(Array("100", "10000", "100000"))
+  var historyDepth: Int = 0
+
+  private val dataDir: String = System.getProperty("java.io.tmpdir")
+  private val dbName: String = s"benchmark_${UUID.randomUUID().toString}.db"
+  private var database: Database = uninitialized
+  private var devices: Seq[String] = Nil
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    database = new DataSourceFactory(dataDir, dbName).create(StorageType.SQLITE).get
+    devices = (1 to deviceCount).map(i => s"device-${i}")
+    database.writer.transaction { implicit db =>
+      val _ = db.updateRaw(
+        """CREATE TABLE stored_location_table (
+          id INTEGER PRIMARY KEY,
+          device_id TEXT,
+          lat DOUBLE,
+          lon DOUBLE,
+          accuracy DOUBLE,
+          start_timestamp UNSIGNED BIG INT,
+          end_timestamp UNSIGNED BIG INT,
+          count UNSIGNED BIG INT,
+          metadata TEXT
+        )"""
+      )
+      val _ = db.updateRaw(
+        "CREATE INDEX idx_device_time ON stored_location_table (device_id, end_timestamp)"
+      )
+      for (device <- devices; timestamp <- 1 to historyDepth) {
+        val _ = db.updateRaw(
+          """INSERT INTO stored_location_table
+            (device_id, lat, lon, accuracy, start_timestamp, end_timestamp, count, metadata)
+            VALUES (?, 0.1, 0.2, 1.0, ?, ?, 1, '{}')""",
+          Seq(device, timestamp, timestamp)
+        )
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = {
+    database.close()
+    // Along with the WAL & shared memory files, in case they weren't checkpointed on close
+    Seq("", "-wal", "-shm").foreach { suffix =>
+      val _ = Files.deleteIfExists(Paths.get(dataDir, s"${dbName}${suffix}"))
+    }
+  }
+
+  @Benchmark
+  def windowFunction(): IndexedSeq[Long] = database.reader.transaction { implicit db =>
+    db.runRaw[Long](
+      s"""SELECT id FROM (
+        SELECT id,
+          ROW_NUMBER() OVER (PARTITION BY device_id ORDER BY end_timestamp DESC) AS rn
+        FROM stored_location_table
+        WHERE device_id IN (${devices.map(_ => "?").mkString(", ")})
+      )
+      WHERE rn = 1""",
+      devices
+    )
+  }
+
+  @Benchmark
+  def correlatedSeek(): IndexedSeq[Long] = database.reader.transaction { implicit db =>
+    db.runRaw[Long](
+      s"""SELECT (
+        SELECT id FROM stored_location_table
+        WHERE device_id = devices.column1
+        ORDER BY end_timestamp DESC, id DESC
+        LIMIT 1
+      )
+      FROM (VALUES ${devices.map(_ => "(?)").mkString(", ")}) AS devices""",
+      devices
+    )
+  }
+}
@@ -0,0 +1,151 @@
+package com.jackpf.locationhistory.server.benchmarks
+
+import com.jackpf.locationhistory.server.db.{DataSourceFactory, Database}
+import com.jackpf.locationhistory.server.model.{DeviceId, Location, StorageType, StoredLocation}
+import com.jackpf.locationhistory.server.repo.LocationRepoExtensions.CheckDuplicateLocationFunc
+import com.jackpf.locationhistory.server.repo.{LocationRepo, RepoFactory}
+import org.openjdk.jmh.annotations.*
+
+import java.nio.file.{Files, Path}
+import java.util.Comparator
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import scala.compiletime.uninitialized
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.util.{Try, Using}
+
+object LocationRepoBenchmark {
+  private val SeedBatchSize: Int = 1000
+
+  private val neverDuplicate: CheckDuplicateLocationFunc = (_, _, _) => false
+  private val alwaysDuplicate: CheckDuplicateLocationFunc = (_, _, _) => true
+
+  private def location(index: Long): Location =
+    Location(lat = (index % 180) - 90.0, lon = (index % 360) - 180.0, accuracy = 10.0, Map.empty)
+}
+
+/** Location repo operations against each storage type, seeded with
+  * `deviceCount` devices each holding `historyDepth` locations
+  * Run with `make benchmark-json` to export results for comparison between releases
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class LocationRepoBenchmark {
+  import LocationRepoBenchmark.*
+
+  @Param(Array("IN_MEMORY", "IN_MEMORY_COLUMNAR", "SEGMENTED", "SQLITE", "SQLITE_IN_MEMORY"))
+  var storageType: String = uninitialized
+
+  @Param(Array("1", "100"))
+  var deviceCount: Int = 0
+
+  @Param(Array("100", "10000"))
+  var historyDepth: Int = 0
+
+  @Param(Array("100"))
+  var limit: Int = 0
+
+  private given ExecutionContext = ExecutionContext.global
+
+  private var dataDirectory: Path = uninitialized
+  private var database: Option[Database] = None
+  private var locationRepo: LocationRepo = uninitialized
+  private var devices: Vector[DeviceId.Type] = Vector.empty
+  private var storedIds: Vector[(DeviceId.Type, Long)] = Vector.empty
+  private val timestampCounter: AtomicLong = new AtomicLong(0)
+  private val deviceCounter: AtomicLong = new AtomicLong(0)
+
+  private def await[T](future: Future[T]): T = Await.result(future, Duration.Inf)
+
+  private def nextDevice(): DeviceId.Type =
+    devices((deviceCounter.incrementAndGet() % devices.length).toInt)
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    val storage = StorageType.valueOf(storageType)
+    dataDirectory = Files.createTempDirectory("benchmark")
+    database = new DataSourceFactory(dataDirectory.toString, "benchmark.db").create(storage)
+    locationRepo = new RepoFactory(database, Some(dataDirectory)).locationRepo(storage)
+    await(locationRepo.init())
+
+    devices = (1 to deviceCount).map(i => DeviceId(s"device-${i}")).toVector
+    storedIds = devices.flatMap { device =>
+      (1L to historyDepth.toLong)
+        .grouped(SeedBatchSize)
+        .flatMap { timestamps =>
+          val batch = timestamps.map(t => (location(t), t))
+          await(locationRepo.appendOrMerge(device, batch, neverDuplicate)).get
+        }
+        .map(storedLocation => (device, storedLocation.id))
+    }
+    timestampCounter.set(historyDepth.toLong)
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = {
+    locationRepo match {
+      case closeable: AutoCloseable => closeable.close()
+      case _                        => ()
+    }
+    database.foreach(_.close())
+    Using.resource(Files.walk(dataDirectory)) {
+      _.sorted(Comparator.reverseOrder[Path]()).forEach(path => Files.delete(path))
+    }
+  }
+
+  @Benchmark
+  def storeNewLocation(): Try[Unit] = {
+    val timestamp = timestampCounter.incrementAndGet()
+    await(
+      locationRepo.storeDeviceLocationOrUpdatePrevious(
+        nextDevice(),
+        location(timestamp),
+        timestamp,
+        neverDuplicate
+      )
+    )
+  }
+
+  @Benchmark
+  def storeDuplicateLocation(): Try[Unit] = {
+    val timestamp = timestampCounter.incrementAndGet()
+    await(
+      locationRepo.storeDeviceLocationOrUpdatePrevious(
+        nextDevice(),
+        location(timestamp),
+        timestamp,
+        alwaysDuplicate
+      )
+    )
+  }
+
+  @Benchmark
+  def getForDevice(): Vector[StoredLocation] =
+    await(locationRepo.getForDevice(nextDevice(), limit = None))
+
+  @Benchmark
+  def getForDeviceWithLimit(): Vector[StoredLocation] =
+    await(locationRepo.getForDevice(nextDevice(), limit = Some(limit)))
+
+  @Benchmark
+  def getDevicesLastLocationMap(): Map[DeviceId.Type, Option[StoredLocation]] =
+    await(locationRepo.getDevicesLastLocationMap(devices))
+
+  @Benchmark
+  def update(): Try[Unit] = {
+    val index = deviceCounter.incrementAndGet()
+    val (device, id) = storedIds((index % storedIds.length).toInt)
+    await(
+      locationRepo.update(
+        device,
+        id,
+        sl => sl.copy(metadata = sl.metadata.copy(count = sl.metadata.count + 1))
+      )
+    )
+  }
+}
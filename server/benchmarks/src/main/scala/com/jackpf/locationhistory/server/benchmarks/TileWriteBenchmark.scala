@@ -0,0 +1,131 @@
+package com.jackpf.locationhistory.server.benchmarks
+
+import com.jackpf.locationhistory.server.db.{DataSourceFactory, Database}
+import com.jackpf.locationhistory.server.model.{DeviceId, Location, StorageType}
+import com.jackpf.locationhistory.server.repo.LocationRepoExtensions.CheckDuplicateLocationFunc
+import com.jackpf.locationhistory.server.repo.{LocationRepo, RepoFactory}
+import org.openjdk.jmh.annotations.*
+
+import java.nio.file.{Files, Path}
+import java.util.Comparator
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import scala.compiletime.uninitialized
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.util.{Try, Using}
+
+object TileWriteBenchmark {
+  private val SeedBatchSize: Int = 1000
+  private val Device: DeviceId.Type = DeviceId("device")
+
+  private val neverDuplicate: CheckDuplicateLocationFunc = (_, _, _) => false
+  private val alwaysDuplicate: CheckDuplicateLocationFunc = (_, _, _) => true
+
+  /** A degree apart, so each location is in another tile at all but the lowest zooms */
+  private def location(index: Long): Location =
+    Location(lat = (index % 180) - 90.0, lon = (index % 360) - 180.0, accuracy = 10.0, Map.empty)
+
+  /** A few metres apart, well within a tile at the greatest zoom */
+  private def nearbyLocation(index: Long): Location =
+    Location(lat = 51.5 + (index % 2) * 0.00001, lon = -0.1, accuracy = 10.0, Map.empty)
+}
+
+/** SQLite location writes by how they maintain the tile aggregates: an insert adds a location
+  * to its tile at each zoom, a merge within a tile adds to those tiles in place, a merge into
+  * another tile moves the location between tiles, and a metadata patch leaves them alone
+  * `tileTriggers=false` drops the tile triggers after seeding, for the cost of writes without
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class TileWriteBenchmark {
+  import TileWriteBenchmark.*
+
+  @Param(Array("SQLITE", "SQLITE_IN_MEMORY"))
+  var storageType: String = uninitialized
+
+  @Param(Array("true", "false"))
+  var tileTriggers: Boolean = false
+
+  @Param(Array("10000"))
+  var historyDepth: Int = 0
+
+  private given ExecutionContext = ExecutionContext.global
+
+  private var dataDirectory: Path = uninitialized
+  private var database: Option[Database] = None
+  private var locationRepo: LocationRepo = uninitialized
+  private var firstId: Long = 0L
+  private val timestampCounter: AtomicLong = new AtomicLong(0)
+
+  private def await[T](future: Future[T]): T = Await.result(future, Duration.Inf)
+
+  private def store(location: Location, isDuplicate: CheckDuplicateLocationFunc): Try[Unit] = {
+    val timestamp = timestampCounter.incrementAndGet()
+    await(
+      locationRepo.storeDeviceLocationOrUpdatePrevious(Device, location, timestamp, isDuplicate)
+    )
+  }
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    val storage = StorageType.valueOf(storageType)
+    dataDirectory = Files.createTempDirectory("benchmark")
+    database = new DataSourceFactory(dataDirectory.toString, "benchmark.db").create(storage)
+    locationRepo = new RepoFactory(database, Some(dataDirectory)).locationRepo(storage)
+    await(locationRepo.init())
+
+    // Timestamps all fall in the first partition, so no partition is created while measuring
+    val seeded = (1L to historyDepth.toLong).grouped(SeedBatchSize).flatMap { timestamps =>
+      val batch = timestamps.map(t => (location(t), t))
+      await(locationRepo.appendOrMerge(Device, batch, neverDuplicate)).get
+    }.toVector
+    firstId = seeded.head.id
+    timestampCounter.set(historyDepth.toLong)
+
+    if (!tileTriggers) database.foreach {
+      _.writer.transaction { implicit db =>
+        db.runRaw[String](
+          "SELECT name FROM sqlite_master WHERE type = 'trigger' AND name LIKE '%tile%'"
+        ).foreach(trigger => db.updateRaw(s"DROP TRIGGER ${trigger}"): Unit)
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = {
+    locationRepo match {
+      case closeable: AutoCloseable => closeable.close()
+      case _                        => ()
+    }
+    database.foreach(_.close())
+    Using.resource(Files.walk(dataDirectory)) {
+      _.sorted(Comparator.reverseOrder[Path]()).forEach(path => Files.delete(path))
+    }
+  }
+
+  @Benchmark
+  def insert(): Try[Unit] = store(location(timestampCounter.get()), neverDuplicate)
+
+  @Benchmark
+  def mergeWithinTile(): Try[Unit] = store(nearbyLocation(timestampCounter.get()), alwaysDuplicate)
+
+  @Benchmark
+  def mergeIntoAnotherTile(): Try[Unit] = store(location(timestampCounter.get()), alwaysDuplicate)
+
+  @Benchmark
+  def patchMetadata(): Try[Unit] = {
+    val value = timestampCounter.incrementAndGet().toString
+    await(
+      locationRepo.update(
+        Device,
+        firstId,
+        sl => sl.copy(location = sl.location.patchMetadata(Map("benchmark" -> value)))
+      )
+    )
+  }
+}
@@ -3,7 +3,9 @@ package com.jackpf.locationhistory.server
 import com.jackpf.locationhistory.admin_service.{
   ApproveDeviceRequest,
   ApproveDeviceResponse,
-  ListLocationsRequest
+  ListLocationsRequest,
+  ListLocationsResponse,
+  StreamLocationsRequest
 }
 import com.jackpf.locationhistory.beacon_service.*
 import com.jackpf.locationhistory.common.*
@@ -109,6 +111,79 @@ class LocationTest extends IntegrationTest with GrpcMatchers {
       )
     }
 
+    "list locations in pages" >> in(
+      new ApprovedDeviceContext {}
+    ) { context =>
+      Seq((51.500700, -0.124600), (35.659500, 139.700500), (40.748400, -73.985700)).zipWithIndex
+        .foreach { case ((lat, lon), i) =>
+          context.client.setLocation(
+            SetLocationRequest(
+              timestamp = i + 1L,
+              deviceId = context.device.id,
+              location = Some(Location(lat, lon, accuracy = 0.1))
+            )
+          ) === SetLocationResponse(success = true)
+        }
+
+      def listPage(cursor: String): ListLocationsResponse =
+        context.adminClient.listLocations(
+          ListLocationsRequest(deviceId = context.device.id, pageSize = 2, cursor = cursor)
+        )
+
+      val firstPage = listPage(cursor = "")
+      firstPage.locations.map(_.endTimestamp) === Seq(1L, 2L)
+      firstPage.nextCursor must not(beEmpty)
+
+      val secondPage = listPage(cursor = firstPage.nextCursor)
+      secondPage.locations.map(_.endTimestamp) === Seq(3L)
+      secondPage.nextCursor must beEmpty
+    }
+
+    "set a batch of locations with duplicates" >> in(
+      new ApprovedDeviceContext {}
+    ) { context =>
+      context.client.setLocations(
+        SetLocationsRequest(
+          deviceId = context.device.id,
+          locations = Seq(
+            TimestampedLocation(1L, Some(Location(51.500700, -0.124600, accuracy = 0.1))),
+            TimestampedLocation(2L, Some(Location(51.500701, -0.124601, accuracy = 0.1))),
+            TimestampedLocation(3L, Some(Location(35.659500, 139.700500, accuracy = 0.1)))
+          )
+        )
+      ) === SetLocationsResponse(success = true)
+
+      val locations = context.adminClient
+        .listLocations(ListLocationsRequest(deviceId = context.device.id))
+        .locations
+
+      locations.map(l => (l.startTimestamp, l.endTimestamp, l.count)) === Seq(
+        (1L, 2L, 2L),
+        (3L, 3L, 1L)
+      )
+    }
+
+    "stream locations" >> in(
+      new ApprovedDeviceContext {}
+    ) { context =>
+      Seq((51.500700, -0.124600), (35.659500, 139.700500), (40.748400, -73.985700)).zipWithIndex
+        .foreach { case ((lat, lon), i) =>
+          context.client.setLocation(
+            SetLocationRequest(
+              timestamp = i + 1L,
+              deviceId = context.device.id,
+              location = Some(Location(lat, lon, accuracy = 0.1))
+            )
+          ) === SetLocationResponse(success = true)
+        }
+
+      val chunks = context.adminClient
+        .streamLocations(StreamLocationsRequest(deviceId = context.device.id, chunkSize = 2))
+        .toSeq
+
+      chunks.map(_.locations.map(_.endTimestamp)) === Seq(Seq(1L, 2L), Seq(3L))
+    }
+
     "set a location with duplicates" >> in(
       new ApprovedDeviceContext {}
     ) { context =>
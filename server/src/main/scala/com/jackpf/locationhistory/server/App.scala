@@ -1,16 +1,26 @@
 package com.jackpf.locationhistory.server
 
-import com.jackpf.locationhistory.server.db.DataSourceFactory
+import com.jackpf.locationhistory.server.db.{DataSourceFactory, SQLiteSettings}
+import com.jackpf.locationhistory.server.db.SQLiteSettings.given
 import com.jackpf.locationhistory.server.enricher.{
   ConfiguredEnrichers,
   EnricherExecutor,
+  EnrichmentPipeline,
   OSMEnricher
 }
 import com.jackpf.locationhistory.server.grpc.{AuthenticationManager, Services}
 import com.jackpf.locationhistory.server.model.StorageType
+import com.jackpf.locationhistory.server.persistence.{SnapshotScheduler, Snapshottable}
 import com.jackpf.locationhistory.server.repo.*
-import com.jackpf.locationhistory.server.service.{JwtAuthService, NotificationService, OSMService}
+import com.jackpf.locationhistory.server.retention.RetentionJob
+import com.jackpf.locationhistory.server.service.{
+  JwtAuthService,
+  NotificationService,
+  OSMService,
+  SQLiteGeocodeCache
+}
 import com.jackpf.locationhistory.server.util.Logging
+import org.sqlite.SQLiteConfig.{JournalMode, SynchronousMode}
 import scopt.OptionParser
 import sttp.client4.DefaultFutureBackend
 
@@ -66,6 +76,183 @@ object App extends Logging {
         .action((x, c) => c.copy(enrichers = x))
         .withFallback(() => Seq.empty)
         .text("Comma separated list of enrichers")
+
+      opt[Int]("enrichment-workers")
+        .valueName("<workers>")
+        .action((x, c) => c.copy(enrichmentWorkers = Some(x)))
+        .withFallback(() => EnrichmentPipeline.DefaultWorkers)
+        .validate(x => if (x > 0) success else failure("enrichment-workers must be positive"))
+        .text("Number of locations enriched concurrently")
+
+      opt[Int]("enrichment-queue-capacity")
+        .valueName("<locations>")
+        .action((x, c) => c.copy(enrichmentQueueCapacity = Some(x)))
+        .withFallback(() => EnrichmentPipeline.DefaultQueueCapacity)
+        .validate(x =>
+          if (x > 0) success else failure("enrichment-queue-capacity must be positive")
+        )
+        .text("Maximum number of locations waiting to be enriched before ingest waits for room")
+
+      opt[Double]("osm-requests-per-second")
+        .valueName("<requests>")
+        .action((x, c) => c.copy(osmRequestsPerSecond = Some(x)))
+        .withFallback(() => OSMService.DefaultRequestsPerSecond)
+        .validate(x => if (x > 0) success else failure("osm-requests-per-second must be positive"))
+        .text("Maximum rate of OSM lookups")
+
+      opt[Int]("osm-queue-capacity")
+        .valueName("<lookups>")
+        .action((x, c) => c.copy(osmQueueCapacity = Some(x)))
+        .withFallback(() => OSMService.DefaultQueueCapacity)
+        .validate(x => if (x > 0) success else failure("osm-queue-capacity must be positive"))
+        .text("Maximum number of OSM lookups waiting for their turn before new ones are skipped")
+
+      opt[Long]("osm-queue-timeout-millis")
+        .valueName("<millis>")
+        .action((x, c) => c.copy(osmQueueTimeoutMillis = Some(x)))
+        .withFallback(() => OSMService.DefaultQueueTimeoutMillis)
+        .validate(x => if (x > 0) success else failure("osm-queue-timeout-millis must be positive"))
+        .text("Time an OSM lookup waits for its turn before the location is left unenriched")
+
+      opt[Int]("osm-cache-ttl-days")
+        .valueName("<days>")
+        .action((x, c) => c.copy(osmCacheTtlDays = Some(x)))
+        .withFallback(() => SQLiteGeocodeCache.DefaultTtl.toDays.toInt)
+        .validate(x => if (x > 0) success else failure("osm-cache-ttl-days must be positive"))
+        .text("Age after which OSM lookups cached on disk are looked up again")
+
+      opt[Long]("osm-cache-max-entries")
+        .valueName("<entries>")
+        .action((x, c) => c.copy(osmCacheMaxEntries = Some(x)))
+        .withFallback(() => SQLiteGeocodeCache.DefaultMaxEntries)
+        .validate(x => if (x > 0) success else failure("osm-cache-max-entries must be positive"))
+        .text("Maximum number of OSM lookups cached on disk")
+
+      opt[JournalMode]("sqlite-journal-mode")
+        .valueName("<journal-mode>")
+        .action((x, c) => c.copy(sqliteJournalMode = Some(x)))
+        .withFallback(() => SQLiteSettings.DefaultJournalMode)
+        .text("SQLite journal mode")
+
+      opt[SynchronousMode]("sqlite-synchronous")
+        .valueName("<synchronous>")
+        .action((x, c) => c.copy(sqliteSynchronous = Some(x)))
+        .withFallback(() => SQLiteSettings.DefaultSynchronous)
+        .text("SQLite synchronous mode")
+
+      opt[Int]("sqlite-busy-timeout")
+        .valueName("<milliseconds>")
+        .action((x, c) => c.copy(sqliteBusyTimeoutMillis = Some(x)))
+        .withFallback(() => SQLiteSettings.DefaultBusyTimeoutMillis)
+        .text("How long SQLite waits on a locked database before failing")
+
+      opt[Long]("sqlite-mmap-size")
+        .valueName("<bytes>")
+        .action((x, c) => c.copy(sqliteMmapSizeBytes = Some(x)))
+        .withFallback(() => SQLiteSettings.DefaultMmapSizeBytes)
+        .text("Size of the SQLite memory-mapped I/O region, 0 to disable")
+
+      opt[Int]("sqlite-cache-size")
+        .valueName("<kib>")
+        .action((x, c) => c.copy(sqliteCacheSizeKiB = Some(x)))
+        .withFallback(() => SQLiteSettings.DefaultCacheSizeKiB)
+        .text("SQLite page cache size per connection")
+
+      opt[Int]("sqlite-readers")
+        .valueName("<readers>")
+        .action((x, c) => c.copy(sqliteReaderPoolSize = Some(x)))
+        .withFallback(() => SQLiteSettings.DefaultReaderPoolSize)
+        .validate(x => if (x > 0) success else failure("sqlite-readers must be positive"))
+        .text("Number of read-only SQLite connections")
+
+      opt[Long]("sqlite-commit-interval")
+        .valueName("<milliseconds>")
+        .action((x, c) => c.copy(sqliteCommitIntervalMillis = Some(x)))
+        .withFallback(() => SQLiteSettings.DefaultCommitIntervalMillis)
+        .text("Maximum time a location write waits to be committed with others")
+
+      opt[Int]("sqlite-commit-batch-size")
+        .valueName("<writes>")
+        .action((x, c) => c.copy(sqliteCommitBatchSize = Some(x)))
+        .withFallback(() => SQLiteSettings.DefaultCommitBatchSize)
+        .validate(x => if (x > 0) success else failure("sqlite-commit-batch-size must be positive"))
+        .text("Maximum number of location writes per commit")
+
+      opt[Int]("sqlite-write-queue-capacity")
+        .valueName("<writes>")
+        .action((x, c) => c.copy(sqliteWriteQueueCapacity = Some(x)))
+        .withFallback(() => SQLiteSettings.DefaultWriteQueueCapacity)
+        .validate(x =>
+          if (x > 0) success else failure("sqlite-write-queue-capacity must be positive")
+        )
+        .text("Maximum number of pending location writes before new ones are rejected")
+
+      opt[Long]("snapshot-interval")
+        .valueName("<seconds>")
+        .action((x, c) => c.copy(snapshotIntervalSeconds = Some(x)))
+        .withFallback(() => 300L)
+        .validate(x => if (x > 0) success else failure("snapshot-interval must be positive"))
+        .text("How often persistent in-memory storage is snapshotted, or segments synced to disk")
+
+      opt[Int]("retention-full-resolution-days")
+        .valueName("<days>")
+        .action((x, c) => c.copy(retentionFullResolutionDays = Some(x)))
+        .validate(x =>
+          if (x > 0) success else failure("retention-full-resolution-days must be positive")
+        )
+        .text("Age after which locations are downsampled, keeping every location until then")
+
+      opt[Int]("retention-downsample-minutes")
+        .valueName("<minutes>")
+        .action((x, c) => c.copy(retentionDownsampleMinutes = Some(x)))
+        .validate(x =>
+          if (x > 0) success else failure("retention-downsample-minutes must be positive")
+        )
+        .text("Keep one downsampled location per this many minutes")
+
+      opt[Double]("retention-downsample-meters")
+        .valueName("<meters>")
+        .action((x, c) => c.copy(retentionDownsampleMeters = Some(x)))
+        .validate(x =>
+          if (x > 0) success else failure("retention-downsample-meters must be positive")
+        )
+        .text("Keep one downsampled location per this many meters travelled")
+
+      opt[Int]("retention-max-age-days")
+        .valueName("<days>")
+        .action((x, c) => c.copy(retentionMaxAgeDays = Some(x)))
+        .validate(x => if (x > 0) success else failure("retention-max-age-days must be positive"))
+        .text("Age after which locations are deleted")
+
+      opt[Long]("retention-interval")
+        .valueName("<seconds>")
+        .action((x, c) => c.copy(retentionIntervalSeconds = Some(x)))
+        .withFallback(() => 3600L)
+        .validate(x => if (x > 0) success else failure("retention-interval must be positive"))
+        .text("How often retention is applied")
+
+      opt[Int]("retention-batch-size")
+        .valueName("<locations>")
+        .action((x, c) => c.copy(retentionBatchSize = Some(x)))
+        .withFallback(() => 500)
+        .validate(x => if (x > 0) success else failure("retention-batch-size must be positive"))
+        .text("Maximum number of locations read or deleted at a time by retention")
+
+      checkConfig { c =>
+        val downsampled =
+          c.retentionDownsampleMinutes.nonEmpty || c.retentionDownsampleMeters.nonEmpty
+
+        if (c.retentionFullResolutionDays.nonEmpty != downsampled)
+          failure(
+            "retention-full-resolution-days requires " +
+              "retention-downsample-minutes or retention-downsample-meters, and vice versa"
+          )
+        else if (
+          c.retentionFullResolutionDays.zip(c.retentionMaxAgeDays).exists(_ >= _)
+        )
+          failure("retention-max-age-days must be greater than retention-full-resolution-days")
+        else success
+      }
     }
 
   def main(args: Array[String]): Unit = {
@@ -76,18 +263,46 @@ object App extends Logging {
     val authenticationManager = new AuthenticationManager(parsedArgs.adminPassword.get)
     val tokenService = new JwtAuthService
 
-    val dataSource = new DataSourceFactory(parsedArgs.dataDirectory.get, "database.db")
-      .create(parsedArgs.storageType.get)
-    val repoFactory = new RepoFactory(dataSource = dataSource)
+    val database = new DataSourceFactory(
+      parsedArgs.dataDirectory.get,
+      "database.db",
+      parsedArgs.sqliteSettings
+    ).create(parsedArgs.storageType.get)
+    val repoFactory =
+      new RepoFactory(database = database, dataDirectory = Some(parsedArgs.dataPath))
 
     val deviceRepo = repoFactory.deviceRepo(parsedArgs.storageType.get)
     val locationRepo = repoFactory.locationRepo(parsedArgs.storageType.get)
     val sttpBackend = DefaultFutureBackend()
     val notificationService = new NotificationService(sttpBackend)
 
+    // Kept apart from the repos' database, so it's used whatever the storage type
+    // Only created if the OSM enricher is loaded, as nothing else looks places up
+    val geocodeDatabase = Option.when(parsedArgs.enrichers.contains(OSMEnricher.Name)) {
+      new DataSourceFactory(
+        parsedArgs.dataDirectory.get,
+        "geocode-cache.db",
+        parsedArgs.sqliteSettings
+      ).create(StorageType.SQLITE).get
+    }
+    val geocodeCache = geocodeDatabase.map(
+      new SQLiteGeocodeCache(
+        _,
+        ttl = parsedArgs.osmCacheTtlDays.get.days,
+        maxEntries = parsedArgs.osmCacheMaxEntries.get
+      )
+    )
+    val osmService = new OSMService(
+      sttpBackend,
+      diskCache = geocodeCache,
+      requestsPerSecond = parsedArgs.osmRequestsPerSecond.get,
+      queueCapacity = parsedArgs.osmQueueCapacity.get,
+      queueTimeoutMillis = parsedArgs.osmQueueTimeoutMillis.get
+    )
+
     // Available enrichers
     val enrichers = Seq(
-      new OSMEnricher(new OSMService(sttpBackend))
+      new OSMEnricher(osmService)
     )
     val loadedEnrichers = ConfiguredEnrichers.fromConfigured(parsedArgs.enrichers, enrichers)
     log.info(s"Loaded enrichers: ${loadedEnrichers.map(_.name).mkString(", ")}")
@@ -98,16 +313,41 @@ object App extends Logging {
         Seq(
           deviceRepo.init(),
           locationRepo.init()
-        )
+        ) ++ geocodeCache.map(_.init())
       ),
       1.minute
     )
 
+    val snapshotScheduler = Option.when(
+      parsedArgs.storageType.exists(Set(StorageType.IN_MEMORY_PERSISTENT, StorageType.SEGMENTED))
+    ) {
+      val stores = Seq(deviceRepo, locationRepo).collect { case repo: Snapshottable => repo }
+      new SnapshotScheduler(stores, parsedArgs.snapshotIntervalSeconds.get).start()
+    }
+
+    val enrichmentPipeline = new EnrichmentPipeline(
+      enricherExecutor,
+      locationRepo,
+      workers = parsedArgs.enrichmentWorkers.get,
+      queueCapacity = parsedArgs.enrichmentQueueCapacity.get
+    ).start()
+
+    val retentionJob = parsedArgs.retentionPolicy.map { policy =>
+      log.info(s"Applying retention policy: ${policy}")
+      new RetentionJob(
+        policy,
+        deviceRepo,
+        locationRepo,
+        parsedArgs.retentionIntervalSeconds.get,
+        parsedArgs.retentionBatchSize.get
+      ).start()
+    }
+
     val beaconServer = new AppServer(
       "Beacon service",
       parsedArgs.beaconPort.get,
       parsedArgs.sslCertsPath,
-      Services.beaconServices(deviceRepo, locationRepo, enricherExecutor)*
+      Services.beaconServices(deviceRepo, locationRepo, enrichmentPipeline)*
     ).start()
 
     val adminServer = new AppServer(
@@ -126,7 +366,13 @@ object App extends Logging {
     sys.addShutdownHook {
       beaconServer.shutdown()
       adminServer.shutdown()
+      enrichmentPipeline.close()
+      osmService.close()
       sttpBackend.close(): Unit
+      retentionJob.foreach(_.close())
+      snapshotScheduler.foreach(_.close())
+      database.foreach(_.close())
+      geocodeDatabase.foreach(_.close())
     }
 
     beaconServer.awaitTermination()
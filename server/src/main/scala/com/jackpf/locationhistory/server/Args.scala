@@ -1,8 +1,13 @@
 package com.jackpf.locationhistory.server
 
+import com.jackpf.locationhistory.server.db.SQLiteSettings
 import com.jackpf.locationhistory.server.model.StorageType
+import com.jackpf.locationhistory.server.retention.RetentionPolicy
+import com.jackpf.locationhistory.server.retention.RetentionPolicy.Downsampling
+import org.sqlite.SQLiteConfig.{JournalMode, SynchronousMode}
 
 import java.nio.file.{Path, Paths}
+import scala.concurrent.duration.*
 
 case class Args(
     beaconPort: Option[Int] = None,
@@ -11,7 +16,58 @@ case class Args(
     dataDirectory: Option[String] = None,
     storageType: Option[StorageType] = None,
     sslCertsDir: Option[String] = None,
-    enrichers: Seq[String] = Seq.empty
+    enrichers: Seq[String] = Seq.empty,
+    enrichmentWorkers: Option[Int] = None,
+    enrichmentQueueCapacity: Option[Int] = None,
+    osmRequestsPerSecond: Option[Double] = None,
+    osmQueueCapacity: Option[Int] = None,
+    osmQueueTimeoutMillis: Option[Long] = None,
+    osmCacheTtlDays: Option[Int] = None,
+    osmCacheMaxEntries: Option[Long] = None,
+    sqliteJournalMode: Option[JournalMode] = None,
+    sqliteSynchronous: Option[SynchronousMode] = None,
+    sqliteBusyTimeoutMillis: Option[Int] = None,
+    sqliteMmapSizeBytes: Option[Long] = None,
+    sqliteCacheSizeKiB: Option[Int] = None,
+    sqliteReaderPoolSize: Option[Int] = None,
+    sqliteCommitIntervalMillis: Option[Long] = None,
+    sqliteCommitBatchSize: Option[Int] = None,
+    sqliteWriteQueueCapacity: Option[Int] = None,
+    snapshotIntervalSeconds: Option[Long] = None,
+    retentionFullResolutionDays: Option[Int] = None,
+    retentionDownsampleMinutes: Option[Int] = None,
+    retentionDownsampleMeters: Option[Double] = None,
+    retentionMaxAgeDays: Option[Int] = None,
+    retentionIntervalSeconds: Option[Long] = None,
+    retentionBatchSize: Option[Int] = None
 ) {
+  def dataPath: Path = Paths.get(dataDirectory.get)
+
   def sslCertsPath: Option[Path] = sslCertsDir.map(Paths.get(_))
+
+  def sqliteSettings: SQLiteSettings = SQLiteSettings(
+    journalMode = sqliteJournalMode.get,
+    synchronous = sqliteSynchronous.get,
+    busyTimeoutMillis = sqliteBusyTimeoutMillis.get,
+    mmapSizeBytes = sqliteMmapSizeBytes.get,
+    cacheSizeKiB = sqliteCacheSizeKiB.get,
+    readerPoolSize = sqliteReaderPoolSize.get,
+    commitIntervalMillis = sqliteCommitIntervalMillis.get,
+    commitBatchSize = sqliteCommitBatchSize.get,
+    writeQueueCapacity = sqliteWriteQueueCapacity.get
+  )
+
+  /** None if neither downsampling nor a maximum age is configured */
+  def retentionPolicy: Option[RetentionPolicy] = {
+    val downsampling = retentionFullResolutionDays.map { days =>
+      Downsampling(
+        after = days.days,
+        interval = retentionDownsampleMinutes.map(_.minutes),
+        distanceMeters = retentionDownsampleMeters
+      )
+    }
+    val maxAge = retentionMaxAgeDays.map(_.days)
+
+    Option.when(downsampling.nonEmpty || maxAge.nonEmpty)(RetentionPolicy(downsampling, maxAge))
+  }
 }
@@ -1,26 +1,107 @@
 package com.jackpf.locationhistory.server.db
 
 import com.jackpf.locationhistory.server.model.StorageType
-import org.sqlite.SQLiteDataSource
+import com.zaxxer.hikari.{HikariConfig, HikariDataSource}
+import org.sqlite.{SQLiteConfig, SQLiteDataSource}
 import scalasql.core.DbClient
 
 import java.nio.file.Paths
 
-class DataSourceFactory(dataDir: String, dbName: String) {
-  private def newSQLite(
+class DataSourceFactory(
+    dataDir: String,
+    dbName: String,
+    settings: SQLiteSettings = SQLiteSettings()
+) {
+  private def newSQLiteConfig(readOnly: Boolean): SQLiteConfig = {
+    val config = new SQLiteConfig()
+    // Journal mode is persisted in the database file, so only the writer sets it
+    if (!readOnly) {
+      config.setJournalMode(settings.journalMode)
+      config.setSynchronous(settings.synchronous)
+    }
+    config.setReadOnly(readOnly)
+    config.setBusyTimeout(settings.busyTimeoutMillis)
+    config.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, settings.mmapSizeBytes.toString)
+    // Negative values are interpreted by SQLite as KiB rather than pages
+    config.setCacheSize(-settings.cacheSizeKiB)
+    config
+  }
+
+  private def newPool(
+      name: String,
       connectionString: String,
+      config: SQLiteConfig,
+      poolSize: Int,
+      retireConnections: Boolean = true
+  ): HikariDataSource = {
+    val dataSource = new SQLiteDataSource(config)
+    dataSource.setUrl(s"jdbc:sqlite:${connectionString}")
+
+    val poolConfig = new HikariConfig()
+    poolConfig.setPoolName(name)
+    poolConfig.setDataSource(dataSource)
+    poolConfig.setMaximumPoolSize(poolSize)
+    poolConfig.setMinimumIdle(poolSize)
+    // An in-memory database only lives as long as its connection
+    if (!retireConnections) poolConfig.setMaxLifetime(0)
+    new HikariDataSource(poolConfig)
+  }
+
+  private def newDataSource(
+      dataSource: HikariDataSource,
       config: scalasql.Config = new scalasql.Config {}
   ): DbClient.DataSource = {
     import scalasql.SqliteDialect.*
 
-    val dataSource = new SQLiteDataSource()
-    dataSource.setUrl(s"jdbc:sqlite:${connectionString}")
     new DbClient.DataSource(dataSource, config)
   }
 
-  def create(storageType: StorageType): Option[DbClient.DataSource] = storageType match {
-    case StorageType.IN_MEMORY        => None
-    case StorageType.SQLITE_IN_MEMORY => Some(newSQLite(":memory:"))
-    case StorageType.SQLITE           => Some(newSQLite(Paths.get(dataDir, dbName).toString))
+  private def newWriteQueue(writer: DbClient.DataSource): GroupCommitWriter =
+    new GroupCommitWriter(
+      writer,
+      batchSize = settings.commitBatchSize,
+      commitIntervalMillis = settings.commitIntervalMillis,
+      queueCapacity = settings.writeQueueCapacity
+    ).start()
+
+  private def newSQLite(connectionString: String): Database = {
+    // The writer is created first so the database file and WAL exist before readers open
+    val writerPool = newPool("sqlite-writer", connectionString, newSQLiteConfig(false), 1)
+    val readerPool =
+      newPool("sqlite-reader", connectionString, newSQLiteConfig(true), settings.readerPoolSize)
+
+    val writer = newDataSource(writerPool)
+
+    new Database(
+      writer,
+      newDataSource(readerPool),
+      newWriteQueue(writer),
+      Seq(writerPool, readerPool)
+    )
+  }
+
+  /** Each connection to :memory: opens a separate database,
+    * so readers and the writer share a single connection
+    */
+  private def newSQLiteInMemory(): Database = {
+    val pool = newPool(
+      "sqlite-in-memory",
+      ":memory:",
+      newSQLiteConfig(false),
+      poolSize = 1,
+      retireConnections = false
+    )
+    val dataSource = newDataSource(pool)
+
+    new Database(dataSource, dataSource, newWriteQueue(dataSource), Seq(pool))
+  }
+
+  def create(storageType: StorageType): Option[Database] = storageType match {
+    case StorageType.IN_MEMORY | StorageType.IN_MEMORY_COLUMNAR |
+        StorageType.IN_MEMORY_PERSISTENT | StorageType.SEGMENTED =>
+      None
+    case StorageType.SQLITE_IN_MEMORY => Some(newSQLiteInMemory())
+    case StorageType.SQLITE           =>
+      Some(newSQLite(Paths.get(dataDir, dbName).toString))
   }
 }
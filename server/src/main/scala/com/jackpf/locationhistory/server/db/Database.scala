@@ -0,0 +1,22 @@
+package com.jackpf.locationhistory.server.db
+
+import com.zaxxer.hikari.HikariDataSource
+import scalasql.core.DbClient
+
+/** SQLite data sources split by role
+  * All writes go through a single writer connection, so ingest is serialised in the pool
+  * instead of contending on SQLite's file lock, while reads are served by a separate
+  * read-only pool which, under WAL, never waits on the writer
+  * High-frequency writes can be grouped into shared commits through the write queue
+  */
+class Database(
+    val writer: DbClient.DataSource,
+    val reader: DbClient.DataSource,
+    val writeQueue: GroupCommitWriter,
+    pools: Seq[HikariDataSource]
+) extends AutoCloseable {
+  override def close(): Unit = {
+    writeQueue.close()
+    pools.foreach(_.close())
+  }
+}
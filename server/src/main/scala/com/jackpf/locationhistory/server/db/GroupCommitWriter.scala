@@ -0,0 +1,117 @@
+package com.jackpf.locationhistory.server.db
+
+import com.jackpf.locationhistory.server.db.GroupCommitWriter.PendingWrite
+import com.jackpf.locationhistory.server.errors.ApplicationErrors.WriteQueueFullException
+import com.jackpf.locationhistory.server.util.Logging
+import scalasql.core.{DbApi, DbClient}
+
+import java.util.concurrent.{ArrayBlockingQueue, TimeUnit}
+import scala.annotation.tailrec
+import scala.concurrent.{Future, Promise}
+import scala.util.{Failure, Success, Try}
+
+object GroupCommitWriter {
+  private final class PendingWrite[T](write: DbApi.Txn => T, onRollback: () => Unit) {
+    val promise: Promise[Try[T]] = Promise()
+
+    /** Runs inside a savepoint, so a failure only rolls back this write
+      * @return completes the caller, once the enclosing transaction has committed
+      */
+    def execute(txn: DbApi.Txn): () => Unit = {
+      val result = Try(txn.savepoint(_ => write(txn)))
+      if (result.isFailure) onRollback()
+      () => promise.success(result): Unit
+    }
+
+    def fail(throwable: Throwable): Unit = {
+      onRollback()
+      promise.success(Failure(throwable)): Unit
+    }
+  }
+}
+
+/** Single-writer ingest queue
+  * Writes are drained by one thread and committed together in a single transaction once
+  * either commitIntervalMillis has passed since the first write of a batch, or batchSize
+  * writes have accumulated, so a batch costs one fsync rather than one per write
+  */
+class GroupCommitWriter(
+    writer: DbClient.DataSource,
+    batchSize: Int,
+    commitIntervalMillis: Long,
+    queueCapacity: Int
+) extends AutoCloseable
+    with Logging {
+  private val queue: ArrayBlockingQueue[PendingWrite[?]] = new ArrayBlockingQueue(queueCapacity)
+  // Held while checking running & offering, so nothing is queued once close has been called
+  private val lock: Object = new Object
+  @volatile private var running: Boolean = true
+  @volatile private var worker: Option[Thread] = None
+
+  @tailrec
+  private def collect(batch: Vector[PendingWrite[?]], deadline: Long): Vector[PendingWrite[?]] = {
+    val remaining = deadline - System.nanoTime()
+    if (batch.size >= batchSize || remaining <= 0) batch
+    else
+      Option(queue.poll(remaining, TimeUnit.NANOSECONDS)) match {
+        case Some(write) => collect(batch :+ write, deadline)
+        case None        => batch
+      }
+  }
+
+  private def commit(batch: Vector[PendingWrite[?]]): Unit = {
+    Try(writer.transaction { implicit db => batch.map(_.execute(db)) }) match {
+      case Success(completions) => completions.foreach(_())
+      case Failure(e)           =>
+        log.error(s"Failed to commit ${batch.size} writes", e)
+        batch.foreach(_.fail(e))
+    }
+  }
+
+  private def run(): Unit = {
+    // Keep draining after close so accepted writes are still committed
+    while (running || !queue.isEmpty) {
+      Option(queue.poll(commitIntervalMillis, TimeUnit.MILLISECONDS)).foreach { first =>
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(commitIntervalMillis)
+        commit(collect(Vector(first), deadline))
+      }
+    }
+  }
+
+  def start(): GroupCommitWriter = {
+    val thread = new Thread(() => run(), "sqlite-group-commit")
+    thread.setDaemon(true)
+    thread.start()
+    worker = Some(thread)
+    this
+  }
+
+  /** @param onRollback called on the writer thread if this write is rolled back,
+    *                   so state kept alongside the database can be invalidated
+    * @return completes once the batch containing this write has committed,
+    *         or immediately fails if the queue is full
+    */
+  def submit[T](write: DbApi.Txn => T, onRollback: () => Unit = () => ()): Future[Try[T]] = {
+    val pending = new PendingWrite(write, onRollback)
+    lock.synchronized {
+      if (!running) Future.successful(Failure(closedException))
+      else if (queue.offer(pending)) pending.promise.future
+      else Future.successful(Failure(WriteQueueFullException(queueCapacity)))
+    }
+  }
+
+  private def closedException: IllegalStateException = new IllegalStateException("Writer is closed")
+
+  /** Waits for accepted writes to be committed,
+    * failing any left queued if the worker isn't running to commit them
+    */
+  override def close(): Unit = {
+    lock.synchronized {
+      running = false
+    }
+    worker.foreach(_.join())
+    Iterator.continually(Option(queue.poll())).takeWhile(_.isDefined).flatten.foreach {
+      _.fail(closedException)
+    }
+  }
+}
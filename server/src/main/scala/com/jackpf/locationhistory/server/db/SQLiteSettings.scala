@@ -0,0 +1,48 @@
+package com.jackpf.locationhistory.server.db
+
+import org.sqlite.SQLiteConfig.{JournalMode, SynchronousMode}
+import scopt.Read
+
+object SQLiteSettings {
+  val DefaultJournalMode: JournalMode = JournalMode.WAL
+  val DefaultSynchronous: SynchronousMode = SynchronousMode.NORMAL
+  val DefaultBusyTimeoutMillis: Int = 5_000
+  val DefaultMmapSizeBytes: Long = 256L * 1024 * 1024
+  val DefaultCacheSizeKiB: Int = 16 * 1024
+  val DefaultReaderPoolSize: Int = 4
+  val DefaultCommitIntervalMillis: Long = 10
+  val DefaultCommitBatchSize: Int = 1_000
+  val DefaultWriteQueueCapacity: Int = 10_000
+
+  private def readEnum[T](name: String, values: Array[T]): Read[T] = Read.reads { str =>
+    values
+      .find(_.toString.equalsIgnoreCase(str))
+      .getOrElse(
+        throw new IllegalArgumentException(
+          s"'$str' is not a valid ${name}. Allowed: ${values.mkString(", ")}"
+        )
+      )
+  }
+
+  given Read[JournalMode] = readEnum("JournalMode", JournalMode.values())
+  given Read[SynchronousMode] = readEnum("SynchronousMode", SynchronousMode.values())
+}
+
+/** Tuning applied to each pooled SQLite connection
+  * @param cacheSizeKiB page cache size per connection
+  * @param readerPoolSize number of read-only connections, in addition to the single writer
+  * @param commitIntervalMillis maximum time a write waits for others to join its commit
+  * @param commitBatchSize maximum number of writes per commit
+  * @param writeQueueCapacity writes beyond this many pending ones are rejected
+  */
+case class SQLiteSettings(
+    journalMode: JournalMode = SQLiteSettings.DefaultJournalMode,
+    synchronous: SynchronousMode = SQLiteSettings.DefaultSynchronous,
+    busyTimeoutMillis: Int = SQLiteSettings.DefaultBusyTimeoutMillis,
+    mmapSizeBytes: Long = SQLiteSettings.DefaultMmapSizeBytes,
+    cacheSizeKiB: Int = SQLiteSettings.DefaultCacheSizeKiB,
+    readerPoolSize: Int = SQLiteSettings.DefaultReaderPoolSize,
+    commitIntervalMillis: Long = SQLiteSettings.DefaultCommitIntervalMillis,
+    commitBatchSize: Int = SQLiteSettings.DefaultCommitBatchSize,
+    writeQueueCapacity: Int = SQLiteSettings.DefaultWriteQueueCapacity
+)
@@ -6,6 +6,8 @@ import com.jackpf.locationhistory.server.util.Logging
 import scala.concurrent.{ExecutionContext, Future}
 
 class EnricherExecutor(enrichers: Iterable[MetadataEnricher]) extends Logging {
+  def isEmpty: Boolean = enrichers.isEmpty
+
   private def recoverErrors(
       enricher: MetadataEnricher,
       result: Future[Map[String, String]]
@@ -21,14 +23,24 @@ class EnricherExecutor(enrichers: Iterable[MetadataEnricher]) extends Logging {
   private def mergeMetadata(multiple: Iterable[Map[String, String]]): Map[String, String] =
     multiple.flatten.toMap
 
-  def enrich(location: Location)(using
-      ec: ExecutionContext
-  ): Future[Location] = {
-    val responses = enrichers.map(enricher => recoverErrors(enricher, enricher.enrich(location)))
-
-    Future.sequence(responses).map { results =>
+  private def enrichWith(
+      location: Location,
+      enrich: MetadataEnricher => Future[Map[String, String]]
+  )(using ec: ExecutionContext): Future[Location] =
+    Future.sequence(enrichers.map(enrich)).map { results =>
       val metadata = mergeMetadata(results)
       location.patchMetadata(metadata)
     }
-  }
+
+  def enrich(location: Location)(using
+      ec: ExecutionContext
+  ): Future[Location] =
+    enrichWith(location, enricher => recoverErrors(enricher, enricher.enrich(location)))
+
+  /** Fails if any enricher fails, rather than dropping its metadata, so the caller can retry
+    */
+  def enrichOrFail(location: Location)(using
+      ec: ExecutionContext
+  ): Future[Location] =
+    enrichWith(location, _.enrich(location))
 }
@@ -0,0 +1,146 @@
+package com.jackpf.locationhistory.server.enricher
+
+import com.jackpf.locationhistory.server.enricher.EnrichmentPipeline.*
+import com.jackpf.locationhistory.server.errors.ApplicationErrors.{
+  DeviceNotFoundException,
+  LocationNotFoundException
+}
+import com.jackpf.locationhistory.server.model.{DeviceId, Location, StoredLocation}
+import com.jackpf.locationhistory.server.repo.LocationRepo
+import com.jackpf.locationhistory.server.util.Logging
+
+import java.util.concurrent.{ArrayBlockingQueue, Executors, ScheduledExecutorService, TimeUnit}
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future, blocking}
+import scala.util.{Failure, Success, Try}
+
+object EnrichmentPipeline {
+  val DefaultWorkers: Int = 1
+  val DefaultQueueCapacity: Int = 10_000
+  val DefaultMaxAttempts: Int = 5
+  val DefaultRetryDelayMillis: Long = 1_000L
+
+  /** How long an idle worker waits for a job, or a submission for room, before checking
+    * the pipeline's still running
+    */
+  private val PollMillis: Long = 100L
+
+  /** A stored location to enrich, as it was when stored
+    * @param attempt starting from 1
+    */
+  private case class Job(deviceId: DeviceId.Type, id: Long, location: Location, attempt: Int)
+}
+
+/** Enriches stored locations off the request path, patching in their metadata once enriched
+  * Jobs are queued up to queueCapacity, beyond which submitting waits for room, holding up
+  * ingest rather than leaving locations unenriched
+  * Each worker takes one job at a time, so enrichers see at most workers requests in flight
+  * A failed job is requeued after a delay doubling with each attempt; the last attempt keeps
+  * whatever metadata the enrichers that succeeded returned
+  */
+class EnrichmentPipeline(
+    enricherExecutor: EnricherExecutor,
+    locationRepo: LocationRepo,
+    workers: Int = DefaultWorkers,
+    queueCapacity: Int = DefaultQueueCapacity,
+    maxAttempts: Int = DefaultMaxAttempts,
+    retryDelayMillis: Long = DefaultRetryDelayMillis
+)(using ExecutionContext)
+    extends AutoCloseable
+    with Logging {
+  private val queue: ArrayBlockingQueue[Job] = new ArrayBlockingQueue(queueCapacity)
+  @volatile private var running: Boolean = true
+  @volatile private var threads: Seq[Thread] = Seq.empty
+
+  private val retries: ScheduledExecutorService =
+    Executors.newSingleThreadScheduledExecutor { runnable =>
+      val thread = new Thread(runnable, "enrichment-retry")
+      thread.setDaemon(true)
+      thread
+    }
+
+  /** Waits for room in the queue, giving up once closed as queued jobs are dropped then too */
+  private def enqueue(job: Job): Unit = blocking {
+    while (running && !queue.offer(job, PollMillis, TimeUnit.MILLISECONDS)) ()
+  }
+
+  /** Queues locations to enrich, waiting for room in the queue but not for them to be enriched
+    * Nothing is queued when there are no enrichers
+    */
+  def submit(deviceId: DeviceId.Type, storedLocations: Seq[StoredLocation]): Unit =
+    if (!enricherExecutor.isEmpty) storedLocations.foreach { storedLocation =>
+      enqueue(Job(deviceId, storedLocation.id, storedLocation.location, attempt = 1))
+    }
+
+  /** Skipped if the enrichers added nothing, or if the location has since moved,
+    * as it will have been queued again
+    */
+  private def patch(job: Job, enriched: Location): Future[Unit] =
+    if (enriched.metadata == job.location.metadata) Future.unit
+    else
+      locationRepo
+        .update(
+          job.deviceId,
+          job.id,
+          storedLocation =>
+            if (
+              storedLocation.location.lat != job.location.lat ||
+              storedLocation.location.lon != job.location.lon
+            ) storedLocation
+            else
+              storedLocation.copy(location =
+                storedLocation.location.patchMetadata(enriched.metadata)
+              )
+        )
+        .flatMap(Future.fromTry)
+
+  private def process(job: Job): Unit = {
+    val lastAttempt = job.attempt >= maxAttempts
+    val enriched =
+      if (lastAttempt) enricherExecutor.enrich(job.location)
+      else enricherExecutor.enrichOrFail(job.location)
+
+    Try(Await.result(enriched.flatMap(patch(job, _)), Duration.Inf)) match {
+      case Success(_) => ()
+      case Failure(_: LocationNotFoundException | _: DeviceNotFoundException) =>
+        log.info(s"Location ${job.id} of ${job.deviceId} was deleted before it was enriched")
+      case Failure(e) if !lastAttempt =>
+        val delay = retryDelayMillis << (job.attempt - 1)
+        log.warn(
+          s"Failed to enrich location ${job.id} of ${job.deviceId}, retrying in ${delay}ms",
+          e
+        )
+        val retry: Runnable = () => enqueue(job.copy(attempt = job.attempt + 1))
+        val _ = retries.schedule(
+          retry,
+          delay,
+          TimeUnit.MILLISECONDS
+        )
+      case Failure(e) =>
+        log.error(s"Failed to enrich location ${job.id} of ${job.deviceId}", e)
+    }
+  }
+
+  private def run(): Unit =
+    while (running) {
+      Option(queue.poll(PollMillis, TimeUnit.MILLISECONDS)).foreach(process)
+    }
+
+  def start(): EnrichmentPipeline = {
+    threads = (1 to workers).map { n =>
+      val thread = new Thread(() => run(), s"enrichment-worker-${n}")
+      thread.setDaemon(true)
+      thread.start()
+      thread
+    }
+    this
+  }
+
+  /** Waits for jobs in progress; queued jobs are dropped, leaving their locations unenriched */
+  override def close(): Unit = {
+    running = false
+    retries.shutdownNow(): Unit
+    threads.foreach(_.join())
+    if (!queue.isEmpty) log.warn(s"Closed with ${queue.size} locations left unenriched")
+  }
+}
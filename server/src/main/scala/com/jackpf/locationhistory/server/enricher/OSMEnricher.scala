@@ -1,13 +1,21 @@
 package com.jackpf.locationhistory.server.enricher
 
-import com.jackpf.locationhistory.server.model.Location
+import com.jackpf.locationhistory.server.errors.ApplicationErrors.{
+  RequestDeadlineExceededException,
+  RequestQueueFullException
+}
+import com.jackpf.locationhistory.server.model.{Location, Place}
 import com.jackpf.locationhistory.server.service.OSMService
 import com.jackpf.locationhistory.server.util.Logging
 
 import scala.concurrent.{ExecutionContext, Future}
 
+object OSMEnricher {
+  val Name: String = "osm"
+}
+
 class OSMEnricher(osmService: OSMService) extends MetadataEnricher with Logging {
-  override val name: String = "osm"
+  override val name: String = OSMEnricher.Name
 
   /** Filter empty values
     * Also optional empty string values (e.g. Some("")), which OSM likes to do...
@@ -18,13 +26,14 @@ class OSMEnricher(osmService: OSMService) extends MetadataEnricher with Logging
 
   private def extraTagsToMap(extraTags: Map[String, String]): Map[String, String] =
     extraTags.map { case (key, value) =>
-      s"tag:${key}" -> value
+      s"${Place.TagPrefix}${key}" -> value
     }
 
+  /** Keys must be [[Place.Keys]], so they're stored once per place rather than per location */
   private def metaToMap(meta: OSMService.GeoLookupResponse): Map[String, String] =
     Map(
-      "osmType" -> Some(meta.osm_type),
-      "osmId" -> Some(meta.osm_id.toString),
+      Place.OsmTypeKey -> Some(meta.osm_type),
+      Place.OsmIdKey -> Some(meta.osm_id.toString),
       "displayName" -> Some(meta.display_name),
       "name" -> meta.name,
       "category" -> Some(meta.category),
@@ -45,6 +54,9 @@ class OSMEnricher(osmService: OSMService) extends MetadataEnricher with Logging
     ).collect(nonEmpty)
       ++ extraTagsToMap(meta.extratags.getOrElse(Map.empty))
 
+  /** Locations are left unenriched when OSM lookups are saturated, rather than retried and
+    * adding to the backlog
+    */
   override def enrich(
       location: Location
   )(using ec: ExecutionContext): Future[Map[String, String]] = {
@@ -52,5 +64,10 @@ class OSMEnricher(osmService: OSMService) extends MetadataEnricher with Logging
       .reverseGeoLookup(location.lat, location.lon)
       .flatMap(Future.fromTry)
       .map(metaToMap)
+      .recover {
+        case e @ (_: RequestQueueFullException | _: RequestDeadlineExceededException) =>
+          log.warn(s"Not enriching location: ${e.getMessage}")
+          Map.empty
+      }
   }
 }
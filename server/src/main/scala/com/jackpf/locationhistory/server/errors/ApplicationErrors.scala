@@ -24,6 +24,17 @@ object ApplicationErrors {
     override val status: Status = Status.INVALID_ARGUMENT
   }
 
+  case class TooManyLocationsException(
+      count: Int,
+      maxLocations: Int,
+      cause: Throwable = None.orNull
+  ) extends ApplicationError(
+        s"Too many locations: ${count}; expected at most ${maxLocations}",
+        cause
+      ) {
+    override val status: Status = Status.INVALID_ARGUMENT
+  }
+
   case class DeviceNotRegisteredException(
       deviceId: DeviceId.Type,
       cause: Throwable = None.orNull
@@ -65,6 +76,76 @@ object ApplicationErrors {
     override val status: Status = Status.NOT_FOUND
   }
 
+  case class InvalidCursorException(
+      cursor: String,
+      cause: Throwable = None.orNull
+  ) extends ApplicationError(s"Invalid cursor: ${cursor}", cause) {
+    override val status: Status = Status.INVALID_ARGUMENT
+  }
+
+  case class InvalidBoundingBoxException(
+      bounds: String,
+      cause: Throwable = None.orNull
+  ) extends ApplicationError(s"Invalid bounding box: ${bounds}", cause) {
+    override val status: Status = Status.INVALID_ARGUMENT
+  }
+
+  case class NoBoundingBoxProvidedException(
+      cause: Throwable = None.orNull
+  ) extends ApplicationError("No bounding box provided", cause) {
+    override val status: Status = Status.INVALID_ARGUMENT
+  }
+
+  case class InvalidZoomException(
+      zoom: Int,
+      maxZoom: Int,
+      cause: Throwable = None.orNull
+  ) extends ApplicationError(s"Invalid zoom ${zoom}; expected 0 to ${maxZoom}", cause) {
+    override val status: Status = Status.INVALID_ARGUMENT
+  }
+
+  case class StreamCancelledException(
+      cause: Throwable = None.orNull
+  ) extends ApplicationError("Stream was cancelled by the client", cause) {
+    override val status: Status = Status.CANCELLED
+  }
+
+  case class TooManyStreamsException(
+      maxStreams: Int,
+      cause: Throwable = None.orNull
+  ) extends ApplicationError(
+        s"Too many concurrent streams; expected at most ${maxStreams}",
+        cause
+      ) {
+    override val status: Status = Status.RESOURCE_EXHAUSTED
+  }
+
+  case class WriteQueueFullException(
+      capacity: Int,
+      cause: Throwable = None.orNull
+  ) extends ApplicationError(s"Write queue is full (capacity ${capacity})", cause) {
+    override val status: Status = Status.RESOURCE_EXHAUSTED
+  }
+
+  case class RequestQueueFullException(
+      name: String,
+      capacity: Int,
+      cause: Throwable = None.orNull
+  ) extends ApplicationError(s"Request queue ${name} is full (capacity ${capacity})", cause) {
+    override val status: Status = Status.RESOURCE_EXHAUSTED
+  }
+
+  case class RequestDeadlineExceededException(
+      name: String,
+      timeoutMillis: Long,
+      cause: Throwable = None.orNull
+  ) extends ApplicationError(
+        s"Request queued in ${name} wasn't made within ${timeoutMillis}ms",
+        cause
+      ) {
+    override val status: Status = Status.DEADLINE_EXCEEDED
+  }
+
   case class NoPushHandler(
       deviceId: DeviceId.Type,
       cause: Throwable = None.orNull
@@ -3,21 +3,38 @@ package com.jackpf.locationhistory.server.grpc
 import com.jackpf.locationhistory.admin_service.*
 import com.jackpf.locationhistory.admin_service.AdminServiceGrpc.AdminService
 import com.jackpf.locationhistory.server.errors.ApplicationErrors.*
-import com.jackpf.locationhistory.server.grpc.AdminServiceImpl.{DefaultUser, TokenDuration}
+import com.jackpf.locationhistory.server.grpc.AdminServiceImpl.{
+  DefaultChunkSize,
+  DefaultUser,
+  MaxPageSize,
+  TokenDuration
+}
 import com.jackpf.locationhistory.server.grpc.interceptors.TokenService
-import com.jackpf.locationhistory.server.model.DeviceId
+import com.jackpf.locationhistory.server.model.{
+  BoundingBox,
+  DeviceId,
+  LocationCursor,
+  Tile,
+  TimeRange
+}
 import com.jackpf.locationhistory.server.repo.{DeviceRepo, LocationRepo}
 import com.jackpf.locationhistory.server.service.NotificationService
 import com.jackpf.locationhistory.server.util.Logging
 import com.jackpf.locationhistory.server.util.ParamExtractor.*
 import com.jackpf.locationhistory.server.util.ResponseMapper.*
+import io.grpc.stub.StreamObserver
 
+import java.util.concurrent.Semaphore
 import scala.concurrent.{ExecutionContext, Future}
-import scala.util.{Failure, Success}
+import scala.util.{Failure, Success, Try}
 
 object AdminServiceImpl {
   val DefaultUser: String = "admin"
   val TokenDuration: Long = 3600
+  val MaxPageSize: Int = 10_000
+  val DefaultChunkSize: Int = 500
+  /* Each stream holds a thread while it waits on a slow client */
+  val MaxConcurrentStreams: Int = 16
 }
 
 class AdminServiceImpl(
@@ -25,10 +42,13 @@ class AdminServiceImpl(
     tokenService: TokenService,
     deviceRepo: DeviceRepo,
     locationRepo: LocationRepo,
-    notificationService: NotificationService
+    notificationService: NotificationService,
+    maxConcurrentStreams: Int = MaxConcurrentStreams
 )(using ec: ExecutionContext)
     extends AdminService
     with Logging {
+  private val streams: Semaphore = new Semaphore(maxConcurrentStreams)
+
   override def login(request: LoginRequest): Future[LoginResponse] = {
     Future {
       if (authenticationManager.isValidPassword(request.password)) Success(())
@@ -76,12 +96,132 @@ class AdminServiceImpl(
     } yield response
   }.toResponse(_ => ApproveDeviceResponse(success = true))
 
+  private def parseCursor(cursor: String): Try[Option[LocationCursor]] =
+    if (cursor.isEmpty) Success(None)
+    else
+      LocationCursor.decode(cursor).map(Some(_)).recoverWith { case e =>
+        Failure(InvalidCursorException(cursor, e))
+      }
+
   override def listLocations(
       request: ListLocationsRequest
   ): Future[ListLocationsResponse] = {
+    val pageSize = Option(request.pageSize).filter(_ > 0).map(math.min(_, MaxPageSize))
+
+    for {
+      cursor <- parseCursor(request.cursor).toFuture
+      // Fetch one extra location to determine whether there's a next page
+      locations <- locationRepo.getForDeviceInRange(
+        DeviceId(request.deviceId),
+        TimeRange(from = request.fromTimestamp, to = request.toTimestamp),
+        after = cursor,
+        limit = pageSize.map(_ + 1)
+      )
+    } yield {
+      val page = pageSize.fold(locations)(locations.take)
+      val hasMore = pageSize.exists(locations.size > _)
+
+      Success(
+        ListLocationsResponse(
+          locations = page.map(_.toProto),
+          nextCursor = page.lastOption
+            .filter(_ => hasMore)
+            .map(LocationCursor.after(_).encode)
+            .getOrElse("")
+        )
+      )
+    }
+  }.toResponse(identity)
+
+  override def streamLocations(
+      request: StreamLocationsRequest,
+      responseObserver: StreamObserver[StreamLocationsResponse]
+  ): Unit = {
+    val chunkSize =
+      Option(request.chunkSize).filter(_ > 0).fold(DefaultChunkSize)(math.min(_, MaxPageSize))
+    val stream = new FlowControlledStreamObserver(responseObserver)
+
+    // The repo calls the consumer off the calling thread, as sending blocks while the client
+    // isn't ready, so the number of streams is capped
+    if (!streams.tryAcquire()) stream.fail(TooManyStreamsException(maxConcurrentStreams))
+    else
+      Future
+        .delegate {
+          locationRepo.streamForDeviceInRange(
+            DeviceId(request.deviceId),
+            TimeRange(from = request.fromTimestamp, to = request.toTimestamp),
+            chunkSize
+          ) { chunk =>
+            stream.send(StreamLocationsResponse(locations = chunk.map(_.toProto)))
+          }
+        }
+        .onComplete { result =>
+          streams.release()
+          result match {
+            case Success(_) => stream.complete()
+            case Failure(e) => stream.fail(e)
+          }
+        }
+  }
+
+  override def listLocationsInBounds(
+      request: ListLocationsInBoundsRequest
+  ): Future[ListLocationsInBoundsResponse] = {
+    val pageSize =
+      Option(request.pageSize).filter(_ > 0).fold(MaxPageSize)(math.min(_, MaxPageSize))
+
+    for {
+      proto <- request.bounds.toFutureOr(NoBoundingBoxProvidedException())
+      bounds <- BoundingBox.fromProto(proto).toFuture
+      cursor <- parseCursor(request.cursor).toFuture
+      // Fetch one extra location to determine whether there's a next page
+      locations <- locationRepo.getInBounds(
+        bounds,
+        TimeRange(from = request.fromTimestamp, to = request.toTimestamp),
+        devices = Option(request.deviceIds.map(DeviceId(_))).filter(_.nonEmpty),
+        after = cursor,
+        limit = Some(pageSize + 1)
+      )
+    } yield {
+      val page = locations.take(pageSize)
+
+      Success(
+        ListLocationsInBoundsResponse(
+          locations = page.map { case (deviceId, storedLocation) =>
+            DeviceLocation(deviceId = deviceId.toString, location = Some(storedLocation.toProto))
+          },
+          nextCursor = page.lastOption
+            .filter(_ => locations.size > pageSize)
+            .map { case (_, storedLocation) => LocationCursor.after(storedLocation).encode }
+            .getOrElse("")
+        )
+      )
+    }
+  }.toResponse(identity)
+
+  override def getHeatmap(request: GetHeatmapRequest): Future[GetHeatmapResponse] = {
     for {
-      locations <- locationRepo.getForDevice(DeviceId(request.deviceId), limit = None)
-    } yield ListLocationsResponse(locations.map(_.toProto))
+      zoom <- Some(request.zoom)
+        .filter(Tile.isValidZoom)
+        .toFutureOr(InvalidZoomException(request.zoom, Tile.MaxZoom))
+      bounds <- Try(request.bounds.map(BoundingBox.fromProto(_).get)).toFuture
+      tiles <- locationRepo.getTiles(
+        zoom,
+        bounds,
+        devices = Option(request.deviceIds.map(DeviceId(_))).filter(_.nonEmpty)
+      )
+    } yield Success(tiles)
+  }.toResponse { tiles =>
+    GetHeatmapResponse(tiles = tiles.map { case (tile, aggregate) =>
+      HeatmapTile(
+        x = tile.x,
+        y = tile.y,
+        bounds = Some(tile.bounds.toProto),
+        locations = aggregate.locations,
+        count = aggregate.count,
+        dwellMillis = aggregate.dwellMillis
+      )
+    })
   }
 
   override def sendNotification(
@@ -3,11 +3,13 @@ package com.jackpf.locationhistory.server.grpc
 import com.jackpf.locationhistory.beacon_service.*
 import com.jackpf.locationhistory.beacon_service.BeaconServiceGrpc.BeaconService
 import com.jackpf.locationhistory.common.DeviceStatus
-import com.jackpf.locationhistory.server.enricher.EnricherExecutor
+import com.jackpf.locationhistory.server.enricher.EnrichmentPipeline
 import com.jackpf.locationhistory.server.errors.ApplicationErrors.{
   NoDeviceProvidedException,
-  NoLocationProvidedException
+  NoLocationProvidedException,
+  TooManyLocationsException
 }
+import com.jackpf.locationhistory.server.grpc.BeaconServiceImpl.MaxBatchSize
 import com.jackpf.locationhistory.server.model.*
 import com.jackpf.locationhistory.server.repo.{DeviceRepo, LocationRepo}
 import com.jackpf.locationhistory.server.util.ParamExtractor.*
@@ -16,10 +18,19 @@ import com.jackpf.locationhistory.server.util.{LocationUtils, Logging}
 
 import scala.concurrent.{ExecutionContext, Future}
 
+object BeaconServiceImpl {
+
+  /** Most locations accepted by one SetLocations request, which is stored in one write */
+  val MaxBatchSize: Int = 1_000
+}
+
+/** Locations are stored as received and acknowledged straight away,
+  * then enriched in the background by the [[EnrichmentPipeline]]
+  */
 class BeaconServiceImpl(
     deviceRepo: DeviceRepo,
     locationRepo: LocationRepo,
-    enricherExecutor: EnricherExecutor
+    enrichmentPipeline: EnrichmentPipeline
 )(using ec: ExecutionContext)
     extends BeaconService
     with Logging {
@@ -56,17 +67,35 @@ class BeaconServiceImpl(
       protoLocation <- request.location.toFutureOr(NoLocationProvidedException())
       location = Location.fromProto(protoLocation)
       storedDevice <- deviceRepo.getRegisteredDevice(DeviceId(request.deviceId)).toFuture
-      enrichedLocation <- enricherExecutor.enrich(location)
-      storeLocationResponse <- locationRepo
-        .storeDeviceLocationOrUpdatePrevious(
-          storedDevice.device.id,
-          enrichedLocation,
-          timestamp = request.timestamp,
-          LocationUtils.isDuplicate
-        )
-    } yield storeLocationResponse
+      written <- locationRepo.appendOrMerge(
+        storedDevice.device.id,
+        Seq((location, request.timestamp)),
+        LocationUtils.isDuplicate
+      )
+    } yield written.map(enrichmentPipeline.submit(storedDevice.device.id, _))
   }.toResponse(_ => SetLocationResponse(success = true))
 
+  override def setLocations(
+      request: SetLocationsRequest
+  ): Future[SetLocationsResponse] = {
+    for {
+      _ <- Some(request.locations.size)
+        .filter(_ <= MaxBatchSize)
+        .toFutureOr(TooManyLocationsException(request.locations.size, MaxBatchSize))
+      locations <- Future.traverse(request.locations) { timestampedLocation =>
+        timestampedLocation.location
+          .toFutureOr(NoLocationProvidedException())
+          .map(protoLocation => (Location.fromProto(protoLocation), timestampedLocation.timestamp))
+      }
+      storedDevice <- deviceRepo.getRegisteredDevice(DeviceId(request.deviceId)).toFuture
+      written <- locationRepo.appendOrMerge(
+        storedDevice.device.id,
+        locations.sortBy { case (_, timestamp) => timestamp },
+        LocationUtils.isDuplicate
+      )
+    } yield written.map(enrichmentPipeline.submit(storedDevice.device.id, _))
+  }.toResponse(_ => SetLocationsResponse(success = true))
+
   override def registerPushHandler(
       request: RegisterPushHandlerRequest
   ): Future[RegisterPushHandlerResponse] = {
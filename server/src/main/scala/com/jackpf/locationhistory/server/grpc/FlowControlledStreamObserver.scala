@@ -0,0 +1,66 @@
+package com.jackpf.locationhistory.server.grpc
+
+import com.jackpf.locationhistory.server.errors.ApplicationErrors.StreamCancelledException
+import com.jackpf.locationhistory.server.grpc.ErrorMapper.*
+import com.jackpf.locationhistory.server.grpc.FlowControlledStreamObserver.ReadyPollMillis
+import io.grpc.stub.{ServerCallStreamObserver, StreamObserver}
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+
+object FlowControlledStreamObserver {
+  /* Upper bound on a single wait, guards against a missed onReady notification */
+  private val ReadyPollMillis: Long = 1000
+}
+
+/** Wraps a server stream so that a single producer blocks in [[send]] until the
+  * transport is ready for more messages, keeping buffered responses bounded
+  * Must be constructed during the initial RPC call so handlers can be registered
+  */
+class FlowControlledStreamObserver[T](observer: StreamObserver[T]) {
+  private val lock = new ReentrantLock()
+  private val readyCondition = lock.newCondition()
+  @volatile private var cancelled: Boolean = false
+
+  private val serverObserver: Option[ServerCallStreamObserver[T]] = observer match {
+    case serverCallObserver: ServerCallStreamObserver[T] @unchecked =>
+      serverCallObserver.setOnReadyHandler(() => signal())
+      serverCallObserver.setOnCancelHandler(() => {
+        cancelled = true
+        signal()
+      })
+      Some(serverCallObserver)
+    case _ => None
+  }
+
+  private def signal(): Unit = {
+    lock.lock()
+    try readyCondition.signalAll()
+    finally lock.unlock()
+  }
+
+  private def isReady: Boolean = serverObserver.forall(_.isReady)
+
+  def isCancelled: Boolean = cancelled
+
+  /** Blocks until the stream can accept another message
+    * @throws StreamCancelledException if the client cancelled the call
+    */
+  def send(value: T): Unit = {
+    lock.lock()
+    try {
+      while (!cancelled && !isReady) {
+        val _ = readyCondition.await(ReadyPollMillis, TimeUnit.MILLISECONDS)
+      }
+    } finally lock.unlock()
+
+    if (cancelled) throw StreamCancelledException()
+    observer.onNext(value)
+  }
+
+  def complete(): Unit =
+    if (!cancelled) observer.onCompleted()
+
+  def fail(throwable: Throwable): Unit =
+    if (!cancelled) observer.onError(throwable.toGrpcError)
+}
@@ -2,7 +2,7 @@ package com.jackpf.locationhistory.server.grpc
 
 import com.jackpf.locationhistory.admin_service.AdminServiceGrpc
 import com.jackpf.locationhistory.beacon_service.BeaconServiceGrpc
-import com.jackpf.locationhistory.server.enricher.EnricherExecutor
+import com.jackpf.locationhistory.server.enricher.EnrichmentPipeline
 import com.jackpf.locationhistory.server.grpc.interceptors.{AuthenticationInterceptor, TokenService}
 import com.jackpf.locationhistory.server.repo.{DeviceRepo, LocationRepo}
 import com.jackpf.locationhistory.server.service.NotificationService
@@ -39,10 +39,10 @@ object Services {
   def beaconServices(
       deviceRepo: DeviceRepo,
       locationRepo: LocationRepo,
-      enricherExecutor: EnricherExecutor
+      enrichmentPipeline: EnrichmentPipeline
   ): Seq[ServerServiceDefinition] = Seq(
     BeaconServiceGrpc.bindService(
-      new BeaconServiceImpl(deviceRepo, locationRepo, enricherExecutor),
+      new BeaconServiceImpl(deviceRepo, locationRepo, enrichmentPipeline),
       global
     )
   )
@@ -0,0 +1,58 @@
+package com.jackpf.locationhistory.server.model
+
+import com.jackpf.locationhistory.admin_service.BoundingBox as ProtoBoundingBox
+import com.jackpf.locationhistory.server.errors.ApplicationErrors.InvalidBoundingBoxException
+
+import scala.util.{Failure, Success, Try}
+
+object BoundingBox {
+  def fromProto(proto: ProtoBoundingBox): Try[BoundingBox] = {
+    val bounds = BoundingBox(
+      minLat = proto.minLat,
+      minLon = proto.minLon,
+      maxLat = proto.maxLat,
+      maxLon = proto.maxLon
+    )
+
+    if (bounds.isValid) Success(bounds)
+    else Failure(InvalidBoundingBoxException(bounds.toString))
+  }
+}
+
+/** Inclusive lat/lon box
+  * Boxes crossing the antimeridian have minLon > maxLon
+  */
+case class BoundingBox(minLat: Double, minLon: Double, maxLat: Double, maxLon: Double) {
+  def toProto: ProtoBoundingBox = ProtoBoundingBox(
+    minLat = minLat,
+    minLon = minLon,
+    maxLat = maxLat,
+    maxLon = maxLon
+  )
+
+  def isValid: Boolean =
+    minLat >= -90 && maxLat <= 90 && minLat <= maxLat &&
+      minLon >= -180 && minLon <= 180 && maxLon >= -180 && maxLon <= 180
+
+  def crossesAntimeridian: Boolean = minLon > maxLon
+
+  /** The box split at the antimeridian, so each part has minLon <= maxLon */
+  def parts: Seq[BoundingBox] =
+    if (crossesAntimeridian) Seq(copy(maxLon = 180), copy(minLon = -180))
+    else Seq(this)
+
+  def contains(lat: Double, lon: Double): Boolean =
+    lat >= minLat && lat <= maxLat && {
+      if (crossesAntimeridian) lon >= minLon || lon <= maxLon
+      else lon >= minLon && lon <= maxLon
+    }
+
+  /** Whether another box overlaps this one, which mustn't cross the antimeridian */
+  def intersects(
+      otherMinLat: Double,
+      otherMinLon: Double,
+      otherMaxLat: Double,
+      otherMaxLon: Double
+  ): Boolean =
+    otherMaxLat >= minLat && otherMinLat <= maxLat && otherMaxLon >= minLon && otherMinLon <= maxLon
+}
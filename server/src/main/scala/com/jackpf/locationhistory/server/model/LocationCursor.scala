@@ -0,0 +1,34 @@
+package com.jackpf.locationhistory.server.model
+
+import java.nio.charset.StandardCharsets
+import java.util.Base64
+import scala.util.Try
+
+object LocationCursor {
+  private val Separator: String = ":"
+
+  def after(storedLocation: StoredLocation): LocationCursor =
+    LocationCursor(endTimestamp = storedLocation.metadata.endTimestamp, id = storedLocation.id)
+
+  def decode(encoded: String): Try[LocationCursor] = Try {
+    val decoded = new String(Base64.getUrlDecoder.decode(encoded), StandardCharsets.UTF_8)
+    decoded.split(Separator) match {
+      case Array(endTimestamp, id) => LocationCursor(endTimestamp.toLong, id.toLong)
+      case _ => throw new IllegalArgumentException(s"Malformed cursor: ${encoded}")
+    }
+  }
+}
+
+/** Position in a device's (endTimestamp, id) ordered history
+  * Pages resume strictly after this position
+  */
+case class LocationCursor(endTimestamp: Long, id: Long) {
+  def isBefore(storedLocation: StoredLocation): Boolean =
+    storedLocation.metadata.endTimestamp > endTimestamp ||
+      (storedLocation.metadata.endTimestamp == endTimestamp && storedLocation.id > id)
+
+  def encode: String = {
+    val raw = s"${endTimestamp}${LocationCursor.Separator}${id}"
+    Base64.getUrlEncoder.withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8))
+  }
+}
@@ -0,0 +1,54 @@
+package com.jackpf.locationhistory.server.model
+
+object Place {
+  val OsmTypeKey: String = "osmType"
+  val OsmIdKey: String = "osmId"
+  val TagPrefix: String = "tag:"
+
+  /** Metadata keys describing the place a location was enriched with, rather than the fix itself
+    * Extra OSM tags are prefixed with TagPrefix
+    */
+  val Keys: Set[String] = Set(
+    OsmTypeKey,
+    OsmIdKey,
+    "displayName",
+    "name",
+    "category",
+    "type",
+    "houseNumber",
+    "road",
+    "quarter",
+    "suburb",
+    "borough",
+    "city",
+    "town",
+    "village",
+    "county",
+    "state",
+    "postcode",
+    "country",
+    "countryCode"
+  )
+
+  def isPlaceKey(key: String): Boolean = Keys.contains(key) || key.startsWith(TagPrefix)
+
+  /** Splits a location's metadata into the place it's been enriched with, if any,
+    * and the rest of its metadata
+    */
+  def split(metadata: Map[String, String]): (Option[Place], Map[String, String]) = {
+    val place = for {
+      osmType <- metadata.get(OsmTypeKey)
+      osmId <- metadata.get(OsmIdKey).flatMap(_.toLongOption)
+    } yield Place(osmType, osmId, metadata.filter { case (key, _) => isPlaceKey(key) })
+
+    place match {
+      case Some(p) => (Some(p), metadata.filterNot { case (key, _) => isPlaceKey(key) })
+      case None    => (None, metadata)
+    }
+  }
+}
+
+/** An OSM object locations have been enriched with
+  * @param metadata the place's metadata keys, including its OSM type & id
+  */
+case class Place(osmType: String, osmId: Long, metadata: Map[String, String])
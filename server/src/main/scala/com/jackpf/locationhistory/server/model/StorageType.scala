@@ -3,7 +3,7 @@ package com.jackpf.locationhistory.server.model
 import scopt.Read
 
 enum StorageType {
-  case IN_MEMORY, SQLITE, SQLITE_IN_MEMORY
+  case IN_MEMORY, IN_MEMORY_COLUMNAR, IN_MEMORY_PERSISTENT, SEGMENTED, SQLITE, SQLITE_IN_MEMORY
 }
 
 object StorageType {
@@ -0,0 +1,52 @@
+package com.jackpf.locationhistory.server.model
+
+object Tile {
+
+  /** Deepest zoom aggregated, with cells of about 600m by 300m at the equator */
+  val MaxZoom: Int = 16
+
+  def isValidZoom(zoom: Int): Boolean = zoom >= 0 && zoom <= MaxZoom
+
+  /** Cells along each axis at a zoom */
+  def cells(zoom: Int): Int = 1 << zoom
+
+  private def clamp(cell: Int, zoom: Int): Int = math.max(0, math.min(cell, cells(zoom) - 1))
+
+  /** Column holding a longitude, computed the same way as by SQLite so both agree at edges */
+  def x(lon: Double, zoom: Int): Int = clamp(((lon + 180.0) / 360.0 * cells(zoom)).toInt, zoom)
+
+  /** Row holding a latitude, counted from the south */
+  def y(lat: Double, zoom: Int): Int = clamp(((lat + 90.0) / 180.0 * cells(zoom)).toInt, zoom)
+
+  def containing(lat: Double, lon: Double, zoom: Int): Tile = Tile(zoom, x(lon, zoom), y(lat, zoom))
+
+  /** Ranges of the tiles at a zoom intersecting a bounding box, one per part of the box */
+  def ranges(bounds: BoundingBox, zoom: Int): Seq[TileRange] = bounds.parts.map { part =>
+    TileRange(
+      minX = x(part.minLon, zoom),
+      minY = y(part.minLat, zoom),
+      maxX = x(part.maxLon, zoom),
+      maxY = y(part.maxLat, zoom)
+    )
+  }
+}
+
+/** A cell of the geohash grid, split into 2^zoom columns of longitude and rows of latitude,
+  * i.e. a geohash of 2 * zoom bits
+  */
+case class Tile(zoom: Int, x: Int, y: Int) {
+  def bounds: BoundingBox = {
+    val cells = Tile.cells(zoom).toDouble
+    BoundingBox(
+      minLat = y / cells * 180.0 - 90.0,
+      minLon = x / cells * 360.0 - 180.0,
+      maxLat = (y + 1) / cells * 180.0 - 90.0,
+      maxLon = (x + 1) / cells * 360.0 - 180.0
+    )
+  }
+}
+
+/** Inclusive range of tile columns & rows */
+case class TileRange(minX: Int, minY: Int, maxX: Int, maxY: Int) {
+  def contains(x: Int, y: Int): Boolean = x >= minX && x <= maxX && y >= minY && y <= maxY
+}
@@ -0,0 +1,31 @@
+package com.jackpf.locationhistory.server.model
+
+object TileAggregate {
+  val Empty: TileAggregate = TileAggregate(locations = 0L, count = 0L, dwellMillis = 0L)
+
+  def of(storedLocation: StoredLocation): TileAggregate = TileAggregate(
+    locations = 1L,
+    count = storedLocation.metadata.count,
+    dwellMillis = storedLocation.metadata.endTimestamp - storedLocation.metadata.startTimestamp
+  )
+}
+
+/** Totals over the locations in a tile
+  * @param count the number of fixes, counting each one merged into a location
+  * @param dwellMillis the time spent at the locations, between their start & end timestamps
+  */
+case class TileAggregate(locations: Long, count: Long, dwellMillis: Long) {
+  def +(other: TileAggregate): TileAggregate = TileAggregate(
+    locations = locations + other.locations,
+    count = count + other.count,
+    dwellMillis = dwellMillis + other.dwellMillis
+  )
+
+  def -(other: TileAggregate): TileAggregate = TileAggregate(
+    locations = locations - other.locations,
+    count = count - other.count,
+    dwellMillis = dwellMillis - other.dwellMillis
+  )
+
+  def isEmpty: Boolean = locations == 0L
+}
@@ -0,0 +1,17 @@
+package com.jackpf.locationhistory.server.model
+
+object TimeRange {
+  val All: TimeRange = TimeRange(from = None, to = None)
+}
+
+/** Inclusive window over a location's end timestamp
+  * Either bound may be open
+  */
+case class TimeRange(from: Option[Long], to: Option[Long]) {
+  def lowerBound: Long = from.getOrElse(Long.MinValue)
+
+  def upperBound: Long = to.getOrElse(Long.MaxValue)
+
+  def contains(timestamp: Long): Boolean =
+    timestamp >= lowerBound && timestamp <= upperBound
+}
@@ -0,0 +1,55 @@
+package com.jackpf.locationhistory.server.persistence
+
+import java.io.{DataInputStream, DataOutputStream}
+import java.nio.charset.StandardCharsets
+
+/** Encodes values to and from a compact binary form */
+trait BinaryCodec[T] {
+  def write(out: DataOutputStream, value: T): Unit
+
+  def read(in: DataInputStream): T
+}
+
+object BinaryCodec {
+  def writeString(out: DataOutputStream, value: String): Unit = {
+    val bytes = value.getBytes(StandardCharsets.UTF_8)
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+
+  def readString(in: DataInputStream): String = {
+    val bytes = new Array[Byte](in.readInt())
+    in.readFully(bytes)
+    new String(bytes, StandardCharsets.UTF_8)
+  }
+
+  def writeMap(out: DataOutputStream, map: Map[String, String]): Unit = {
+    out.writeInt(map.size)
+    map.foreach { case (key, value) =>
+      writeString(out, key)
+      writeString(out, value)
+    }
+  }
+
+  def readMap(in: DataInputStream): Map[String, String] =
+    Iterator.fill(in.readInt())(readString(in) -> readString(in)).toMap
+
+  val stringMap: BinaryCodec[Map[String, String]] = new BinaryCodec[Map[String, String]] {
+    override def write(out: DataOutputStream, value: Map[String, String]): Unit =
+      writeMap(out, value)
+
+    override def read(in: DataInputStream): Map[String, String] = readMap(in)
+  }
+
+  def writeOption[T](out: DataOutputStream, value: Option[T])(
+      write: (DataOutputStream, T) => Unit
+  ): Unit = value match {
+    case Some(v) =>
+      out.writeBoolean(true)
+      write(out, v)
+    case None => out.writeBoolean(false)
+  }
+
+  def readOption[T](in: DataInputStream)(read: DataInputStream => T): Option[T] =
+    if (in.readBoolean()) Some(read(in)) else None
+}
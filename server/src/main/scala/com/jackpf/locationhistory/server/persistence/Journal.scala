@@ -0,0 +1,184 @@
+package com.jackpf.locationhistory.server.persistence
+
+import com.jackpf.locationhistory.server.persistence.Journal.*
+import com.jackpf.locationhistory.server.util.Logging
+
+import java.io.*
+import java.nio.file.{Files, Path, StandardCopyOption}
+import java.util.zip.CRC32
+import scala.jdk.CollectionConverters.*
+import scala.util.Using
+
+object Journal {
+  private val SnapshotMagic: Int = 0x4c48534e // "LHSN"
+  private val JournalSuffix: String = ".journal"
+  /* Bounds the allocation for a record whose length was torn */
+  private val MaxRecordBytes: Int = 64 * 1024 * 1024
+
+  private def crc(bytes: Array[Byte]): Int = {
+    val crc32 = new CRC32()
+    crc32.update(bytes)
+    crc32.getValue.toInt
+  }
+}
+
+/** Append-only binary journal of events, compacted into snapshots
+  * Journals are split into generations: taking a snapshot starts a new generation,
+  * writes the current state, then deletes the generations the snapshot covers.
+  * Recovery replays the snapshot followed by every later generation, so events must be
+  * idempotent, as state captured by a snapshot may also be replayed from the journal
+  * Records are length-prefixed & checksummed, a torn record at the tail is discarded
+  * Appends are flushed to the OS on each write, and synced to disk on rotation & close
+  */
+class Journal[E](directory: Path, name: String, codec: BinaryCodec[E])
+    extends AutoCloseable
+    with Logging {
+  private val snapshotFile: Path = directory.resolve(s"${name}.snapshot")
+  private var generation: Long = 0
+  private var output: Option[(FileOutputStream, DataOutputStream)] = None
+
+  private def journalFile(generation: Long): Path =
+    directory.resolve(f"${name}.${generation}%012d${JournalSuffix}")
+
+  private def generations(): Seq[Long] = Using.resource(Files.list(directory)) { files =>
+    val prefix = s"${name}."
+    files.iterator.asScala
+      .map(_.getFileName.toString)
+      .filter(file => file.startsWith(prefix) && file.endsWith(JournalSuffix))
+      .flatMap(file => file.stripPrefix(prefix).stripSuffix(JournalSuffix).toLongOption)
+      .toSeq
+      .sorted
+  }
+
+  private def writeRecord(out: DataOutputStream, event: E): Unit = {
+    val bytes = new ByteArrayOutputStream()
+    codec.write(new DataOutputStream(bytes), event)
+    val payload = bytes.toByteArray
+    out.writeInt(payload.length)
+    out.writeInt(crc(payload))
+    out.write(payload)
+  }
+
+  /** @return false at the end of the stream, or at a torn or corrupt record */
+  private def readRecord(in: DataInputStream, replay: E => Unit): Boolean = {
+    try {
+      val length = in.readInt()
+      val checksum = in.readInt()
+
+      if (length < 0 || length > MaxRecordBytes) false
+      else {
+        val payload = new Array[Byte](length)
+        in.readFully(payload)
+
+        if (crc(payload) != checksum) false
+        else {
+          replay(codec.read(new DataInputStream(new ByteArrayInputStream(payload))))
+          true
+        }
+      }
+    } catch {
+      case _: EOFException => false
+    }
+  }
+
+  private def readRecords(in: DataInputStream, replay: E => Unit): Long = {
+    var count = 0L
+    while (readRecord(in, replay)) count += 1
+    count
+  }
+
+  private def open(newGeneration: Long): Unit = {
+    val file = new FileOutputStream(journalFile(newGeneration).toFile, true)
+    generation = newGeneration
+    output = Some((file, new DataOutputStream(new BufferedOutputStream(file))))
+  }
+
+  private def closeOutput(): Unit = {
+    output.foreach { case (file, out) =>
+      out.flush()
+      file.getFD.sync()
+      out.close()
+    }
+    output = None
+  }
+
+  /** Replays the latest snapshot then any later journal generations,
+    * and opens a new generation for appends
+    */
+  def recover(replay: E => Unit): Unit = synchronized {
+    Files.createDirectories(directory)
+
+    val snapshotGeneration =
+      if (!Files.exists(snapshotFile)) 0L
+      else
+        Using.resource(
+          new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))
+        ) { in =>
+          if (in.readInt() != SnapshotMagic)
+            throw new IOException(s"${snapshotFile} is not a snapshot")
+          val snapshotGeneration = in.readLong()
+          val count = readRecords(in, replay)
+          log.info(s"Restored ${count} ${name} from snapshot")
+          snapshotGeneration
+        }
+
+    val journals = generations()
+    journals.filter(_ < snapshotGeneration).foreach(g => Files.deleteIfExists(journalFile(g)))
+    journals.filter(_ >= snapshotGeneration).foreach { g =>
+      Using.resource(
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile(g))))
+      ) { in =>
+        val count = readRecords(in, replay)
+        log.info(s"Replayed ${count} events from ${journalFile(g).getFileName}")
+      }
+    }
+
+    // Never append after a possibly torn tail
+    open((journals :+ (snapshotGeneration - 1)).max + 1)
+  }
+
+  def append(events: Seq[E]): Unit = if (events.nonEmpty) synchronized {
+    output match {
+      case Some((_, out)) =>
+        events.foreach(writeRecord(out, _))
+        out.flush()
+      case None => throw new IllegalStateException(s"${name} journal is not open")
+    }
+  }
+
+  /** Writes the state emitted by snapshotState to a new snapshot,
+    * then deletes the journal generations it supersedes
+    * Appends continue in a new generation while the snapshot is written
+    */
+  def snapshot(snapshotState: (E => Unit) => Unit): Unit = {
+    val snapshotGeneration = synchronized {
+      closeOutput()
+      open(generation + 1)
+      generation
+    }
+
+    val tmpFile = directory.resolve(s"${name}.snapshot.tmp")
+    Using.resource(new FileOutputStream(tmpFile.toFile)) { file =>
+      val out = new DataOutputStream(new BufferedOutputStream(file))
+      out.writeInt(SnapshotMagic)
+      out.writeLong(snapshotGeneration)
+      snapshotState(event => writeRecord(out, event))
+      out.flush()
+      file.getFD.sync()
+    }
+    Files.move(
+      tmpFile,
+      snapshotFile,
+      StandardCopyOption.ATOMIC_MOVE,
+      StandardCopyOption.REPLACE_EXISTING
+    )
+
+    generations()
+      .filter(_ < snapshotGeneration)
+      .foreach(g => Files.deleteIfExists(journalFile(g)))
+  }
+
+  override def close(): Unit = synchronized {
+    closeOutput()
+  }
+}
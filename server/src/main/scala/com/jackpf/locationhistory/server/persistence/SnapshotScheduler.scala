@@ -0,0 +1,44 @@
+package com.jackpf.locationhistory.server.persistence
+
+import com.jackpf.locationhistory.server.util.Logging
+
+import java.util.concurrent.{Executors, ScheduledExecutorService, TimeUnit}
+import scala.util.{Failure, Success, Try}
+
+/** Periodically snapshots each store, keeping journals (and so recovery time) bounded
+  * Closing takes a final snapshot, then closes the stores
+  */
+class SnapshotScheduler(stores: Seq[Snapshottable], intervalSeconds: Long)
+    extends AutoCloseable
+    with Logging {
+  private val executor: ScheduledExecutorService =
+    Executors.newSingleThreadScheduledExecutor { runnable =>
+      val thread = new Thread(runnable, "snapshot-scheduler")
+      thread.setDaemon(true)
+      thread
+    }
+
+  private def snapshotAll(): Unit = stores.foreach { store =>
+    Try(store.snapshot()) match {
+      case Success(_) => ()
+      case Failure(e) => log.error(s"Failed to snapshot ${store.getClass.getSimpleName}", e)
+    }
+  }
+
+  def start(): SnapshotScheduler = {
+    val _ = executor.scheduleWithFixedDelay(
+      () => snapshotAll(),
+      intervalSeconds,
+      intervalSeconds,
+      TimeUnit.SECONDS
+    )
+    this
+  }
+
+  override def close(): Unit = {
+    executor.shutdown()
+    val _ = executor.awaitTermination(1, TimeUnit.MINUTES)
+    snapshotAll()
+    stores.foreach(_.close())
+  }
+}
@@ -0,0 +1,6 @@
+package com.jackpf.locationhistory.server.persistence
+
+/** A store whose journal can be compacted into a snapshot of its current state */
+trait Snapshottable extends AutoCloseable {
+  def snapshot(): Unit
+}
@@ -0,0 +1,55 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.StoredDevice.DeviceStatus
+import com.jackpf.locationhistory.server.model.{Device, DeviceId, PushHandler, StoredDevice}
+import com.jackpf.locationhistory.server.persistence.BinaryCodec
+import com.jackpf.locationhistory.server.persistence.BinaryCodec.*
+
+import java.io.{DataInputStream, DataOutputStream}
+
+/** Journaled device writes, idempotent so they can be replayed over a snapshot */
+enum DeviceEvent {
+
+  /** Inserts or overwrites a device by id */
+  case Stored(storedDevice: StoredDevice)
+  case Deleted(deviceId: DeviceId.Type)
+  case AllDeleted
+}
+
+object DeviceEvent {
+  private val StoredTag: Byte = 0
+  private val DeletedTag: Byte = 1
+  private val AllDeletedTag: Byte = 2
+
+  val codec: BinaryCodec[DeviceEvent] = new BinaryCodec[DeviceEvent] {
+    override def write(out: DataOutputStream, event: DeviceEvent): Unit = event match {
+      case Stored(storedDevice) =>
+        out.writeByte(StoredTag)
+        writeString(out, DeviceId.value(storedDevice.device.id))
+        writeString(out, storedDevice.device.name)
+        writeString(out, storedDevice.status.toString)
+        writeOption(out, storedDevice.pushHandler) { (out, pushHandler) =>
+          writeString(out, pushHandler.name)
+          writeString(out, pushHandler.url)
+        }
+      case Deleted(deviceId) =>
+        out.writeByte(DeletedTag)
+        writeString(out, DeviceId.value(deviceId))
+      case AllDeleted =>
+        out.writeByte(AllDeletedTag)
+    }
+
+    override def read(in: DataInputStream): DeviceEvent = in.readByte() match {
+      case StoredTag =>
+        val device = Device(id = DeviceId(readString(in)), name = readString(in))
+        val status = DeviceStatus.valueOf(readString(in))
+        val pushHandler = readOption(in) { in =>
+          PushHandler(name = readString(in), url = readString(in))
+        }
+        Stored(StoredDevice(device = device, status = status, pushHandler = pushHandler))
+      case DeletedTag    => Deleted(DeviceId(readString(in)))
+      case AllDeletedTag => AllDeleted
+      case tag           => throw new IllegalArgumentException(s"Unknown device event ${tag}")
+    }
+  }
+}
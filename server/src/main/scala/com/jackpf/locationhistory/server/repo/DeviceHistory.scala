@@ -0,0 +1,173 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.{LocationCursor, StoredLocation, TimeRange}
+
+import scala.collection.mutable
+
+/** A single device's mutable location history, in (endTimestamp, id) order
+  * Ids are allocated in insertion order, so are ascending apart from locations that arrived
+  * late and were inserted before the end of the history, whose end timestamps are kept by id
+  * to look them up by position instead
+  * Not thread safe, callers must synchronise on the instance
+  */
+private[repo] trait DeviceHistory {
+
+  /** Set once the device is deleted, so writers holding a stale reference can retry */
+  var deleted: Boolean = false
+
+  /** Maintained by the repo, which reports locations it moves */
+  val spatialIndex: LocationSpatialIndex = new LocationSpatialIndex(this)
+
+  /** Maintained by the repo, which reports locations it adds & removes */
+  val tiles: LocationTiles = new LocationTiles(this)
+
+  /** End timestamps of locations inserted before the end of the history, by id
+    * May keep locations since removed, which no longer match any position
+    */
+  protected val late: mutable.LongMap[Long] = mutable.LongMap.empty
+
+  def size: Int
+
+  def apply(index: Int): StoredLocation
+
+  /** Appends a location, evicting the oldest if the history is full */
+  def append(storedLocation: StoredLocation): Unit
+
+  /** Whether appending would evict the oldest location */
+  def isFull: Boolean = false
+
+  /** Overwrites the location at index, keeping its id */
+  final def set(index: Int, storedLocation: StoredLocation): Unit = {
+    val id = apply(index).id
+    if (late.contains(id)) recordLate(id, storedLocation.metadata.endTimestamp)
+    overwrite(index, storedLocation)
+  }
+
+  /** Overwrites the location at index, keeping its id */
+  protected def overwrite(index: Int, storedLocation: StoredLocation): Unit
+
+  /** Writes a location at index, including its id */
+  protected def put(index: Int, storedLocation: StoredLocation): Unit
+
+  /** Inserts a location with a greater id than any other at index, shifting later ones up
+    * The oldest location is evicted if the history is full, so a location that would be
+    * the oldest of a full history isn't inserted
+    * @return whether it was inserted
+    */
+  def insert(index: Int, storedLocation: StoredLocation): Boolean =
+    if (index == size) {
+      append(storedLocation)
+      true
+    } else if (isFull && index == 0) false
+    else {
+      recordLate(storedLocation.id, storedLocation.metadata.endTimestamp)
+      val evicts = isFull
+      append(storedLocation)
+      val at = if (evicts) index - 1 else index
+      (size - 1 until at by -1).foreach(i => move(i - 1, i))
+      put(at, storedLocation)
+      true
+    }
+
+  /** Keeps the end timestamp of a location inserted before the end of the history */
+  protected def recordLate(id: Long, endTimestamp: Long): Unit =
+    late.update(id, endTimestamp)
+
+  /** Index of the location with this id, searching the ids in history order,
+    * so only correct if they're ascending
+    */
+  protected def searchId(id: Long): Int
+
+  /** @return the index of the location with this id, or -1 */
+  final def indexOf(id: Long): Int = late.get(id) match {
+    case Some(endTimestamp) =>
+      val index = lowerBound(
+        TimeRange(from = Some(endTimestamp), to = None),
+        after = Some(LocationCursor(endTimestamp, id - 1))
+      )
+      if (index < size && apply(index).id == id) index else -1
+    case None if late.isEmpty => searchId(id)
+    case None                 =>
+      // The other locations' ids are ascending, so late locations are stepped over
+      def isLate(index: Int): Boolean = late.contains(apply(index).id)
+
+      var low = 0
+      var high = size
+      while (low < high) {
+        val mid = (low + high) >>> 1
+        var probe = mid
+        while (probe < high && isLate(probe)) probe += 1
+        if (probe == high) high = mid
+        else if (apply(probe).id >= id) high = probe
+        else low = probe + 1
+      }
+      while (low < size && isLate(low)) low += 1
+      if (low < size && apply(low).id == id) low else -1
+    }
+
+  /** Greatest id in the history, or of a late location since removed */
+  def maxId: Long =
+    (last.map(_.id) ++ late.keys).maxOption.getOrElse(0L)
+
+  /** Forgets late locations among the first count, before they're removed */
+  protected def forgetLate(count: Int): Unit = if (late.nonEmpty && count > 0) {
+    if (count >= size) late.clear()
+    else if (count <= late.size) (0 until count).foreach(index => late.remove(apply(index).id))
+    else {
+      val first = LocationCursor.after(apply(count))
+      late.filterInPlace { (id, endTimestamp) =>
+        endTimestamp > first.endTimestamp || (endTimestamp == first.endTimestamp && id >= first.id)
+      }: Unit
+    }
+  }
+
+  /** Index of the first location positioned after the range lower bound & cursor */
+  def lowerBound(range: TimeRange, after: Option[LocationCursor]): Int
+
+  /** Index of the first location positioned after the range upper bound */
+  def upperBound(range: TimeRange): Int
+
+  /** Copies the location at index from over index to, including its id */
+  protected def move(from: Int, to: Int): Unit
+
+  /** Drops the locations from index size onwards */
+  protected def truncate(size: Int): Unit
+
+  /** Removes the locations in [from, until), shifting later ones down */
+  def remove(from: Int, until: Int): Unit = if (from < until) {
+    (until until size).foreach(index => move(index, index - (until - from)))
+    truncate(size - (until - from))
+  }
+
+  /** Removes the locations with these ids in a single pass, shifting later ones down
+    * @return the number removed
+    */
+  def remove(ids: Set[Long]): Int = {
+    val removed = ids.iterator.map(indexOf).filter(_ != -1).toVector
+
+    late --= ids
+    removed.minOption.foreach { from =>
+      var kept = from
+      (from until size).foreach { index =>
+        if (!ids.contains(apply(index).id)) {
+          if (index != kept) move(index, kept)
+          kept += 1
+        }
+      }
+      truncate(kept)
+    }
+    removed.size
+  }
+
+  def last: Option[StoredLocation] =
+    if (size == 0) None else Some(apply(size - 1))
+
+  def slice(from: Int, until: Int): Vector[StoredLocation] =
+    (math.max(from, 0) until math.min(until, size)).map(apply).toVector
+
+  /** Syncs any storage backing the history to disk */
+  def flush(): Unit = ()
+
+  /** Releases any storage backing the history, once the device is deleted */
+  def delete(): Unit = ()
+}
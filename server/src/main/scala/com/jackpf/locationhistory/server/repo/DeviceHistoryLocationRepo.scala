@@ -0,0 +1,359 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.errors.ApplicationErrors.{
+  DeviceNotFoundException,
+  LocationNotFoundException
+}
+import com.jackpf.locationhistory.server.model.{
+  BoundingBox,
+  DeviceId,
+  Location,
+  LocationCursor,
+  StoredLocation,
+  Tile,
+  TileAggregate,
+  TimeRange
+}
+import com.jackpf.locationhistory.server.persistence.{Journal, Snapshottable}
+import com.jackpf.locationhistory.server.repo.LocationRepoExtensions.{
+  CheckDuplicateLocationFunc,
+  collapseDuplicates
+}
+
+import java.util.concurrent.atomic.AtomicLong
+import scala.annotation.tailrec
+import scala.collection.concurrent
+import scala.concurrent.{ExecutionContext, Future, blocking}
+import scala.util.Try
+
+/** In-memory location repo holding each device's history in a [[DeviceHistory]],
+  * guarded by a per-device lock
+  * Writes are journaled under the same lock if a journal is given,
+  * so the journal replays them in the order they were applied
+  */
+abstract class DeviceHistoryLocationRepo(journal: Option[Journal[LocationEvent]])
+    extends LocationRepo
+    with Snapshottable {
+  private val incrementalId: AtomicLong = new AtomicLong(1)
+  private val storedLocations: concurrent.Map[DeviceId.Type, DeviceHistory] =
+    concurrent.TrieMap.empty
+
+  protected def newHistory(deviceId: DeviceId.Type): DeviceHistory
+
+  private def generateId(): Long =
+    incrementalId.getAndIncrement()
+
+  /** Adds a history loaded from storage, before the repo is used */
+  protected def restore(deviceId: DeviceId.Type, history: DeviceHistory): Unit = {
+    storedLocations.update(deviceId, history)
+    incrementalId.accumulateAndGet(history.maxId + 1, (a, b) => math.max(a, b)): Unit
+  }
+
+  /** Overwrites a location, telling the spatial index if it's moved */
+  private def set(history: DeviceHistory, index: Int, storedLocation: StoredLocation): Unit = {
+    val existing = history(index)
+    if (
+      existing.location.lat != storedLocation.location.lat ||
+      existing.location.lon != storedLocation.location.lon
+    ) history.spatialIndex.moved(existing.id)
+    history.tiles.removed(existing)
+    history.set(index, storedLocation)
+    history.tiles.added(history(index))
+  }
+
+  /** Adds a new location at its position in the history, which is the end unless it arrived
+    * after later locations, telling the tiles about any location it evicts
+    * @return false if it would be evicted straight away, so wasn't added
+    */
+  private def add(history: DeviceHistory, storedLocation: StoredLocation): Boolean = {
+    val index = history.upperBound(
+      TimeRange(from = None, to = Some(storedLocation.metadata.endTimestamp))
+    )
+    val added = index > 0 || !history.isFull
+    if (added) {
+      if (index < history.size) history.spatialIndex.inserted()
+      if (history.isFull) history.tiles.removing(0, 1)
+      history.insert(index, storedLocation): Unit
+      history.tiles.added(storedLocation)
+    }
+    added
+  }
+
+  /** @return the number of locations removed */
+  private def remove(history: DeviceHistory, ids: Set[Long]): Int = {
+    history.tiles.removing(ids)
+    history.remove(ids)
+  }
+
+  private def record(events: => Seq[LocationEvent]): Unit =
+    journal.foreach(_.append(events))
+
+  private def replay(event: LocationEvent): Unit = event match {
+    case LocationEvent.Stored(deviceId, storedLocation) =>
+      val history = storedLocations.getOrElseUpdate(deviceId, newHistory(deviceId))
+      val index = history.indexOf(storedLocation.id)
+
+      if (index != -1) set(history, index, storedLocation)
+      // Anything allocated before the device's greatest id was removed after being journaled
+      else if (history.maxId < storedLocation.id) add(history, storedLocation): Unit
+
+      incrementalId.accumulateAndGet(storedLocation.id + 1, (a, b) => math.max(a, b)): Unit
+    case LocationEvent.DeviceDeleted(deviceId) =>
+      storedLocations.remove(deviceId): Unit
+    case LocationEvent.Deleted(deviceId, ids) =>
+      storedLocations.get(deviceId).foreach(remove(_, ids.toSet): Unit)
+    case LocationEvent.Expired(deviceId, before) =>
+      storedLocations.get(deviceId).foreach(expire(_, before): Unit)
+  }
+
+  /** Late locations are inserted at their position, so those that ended before a timestamp
+    * are always a prefix of the history
+    * @return the number of locations removed
+    */
+  private def expire(history: DeviceHistory, before: Long): Int = {
+    val expired = history.lowerBound(TimeRange(from = Some(before), to = None), after = None)
+    history.tiles.removing(0, expired)
+    history.remove(0, expired)
+    expired
+  }
+
+  override def init(): Future[Unit] = Future.fromTry {
+    Try(journal.foreach(_.recover(replay)))
+  }
+
+  override def snapshot(): Unit = journal.foreach {
+    _.snapshot { emit =>
+      storedLocations.foreach { case (deviceId, history) =>
+        // Copied under the lock, but written out after it, so writes aren't blocked on disk
+        // Written in id order, so replaying doesn't take them for locations since removed
+        val locations = history.synchronized {
+          if (history.deleted) Vector.empty else history.slice(0, history.size)
+        }.sortBy(_.id)
+        locations.foreach(storedLocation => emit(LocationEvent.Stored(deviceId, storedLocation)))
+      }
+    }
+  }
+
+  protected def flush(): Unit =
+    storedLocations.values.foreach(history => history.synchronized(history.flush()))
+
+  override def close(): Unit = {
+    flush()
+    journal.foreach(_.close())
+  }
+
+  /** Runs a write under the device's lock, retrying if the device is concurrently deleted */
+  @tailrec
+  private def write[T](deviceId: DeviceId.Type)(f: DeviceHistory => T): T = {
+    val history = storedLocations.getOrElseUpdate(deviceId, newHistory(deviceId))
+    val result = history.synchronized {
+      if (history.deleted) None
+      else Some(f(history))
+    }
+
+    result match {
+      case Some(value) => value
+      case None        => write(deviceId)(f)
+    }
+  }
+
+  /** Runs a read or update under the device's lock
+    * Reads copy the rows they return out under the lock, so a device's writes wait for the
+    * copy, which is a flat copy of at most maxItems rows; other devices aren't held up, and
+    * unbounded reads should stream, which copies a chunk at a time
+    */
+  private def withDevice[T](deviceId: DeviceId.Type)(f: DeviceHistory => T)(default: => T): T =
+    storedLocations.get(deviceId) match {
+      case Some(history) => history.synchronized(f(history))
+      case None          => default
+    }
+
+  override def storeDeviceLocation(
+      deviceId: DeviceId.Type,
+      location: Location,
+      metadata: StoredLocation.Metadata
+  ): Future[Try[Unit]] = Future.successful {
+    Try {
+      write(deviceId) { history =>
+        // Ids are allocated under the device's lock, so each device's ids are ascending
+        val storedLocation =
+          StoredLocation.fromLocation(location, id = generateId(), metadata = metadata)
+        if (add(history, storedLocation))
+          record(Seq(LocationEvent.Stored(deviceId, storedLocation)))
+      }
+    }
+  }
+
+  override def appendOrMerge(
+      deviceId: DeviceId.Type,
+      locations: Seq[(Location, Long)],
+      isDuplicate: CheckDuplicateLocationFunc
+  ): Future[Try[Vector[StoredLocation]]] = Future.successful {
+    Try {
+      write(deviceId) { history =>
+        val collapsed = collapseDuplicates(history.last, locations, isDuplicate)
+        val inserted = collapsed.newLocations.map { case (location, metadata) =>
+          StoredLocation.fromLocation(location, id = generateId(), metadata = metadata)
+        }
+
+        collapsed.updatedPrevious.foreach(previous => set(history, history.size - 1, previous))
+        val added = inserted.filter(add(history, _))
+
+        val written = collapsed.updatedPrevious.toVector ++ added
+        record(written.map(LocationEvent.Stored(deviceId, _)))
+        written
+      }
+    }
+  }
+
+  override def getForDevice(
+      deviceId: DeviceId.Type,
+      limit: Option[Int]
+  ): Future[Vector[StoredLocation]] = Future.successful {
+    withDevice(deviceId) { history =>
+      limit match {
+        case Some(l) => history.slice(history.size - l, history.size)
+        case None    => history.slice(0, history.size)
+      }
+    }(Vector.empty)
+  }
+
+  override def getForDeviceInRange(
+      deviceId: DeviceId.Type,
+      range: TimeRange,
+      after: Option[LocationCursor],
+      limit: Option[Int]
+  ): Future[Vector[StoredLocation]] = Future.successful {
+    withDevice(deviceId) { history =>
+      val from = history.lowerBound(range, after)
+      val until = history.upperBound(range)
+
+      limit match {
+        case Some(l) => history.slice(from, math.min(until, from + l))
+        case None    => history.slice(from, until)
+      }
+    }(Vector.empty)
+  }
+
+  /** Copies one chunk at a time under the device's lock, calling the consumer outside it
+    * Chunks resume from a cursor, so writes between chunks don't skip or repeat locations
+    */
+  override def streamForDeviceInRange(
+      deviceId: DeviceId.Type,
+      range: TimeRange,
+      chunkSize: Int
+  )(consumer: Vector[StoredLocation] => Unit)(using ec: ExecutionContext): Future[Unit] = Future {
+    @tailrec
+    def streamFrom(after: Option[LocationCursor]): Unit = {
+      val chunk = withDevice(deviceId) { history =>
+        val from = history.lowerBound(range, after)
+        history.slice(from, math.min(history.upperBound(range), from + chunkSize))
+      }(Vector.empty)
+
+      if (chunk.nonEmpty) consumer(chunk)
+      if (chunk.size == chunkSize) streamFrom(chunk.lastOption.map(LocationCursor.after))
+    }
+
+    blocking(streamFrom(after = None))
+  }
+
+  /** Searches each device's history under its lock, then merges the devices' locations */
+  override def getInBounds(
+      bounds: BoundingBox,
+      range: TimeRange,
+      devices: Option[Seq[DeviceId.Type]],
+      after: Option[LocationCursor],
+      limit: Option[Int]
+  ): Future[Vector[(DeviceId.Type, StoredLocation)]] = Future.successful {
+    val found = devices.getOrElse(storedLocations.keys.toSeq).distinct.flatMap { deviceId =>
+      withDevice(deviceId) { history =>
+        history.spatialIndex
+          .search(bounds, history.lowerBound(range, after), history.upperBound(range), limit)
+          .map(deviceId -> _)
+      }(Vector.empty)
+    }
+
+    val sorted = found.sortBy { case (_, l) => (l.metadata.endTimestamp, l.id) }.toVector
+    limit.fold(sorted)(sorted.take)
+  }
+
+  /** Reads each device's tiles under its lock, then sums the devices' aggregates per tile */
+  override def getTiles(
+      zoom: Int,
+      bounds: Option[BoundingBox],
+      devices: Option[Seq[DeviceId.Type]]
+  ): Future[Vector[(Tile, TileAggregate)]] = Future.successful {
+    devices
+      .getOrElse(storedLocations.keys.toSeq)
+      .distinct
+      .flatMap(deviceId => withDevice(deviceId)(_.tiles.aggregates(zoom, bounds))(Vector.empty))
+      .groupMapReduce(_._1)(_._2)(_ + _)
+      .toVector
+      .sortBy { case (tile, _) => (tile.x, tile.y) }
+  }
+
+  override def update(
+      deviceId: DeviceId.Type,
+      id: Long,
+      updateAction: StoredLocation => StoredLocation
+  ): Future[Try[Unit]] = Future.successful {
+    Try {
+      withDevice(deviceId) { history =>
+        val index = history.indexOf(id)
+
+        if (index != -1) {
+          set(history, index, updateAction(history(index)))
+          record(Seq(LocationEvent.Stored(deviceId, history(index))))
+        } else throw LocationNotFoundException(deviceId, id)
+      }(throw DeviceNotFoundException(deviceId))
+    }
+  }
+
+  override def deleteLocations(deviceId: DeviceId.Type, ids: Seq[Long]): Future[Try[Int]] =
+    Future.successful {
+      Try {
+        withDevice(deviceId) { history =>
+          val removed = if (history.deleted) 0 else remove(history, ids.toSet)
+          if (removed > 0) record(Seq(LocationEvent.Deleted(deviceId, ids)))
+          removed
+        }(0)
+      }
+    }
+
+  /** Each device's expired locations are a prefix of its history,
+    * so are removed under a single hold of its lock
+    */
+  override def deleteBefore(timestamp: Long, batchSize: Int): Future[Try[Long]] =
+    Future.successful {
+      Try {
+        storedLocations.keys.toSeq.map { deviceId =>
+          withDevice(deviceId) { history =>
+            val removed = if (history.deleted) 0 else expire(history, timestamp)
+            if (removed > 0) record(Seq(LocationEvent.Expired(deviceId, timestamp)))
+            removed.toLong
+          }(0L)
+        }.sum
+      }
+    }
+
+  /** Unmapped under the lock, so a recreated history's writes are journaled after the deletion */
+  private def remove(deviceId: DeviceId.Type): Unit =
+    storedLocations.get(deviceId).foreach { history =>
+      history.synchronized {
+        if (!history.deleted) {
+          history.deleted = true
+          history.delete()
+          storedLocations.remove(deviceId, history): Unit
+          record(Seq(LocationEvent.DeviceDeleted(deviceId)))
+        }
+      }
+    }
+
+  override def deleteForDevice(deviceId: DeviceId.Type): Future[Unit] = Future.successful {
+    remove(deviceId)
+  }
+
+  override def deleteAll(): Future[Unit] = Future.successful {
+    storedLocations.keys.foreach(remove)
+  }
+}
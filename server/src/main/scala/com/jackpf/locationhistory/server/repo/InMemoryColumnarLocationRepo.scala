@@ -0,0 +1,19 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.DeviceId
+import com.jackpf.locationhistory.server.persistence.Journal
+import com.jackpf.locationhistory.server.repo.InMemoryLocationRepo.DefaultMaxItemsPerDevice
+
+/** In-memory location repo storing each device's history as primitive columns,
+  * with metadata maps dictionary encoded across all devices
+  * Much smaller heap footprint per location, at the cost of decoding on read
+  */
+class InMemoryColumnarLocationRepo(
+    maxItemsPerDevice: Long = DefaultMaxItemsPerDevice,
+    journal: Option[Journal[LocationEvent]] = None
+) extends DeviceHistoryLocationRepo(journal) {
+  private val dictionary: MetadataDictionary = new MetadataDictionary
+
+  override protected def newHistory(deviceId: DeviceId.Type): DeviceHistory =
+    new LocationColumns(dictionary, maxItemsPerDevice)
+}
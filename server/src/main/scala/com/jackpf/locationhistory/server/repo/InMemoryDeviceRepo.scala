@@ -6,19 +6,58 @@ import com.jackpf.locationhistory.server.errors.ApplicationErrors.{
 }
 import com.jackpf.locationhistory.server.model.StoredDevice.DeviceStatus
 import com.jackpf.locationhistory.server.model.{Device, DeviceId, StoredDevice}
+import com.jackpf.locationhistory.server.persistence.{Journal, Snapshottable}
 
 import scala.collection.concurrent
 import scala.concurrent.Future
 import scala.util.{Failure, Success, Try}
 
-class InMemoryDeviceRepo extends DeviceRepo {
+/** Durable across restarts if given a journal
+  * Writes are then serialised, so they're journaled in the order they're applied
+  */
+class InMemoryDeviceRepo(journal: Option[Journal[DeviceEvent]] = None)
+    extends DeviceRepo
+    with Snapshottable {
   private val storedDevices: concurrent.Map[DeviceId.Type, StoredDevice] =
     concurrent.TrieMap.empty
 
+  private def write[T](f: => T)(events: T => Seq[DeviceEvent]): T = journal match {
+    case Some(j) =>
+      synchronized {
+        val result = f
+        j.append(events(result))
+        result
+      }
+    case None => f
+  }
+
+  private def replay(event: DeviceEvent): Unit = event match {
+    case DeviceEvent.Stored(storedDevice) =>
+      storedDevices.update(storedDevice.device.id, storedDevice)
+    case DeviceEvent.Deleted(deviceId) =>
+      storedDevices.remove(deviceId): Unit
+    case DeviceEvent.AllDeleted =>
+      storedDevices.clear()
+  }
+
+  override def init(): Future[Unit] = Future.fromTry {
+    Try(journal.foreach(_.recover(replay)))
+  }
+
+  override def snapshot(): Unit = journal.foreach {
+    // Iterating a TrieMap works on a consistent snapshot of it
+    _.snapshot(emit => storedDevices.values.foreach(device => emit(DeviceEvent.Stored(device))))
+  }
+
+  override def close(): Unit = journal.foreach(_.close())
+
   override def register(device: Device): Future[Try[Unit]] = Future.successful {
     val storedDevice =
       StoredDevice.fromDevice(device, status = DeviceStatus.Pending)
-    val result = storedDevices.putIfAbsent(storedDevice.device.id, storedDevice)
+    val result = write(storedDevices.putIfAbsent(storedDevice.device.id, storedDevice)) {
+      case None    => Seq(DeviceEvent.Stored(storedDevice))
+      case Some(_) => Nil
+    }
 
     result match {
       case None    => Success(())
@@ -30,10 +69,12 @@ class InMemoryDeviceRepo extends DeviceRepo {
       id: DeviceId.Type,
       updateAction: StoredDevice => StoredDevice
   ): Future[Try[Unit]] = Future.successful {
-    val result = storedDevices.updateWith(id) {
-      case Some(foundDevice) => Some(updateAction(foundDevice))
-      case None              => None
-    }
+    val result = write {
+      storedDevices.updateWith(id) {
+        case Some(foundDevice) => Some(updateAction(foundDevice))
+        case None              => None
+      }
+    }(_.map(DeviceEvent.Stored(_)).toSeq)
 
     result match {
       case Some(_) => Success(())
@@ -52,13 +93,13 @@ class InMemoryDeviceRepo extends DeviceRepo {
     }
 
   override def delete(id: DeviceId.Type): Future[Try[Unit]] = Future.successful {
-    storedDevices.remove(id) match {
+    write(storedDevices.remove(id))(_.map(_ => DeviceEvent.Deleted(id)).toSeq) match {
       case Some(_) => Success(())
       case None    => Failure(DeviceNotFoundException(id))
     }
   }
 
   override def deleteAll(): Future[Unit] = Future.successful {
-    storedDevices.clear()
+    write(storedDevices.clear())(_ => Seq(DeviceEvent.AllDeleted))
   }
 }
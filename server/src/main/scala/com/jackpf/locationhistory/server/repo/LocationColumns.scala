@@ -0,0 +1,162 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.{
+  Location,
+  LocationCursor,
+  StoredLocation,
+  TimeRange
+}
+import com.jackpf.locationhistory.server.repo.LocationColumns.InitialCapacity
+
+object LocationColumns {
+  private val InitialCapacity: Int = 16
+}
+
+/** A device's locations held as primitive columns, with metadata dictionary encoded
+  * Live rows occupy [head, head + size), evicting the oldest rows only advances head,
+  * and the space is reclaimed by compacting when the columns next fill up
+  */
+private[repo] final class LocationColumns(dictionary: MetadataDictionary, maxItems: Long)
+    extends DeviceHistory {
+  private var head: Int = 0
+  private var length: Int = 0
+  private var ids: Array[Long] = new Array(InitialCapacity)
+  private var lats: Array[Double] = new Array(InitialCapacity)
+  private var lons: Array[Double] = new Array(InitialCapacity)
+  private var accuracies: Array[Double] = new Array(InitialCapacity)
+  private var startTimestamps: Array[Long] = new Array(InitialCapacity)
+  private var endTimestamps: Array[Long] = new Array(InitialCapacity)
+  private var counts: Array[Long] = new Array(InitialCapacity)
+  private var metadataCodes: Array[Int] = new Array(InitialCapacity)
+
+  override def size: Int = length
+
+  private def capacity: Int = ids.length
+
+  /** Compacts if at least half the columns are evicted rows, otherwise doubles capacity */
+  private def ensureCapacity(): Unit = if (head + length == capacity) {
+    // Captured up front, as capacity changes once the ids column is resized
+    val oldCapacity = capacity
+    val newCapacity = if (head >= oldCapacity / 2) oldCapacity else oldCapacity * 2
+
+    def resize[T](column: Array[T], allocate: Int => Array[T]): Array[T] = {
+      val resized = if (newCapacity == oldCapacity) column else allocate(newCapacity)
+      System.arraycopy(column, head, resized, 0, length)
+      resized
+    }
+
+    ids = resize(ids, new Array[Long](_))
+    lats = resize(lats, new Array[Double](_))
+    lons = resize(lons, new Array[Double](_))
+    accuracies = resize(accuracies, new Array[Double](_))
+    startTimestamps = resize(startTimestamps, new Array[Long](_))
+    endTimestamps = resize(endTimestamps, new Array[Long](_))
+    counts = resize(counts, new Array[Long](_))
+    metadataCodes = resize(metadataCodes, new Array[Int](_))
+    head = 0
+  }
+
+  private def write(
+      index: Int,
+      id: Long,
+      location: Location,
+      metadata: StoredLocation.Metadata
+  ): Unit = {
+    val i = head + index
+    ids(i) = id
+    lats(i) = location.lat
+    lons(i) = location.lon
+    accuracies(i) = location.accuracy
+    startTimestamps(i) = metadata.startTimestamp
+    endTimestamps(i) = metadata.endTimestamp
+    counts(i) = metadata.count
+    metadataCodes(i) = dictionary.encode(location.metadata)
+  }
+
+  override def isFull: Boolean = length >= maxItems
+
+  override def append(storedLocation: StoredLocation): Unit = {
+    if (isFull) {
+      forgetLate(1)
+      head += 1
+      length -= 1
+    }
+    ensureCapacity()
+    length += 1
+    write(length - 1, storedLocation.id, storedLocation.location, storedLocation.metadata)
+  }
+
+  override protected def overwrite(index: Int, storedLocation: StoredLocation): Unit =
+    write(index, ids(head + index), storedLocation.location, storedLocation.metadata)
+
+  override protected def put(index: Int, storedLocation: StoredLocation): Unit =
+    write(index, storedLocation.id, storedLocation.location, storedLocation.metadata)
+
+  override protected def move(from: Int, to: Int): Unit = {
+    val (i, j) = (head + from, head + to)
+    ids(j) = ids(i)
+    lats(j) = lats(i)
+    lons(j) = lons(i)
+    accuracies(j) = accuracies(i)
+    startTimestamps(j) = startTimestamps(i)
+    endTimestamps(j) = endTimestamps(i)
+    counts(j) = counts(i)
+    metadataCodes(j) = metadataCodes(i)
+  }
+
+  override protected def truncate(size: Int): Unit = length = size
+
+  /** Removing the oldest rows only advances head, like eviction */
+  override def remove(from: Int, until: Int): Unit =
+    if (from == 0 && until > 0) {
+      forgetLate(until)
+      head += until
+      length -= until
+    } else super.remove(from, until)
+
+  override def apply(index: Int): StoredLocation = {
+    val i = head + index
+    StoredLocation(
+      id = ids(i),
+      location = Location(
+        lat = lats(i),
+        lon = lons(i),
+        accuracy = accuracies(i),
+        metadata = dictionary.decode(metadataCodes(i))
+      ),
+      metadata = StoredLocation.Metadata(
+        startTimestamp = startTimestamps(i),
+        endTimestamp = endTimestamps(i),
+        count = counts(i)
+      )
+    )
+  }
+
+  /** Index of the first row satisfying a predicate that's monotonic over the rows */
+  private def search(isAfter: Int => Boolean): Int = {
+    var low = 0
+    var high = length
+    while (low < high) {
+      val mid = (low + high) >>> 1
+      if (isAfter(head + mid)) high = mid
+      else low = mid + 1
+    }
+    low
+  }
+
+  override protected def searchId(id: Long): Int = {
+    val index = search(i => ids(i) >= id)
+    if (index < length && ids(head + index) == id) index else -1
+  }
+
+  override def lowerBound(range: TimeRange, after: Option[LocationCursor]): Int =
+    search { i =>
+      endTimestamps(i) >= range.lowerBound && after.forall { cursor =>
+        endTimestamps(i) > cursor.endTimestamp ||
+        (endTimestamps(i) == cursor.endTimestamp && ids(i) > cursor.id)
+      }
+    }
+
+  override def upperBound(range: TimeRange): Int =
+    search(i => endTimestamps(i) > range.upperBound)
+}
@@ -0,0 +1,78 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.{DeviceId, Location, StoredLocation}
+import com.jackpf.locationhistory.server.persistence.BinaryCodec
+import com.jackpf.locationhistory.server.persistence.BinaryCodec.*
+
+import java.io.{DataInputStream, DataOutputStream}
+
+/** Journaled location writes, idempotent so they can be replayed over a snapshot */
+enum LocationEvent {
+
+  /** Inserts or overwrites a location by id */
+  case Stored(deviceId: DeviceId.Type, storedLocation: StoredLocation)
+  case DeviceDeleted(deviceId: DeviceId.Type)
+  case Deleted(deviceId: DeviceId.Type, ids: Seq[Long])
+
+  /** Deletes the device's locations that ended before a timestamp */
+  case Expired(deviceId: DeviceId.Type, before: Long)
+}
+
+object LocationEvent {
+  private val StoredTag: Byte = 0
+  private val DeviceDeletedTag: Byte = 1
+  private val DeletedTag: Byte = 2
+  private val ExpiredTag: Byte = 3
+
+  val codec: BinaryCodec[LocationEvent] = new BinaryCodec[LocationEvent] {
+    override def write(out: DataOutputStream, event: LocationEvent): Unit = event match {
+      case Stored(deviceId, storedLocation) =>
+        out.writeByte(StoredTag)
+        writeString(out, DeviceId.value(deviceId))
+        out.writeLong(storedLocation.id)
+        out.writeDouble(storedLocation.location.lat)
+        out.writeDouble(storedLocation.location.lon)
+        out.writeDouble(storedLocation.location.accuracy)
+        writeMap(out, storedLocation.location.metadata)
+        out.writeLong(storedLocation.metadata.startTimestamp)
+        out.writeLong(storedLocation.metadata.endTimestamp)
+        out.writeLong(storedLocation.metadata.count)
+      case DeviceDeleted(deviceId) =>
+        out.writeByte(DeviceDeletedTag)
+        writeString(out, DeviceId.value(deviceId))
+      case Deleted(deviceId, ids) =>
+        out.writeByte(DeletedTag)
+        writeString(out, DeviceId.value(deviceId))
+        out.writeInt(ids.size)
+        ids.foreach(out.writeLong)
+      case Expired(deviceId, before) =>
+        out.writeByte(ExpiredTag)
+        writeString(out, DeviceId.value(deviceId))
+        out.writeLong(before)
+    }
+
+    override def read(in: DataInputStream): LocationEvent = in.readByte() match {
+      case StoredTag =>
+        val deviceId = DeviceId(readString(in))
+        val id = in.readLong()
+        val location = Location(
+          lat = in.readDouble(),
+          lon = in.readDouble(),
+          accuracy = in.readDouble(),
+          metadata = readMap(in)
+        )
+        val metadata = StoredLocation.Metadata(
+          startTimestamp = in.readLong(),
+          endTimestamp = in.readLong(),
+          count = in.readLong()
+        )
+        Stored(deviceId, StoredLocation(id = id, location = location, metadata = metadata))
+      case DeviceDeletedTag => DeviceDeleted(DeviceId(readString(in)))
+      case DeletedTag =>
+        val deviceId = DeviceId(readString(in))
+        Deleted(deviceId, Vector.fill(in.readInt())(in.readLong()))
+      case ExpiredTag => Expired(DeviceId(readString(in)), in.readLong())
+      case tag        => throw new IllegalArgumentException(s"Unknown location event ${tag}")
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.repo.LocationPartition.*
+
+import java.time.{Instant, YearMonth, ZoneOffset}
+
+object LocationPartition {
+  private val TablePrefix: String = "stored_location_"
+  private val TableName = raw"stored_location_(\d{4})(\d{2})".r
+  private val Earliest: YearMonth = YearMonth.of(1970, 1)
+  private val Latest: YearMonth = YearMonth.of(9999, 12)
+
+  given Ordering[LocationPartition] = Ordering.by(_.month)
+
+  /** The partition holding locations ending at a timestamp, i.e. its month in UTC
+    * Timestamps outside the supported years fall into the first or last partition
+    */
+  def of(endTimestamp: Long): LocationPartition = {
+    val month = YearMonth.from(Instant.ofEpochMilli(endTimestamp).atOffset(ZoneOffset.UTC))
+
+    if (month.isBefore(Earliest)) LocationPartition(Earliest)
+    else if (month.isAfter(Latest)) LocationPartition(Latest)
+    else LocationPartition(month)
+  }
+
+  def fromTableName(tableName: String): Option[LocationPartition] = tableName match {
+    case TableName(year, month) => Some(LocationPartition(YearMonth.of(year.toInt, month.toInt)))
+    case _                      => None
+  }
+
+  private def startOf(month: YearMonth): Long =
+    month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant.toEpochMilli
+}
+
+/** A month of locations, by end timestamp, stored in its own table */
+case class LocationPartition(month: YearMonth) {
+  def tableName: String = f"${TablePrefix}${month.getYear}%04d${month.getMonthValue}%02d"
+
+  /** R*Tree over the partition's coordinates, kept in sync by triggers on the partition */
+  def spatialIndexName: String = s"${tableName}_rtree"
+
+  /** Inclusive bounds of the end timestamps held */
+  def lowerBound: Long = if (month == Earliest) Long.MinValue else startOf(month)
+
+  def upperBound: Long = if (month == Latest) Long.MaxValue else startOf(month.plusMonths(1)) - 1
+
+  /** Whether any timestamp in [from, to] falls in this partition */
+  def overlaps(from: Long, to: Long): Boolean = from <= upperBound && to >= lowerBound
+}
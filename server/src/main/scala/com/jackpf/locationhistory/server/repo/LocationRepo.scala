@@ -1,8 +1,18 @@
 package com.jackpf.locationhistory.server.repo
 
-import com.jackpf.locationhistory.server.model.{DeviceId, Location, StoredLocation}
+import com.jackpf.locationhistory.server.model.{
+  BoundingBox,
+  DeviceId,
+  Location,
+  LocationCursor,
+  StoredLocation,
+  Tile,
+  TileAggregate,
+  TimeRange
+}
+import com.jackpf.locationhistory.server.repo.LocationRepoExtensions.CheckDuplicateLocationFunc
 
-import scala.concurrent.Future
+import scala.concurrent.{ExecutionContext, Future}
 import scala.util.Try
 
 trait LocationRepo extends LocationRepoExtensions {
@@ -14,14 +24,81 @@ trait LocationRepo extends LocationRepoExtensions {
       metadata: StoredLocation.Metadata
   ): Future[Try[Unit]]
 
+  /** Appends timestamp-ordered locations to the device's history, merging each into the
+    * location before it when isDuplicate holds
+    * The previous location check and the writes are applied atomically
+    * @return the written locations, i.e. the updated previous location (if merged into)
+    *         followed by the inserted ones
+    */
+  def appendOrMerge(
+      deviceId: DeviceId.Type,
+      locations: Seq[(Location, Long)],
+      isDuplicate: CheckDuplicateLocationFunc
+  ): Future[Try[Vector[StoredLocation]]]
+
   def getForDevice(deviceId: DeviceId.Type, limit: Option[Int]): Future[Vector[StoredLocation]]
 
+  /** Returns locations in ascending (endTimestamp, id) order,
+    * restricted to the given end timestamp range and starting strictly after the cursor
+    */
+  def getForDeviceInRange(
+      deviceId: DeviceId.Type,
+      range: TimeRange,
+      after: Option[LocationCursor],
+      limit: Option[Int]
+  ): Future[Vector[StoredLocation]]
+
+  /** Feeds locations in ascending (endTimestamp, id) order to the consumer in chunks of
+    * at most chunkSize, without materialising the whole range
+    * The consumer is called sequentially, off the calling thread, and may block to apply
+    * backpressure
+    */
+  def streamForDeviceInRange(
+      deviceId: DeviceId.Type,
+      range: TimeRange,
+      chunkSize: Int
+  )(consumer: Vector[StoredLocation] => Unit)(using ec: ExecutionContext): Future[Unit]
+
+  /** Returns locations within a bounding box, of the given devices or all if None,
+    * in ascending (endTimestamp, id) order across devices,
+    * restricted to the given end timestamp range and starting strictly after the cursor
+    */
+  def getInBounds(
+      bounds: BoundingBox,
+      range: TimeRange,
+      devices: Option[Seq[DeviceId.Type]],
+      after: Option[LocationCursor],
+      limit: Option[Int]
+  ): Future[Vector[(DeviceId.Type, StoredLocation)]]
+
+  /** Returns aggregates per tile at a zoom, over the locations of the given devices or all
+    * if None, restricted to the tiles intersecting the bounds if given, in (x, y) order
+    * Aggregates are maintained as locations are written, so don't scan the history
+    */
+  def getTiles(
+      zoom: Int,
+      bounds: Option[BoundingBox],
+      devices: Option[Seq[DeviceId.Type]]
+  ): Future[Vector[(Tile, TileAggregate)]]
+
   def update(
       deviceId: DeviceId.Type,
       id: Long,
       updateAction: StoredLocation => StoredLocation
   ): Future[Try[Unit]]
 
+  /** Deletes a device's locations by id, ignoring ids that don't exist
+    * @return the number of locations deleted
+    */
+  def deleteLocations(deviceId: DeviceId.Type, ids: Seq[Long]): Future[Try[Int]]
+
+  /** Deletes every device's locations that ended before a timestamp
+    * Stores deleting row by row do so at most batchSize rows per write,
+    * so concurrent writes aren't held up behind the whole deletion
+    * @return the number of locations deleted
+    */
+  def deleteBefore(timestamp: Long, batchSize: Int): Future[Try[Long]]
+
   def deleteForDevice(deviceId: DeviceId.Type): Future[Unit]
 
   def deleteAll(): Future[Unit]
@@ -8,43 +8,82 @@ import scala.util.Try
 
 object LocationRepoExtensions {
   type CheckDuplicateLocationFunc = (Location, Long, StoredLocation) => Boolean
-}
 
-trait LocationRepoExtensions { self: LocationRepo =>
+  /** Result of collapsing a batch onto the device's last stored location
+    * @param updatedPrevious the last stored location, if batch locations were merged into it
+    * @param newLocations locations to insert, in batch order
+    */
+  case class CollapsedLocations(
+      updatedPrevious: Option[StoredLocation],
+      newLocations: Vector[(Location, StoredLocation.Metadata)]
+  )
+
+  /** Metadata the new location lacks is kept, so enrichment isn't lost until it's re-enriched
+    * Duplicates are close enough that it still describes the merged location, and patching
+    * the re-enriched metadata overwrites it
+    */
   private def updatePreviousLocation(
       newLocation: Location,
       newTimestamp: Long,
       storedLocation: StoredLocation
   ): StoredLocation = storedLocation.copy(
-    location = newLocation,
+    location = newLocation.fillMetadata(storedLocation.location.metadata),
     metadata = storedLocation.metadata.updated(newTimestamp)
   )
 
-  /** Note that this is a "best effort" approach and not strictly thread safe:
-    * race conditions can occur between checking previous location and update/insert logic
-    * But for the sake of code readability and adhering to our functional interface,
-    * we make this tradeoff
-    * Location updates should not be so high frequency that this becomes a real problem,
-    * and duplicate location points is not a breaking issue if it happens
+  /** Applies the duplicate check across a timestamp-ordered batch in memory,
+    * each location being compared to the one before it
     */
+  def collapseDuplicates(
+      previous: Option[StoredLocation],
+      locations: Seq[(Location, Long)],
+      isDuplicate: CheckDuplicateLocationFunc
+  ): CollapsedLocations = {
+    // Pending locations aren't stored yet, so only their location & metadata are meaningful
+    def pending(location: Location, metadata: StoredLocation.Metadata): StoredLocation =
+      StoredLocation.fromLocation(location, id = 0L, metadata = metadata)
+
+    locations.foldLeft(CollapsedLocations(updatedPrevious = None, newLocations = Vector.empty)) {
+      case (collapsed, (location, timestamp)) =>
+        val last = collapsed.newLocations.lastOption
+          .map((pendingLocation, pendingMetadata) => pending(pendingLocation, pendingMetadata))
+          .orElse(collapsed.updatedPrevious)
+          .orElse(previous)
+
+        last match {
+          case Some(lastLocation) if isDuplicate(location, timestamp, lastLocation) =>
+            val merged = updatePreviousLocation(location, timestamp, lastLocation)
+            if (collapsed.newLocations.isEmpty) collapsed.copy(updatedPrevious = Some(merged))
+            else
+              collapsed.copy(newLocations =
+                collapsed.newLocations.init :+ ((merged.location, merged.metadata))
+              )
+          case _ =>
+            collapsed.copy(newLocations =
+              collapsed.newLocations :+ ((location, StoredLocation.Metadata.initial(timestamp)))
+            )
+        }
+    }
+  }
+}
+
+trait LocationRepoExtensions { self: LocationRepo =>
+
   def storeDeviceLocationOrUpdatePrevious(
       deviceId: DeviceId.Type,
       location: Location,
       timestamp: Long,
       isDuplicate: CheckDuplicateLocationFunc
-  )(using ec: ExecutionContext): Future[Try[Unit]] = {
-    getForDevice(deviceId, limit = Some(1)).map(_.headOption).flatMap {
-      case Some(previousLocation) if isDuplicate(location, timestamp, previousLocation) =>
-        update(
-          deviceId,
-          id = previousLocation.id,
-          updateAction =
-            storedLocation => updatePreviousLocation(location, timestamp, storedLocation)
-        )
-      case _ =>
-        storeDeviceLocation(deviceId, location, StoredLocation.Metadata.initial(timestamp))
-    }
-  }
+  )(using ec: ExecutionContext): Future[Try[Unit]] =
+    appendOrMerge(deviceId, Seq((location, timestamp)), isDuplicate).map(_.map(_ => ()))
+
+  /** Batch variant of [[storeDeviceLocationOrUpdatePrevious]] */
+  def storeDeviceLocationsOrUpdatePrevious(
+      deviceId: DeviceId.Type,
+      locations: Seq[(Location, Long)],
+      isDuplicate: CheckDuplicateLocationFunc
+  )(using ec: ExecutionContext): Future[Try[Unit]] =
+    appendOrMerge(deviceId, locations, isDuplicate).map(_.map(_ => ()))
 
   def getDevicesLastLocationMap(
       devices: Seq[DeviceId.Type]
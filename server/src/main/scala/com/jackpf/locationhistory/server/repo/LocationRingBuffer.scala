@@ -0,0 +1,109 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.{LocationCursor, StoredLocation, TimeRange}
+import com.jackpf.locationhistory.server.repo.LocationRingBuffer.InitialCapacity
+
+object LocationRingBuffer {
+  private val InitialCapacity: Int = 16
+}
+
+/** A device's locations in a ring buffer, addressed by a monotonically increasing sequence
+  * The buffer doubles until it reaches maxItems, after which appends overwrite
+  * the oldest location in place, without copying or allocating
+  * Metadata is interned, so runs of locations with the same metadata share it
+  */
+private[repo] final class LocationRingBuffer(maxItems: Long, interner: MetadataInterner)
+    extends DeviceHistory {
+  private val maxCapacity: Int = math.min(maxItems, Int.MaxValue - 8L).toInt
+  private var buffer: Array[StoredLocation] =
+    new Array(math.min(InitialCapacity, math.max(maxCapacity, 1)))
+
+  /** Sequence of the oldest location */
+  private var firstSequence: Long = 0
+  /** Sequence the next appended location will take */
+  private var nextSequence: Long = 0
+
+  private def slot(sequence: Long): Int = (sequence % buffer.length).toInt
+
+  /** Re-lays out live locations, since slots depend on the buffer length */
+  private def grow(): Unit = {
+    val grown = new Array[StoredLocation](math.min(buffer.length * 2L, maxCapacity).toInt)
+    (firstSequence until nextSequence).foreach { sequence =>
+      grown((sequence % grown.length).toInt) = buffer(slot(sequence))
+    }
+    buffer = grown
+  }
+
+  override def size: Int = (nextSequence - firstSequence).toInt
+
+  override def apply(index: Int): StoredLocation = buffer(slot(firstSequence + index))
+
+  private def interned(storedLocation: StoredLocation): StoredLocation = {
+    val metadata = interner.intern(storedLocation.location.metadata)
+    if (metadata eq storedLocation.location.metadata) storedLocation
+    else storedLocation.copy(location = storedLocation.location.copy(metadata = metadata))
+  }
+
+  override def isFull: Boolean = size == buffer.length && buffer.length >= maxCapacity
+
+  override def append(storedLocation: StoredLocation): Unit = {
+    if (size == buffer.length) {
+      if (buffer.length < maxCapacity) grow()
+      else {
+        forgetLate(1)
+        firstSequence += 1
+      }
+    }
+    buffer(slot(nextSequence)) = interned(storedLocation)
+    nextSequence += 1
+  }
+
+  override protected def overwrite(index: Int, storedLocation: StoredLocation): Unit =
+    put(index, storedLocation.copy(id = apply(index).id))
+
+  override protected def put(index: Int, storedLocation: StoredLocation): Unit =
+    buffer(slot(firstSequence + index)) = interned(storedLocation)
+
+  override protected def move(from: Int, to: Int): Unit =
+    buffer(slot(firstSequence + to)) = apply(from)
+
+  /** Clears dropped slots, so their locations can be collected */
+  override protected def truncate(size: Int): Unit = {
+    (firstSequence + size until nextSequence).foreach(sequence => buffer(slot(sequence)) = null)
+    nextSequence = firstSequence + size
+  }
+
+  /** Removing the oldest locations only advances the first sequence */
+  override def remove(from: Int, until: Int): Unit =
+    if (from == 0 && until > 0) {
+      forgetLate(until)
+      (firstSequence until firstSequence + until).foreach(sequence => buffer(slot(sequence)) = null)
+      firstSequence += until
+    } else super.remove(from, until)
+
+  /** Index of the first location satisfying a predicate that's monotonic over the history */
+  private def search(isAfter: StoredLocation => Boolean): Int = {
+    var low = 0
+    var high = size
+    while (low < high) {
+      val mid = (low + high) >>> 1
+      if (isAfter(apply(mid))) high = mid
+      else low = mid + 1
+    }
+    low
+  }
+
+  override protected def searchId(id: Long): Int = {
+    val index = search(_.id >= id)
+    if (index < size && apply(index).id == id) index else -1
+  }
+
+  override def lowerBound(range: TimeRange, after: Option[LocationCursor]): Int =
+    search { storedLocation =>
+      storedLocation.metadata.endTimestamp >= range.lowerBound &&
+      after.forall(_.isBefore(storedLocation))
+    }
+
+  override def upperBound(range: TimeRange): Int =
+    search(_.metadata.endTimestamp > range.upperBound)
+}
@@ -0,0 +1,406 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.{
+  Location,
+  LocationCursor,
+  StoredLocation,
+  TimeRange
+}
+import com.jackpf.locationhistory.server.repo.LocationSegments.*
+
+import java.io.{
+  BufferedInputStream,
+  DataInputStream,
+  DataOutputStream,
+  FileInputStream,
+  FileOutputStream,
+  IOException
+}
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, Path, StandardCopyOption, StandardOpenOption}
+import scala.collection.mutable.ArrayBuffer
+import scala.jdk.CollectionConverters.*
+import scala.util.Using
+
+object LocationSegments {
+
+  /** id, lat, lon, accuracy, start & end timestamps and count, then a metadata code,
+    * padded so records don't straddle cache lines
+    */
+  val RecordBytes: Int = 64
+  private val IdOffset: Int = 0
+  private val LatOffset: Int = 8
+  private val LonOffset: Int = 16
+  private val AccuracyOffset: Int = 24
+  private val StartTimestampOffset: Int = 32
+  private val EndTimestampOffset: Int = 40
+  private val CountOffset: Int = 48
+  private val MetadataOffset: Int = 56
+
+  /** Records between entries of a segment's sparse index */
+  private val IndexInterval: Int = 128
+  private val SegmentSuffix: String = ".segment"
+  private val StartFile: String = "start"
+  private val LateFile: String = "late"
+}
+
+/** A device's locations as fixed-width records in memory-mapped, append-mostly segment files
+  * Every segment but the last is full, so an index maps directly to a segment & offset
+  * Ids start at 1, so a zero id marks the end of the written records in the last segment
+  * Each segment keeps a sparse (endTimestamp, id) index in memory,
+  * so a search touches only a single interval of the segment's records
+  * Expiring the oldest records advances a persisted start position, past any records
+  * removed from the first segment, and deletes the segments wholly before it
+  * Late records' ids & end timestamps are appended to a file, read back on load
+  */
+private[repo] final class LocationSegments(
+    directory: Path,
+    dictionary: MetadataDictionary,
+    recordsPerSegment: Int
+) extends DeviceHistory {
+  private final class Segment(buffer: MappedByteBuffer) {
+    var length: Int = 0
+    private val indexEndTimestamps: Array[Long] =
+      new Array((recordsPerSegment + IndexInterval - 1) / IndexInterval)
+    private val indexIds: Array[Long] = new Array(indexEndTimestamps.length)
+
+    def id(i: Int): Long = buffer.getLong(i * RecordBytes + IdOffset)
+
+    def endTimestamp(i: Int): Long = buffer.getLong(i * RecordBytes + EndTimestampOffset)
+
+    def read(i: Int): StoredLocation = {
+      val offset = i * RecordBytes
+      StoredLocation(
+        id = buffer.getLong(offset + IdOffset),
+        location = Location(
+          lat = buffer.getDouble(offset + LatOffset),
+          lon = buffer.getDouble(offset + LonOffset),
+          accuracy = buffer.getDouble(offset + AccuracyOffset),
+          metadata = dictionary.decode(buffer.getInt(offset + MetadataOffset))
+        ),
+        metadata = StoredLocation.Metadata(
+          startTimestamp = buffer.getLong(offset + StartTimestampOffset),
+          endTimestamp = buffer.getLong(offset + EndTimestampOffset),
+          count = buffer.getLong(offset + CountOffset)
+        )
+      )
+    }
+
+    /** The id is written last, so a record is only counted once it's complete */
+    def write(i: Int, id: Long, storedLocation: StoredLocation): Unit = {
+      val offset = i * RecordBytes
+      val _ = buffer
+        .putDouble(offset + LatOffset, storedLocation.location.lat)
+        .putDouble(offset + LonOffset, storedLocation.location.lon)
+        .putDouble(offset + AccuracyOffset, storedLocation.location.accuracy)
+        .putLong(offset + StartTimestampOffset, storedLocation.metadata.startTimestamp)
+        .putLong(offset + EndTimestampOffset, storedLocation.metadata.endTimestamp)
+        .putLong(offset + CountOffset, storedLocation.metadata.count)
+        .putInt(offset + MetadataOffset, dictionary.encode(storedLocation.location.metadata))
+        .putLong(offset + IdOffset, id)
+      index(i)
+    }
+
+    /** Zeroing the id marks the end of the written records */
+    def clear(i: Int): Unit = buffer.putLong(i * RecordBytes + IdOffset, 0L): Unit
+
+    def index(i: Int): Unit = if (i % IndexInterval == 0) {
+      indexEndTimestamps(i / IndexInterval) = endTimestamp(i)
+      indexIds(i / IndexInterval) = id(i)
+    }
+
+    /** Index of the first record from index from satisfying a predicate that's monotonic
+      * over the records, given that the last record satisfies it
+      */
+    def search(from: Int, isAfter: (Long, Long) => Boolean): Int = {
+      val first = (from + IndexInterval - 1) / IndexInterval
+      var low = first
+      var high = (length - 1) / IndexInterval + 1
+      while (low < high) {
+        val mid = (low + high) >>> 1
+        if (isAfter(indexEndTimestamps(mid), indexIds(mid))) high = mid
+        else low = mid + 1
+      }
+
+      // The first match is after the previous index entry, and no later than the matching one
+      low = if (high == first) from else (high - 1) * IndexInterval + 1
+      high = math.min(high * IndexInterval, length - 1)
+      while (low < high) {
+        val mid = (low + high) >>> 1
+        if (isAfter(endTimestamp(mid), id(mid))) high = mid
+        else low = mid + 1
+      }
+      low
+    }
+
+    def force(): Unit = buffer.force(): Unit
+  }
+
+  private val segments: ArrayBuffer[Segment] = ArrayBuffer.empty
+  // Number of the first segment's file, and the records removed from the start of it
+  private var firstSegment: Int = 0
+  private var head: Int = 0
+
+  if (Files.isDirectory(directory)) load()
+
+  private def segmentFile(number: Int): Path =
+    directory.resolve(f"${number}%012d${SegmentSuffix}")
+
+  /** Position of the first record, counting from the start of the first segment ever written */
+  private def start: Long = firstSegment.toLong * recordsPerSegment + head
+
+  private def readStart(): Long = {
+    val file = directory.resolve(StartFile)
+    if (!Files.exists(file)) 0L
+    else Using.resource(new DataInputStream(new FileInputStream(file.toFile)))(_.readLong())
+  }
+
+  /** Synced then moved over the previous start, so it's never torn */
+  private def writeStart(position: Long): Unit = {
+    val tmpFile = directory.resolve(s"${StartFile}.tmp")
+    Using.resource(new FileOutputStream(tmpFile.toFile)) { file =>
+      new DataOutputStream(file).writeLong(position)
+      file.getFD.sync()
+    }
+    val _ = Files.move(
+      tmpFile,
+      directory.resolve(StartFile),
+      StandardCopyOption.ATOMIC_MOVE,
+      StandardCopyOption.REPLACE_EXISTING
+    )
+  }
+
+  /** Pairs of id & end timestamp, the last for an id winning, so a torn pair is dropped */
+  private def readLate(): Unit = {
+    val file = directory.resolve(LateFile)
+    if (Files.exists(file)) {
+      val pairs = Files.size(file) / 16
+      Using.resource(
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file.toFile)))
+      ) { in =>
+        (0L until pairs).foreach(_ => late.update(in.readLong(), in.readLong()))
+      }
+    }
+  }
+
+  private def writeLate(file: Path, entries: Iterable[(Long, Long)], append: Boolean): Unit = {
+    Files.createDirectories(directory)
+    Using.resource(new DataOutputStream(new FileOutputStream(file.toFile, append))) { out =>
+      entries.foreach { case (id, endTimestamp) =>
+        out.writeLong(id)
+        out.writeLong(endTimestamp)
+      }
+    }
+  }
+
+  /** Written before the record is, so a crash can only leave an id of a record never written */
+  override protected def recordLate(id: Long, endTimestamp: Long): Unit = {
+    super.recordLate(id, endTimestamp)
+    writeLate(directory.resolve(LateFile), Seq(id -> endTimestamp), append = true)
+  }
+
+  /** Rewritten with only the late records still held, then moved over the previous file */
+  private def compactLate(): Unit = {
+    val removed = late.keys.filter(indexOf(_) == -1).toVector
+    if (removed.nonEmpty) {
+      late --= removed
+      val tmpFile = directory.resolve(s"${LateFile}.tmp")
+      writeLate(tmpFile, late.toVector, append = false)
+      val _ = Files.move(
+        tmpFile,
+        directory.resolve(LateFile),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING
+      )
+    }
+  }
+
+  /** Mapping past the end of the file extends it, sparsely on most file systems */
+  private def map(file: Path): Segment =
+    Using.resource(
+      FileChannel.open(
+        file,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE
+      )
+    ) { channel =>
+      val segmentBytes = recordsPerSegment.toLong * RecordBytes
+      if (channel.size() > segmentBytes)
+        throw new IOException(s"${file} holds more than ${recordsPerSegment} records")
+      new Segment(channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes))
+    }
+
+  private def load(): Unit = {
+    val files = Using.resource(Files.list(directory)) {
+      _.iterator.asScala.filter(_.getFileName.toString.endsWith(SegmentSuffix)).toSeq.sorted
+    }
+    val persistedStart = readStart()
+    val startSegment = (persistedStart / recordsPerSegment).toInt
+
+    // Segments are deleted after the start is advanced past them, so a crash can leave some behind
+    val (expired, kept) = files.partition { file =>
+      file.getFileName.toString.stripSuffix(SegmentSuffix).toIntOption.exists(_ < startSegment)
+    }
+    expired.foreach(Files.delete)
+    firstSegment = kept.headOption
+      .flatMap(_.getFileName.toString.stripSuffix(SegmentSuffix).toIntOption)
+      .getOrElse(startSegment)
+
+    kept.zipWithIndex.foreach { case (file, number) =>
+      if (file != segmentFile(firstSegment + number))
+        throw new IOException(s"Unexpected segment ${file}")
+      val segment = map(file)
+      // Written records are a prefix of the segment
+      var low = 0
+      var high = recordsPerSegment
+      while (low < high) {
+        val mid = (low + high) >>> 1
+        if (segment.id(mid) == 0) high = mid
+        else low = mid + 1
+      }
+      segment.length = low
+      (0 until segment.length by IndexInterval).foreach(segment.index)
+      segments += segment
+    }
+
+    // A segment is mapped before its first record is written, so a crash in between leaves it empty
+    if (segments.lastOption.exists(_.length == 0)) {
+      segments.remove(segments.size - 1): Unit
+      Files.delete(segmentFile(firstSegment + segments.size))
+    }
+
+    head = segments.headOption
+      .filter(_ => firstSegment == startSegment)
+      .fold(0)(first => math.min((persistedStart % recordsPerSegment).toInt, first.length))
+    if (start != persistedStart) writeStart(start)
+
+    readLate()
+    compactLate()
+  }
+
+  /** The segment & offset within it of a record, by its index in the history */
+  private def segment(index: Int): Segment = segments((head + index) / recordsPerSegment)
+
+  private def offset(index: Int): Int = (head + index) % recordsPerSegment
+
+  override def size: Int =
+    segments.lastOption.fold(0)(last =>
+      (segments.size - 1) * recordsPerSegment + last.length - head
+    )
+
+  override def apply(index: Int): StoredLocation =
+    segment(index).read(offset(index))
+
+  override def append(storedLocation: StoredLocation): Unit = {
+    if (segments.lastOption.forall(_.length == recordsPerSegment)) {
+      Files.createDirectories(directory)
+      segments += map(segmentFile(firstSegment + segments.size))
+    }
+    val last = segments.last
+    last.write(last.length, storedLocation.id, storedLocation)
+    last.length += 1
+  }
+
+  override protected def overwrite(index: Int, storedLocation: StoredLocation): Unit =
+    segment(index).write(offset(index), segment(index).id(offset(index)), storedLocation)
+
+  /** Inserting shifts later records up in place, so like removing, a crash part way through
+    * can leave a record in two places
+    */
+  override protected def put(index: Int, storedLocation: StoredLocation): Unit =
+    segment(index).write(offset(index), storedLocation.id, storedLocation)
+
+  override protected def move(from: Int, to: Int): Unit = {
+    val storedLocation = apply(from)
+    segment(to).write(offset(to), storedLocation.id, storedLocation)
+  }
+
+  /** Removed records are compacted in place, so a crash part way through can leave
+    * a moved record in both places until it's removed again
+    */
+  override protected def truncate(size: Int): Unit = {
+    val kept = (head + size + recordsPerSegment - 1) / recordsPerSegment
+    (segments.size - 1 to kept by -1).foreach { number =>
+      segments.remove(number): Unit
+      Files.delete(segmentFile(firstSegment + number))
+    }
+    segments.lastOption.foreach { last =>
+      val length = head + size - (segments.size - 1) * recordsPerSegment
+      (length until last.length).reverse.foreach(last.clear)
+      last.length = length
+    }
+  }
+
+  /** Removing the oldest records only advances the start, without moving any records,
+    * then deletes the segments wholly before it
+    */
+  override def remove(from: Int, until: Int): Unit =
+    if (from == 0 && until > 0) {
+      forgetLate(until)
+      val removed = start + until
+      writeStart(removed)
+
+      val expired = (removed / recordsPerSegment).toInt - firstSegment
+      (0 until expired).foreach { number =>
+        Files.delete(segmentFile(firstSegment + number))
+      }
+      segments.remove(0, expired)
+      firstSegment += expired
+      head = (removed % recordsPerSegment).toInt
+    } else super.remove(from, until)
+
+  /** Index of the first record satisfying a predicate on (endTimestamp, id)
+    * that's monotonic over the history
+    */
+  private def search(isAfter: (Long, Long) => Boolean): Int = {
+    def lastMatches(segment: Segment): Boolean = segment.length > 0 &&
+      isAfter(segment.endTimestamp(segment.length - 1), segment.id(segment.length - 1))
+
+    var low = 0
+    var high = segments.size
+    while (low < high) {
+      val mid = (low + high) >>> 1
+      if (lastMatches(segments(mid))) high = mid
+      else low = mid + 1
+    }
+
+    if (low == segments.size) size
+    else {
+      // Records removed from the start of the first segment are skipped
+      val from = if (low == 0) head else 0
+      low * recordsPerSegment + segments(low).search(from, isAfter) - head
+    }
+  }
+
+  override protected def searchId(id: Long): Int = {
+    val index = search((_, recordId) => recordId >= id)
+    if (index < size && segment(index).id(offset(index)) == id) index else -1
+  }
+
+  override def lowerBound(range: TimeRange, after: Option[LocationCursor]): Int =
+    search { (endTimestamp, id) =>
+      endTimestamp >= range.lowerBound && after.forall { cursor =>
+        endTimestamp > cursor.endTimestamp ||
+        (endTimestamp == cursor.endTimestamp && id > cursor.id)
+      }
+    }
+
+  override def upperBound(range: TimeRange): Int =
+    search((endTimestamp, _) => endTimestamp > range.upperBound)
+
+  override def flush(): Unit = segments.foreach(_.force())
+
+  /** Mappings are released once unreachable, deleting their files beforehand is safe on Unix */
+  override def delete(): Unit = {
+    segments.clear()
+    late.clear()
+    firstSegment = 0
+    head = 0
+    if (Files.isDirectory(directory)) {
+      Using.resource(Files.list(directory))(_.iterator.asScala.foreach(Files.delete))
+      Files.delete(directory)
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.{BoundingBox, StoredLocation}
+import com.jackpf.locationhistory.server.repo.LocationSpatialIndex.*
+
+import scala.collection.mutable
+
+object LocationSpatialIndex {
+
+  /** Ranges of at most this many locations are scanned rather than searched */
+  private val ScanThreshold: Int = 1_024
+}
+
+/** Spatial index over a device's history, an R-tree built on first use and rebuilt lazily
+  * The tree covers every location but the last when built, as merges only move the last,
+  * and locations appended since are scanned until there are enough to be worth a rebuild
+  * Removed locations are skipped once their ids are no longer found,
+  * and the tree is dropped if an indexed location moves or one is inserted before the end
+  * Not thread safe, callers must synchronise on the history
+  */
+private[repo] final class LocationSpatialIndex(history: DeviceHistory) {
+  private var tree: PackedRTree = PackedRTree.Empty
+
+  /** Greatest id in the tree */
+  private var maxIndexedId: Long = 0L
+
+  /** Locations with greater ids are the last when the tree was built, and those appended since */
+  private var indexedUntil: Long = 0L
+
+  private def drop(): Unit = {
+    tree = PackedRTree.Empty
+    maxIndexedId = 0L
+    indexedUntil = 0L
+  }
+
+  /** Called before a location's coordinates are overwritten */
+  def moved(id: Long): Unit = if (id <= maxIndexedId) drop()
+
+  /** Called once a location is inserted before the end of the history */
+  def inserted(): Unit = drop()
+
+  private def isWithin(bounds: BoundingBox)(storedLocation: StoredLocation): Boolean =
+    bounds.contains(storedLocation.location.lat, storedLocation.location.lon)
+
+  /** Appended ids are greater than the ids before them, and inserting drops the tree,
+    * so the unindexed locations are a suffix of the history
+    */
+  private def unindexedFrom(): Int = {
+    var index = history.size
+    while (index > 0 && history(index - 1).id > indexedUntil) index -= 1
+    index
+  }
+
+  private def rebuild(): Unit = {
+    val indexed = history.slice(0, history.size - 1)
+    tree = PackedRTree.build(
+      indexed.map(_.id).toArray,
+      indexed.map(_.location.lat).toArray,
+      indexed.map(_.location.lon).toArray
+    )
+    maxIndexedId = indexed.map(_.id).maxOption.getOrElse(0L)
+    indexedUntil = history.last.fold(0L)(_.id - 1)
+  }
+
+  /** Locations in [from, until) within the bounds, in history order */
+  def search(
+      bounds: BoundingBox,
+      from: Int,
+      until: Int,
+      limit: Option[Int]
+  ): Vector[StoredLocation] =
+    if (until - from <= ScanThreshold) {
+      val found = history.slice(from, until).filter(isWithin(bounds))
+      limit.fold(found)(found.take)
+    } else {
+      val unindexed = {
+        val index = unindexedFrom()
+        // Rebuilt once appends outgrow the tree, or most of it has been removed
+        if (
+          history.size - index > math.max(ScanThreshold, tree.size / 4) ||
+          tree.size > 2 * history.size
+        ) {
+          rebuild()
+          history.size - 1
+        } else index
+      }
+
+      val indices = mutable.ArrayBuilder.make[Int]
+      // Late locations in the tree can be in the scanned suffix, so it only answers before it
+      tree.search(bounds) { id =>
+        val index = history.indexOf(id)
+        if (index >= from && index < math.min(until, unindexed)) indices += index
+      }
+      (math.max(unindexed, from) until until).foreach { index =>
+        if (isWithin(bounds)(history(index))) indices += index
+      }
+
+      val sorted = indices.result().sorted
+      limit.fold(sorted)(sorted.take).iterator.map(history.apply).toVector
+    }
+}
@@ -0,0 +1,66 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.{BoundingBox, StoredLocation, Tile, TileAggregate}
+
+import scala.collection.mutable
+
+/** Aggregates of a device's history per tile at every zoom, built on first use
+  * and then kept up to date as the repo reports locations added & removed,
+  * so reading a zoom's tiles doesn't scan the history
+  * Not thread safe, callers must synchronise on the history
+  */
+private[repo] final class LocationTiles(history: DeviceHistory) {
+
+  /** Indexed by zoom, each keyed by the tile's x & y packed into a Long */
+  private var zooms: Option[Array[mutable.LongMap[TileAggregate]]] = None
+
+  private def key(x: Int, y: Int): Long = (x.toLong << 32) | y.toLong
+
+  private def update(
+      tiles: Array[mutable.LongMap[TileAggregate]],
+      storedLocation: StoredLocation,
+      delta: TileAggregate => TileAggregate
+  ): Unit = tiles.indices.foreach { zoom =>
+    val tile = Tile.containing(storedLocation.location.lat, storedLocation.location.lon, zoom)
+    val k = key(tile.x, tile.y)
+    val updated = delta(tiles(zoom).getOrElse(k, TileAggregate.Empty))
+    if (updated.isEmpty) tiles(zoom).remove(k): Unit
+    else tiles(zoom).update(k, updated)
+  }
+
+  def added(storedLocation: StoredLocation): Unit =
+    zooms.foreach(update(_, storedLocation, _ + TileAggregate.of(storedLocation)))
+
+  def removed(storedLocation: StoredLocation): Unit =
+    zooms.foreach(update(_, storedLocation, _ - TileAggregate.of(storedLocation)))
+
+  /** Called before the locations in [from, until) are removed */
+  def removing(from: Int, until: Int): Unit =
+    if (zooms.nonEmpty) (from until until).foreach(index => removed(history(index)))
+
+  /** Called before the locations with these ids are removed */
+  def removing(ids: Set[Long]): Unit =
+    if (zooms.nonEmpty) ids.foreach { id =>
+      val index = history.indexOf(id)
+      if (index != -1) removed(history(index))
+    }
+
+  private def built(): Array[mutable.LongMap[TileAggregate]] = zooms.getOrElse {
+    val tiles = Array.fill(Tile.MaxZoom + 1)(mutable.LongMap.empty[TileAggregate])
+    (0 until history.size).foreach { index =>
+      val storedLocation = history(index)
+      update(tiles, storedLocation, _ + TileAggregate.of(storedLocation))
+    }
+    zooms = Some(tiles)
+    tiles
+  }
+
+  /** Tiles at a zoom, restricted to those intersecting the bounds if given */
+  def aggregates(zoom: Int, bounds: Option[BoundingBox]): Vector[(Tile, TileAggregate)] = {
+    val ranges = bounds.map(Tile.ranges(_, zoom))
+    built()(zoom).iterator
+      .map { case (k, aggregate) => Tile(zoom, (k >>> 32).toInt, k.toInt) -> aggregate }
+      .filter { case (tile, _) => ranges.forall(_.exists(_.contains(tile.x, tile.y))) }
+      .toVector
+  }
+}
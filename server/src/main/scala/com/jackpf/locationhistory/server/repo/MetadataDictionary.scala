@@ -0,0 +1,42 @@
+package com.jackpf.locationhistory.server.repo
+
+import scala.collection.concurrent
+
+object MetadataDictionary {
+  val EmptyCode: Int = 0
+}
+
+/** Assigns a small integer code to each distinct metadata map,
+  * so repeated maps are held once rather than per location
+  * Codes are never reclaimed, the dictionary only grows with the number of distinct maps
+  * onInsert is called with each new map in code order, before its code is handed out
+  */
+class MetadataDictionary(onInsert: Map[String, String] => Unit = _ => ()) {
+  private val codes: concurrent.Map[Map[String, String], Int] =
+    concurrent.TrieMap(Map.empty[String, String] -> MetadataDictionary.EmptyCode)
+  @volatile private var values: Vector[Map[String, String]] = Vector(Map.empty)
+
+  def encode(metadata: Map[String, String]): Int =
+    codes.getOrElse(metadata, insert(metadata, publish = true))
+
+  /** Re-inserts a map previously passed to onInsert, taking the next code */
+  def restore(metadata: Map[String, String]): Unit =
+    insert(metadata, publish = false): Unit
+
+  def decode(code: Int): Map[String, String] = values(code)
+
+  def size: Int = values.size
+
+  private def insert(metadata: Map[String, String], publish: Boolean): Int = synchronized {
+    codes.getOrElse(
+      metadata, {
+        if (publish) onInsert(metadata)
+        val code = values.size
+        // Publish the value before the code, so any code read can be decoded
+        values = values :+ metadata
+        codes.update(metadata, code)
+        code
+      }
+    )
+  }
+}
@@ -0,0 +1,37 @@
+package com.jackpf.locationhistory.server.repo
+
+import java.lang.ref.WeakReference
+import java.util.WeakHashMap
+
+/** Canonicalises metadata maps, and the strings within them, so locations with equal metadata
+  * share a single instance rather than each holding a copy
+  * Held weakly, so metadata is collected once no location references it,
+  * unlike a [[MetadataDictionary]]
+  */
+class MetadataInterner {
+  private val maps: WeakHashMap[Map[String, String], WeakReference[Map[String, String]]] =
+    new WeakHashMap
+  private val strings: WeakHashMap[String, WeakReference[String]] = new WeakHashMap
+
+  private def lookup[T](pool: WeakHashMap[T, WeakReference[T]], value: T): Option[T] =
+    Option(pool.get(value)).flatMap(reference => Option(reference.get()))
+
+  private def internString(value: String): String =
+    lookup(strings, value).getOrElse {
+      strings.put(value, new WeakReference(value)): Unit
+      value
+    }
+
+  def intern(metadata: Map[String, String]): Map[String, String] =
+    if (metadata.isEmpty) Map.empty
+    else
+      synchronized {
+        lookup(maps, metadata).getOrElse {
+          val interned = metadata.map { case (key, value) =>
+            internString(key) -> internString(value)
+          }
+          maps.put(interned, new WeakReference(interned)): Unit
+          interned
+        }
+      }
+}
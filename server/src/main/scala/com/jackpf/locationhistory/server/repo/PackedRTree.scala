@@ -0,0 +1,122 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.BoundingBox
+
+private[repo] object PackedRTree {
+  val NodeSize: Int = 16
+
+  val Empty: PackedRTree = build(Array.empty, Array.empty, Array.empty)
+
+  /** Bounding boxes of a level's nodes, node i covering children [i * NodeSize, (i + 1) * NodeSize)
+    * of the level below, or of the entries for the leaf level
+    */
+  private final class Level(size: Int) {
+    val minLats: Array[Double] = Array.fill(size)(Double.PositiveInfinity)
+    val minLons: Array[Double] = Array.fill(size)(Double.PositiveInfinity)
+    val maxLats: Array[Double] = Array.fill(size)(Double.NegativeInfinity)
+    val maxLons: Array[Double] = Array.fill(size)(Double.NegativeInfinity)
+
+    def length: Int = minLats.length
+
+    def extend(node: Int, minLat: Double, minLon: Double, maxLat: Double, maxLon: Double): Unit = {
+      minLats(node) = math.min(minLats(node), minLat)
+      minLons(node) = math.min(minLons(node), minLon)
+      maxLats(node) = math.max(maxLats(node), maxLat)
+      maxLons(node) = math.max(maxLons(node), maxLon)
+    }
+  }
+
+  /** Sort-tile-recursive packing: entries are sorted by lon into vertical slices of
+    * sqrt(leaves) leaves each, then by lat within each slice, and packed into full leaves
+    * Upper levels group consecutive nodes, which STR order keeps spatially close
+    */
+  def build(ids: Array[Long], lats: Array[Double], lons: Array[Double]): PackedRTree = {
+    val size = ids.length
+    val leaves = (size + NodeSize - 1) / NodeSize
+    val sliceSize = math.ceil(math.sqrt(leaves.toDouble)).toInt * NodeSize
+
+    val order = (0 until size)
+      .sortBy(i => lons(i))
+      .grouped(math.max(sliceSize, 1))
+      .flatMap(_.sortBy(i => lats(i)))
+      .toArray
+
+    val tree = new PackedRTree(
+      order.map(i => ids(i)),
+      order.map(i => lats(i)),
+      order.map(i => lons(i)),
+      levelsFor(size)
+    )
+    tree.pack()
+    tree
+  }
+
+  private def levelsFor(size: Int): Vector[Level] = {
+    val levels = Vector.newBuilder[Level]
+    var nodes = size
+    while ({
+      nodes = (nodes + NodeSize - 1) / NodeSize
+      levels += new Level(nodes)
+      nodes > 1
+    }) ()
+    levels.result()
+  }
+}
+
+/** Immutable, STR packed R-tree over points, held as flat arrays rather than node objects
+  * Built in bulk, so suits indexing a snapshot of points rather than continual inserts
+  */
+private[repo] final class PackedRTree private (
+    ids: Array[Long],
+    lats: Array[Double],
+    lons: Array[Double],
+    levels: Vector[PackedRTree.Level]
+) {
+  import PackedRTree.NodeSize
+
+  def size: Int = ids.length
+
+  private def pack(): Unit = {
+    (0 until size).foreach { i =>
+      levels.head.extend(i / NodeSize, lats(i), lons(i), lats(i), lons(i))
+    }
+    (1 until levels.size).foreach { level =>
+      val below = levels(level - 1)
+      (0 until below.length).foreach { node =>
+        levels(level).extend(
+          node / NodeSize,
+          below.minLats(node),
+          below.minLons(node),
+          below.maxLats(node),
+          below.maxLons(node)
+        )
+      }
+    }
+  }
+
+  /** Calls f with the id of each point within the bounds */
+  def search(bounds: BoundingBox)(f: Long => Unit): Unit =
+    if (size > 0) bounds.parts.foreach(part => visit(levels.size - 1, 0, part, f))
+
+  private def visit(level: Int, node: Int, part: BoundingBox, f: Long => Unit): Unit = {
+    val nodes = levels(level)
+    if (
+      part.intersects(
+        nodes.minLats(node),
+        nodes.minLons(node),
+        nodes.maxLats(node),
+        nodes.maxLons(node)
+      )
+    ) {
+      val from = node * NodeSize
+      if (level == 0)
+        (from until math.min(from + NodeSize, size)).foreach { i =>
+          if (part.contains(lats(i), lons(i))) f(ids(i))
+        }
+      else
+        (from until math.min(from + NodeSize, levels(level - 1).length)).foreach { child =>
+          visit(level - 1, child, part, f)
+        }
+    }
+  }
+}
@@ -1,27 +1,50 @@
 package com.jackpf.locationhistory.server.repo
 
+import com.jackpf.locationhistory.server.db.Database
 import com.jackpf.locationhistory.server.model.StorageType
-import scalasql.core.DbClient
+import com.jackpf.locationhistory.server.persistence.{BinaryCodec, Journal}
 
+import java.nio.file.Path
 import scala.concurrent.ExecutionContext
 
-class RepoFactory(dataSource: Option[DbClient.DataSource])(using
+class RepoFactory(database: Option[Database], dataDirectory: Option[Path] = None)(using
     executionContext: ExecutionContext
 ) {
-  private def getDataSource(storageType: StorageType): DbClient.DataSource =
-    dataSource.getOrElse(
-      throw new RuntimeException(s"Storage type ${storageType} requires a data source")
+  private def getDatabase(storageType: StorageType): Database =
+    database.getOrElse(
+      throw new RuntimeException(s"Storage type ${storageType} requires a database")
     )
 
+  private def getDataDirectory(storageType: StorageType): Path =
+    dataDirectory.getOrElse(
+      throw new RuntimeException(s"Storage type ${storageType} requires a data directory")
+    )
+
+  private def getJournal[E](
+      storageType: StorageType,
+      name: String,
+      codec: BinaryCodec[E]
+  ): Journal[E] =
+    new Journal(getDataDirectory(storageType).resolve("journal"), name, codec)
+
   def deviceRepo(storageType: StorageType): DeviceRepo = storageType match {
-    case StorageType.IN_MEMORY                             => new InMemoryDeviceRepo
-    case StorageType.SQLITE | StorageType.SQLITE_IN_MEMORY =>
-      new SQLiteDeviceRepo(getDataSource(storageType))
+    case StorageType.IN_MEMORY | StorageType.IN_MEMORY_COLUMNAR   => new InMemoryDeviceRepo
+    case StorageType.IN_MEMORY_PERSISTENT | StorageType.SEGMENTED =>
+      new InMemoryDeviceRepo(Some(getJournal(storageType, "devices", DeviceEvent.codec)))
+    case StorageType.SQLITE | StorageType.SQLITE_IN_MEMORY        =>
+      new SQLiteDeviceRepo(getDatabase(storageType))
   }
 
   def locationRepo(storageType: StorageType): LocationRepo = storageType match {
     case StorageType.IN_MEMORY                             => new InMemoryLocationRepo
+    case StorageType.IN_MEMORY_COLUMNAR                    => new InMemoryColumnarLocationRepo
+    case StorageType.IN_MEMORY_PERSISTENT                  =>
+      new InMemoryLocationRepo(
+        journal = Some(getJournal(storageType, "locations", LocationEvent.codec))
+      )
+    case StorageType.SEGMENTED                             =>
+      new SegmentLocationRepo(getDataDirectory(storageType).resolve("segments"))
     case StorageType.SQLITE | StorageType.SQLITE_IN_MEMORY =>
-      new SQLiteLocationRepo(getDataSource(storageType))
+      new SQLiteLocationRepo(getDatabase(storageType))
   }
 }
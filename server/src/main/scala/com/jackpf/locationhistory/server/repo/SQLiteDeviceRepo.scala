@@ -1,5 +1,6 @@
 package com.jackpf.locationhistory.server.repo
 
+import com.jackpf.locationhistory.server.db.Database
 import com.jackpf.locationhistory.server.errors.ApplicationErrors.{
   DeviceAlreadyRegisteredException,
   DeviceNotFoundException
@@ -38,10 +39,13 @@ private case class StoredDeviceRow(
 }
 private object StoredDeviceTable extends SimpleTable[StoredDeviceRow]
 
-class SQLiteDeviceRepo(db: DbClient.DataSource)(using executionContext: ExecutionContext)
+class SQLiteDeviceRepo(database: Database)(using executionContext: ExecutionContext)
     extends DeviceRepo {
+  private val writer: DbClient.DataSource = database.writer
+  private val reader: DbClient.DataSource = database.reader
+
   override def init(): Future[Unit] = Future {
-    db.transaction { implicit db =>
+    writer.transaction { implicit db =>
       blocking {
         val _ = db.updateRaw(
           """CREATE TABLE IF NOT EXISTS stored_device_table (
@@ -57,7 +61,7 @@ class SQLiteDeviceRepo(db: DbClient.DataSource)(using executionContext: Executio
   }
 
   override def register(device: Device): Future[Try[Unit]] = Future {
-    db.transaction { implicit db =>
+    writer.transaction { implicit db =>
       Try {
         blocking {
           db.run(
@@ -80,7 +84,7 @@ class SQLiteDeviceRepo(db: DbClient.DataSource)(using executionContext: Executio
       id: DeviceId.Type,
       updateAction: StoredDevice => StoredDevice
   ): Future[Try[Unit]] = Future {
-    db.transaction { implicit db =>
+    writer.transaction { implicit db =>
       /* This is not strictly race-condition-resistant
        * We can add a `version` field to StoredDeviceRow if needed */
       val existingRowMaybe =
@@ -110,7 +114,7 @@ class SQLiteDeviceRepo(db: DbClient.DataSource)(using executionContext: Executio
   }
 
   override def get(id: DeviceId.Type): Future[Option[StoredDevice]] = Future {
-    db.transaction { implicit db =>
+    reader.transaction { implicit db =>
       blocking {
         db.run(StoredDeviceTable.select.filter(_.id === id.toString))
           .headOption
@@ -120,13 +124,13 @@ class SQLiteDeviceRepo(db: DbClient.DataSource)(using executionContext: Executio
   }
 
   override def getAll: Future[Seq[StoredDevice]] = Future {
-    db.transaction { implicit db =>
+    reader.transaction { implicit db =>
       blocking { db.run(StoredDeviceTable.select.filter(_ => true)).map(_.toStoredDevice) }
     }
   }
 
   override def delete(id: DeviceId.Type): Future[Try[Unit]] = Future {
-    db.transaction { implicit db =>
+    writer.transaction { implicit db =>
       Try {
         val result = blocking { db.run(StoredDeviceTable.delete(_.id === id.toString)) }
         if (result == 0) throw DeviceNotFoundException(id)
@@ -136,7 +140,7 @@ class SQLiteDeviceRepo(db: DbClient.DataSource)(using executionContext: Executio
   }
 
   override def deleteAll(): Future[Unit] = Future {
-    db.transaction { implicit db =>
+    writer.transaction { implicit db =>
       blocking { db.run(StoredDeviceTable.delete(_ => true)) }
       ()
     }
@@ -1,13 +1,31 @@
 package com.jackpf.locationhistory.server.repo
 
+import com.jackpf.locationhistory.server.db.{Database, GroupCommitWriter}
 import com.jackpf.locationhistory.server.errors.ApplicationErrors.LocationNotFoundException
 import com.jackpf.locationhistory.server.model.DeviceId
-import com.jackpf.locationhistory.server.model.{Location, StoredLocation}
-import scalasql.core.DbClient
+import com.jackpf.locationhistory.server.repo.SQLiteLocationSchema.table
+import com.jackpf.locationhistory.server.repo.LocationRepoExtensions.{
+  CheckDuplicateLocationFunc,
+  collapseDuplicates
+}
+import com.jackpf.locationhistory.server.model.{
+  BoundingBox,
+  Location,
+  LocationCursor,
+  Place,
+  StoredLocation,
+  Tile,
+  TileAggregate,
+  TimeRange
+}
+import scalasql.core.{DbApi, DbClient, SqlStr}
 import scalasql.simple.SimpleTable
 
+import java.util.concurrent.atomic.AtomicLong
+import scala.annotation.tailrec
+import scala.collection.concurrent
 import scala.concurrent.{ExecutionContext, Future, blocking}
-import scala.util.{Failure, Try}
+import scala.util.{Success, Try}
 import scalasql.*
 import SqliteDialect.*
 import scalasql.core.SqlStr.SqlStringSyntax
@@ -22,11 +40,22 @@ private case class StoredLocationRow(
     startTimestamp: Long,
     endTimestamp: Long,
     count: Long,
-    metadata: JsonColumn[Map[String, String]]
+    metadata: BlobColumn,
+    placeId: Option[Long]
 ) {
-  def toStoredLocation: StoredLocation = StoredLocation(
+  def toStoredLocation(
+      dictionary: SQLiteMetadataDictionary,
+      places: SQLitePlaces
+  ): StoredLocation = StoredLocation(
     id = id,
-    location = Location(lat = lat, lon = lon, accuracy = accuracy, metadata.value),
+    location = Location(
+      lat = lat,
+      lon = lon,
+      accuracy = accuracy,
+      metadata = placeId.foldLeft(dictionary.decodeLazily(metadata))((rest, placeId) =>
+        places.attach(placeId, rest)
+      )
+    ),
     metadata = StoredLocation.Metadata(
       startTimestamp = startTimestamp,
       endTimestamp = endTimestamp,
@@ -36,78 +65,452 @@ private case class StoredLocationRow(
 }
 private object StoredLocationTable extends SimpleTable[StoredLocationRow]
 
-class SQLiteLocationRepo(db: DbClient.DataSource)(using executionContext: ExecutionContext)
+/** Locations are partitioned by the month of their end timestamp, into a table per month
+  * Range reads only touch the partitions they overlap, and retention drops whole partitions
+  * stored_location_table is a view over every partition, for ad-hoc reads & lookups by id
+  * Each partition has an R*Tree over its coordinates, for bounding box reads
+  * Aggregates per tile are kept in location_tile by triggers on each partition
+  * Partitions & their triggers are managed, and earlier versions' data migrated,
+  * by [[SQLiteLocationSchema]]
+  */
+class SQLiteLocationRepo(database: Database)(using executionContext: ExecutionContext)
     extends LocationRepo {
+  private val writer: DbClient.DataSource = database.writer
+  private val reader: DbClient.DataSource = database.reader
+  private val writeQueue: GroupCommitWriter = database.writeQueue
+  private val dictionary: SQLiteMetadataDictionary = new SQLiteMetadataDictionary
+  private val places: SQLitePlaces = new SQLitePlaces
+  private val schema: SQLiteLocationSchema = new SQLiteLocationSchema(dictionary, places)
+
+  /** Write-through cache of each device's latest location
+    * Only modified by writes on the writer thread (or populated by reads if absent),
+    * and invalidated if a write is rolled back
+    */
+  private val lastLocations: concurrent.Map[DeviceId.Type, Option[StoredLocation]] =
+    concurrent.TrieMap.empty
+
+  /** Ids are unique across partitions, so are allocated here rather than by each table
+    * Only used on the writer thread, ids allocated by a rolled back write are skipped
+    */
+  private val nextId: AtomicLong = new AtomicLong(1)
+
   override def init(): Future[Unit] = Future {
-    db.transaction { implicit db =>
+    writer.transaction { implicit db =>
       blocking {
-        val _ = db.updateRaw(
-          """CREATE TABLE IF NOT EXISTS stored_location_table (
-            id INTEGER PRIMARY KEY, -- Auto-increment key
-            device_id TEXT,
-            lat DOUBLE,
-            lon DOUBLE,
-            accuracy DOUBLE,
-            start_timestamp UNSIGNED BIG INT,
-            end_timestamp UNSIGNED BIG INT,
-            count UNSIGNED BIG INT,
-            metadata TEXT
-          );"""
-        )
-        val _ = db.updateRaw(
-          """CREATE INDEX IF NOT EXISTS idx_device_time ON stored_location_table (device_id, end_timestamp);"""
-        )
+        schema.migrate()
+
+        val existing = schema.writerPartitions()
+        existing.foreach { partition =>
+          nextId.accumulateAndGet(
+            db.runSql[Long](sql"SELECT COALESCE(MAX(id), 0) + 1 FROM ${table(partition)}").head,
+            (a, b) => math.max(a, b)
+          ): Unit
+        }
+
+        // Seed the last location cache: a loose index scan of each partition to find each device,
+        // then an index seek per device for its latest location
+        existing
+          .flatMap { partition =>
+            db.runSql[String](sql"""
+              WITH RECURSIVE devices(device_id) AS (
+                SELECT MIN(device_id) FROM ${table(partition)}
+                UNION ALL
+                SELECT (
+                  SELECT MIN(device_id) FROM ${table(partition)}
+                  WHERE device_id > devices.device_id
+                )
+                FROM devices WHERE devices.device_id IS NOT NULL
+              )
+              SELECT device_id FROM devices WHERE device_id IS NOT NULL
+            """)
+          }
+          .distinct
+          .foreach { device =>
+            val deviceId = DeviceId(device)
+            lastLocations.update(deviceId, lastRow(deviceId))
+          }
       }
     }
   }
 
-  override def storeDeviceLocation(
+  /** A location's metadata as stored: a reference to its place, if it has one,
+    * and the rest of its metadata
+    */
+  private def encodeMetadata(
+      metadata: Map[String, String]
+  )(implicit db: DbApi.Txn): (Option[Long], BlobColumn) = {
+    val (place, rest) = Place.split(metadata)
+    (place.map(places.placeId), dictionary.encode(rest))
+  }
+
+  private def insertRow(
       deviceId: DeviceId.Type,
       location: Location,
       metadata: StoredLocation.Metadata
-  ): Future[Try[Unit]] = Future {
-    db.transaction { implicit db =>
-      Try {
-        blocking {
-          db.run(
-            StoredLocationTable.insert.columns(
-              _.deviceId := deviceId.toString,
-              _.lat := location.lat,
-              _.lon := location.lon,
-              _.accuracy := location.accuracy,
-              _.metadata := JsonColumn(location.metadata),
-              _.startTimestamp := metadata.startTimestamp,
-              _.endTimestamp := metadata.endTimestamp,
-              _.count := metadata.count
-            )
-          )
-          ()
-        }
+  )(implicit db: DbApi.Txn): Long = {
+    val id = nextId.getAndIncrement()
+    writeRow(deviceId, StoredLocation.fromLocation(location, id, metadata))
+    id
+  }
+
+  private def writeRow(deviceId: DeviceId.Type, storedLocation: StoredLocation)(implicit
+      db: DbApi.Txn
+  ): Unit = {
+    val partition = LocationPartition.of(storedLocation.metadata.endTimestamp)
+    schema.ensurePartition(partition)
+    val (placeId, metadata) = encodeMetadata(storedLocation.location.metadata)
+
+    val _ = db.updateSql(sql"""
+      INSERT INTO ${table(partition)} (
+        id, device_id, lat, lon, accuracy, start_timestamp, end_timestamp, count, metadata, place_id
+      )
+      VALUES (
+        ${storedLocation.id},
+        ${deviceId.toString},
+        ${storedLocation.location.lat},
+        ${storedLocation.location.lon},
+        ${storedLocation.location.accuracy},
+        ${storedLocation.metadata.startTimestamp},
+        ${storedLocation.metadata.endTimestamp},
+        ${storedLocation.metadata.count},
+        ${metadata},
+        ${placeId}
+      )
+    """)
+  }
+
+  private def cachedLastRow(deviceId: DeviceId.Type)(implicit
+      db: DbApi.Txn
+  ): Option[StoredLocation] =
+    lastLocations.getOrElseUpdate(deviceId, lastRow(deviceId))
+
+  /** Later versions of a row (i.e. written ones) take precedence over the cached one */
+  private def cacheWritten(deviceId: DeviceId.Type, written: Seq[StoredLocation])(implicit
+      db: DbApi.Txn
+  ): Unit = {
+    val candidates = (written.reverse ++ cachedLastRow(deviceId)).distinctBy(_.id)
+    lastLocations.update(deviceId, candidates.maxByOption(l => (l.metadata.endTimestamp, l.id)))
+  }
+
+  private def invalidate(deviceId: DeviceId.Type): () => Unit =
+    () => {
+      val _ = lastLocations.remove(deviceId)
+    }
+
+  /** Seeks each partition from the newest, stopping at the first holding the device */
+  private def lastRow(deviceId: DeviceId.Type)(implicit db: DbApi.Txn): Option[StoredLocation] = {
+    import com.jackpf.locationhistory.server.repo.StoredLocationTable.given
+
+    schema.writerPartitions().reverseIterator
+      .flatMap { partition =>
+        db.runSql[StoredLocationRow](sql"""
+          SELECT * FROM ${table(partition)}
+          WHERE device_id = ${deviceId.toString}
+          ORDER BY end_timestamp DESC, id DESC
+          LIMIT 1
+        """).headOption
       }
+      .nextOption()
+      .map(_.toStoredLocation(dictionary, places))
+  }
+
+  /** Updates a row in place, or moves it if its end timestamp is now in another partition */
+  private def updateRow(
+      deviceId: DeviceId.Type,
+      existing: StoredLocation,
+      storedLocation: StoredLocation
+  )(implicit db: DbApi.Txn): Unit = {
+    val from = LocationPartition.of(existing.metadata.endTimestamp)
+    val to = LocationPartition.of(storedLocation.metadata.endTimestamp)
+
+    if (from == to) {
+      val (placeId, metadata) = encodeMetadata(storedLocation.location.metadata)
+      val _ = db.updateSql(sql"""
+        UPDATE ${table(to)} SET
+          lat = ${storedLocation.location.lat},
+          lon = ${storedLocation.location.lon},
+          accuracy = ${storedLocation.location.accuracy},
+          metadata = ${metadata},
+          place_id = ${placeId},
+          start_timestamp = ${storedLocation.metadata.startTimestamp},
+          end_timestamp = ${storedLocation.metadata.endTimestamp},
+          count = ${storedLocation.metadata.count}
+        WHERE id = ${existing.id} AND device_id = ${deviceId.toString}
+      """)
+    } else {
+      val _ = db.updateSql(sql"""
+        DELETE FROM ${table(from)} WHERE id = ${existing.id} AND device_id = ${deviceId.toString}
+      """)
+      writeRow(deviceId, storedLocation.copy(id = existing.id))
     }
   }
 
+  /** Queues a write that may intern metadata or places,
+    * clearing the dictionary's and places' caches as well if it's rolled back
+    */
+  private def submitWithMetadata[T](
+      write: DbApi.Txn => T,
+      onRollback: () => Unit
+  ): Future[Try[T]] = writeQueue.submit(
+    write,
+    onRollback = () => {
+      dictionary.rollback()
+      places.rollback()
+      onRollback()
+    }
+  )
+
+  override def storeDeviceLocation(
+      deviceId: DeviceId.Type,
+      location: Location,
+      metadata: StoredLocation.Metadata
+  ): Future[Try[Unit]] = submitWithMetadata(
+    { implicit db =>
+      val id = insertRow(deviceId, location, metadata)
+      cacheWritten(deviceId, Seq(StoredLocation.fromLocation(location, id, metadata)))
+    },
+    onRollback = invalidate(deviceId)
+  )
+
+  override def appendOrMerge(
+      deviceId: DeviceId.Type,
+      locations: Seq[(Location, Long)],
+      isDuplicate: CheckDuplicateLocationFunc
+  ): Future[Try[Vector[StoredLocation]]] = submitWithMetadata(
+    { implicit db =>
+      val last = cachedLastRow(deviceId)
+      val collapsed = collapseDuplicates(last, locations, isDuplicate)
+
+      for {
+        existing <- last
+        previous <- collapsed.updatedPrevious
+      } updateRow(deviceId, existing, previous)
+      val inserted = collapsed.newLocations.map { case (location, metadata) =>
+        StoredLocation.fromLocation(location, insertRow(deviceId, location, metadata), metadata)
+      }
+
+      val written = collapsed.updatedPrevious.toVector ++ inserted
+      cacheWritten(deviceId, written)
+      written
+    },
+    onRollback = invalidate(deviceId)
+  )
+
+  /** Partitions are disjoint & ordered by end timestamp,
+    * so are read from the newest until the limit is reached
+    */
   override def getForDevice(
       deviceId: DeviceId.Type,
       limit: Option[Int]
   ): Future[Vector[StoredLocation]] = Future {
-    db.transaction { implicit db =>
+    import com.jackpf.locationhistory.server.repo.StoredLocationTable.given
+
+    reader.transaction { implicit db =>
       blocking {
-        db.run(
-          {
-            val q = StoredLocationTable.select
-              .filter(_.deviceId === deviceId.toString)
-              .sortBy(_.endTimestamp)
-              .desc
-
-            limit match {
-              case Some(l) => q.take(l)
-              case None    => q
-            }
+        schema.partitions().reverse
+          .foldLeft(Vector.empty[StoredLocationRow]) { (rows, partition) =>
+            val remaining = limit.map(_ - rows.size)
+            if (remaining.exists(_ <= 0)) rows
+            else
+              rows ++ db.runSql[StoredLocationRow](sql"""
+                SELECT * FROM ${table(partition)}
+                WHERE device_id = ${deviceId.toString}
+                ORDER BY end_timestamp DESC, id DESC
+                ${limitClause(remaining)}
+              """)
           }
-        ).toVector
           .reverse // Reverse -> ascending order
-          .map(_.toStoredLocation)
+          .map(_.toStoredLocation(dictionary, places))
+      }
+    }
+  }
+
+  private def limitClause(limit: Option[Int]): SqlStr = limit match {
+    case Some(l) => sql"LIMIT ${l}"
+    case None    => sql""
+  }
+
+  private def rangeLowerBound(range: TimeRange, after: Option[LocationCursor]): Long =
+    after.fold(range.lowerBound)(c => math.max(range.lowerBound, c.endTimestamp))
+
+  /** Partitions overlapping a range, in end timestamp order */
+  private def rangePartitions(range: TimeRange, after: Option[LocationCursor])(implicit
+      db: DbApi.Txn
+  ): Vector[LocationPartition] =
+    schema.partitions().filter(_.overlaps(rangeLowerBound(range, after), range.upperBound))
+
+  private def cursorFilter(after: Option[LocationCursor]): SqlStr = after match {
+    case Some(c) => sql"AND (end_timestamp > ${c.endTimestamp} OR id > ${c.id})"
+    case None    => sql""
+  }
+
+  private def rangeQuery(
+      partition: LocationPartition,
+      deviceId: DeviceId.Type,
+      range: TimeRange,
+      after: Option[LocationCursor],
+      limit: Option[Int]
+  ): SqlStr = {
+    sql"""
+      SELECT * FROM ${table(partition)}
+      WHERE device_id = ${deviceId.toString}
+        AND end_timestamp >= ${rangeLowerBound(range, after)}
+        AND end_timestamp <= ${range.upperBound}
+        ${cursorFilter(after)}
+      ORDER BY end_timestamp ASC, id ASC
+      ${limitClause(limit)}
+    """
+  }
+
+  /** Seeks on each overlapping partition's (device_id, end_timestamp) index,
+    * which implicitly includes the rowid, so (end_timestamp, id) ordering needs no sort step
+    */
+  override def getForDeviceInRange(
+      deviceId: DeviceId.Type,
+      range: TimeRange,
+      after: Option[LocationCursor],
+      limit: Option[Int]
+  ): Future[Vector[StoredLocation]] = Future {
+    readRange(deviceId, range, after, limit)
+  }
+
+  private def readRange(
+      deviceId: DeviceId.Type,
+      range: TimeRange,
+      after: Option[LocationCursor],
+      limit: Option[Int]
+  ): Vector[StoredLocation] = {
+    import com.jackpf.locationhistory.server.repo.StoredLocationTable.given
+
+    reader.transaction { implicit db =>
+      blocking {
+        rangePartitions(range, after)
+          .foldLeft(Vector.empty[StoredLocationRow]) { (rows, partition) =>
+            val remaining = limit.map(_ - rows.size)
+            if (remaining.exists(_ <= 0)) rows
+            else rows ++ db.runSql[StoredLocationRow](
+              rangeQuery(partition, deviceId, range, after, remaining)
+            )
+          }
+          .map(_.toStoredLocation(dictionary, places))
+      }
+    }
+  }
+
+  /** Reads a chunk at a time, each in its own read transaction, resuming after the previous
+    * chunk's last location, so a slow consumer doesn't hold a transaction open
+    * Both reading and the consumer can block, so the stream is marked as blocking
+    */
+  override def streamForDeviceInRange(
+      deviceId: DeviceId.Type,
+      range: TimeRange,
+      chunkSize: Int
+  )(consumer: Vector[StoredLocation] => Unit)(using ec: ExecutionContext): Future[Unit] = Future {
+    @tailrec
+    def streamFrom(after: Option[LocationCursor]): Unit = {
+      val chunk = readRange(deviceId, range, after, limit = Some(chunkSize))
+
+      if (chunk.nonEmpty) consumer(chunk)
+      if (chunk.size == chunkSize) streamFrom(chunk.lastOption.map(LocationCursor.after))
+    }
+
+    blocking(streamFrom(after = None))
+  }
+
+  private def deviceFilter(devices: Option[Seq[DeviceId.Type]]): SqlStr = devices match {
+    case Some(ds) =>
+      sql"AND device_id IN (${SqlStr.join(ds.map(d => sql"${d.toString}"), sql", ")})"
+    case None => sql""
+  }
+
+  /** Candidates from the R*Tree drive the read, each then fetched by id
+    * The R*Tree stores rounded coordinates, so candidates are checked against the exact ones
+    */
+  private def boundsQuery(
+      partition: LocationPartition,
+      bounds: BoundingBox,
+      range: TimeRange,
+      devices: Option[Seq[DeviceId.Type]],
+      after: Option[LocationCursor],
+      limit: Option[Int]
+  ): SqlStr = {
+    val candidates = SqlStr.join(
+      bounds.parts.map { part =>
+        sql"""
+          SELECT id AS rtree_id FROM ${SqlStr.raw(partition.spatialIndexName)}
+          WHERE max_lat >= ${part.minLat} AND min_lat <= ${part.maxLat}
+            AND max_lon >= ${part.minLon} AND min_lon <= ${part.maxLon}
+        """
+      },
+      sql" UNION ALL "
+    )
+    val lonFilter =
+      if (bounds.crossesAntimeridian) sql"(lon >= ${bounds.minLon} OR lon <= ${bounds.maxLon})"
+      else sql"lon >= ${bounds.minLon} AND lon <= ${bounds.maxLon}"
+    // A cross join keeps the R*Tree as the outer loop, rather than the device & time index
+    // Candidate ids are aliased, so the location table's id is unambiguous in the filters
+    sql"""
+      SELECT ${table(partition)}.* FROM (${candidates}) AS candidates
+      CROSS JOIN ${table(partition)} ON ${table(partition)}.id = candidates.rtree_id
+      WHERE lat >= ${bounds.minLat} AND lat <= ${bounds.maxLat} AND ${lonFilter}
+        AND end_timestamp >= ${rangeLowerBound(range, after)}
+        AND end_timestamp <= ${range.upperBound}
+        ${cursorFilter(after)}
+        ${deviceFilter(devices)}
+      ORDER BY end_timestamp ASC, id ASC
+      ${limitClause(limit)}
+    """
+  }
+
+  override def getInBounds(
+      bounds: BoundingBox,
+      range: TimeRange,
+      devices: Option[Seq[DeviceId.Type]],
+      after: Option[LocationCursor],
+      limit: Option[Int]
+  ): Future[Vector[(DeviceId.Type, StoredLocation)]] = Future {
+    import com.jackpf.locationhistory.server.repo.StoredLocationTable.given
+
+    reader.transaction { implicit db =>
+      blocking {
+        rangePartitions(range, after)
+          .foldLeft(Vector.empty[StoredLocationRow]) { (rows, partition) =>
+            val remaining = limit.map(_ - rows.size)
+            if (remaining.exists(_ <= 0)) rows
+            else rows ++ db.runSql[StoredLocationRow](
+              boundsQuery(partition, bounds, range, devices, after, remaining)
+            )
+          }
+          .map(row => DeviceId(row.deviceId) -> row.toStoredLocation(dictionary, places))
+      }
+    }
+  }
+
+  override def getTiles(
+      zoom: Int,
+      bounds: Option[BoundingBox],
+      devices: Option[Seq[DeviceId.Type]]
+  ): Future[Vector[(Tile, TileAggregate)]] = Future {
+    val tileFilter = bounds match {
+      case Some(b) =>
+        val ranges = Tile.ranges(b, zoom).map { range =>
+          sql"""(x >= ${range.minX} AND x <= ${range.maxX}
+            AND y >= ${range.minY} AND y <= ${range.maxY})"""
+        }
+        sql"AND (${SqlStr.join(ranges, sql" OR ")})"
+      case None => sql""
+    }
+
+    reader.transaction { implicit db =>
+      blocking {
+        db.runSql[(Int, Int, Long, Long, Long)](sql"""
+          SELECT x, y, SUM(locations), SUM(count), SUM(dwell) FROM location_tile
+          WHERE zoom = ${zoom} ${tileFilter} ${deviceFilter(devices)}
+          GROUP BY x, y
+          ORDER BY x, y
+        """).map { case (x, y, locations, count, dwell) =>
+          Tile(zoom, x, y) -> TileAggregate(locations, count, dwell)
+        }.toVector
       }
     }
   }
@@ -116,86 +519,205 @@ class SQLiteLocationRepo(db: DbClient.DataSource)(using executionContext: Execut
       deviceId: DeviceId.Type,
       id: Long,
       updateAction: StoredLocation => StoredLocation
-  ): Future[Try[Unit]] = Future {
-    db.transaction { implicit db =>
-      /* This is not strictly race-condition-resistant
-       * We can add a `version` field to StoredLocationRow if needed */
+  ): Future[Try[Unit]] = submitWithMetadata(
+    { implicit db =>
+      import com.jackpf.locationhistory.server.repo.StoredLocationTable.given
+
+      // Reads and writes share the single writer's transaction, so no other write can interleave
       val existingRowMaybe =
-        blocking {
-          db.run(
-            StoredLocationTable.select.filter(l => l.id === id && l.deviceId === deviceId.toString)
-          ).headOption
-        }
+        if (schema.writerPartitions().isEmpty) None
+        else
+          db.runSql[StoredLocationRow](sql"""
+            SELECT * FROM stored_location_table
+            WHERE id = ${id} AND device_id = ${deviceId.toString}
+          """).headOption
+
       existingRowMaybe match {
         case Some(existingRow) =>
-          val updatedStoredDevice = updateAction(existingRow.toStoredLocation)
-
-          Try {
-            blocking {
-              db.run(
-                StoredLocationTable
-                  .update(l => l.id === id && l.deviceId === deviceId.toString)
-                  .set(
-                    _.lat := updatedStoredDevice.location.lat,
-                    _.lon := updatedStoredDevice.location.lon,
-                    _.accuracy := updatedStoredDevice.location.accuracy,
-                    _.metadata := JsonColumn(updatedStoredDevice.location.metadata),
-                    _.startTimestamp := updatedStoredDevice.metadata.startTimestamp,
-                    _.endTimestamp := updatedStoredDevice.metadata.endTimestamp,
-                    _.count := updatedStoredDevice.metadata.count
-                  )
+          val existing = existingRow.toStoredLocation(dictionary, places)
+          updateRow(deviceId, existing, updateAction(existing))
+          // The update may have changed which location is the latest
+          lastLocations.update(deviceId, lastRow(deviceId))
+        case None => throw LocationNotFoundException(deviceId, id)
+      }
+    },
+    onRollback = invalidate(deviceId)
+  )
+
+  // Deletes go through the write queue too, so they're ordered with pending writes
+  override def deleteForDevice(deviceId: DeviceId.Type): Future[Unit] = writeQueue
+    .submit(
+      { implicit db =>
+        schema.writerPartitions().foreach { partition =>
+          val _ = db.updateSql(
+            sql"DELETE FROM ${table(partition)} WHERE device_id = ${deviceId.toString}"
+          )
+        }
+        lastLocations.update(deviceId, None)
+      },
+      onRollback = invalidate(deviceId)
+    )
+    .flatMap(Future.fromTry)
+
+  override def deleteAll(): Future[Unit] = writeQueue
+    .submit(
+      { implicit db =>
+        schema.dropPartitions(schema.writerPartitions())
+        lastLocations.clear()
+      },
+      onRollback = () => lastLocations.clear()
+    )
+    .flatMap(Future.fromTry)
+
+  override def deleteLocations(deviceId: DeviceId.Type, ids: Seq[Long]): Future[Try[Int]] =
+    if (ids.isEmpty) Future.successful(Success(0))
+    else
+      writeQueue.submit(
+        { implicit db =>
+          val idList = SqlStr.join(ids.map(id => sql"${id}"), sql", ")
+          val deleted = schema.writerPartitions().map { partition =>
+            db.updateSql(sql"""
+              DELETE FROM ${table(partition)}
+              WHERE device_id = ${deviceId.toString} AND id IN (${idList})
+            """)
+          }.sum
+
+          if (lastLocations.get(deviceId).flatten.exists(last => ids.contains(last.id)))
+            lastLocations.update(deviceId, lastRow(deviceId))
+          deleted
+        },
+        onRollback = invalidate(deviceId)
+      )
+
+  /** Drops the partitions that have wholly expired, then deletes from the partition holding
+    * the timestamp in batches, each a separate write so queued writes are committed in between
+    */
+  override def deleteBefore(timestamp: Long, batchSize: Int): Future[Try[Long]] = {
+    val boundary = LocationPartition.of(timestamp)
+
+    // Rows are scanned in id, i.e. roughly insertion, order, so expired rows are found first
+    def deleteBatches(deleted: Long): Future[Try[Long]] = writeQueue
+      .submit(
+        { implicit db =>
+          if (!schema.writerPartitions().contains(boundary)) 0
+          else {
+            val batch = db.updateSql(sql"""
+              DELETE FROM ${table(boundary)} WHERE id IN (
+                SELECT id FROM ${table(boundary)}
+                WHERE end_timestamp < ${timestamp}
+                LIMIT ${batchSize}
               )
+            """)
+            lastLocations.foreach {
+              case (deviceId, Some(last)) if last.metadata.endTimestamp < timestamp =>
+                lastLocations.update(deviceId, lastRow(deviceId))
+              case _ => ()
             }
-            ()
+            batch
           }
-        case None => Failure(LocationNotFoundException(deviceId, id))
+        },
+        onRollback = () => lastLocations.clear()
+      )
+      .flatMap {
+        case Success(batch) if batch == batchSize => deleteBatches(deleted + batch)
+        case result                               => Future.successful(result.map(deleted + _))
       }
-    }
-  }
 
-  override def deleteForDevice(deviceId: DeviceId.Type): Future[Unit] = Future {
-    db.transaction { implicit db =>
-      blocking {
-        db.run(StoredLocationTable.delete(_.deviceId === deviceId.toString))
-        ()
+    writeQueue
+      .submit(
+        { implicit db =>
+          val expired = schema.writerPartitions().filter(_.upperBound < timestamp)
+          val rows = expired.map { partition =>
+            db.runSql[Long](sql"SELECT COUNT(*) FROM ${table(partition)}").head
+          }.sum
+          dropExpired(expired)
+          rows
+        },
+        onRollback = () => lastLocations.clear()
+      )
+      .flatMap {
+        case Success(dropped) => deleteBatches(dropped)
+        case failure          => Future.successful(failure)
       }
-    }
   }
 
-  override def deleteAll(): Future[Unit] = Future {
-    db.transaction { implicit db =>
-      blocking {
-        db.run(StoredLocationTable.delete(_ => true))
-        ()
-      }
+  private def dropExpired(expired: Seq[LocationPartition])(implicit db: DbApi.Txn): Unit = {
+    schema.dropPartitions(expired)
+
+    // A device's latest location is only dropped along with the rest of its history
+    lastLocations.foreach {
+      case (deviceId, Some(last))
+          if expired.contains(LocationPartition.of(last.metadata.endTimestamp)) =>
+        lastLocations.update(deviceId, None)
+      case _ => ()
     }
   }
 
-  /** Overriding the default implementation with an optimised SQL version
+  /** Drops every partition holding only locations that ended before a timestamp,
+    * without deleting row by row
+    * @return the number of partitions dropped
+    */
+  def dropPartitionsBefore(timestamp: Long): Future[Try[Int]] = writeQueue.submit(
+    { implicit db =>
+      val expired = schema.writerPartitions().filter(_.upperBound < timestamp)
+      dropExpired(expired)
+      expired.size
+    },
+    onRollback = () => lastLocations.clear()
+  )
+
+  /** Overriding the default implementation to serve from the last location cache,
+    * loading any missing devices in one query per partition
     */
   override def getDevicesLastLocationMap(devices: Seq[DeviceId.Type])(using
       ec: ExecutionContext
+  ): Future[Map[DeviceId.Type, Option[StoredLocation]]] = {
+    val cached = devices.flatMap(device => lastLocations.get(device).map(device -> _)).toMap
+    val missing = devices.filterNot(cached.contains)
+
+    if (missing.isEmpty) Future.successful(cached)
+    else
+      loadLastLocations(missing).map { loaded =>
+        // Don't overwrite anything cached by a write in the meantime
+        loaded.foreach { case (device, location) => lastLocations.putIfAbsent(device, location) }
+        cached ++ loaded
+      }
+  }
+
+  private def loadLastLocations(
+      devices: Seq[DeviceId.Type]
   ): Future[Map[DeviceId.Type, Option[StoredLocation]]] = Future {
     if (devices.isEmpty) Map.empty
     else {
       import com.jackpf.locationhistory.server.repo.StoredLocationTable.given
 
-      val deviceIds = SqlStr.join(devices.map(d => sql"${d.toString}"), sql", ")
-
-      db.transaction { implicit db =>
+      reader.transaction { implicit db =>
         blocking {
-          val result = db.runSql[StoredLocationRow](sql"""
-          SELECT * FROM (
-            SELECT *,
-              ROW_NUMBER() OVER (PARTITION BY device_id ORDER BY end_timestamp DESC) as rn
-            FROM stored_location_table
-            WHERE device_id IN ($deviceIds)
-          )
-          WHERE rn = 1
-        """)
+          // From the newest partition, one correlated seek per device still missing a location,
+          // rather than ranking every row of each device's history
+          val locationsMap = schema.partitions().reverse
+            .foldLeft(Map.empty[DeviceId.Type, StoredLocation]) { (found, partition) =>
+              val remaining = devices.filterNot(found.contains)
+              if (remaining.isEmpty) found
+              else {
+                val deviceIds = SqlStr.join(remaining.map(d => sql"(${d.toString})"), sql", ")
+                found ++ db
+                  .runSql[StoredLocationRow](sql"""
+                    SELECT * FROM ${table(partition)}
+                    WHERE id IN (
+                      SELECT (
+                        SELECT id FROM ${table(partition)}
+                        WHERE device_id = devices.column1
+                        ORDER BY end_timestamp DESC, id DESC
+                        LIMIT 1
+                      )
+                      FROM (VALUES $deviceIds) AS devices
+                    )
+                  """)
+                  .map(row => DeviceId(row.deviceId) -> row.toStoredLocation(dictionary, places))
+              }
+            }
 
-          val locationsMap =
-            result.map(row => DeviceId(row.deviceId) -> row.toStoredLocation).toMap
           devices.map(device => device -> locationsMap.get(device)).toMap
         }
       }
@@ -0,0 +1,421 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.{Place, Tile}
+import com.jackpf.locationhistory.server.repo.SQLiteLocationSchema.*
+import com.jackpf.locationhistory.server.util.SQLiteMapper.*
+import scalasql.*
+import scalasql.core.SqlStr.SqlStringSyntax
+import scalasql.core.{DbApi, SqlStr}
+import SqliteDialect.*
+
+import scala.annotation.tailrec
+
+private[repo] object SQLiteLocationSchema {
+
+  /** Database user_versions from which metadata is stored as protobuf map bytes
+    * rather than JSON, then as dictionary entry ids, and then with places split out
+    */
+  val BinaryMetadataVersion: Int = 1
+  val DictionaryMetadataVersion: Int = 2
+  val PlaceMetadataVersion: Int = 3
+  val MigrationBatchSize: Int = 1_000
+
+  /** Partitions as of a schema version, which changes whenever partitions are created or dropped */
+  private case class PartitionSet(schemaVersion: Int, partitions: Vector[LocationPartition])
+
+  private val UnpartitionedColumns: String =
+    "id, device_id, lat, lon, accuracy, start_timestamp, end_timestamp, count, metadata"
+
+  def table(partition: LocationPartition): SqlStr = SqlStr.raw(partition.tableName)
+}
+
+/** Schema of [[SQLiteLocationRepo]]'s partitions, with the R*Tree & tile triggers on each,
+  * the view over them, and migrations of data written by earlier versions
+  * Partitions are only created, dropped & migrated within the writer's transactions
+  */
+private[repo] class SQLiteLocationSchema(
+    dictionary: SQLiteMetadataDictionary,
+    places: SQLitePlaces
+) {
+
+  /** Partitions kept in memory, so reads & writes don't list sqlite_master each time
+    * Only recorded by the writer's transactions, which create & drop partitions, and by init
+    * Transactions only use them if their schema version matches, as they're ahead of readers'
+    * until the writer's transaction commits, and may be from a write that was rolled back
+    */
+  @volatile private var partitionSet: Option[PartitionSet] = None
+
+  /** Creates or migrates the schema, on the writer's transaction before the repo is used */
+  def migrate()(implicit db: DbApi.Txn): Unit = {
+    createTileTables()
+    migrateUnpartitioned()
+    dictionary.init()
+    places.init()
+    migrateMetadata()
+    writerPartitions().foreach { partition =>
+      createSpatialIndex(partition)
+      createTileTriggers(partition)
+    }
+  }
+
+  private def schemaVersion()(implicit db: DbApi.Txn): Int =
+    db.runRaw[Int]("PRAGMA schema_version").head
+
+  private def listPartitions()(implicit db: DbApi.Txn): Vector[LocationPartition] =
+    db.runRaw[String]("SELECT name FROM sqlite_master WHERE type = 'table'")
+      .flatMap(LocationPartition.fromTableName)
+      .sorted
+      .toVector
+
+  private def recordPartitions(partitions: Vector[LocationPartition])(implicit
+      db: DbApi.Txn
+  ): Vector[LocationPartition] = {
+    partitionSet = Some(PartitionSet(schemaVersion(), partitions))
+    partitions
+  }
+
+  /** Read within the transaction, so they're consistent with the rows it sees
+    * Only listed from sqlite_master if the schema has changed since they were recorded
+    */
+  def partitions()(implicit db: DbApi.Txn): Vector[LocationPartition] = {
+    val version = schemaVersion()
+    partitionSet.filter(_.schemaVersion == version).fold(listPartitions())(_.partitions)
+  }
+
+  /** As [[partitions]], but recording them if they're listed, for the writer's transactions */
+  def writerPartitions()(implicit db: DbApi.Txn): Vector[LocationPartition] = {
+    val version = schemaVersion()
+    partitionSet
+      .filter(_.schemaVersion == version)
+      .fold(recordPartitions(listPartitions()))(_.partitions)
+  }
+
+  private def createPartition(partition: LocationPartition)(implicit db: DbApi.Txn): Unit = {
+    val _ = db.updateRaw(
+      s"""CREATE TABLE IF NOT EXISTS ${partition.tableName} (
+        id INTEGER PRIMARY KEY,
+        device_id TEXT,
+        lat DOUBLE,
+        lon DOUBLE,
+        accuracy DOUBLE,
+        start_timestamp UNSIGNED BIG INT,
+        end_timestamp UNSIGNED BIG INT,
+        count UNSIGNED BIG INT,
+        metadata BLOB,
+        place_id INTEGER REFERENCES place (id)
+      )"""
+    )
+    val _ = db.updateRaw(
+      s"""CREATE INDEX IF NOT EXISTS idx_${partition.tableName}_device_time
+        ON ${partition.tableName} (device_id, end_timestamp)"""
+    )
+    createSpatialIndex(partition)
+    createTileTriggers(partition)
+  }
+
+  /** Creates a partition's R*Tree if it doesn't exist yet, indexing any rows it already has
+    * Triggers keep it in sync with the partition, and are dropped along with it
+    */
+  private def createSpatialIndex(partition: LocationPartition)(implicit db: DbApi.Txn): Unit = {
+    val rtree = partition.spatialIndexName
+    val exists = db
+      .runRaw[String](
+        "SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?",
+        Seq(rtree)
+      )
+      .nonEmpty
+
+    if (!exists) {
+      val t = partition.tableName
+      Seq(
+        s"CREATE VIRTUAL TABLE ${rtree} USING rtree(id, min_lat, max_lat, min_lon, max_lon)",
+        s"INSERT INTO ${rtree} SELECT id, lat, lat, lon, lon FROM ${t}",
+        s"""CREATE TRIGGER ${rtree}_insert AFTER INSERT ON ${t} BEGIN
+          INSERT INTO ${rtree} VALUES (NEW.id, NEW.lat, NEW.lat, NEW.lon, NEW.lon);
+        END""",
+        s"""CREATE TRIGGER ${rtree}_update AFTER UPDATE OF lat, lon ON ${t} BEGIN
+          UPDATE ${rtree} SET min_lat = NEW.lat, max_lat = NEW.lat, min_lon = NEW.lon,
+            max_lon = NEW.lon
+          WHERE id = NEW.id;
+        END""",
+        s"""CREATE TRIGGER ${rtree}_delete AFTER DELETE ON ${t} BEGIN
+          DELETE FROM ${rtree} WHERE id = OLD.id;
+        END"""
+      ).foreach(statement => db.updateRaw(statement): Unit)
+    }
+  }
+
+  /** Created before any partition, as their triggers write to location_tile
+    * tile_zoom lists the zooms aggregated, for triggers to join against
+    */
+  private def createTileTables()(implicit db: DbApi.Txn): Unit = {
+    val _ = db.updateRaw(
+      """CREATE TABLE IF NOT EXISTS location_tile (
+        zoom INTEGER,
+        x INTEGER,
+        y INTEGER,
+        device_id TEXT,
+        locations INTEGER,
+        count INTEGER,
+        dwell INTEGER,
+        PRIMARY KEY (zoom, x, y, device_id)
+      ) WITHOUT ROWID"""
+    )
+    val _ = db.updateRaw("CREATE TABLE IF NOT EXISTS tile_zoom (zoom INTEGER PRIMARY KEY)")
+    val _ = db.updateRaw(
+      s"""INSERT OR IGNORE INTO tile_zoom VALUES
+        ${(0 to Tile.MaxZoom).map(zoom => s"(${zoom})").mkString(", ")}"""
+    )
+  }
+
+  /** A row's tile x & y at each tile_zoom, or at a given zoom,
+    * computed as by [[Tile.x]] & [[Tile.y]]
+    */
+  private def tileColumns(row: String, zoom: String = "zoom"): String = {
+    val tiles = s"(1 << ${zoom})"
+    s"""MAX(0, MIN(CAST((${row}.lon + 180.0) / 360.0 * ${tiles} AS INTEGER), ${tiles} - 1)),
+      MAX(0, MIN(CAST((${row}.lat + 90.0) / 180.0 * ${tiles} AS INTEGER), ${tiles} - 1))"""
+  }
+
+  /** Adds the aggregates selected to location_tile, which may be negated to subtract them */
+  private def upsertTiles(select: String): String =
+    s"""INSERT INTO location_tile (zoom, x, y, device_id, locations, count, dwell)
+      ${select}
+      ON CONFLICT DO UPDATE SET
+        locations = locations + excluded.locations,
+        count = count + excluded.count,
+        dwell = dwell + excluded.dwell"""
+
+  /** A trigger's row at each zoom, where sign is "-" to subtract it */
+  private def rowTiles(row: String, sign: String): String = upsertTiles(
+    s"""SELECT zoom, ${tileColumns(row)}, ${row}.device_id, ${sign}1, ${sign}${row}.count,
+        ${sign}(${row}.end_timestamp - ${row}.start_timestamp)
+      FROM tile_zoom WHERE true"""
+  )
+
+  /** Every row of a partition at each zoom, where sign is "-" to subtract them */
+  private def partitionTiles(partition: LocationPartition, sign: String): String = {
+    val t = partition.tableName
+    upsertTiles(
+      s"""SELECT zoom, ${tileColumns(t)}, ${t}.device_id, ${sign}COUNT(*), ${sign}SUM(${t}.count),
+          ${sign}SUM(${t}.end_timestamp - ${t}.start_timestamp)
+        FROM ${t} CROSS JOIN tile_zoom GROUP BY 1, 2, 3, 4"""
+    )
+  }
+
+  /** The change to a trigger's row at each zoom, when it's updated without moving tiles */
+  private def rowTileDeltas: String = upsertTiles(
+    s"""SELECT zoom, ${tileColumns("NEW")}, NEW.device_id, 0, NEW.count - OLD.count,
+        (NEW.end_timestamp - NEW.start_timestamp) - (OLD.end_timestamp - OLD.start_timestamp)
+      FROM tile_zoom WHERE true"""
+  )
+
+  /** Creates a partition's tile triggers if they don't exist yet, adding any rows it already has
+    * Triggers are dropped along with the partition, whose rows must be subtracted first
+    * Tiles nest, so a row in the same tile at the greatest zoom is in the same tile at all of
+    * them, as after most merges; its count & dwell are then added to its tiles as a delta,
+    * leaving moving it between tiles to updates that change its tile or device
+    */
+  private def createTileTriggers(partition: LocationPartition)(implicit db: DbApi.Txn): Unit = {
+    val t = partition.tableName
+    val triggers = db
+      .runRaw[String](
+        "SELECT name FROM sqlite_master WHERE type = 'trigger' AND tbl_name = ?",
+        Seq(t)
+      )
+      .toSet
+    val columns = "device_id, lat, lon, start_timestamp, end_timestamp, count"
+    val maxZoom = Tile.MaxZoom.toString
+    val sameTiles = s"""OLD.device_id IS NEW.device_id AND
+      (${tileColumns("OLD", maxZoom)}) = (${tileColumns("NEW", maxZoom)})"""
+    val emptied = s"""DELETE FROM location_tile
+      WHERE locations = 0 AND device_id = OLD.device_id AND (zoom, x, y) IN (
+        SELECT zoom, ${tileColumns("OLD")} FROM tile_zoom
+      )"""
+
+    if (!triggers.contains(s"${t}_tile_insert")) {
+      Seq(
+        partitionTiles(partition, sign = ""),
+        s"""CREATE TRIGGER ${t}_tile_insert AFTER INSERT ON ${t} BEGIN
+          ${rowTiles("NEW", sign = "")};
+        END""",
+        s"""CREATE TRIGGER ${t}_tile_delete AFTER DELETE ON ${t} BEGIN
+          ${rowTiles("OLD", sign = "-")};
+          ${emptied};
+        END"""
+      ).foreach(statement => db.updateRaw(statement): Unit)
+    }
+
+    // Replaces the update trigger of earlier versions, which moved every updated row
+    if (!triggers.contains(s"${t}_tile_move")) {
+      Seq(
+        s"DROP TRIGGER IF EXISTS ${t}_tile_update",
+        s"""CREATE TRIGGER ${t}_tile_move AFTER UPDATE OF ${columns} ON ${t}
+          WHEN NOT (${sameTiles})
+        BEGIN
+          ${rowTiles("OLD", sign = "-")};
+          ${rowTiles("NEW", sign = "")};
+          ${emptied};
+        END""",
+        s"""CREATE TRIGGER ${t}_tile_update AFTER UPDATE OF ${columns} ON ${t}
+          WHEN ${sameTiles} AND (
+            OLD.count IS NOT NEW.count OR
+            OLD.start_timestamp IS NOT NEW.start_timestamp OR
+            OLD.end_timestamp IS NOT NEW.end_timestamp
+          )
+        BEGIN
+          ${rowTileDeltas};
+        END"""
+      ).foreach(statement => db.updateRaw(statement): Unit)
+    }
+  }
+
+  /** Redefines the view over all partitions, after partitions are created or dropped,
+    * and records them as of the resulting schema
+    */
+  private def refreshView()(implicit db: DbApi.Txn): Unit = {
+    val _ = db.updateRaw("DROP VIEW IF EXISTS stored_location_table")
+    val existing = listPartitions()
+    if (existing.nonEmpty) {
+      val _ = db.updateRaw(
+        s"""CREATE VIEW stored_location_table AS
+          ${existing.map(p => s"SELECT * FROM ${p.tableName}").mkString(" UNION ALL ")}"""
+      )
+    }
+    val _ = recordPartitions(existing)
+  }
+
+  def ensurePartition(partition: LocationPartition)(implicit db: DbApi.Txn): Unit =
+    if (!writerPartitions().contains(partition)) {
+      createPartition(partition)
+      refreshView()
+    }
+
+  /** Moves rows from the single table used before partitioning into monthly partitions,
+    * one partition at a time, seeking to the next month holding any rows
+    */
+  private def migrateUnpartitioned()(implicit db: DbApi.Txn): Unit = {
+    val unpartitioned = db
+      .runRaw[String](
+        "SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'stored_location_table'"
+      )
+      .nonEmpty
+
+    if (unpartitioned) {
+      val _ = db.updateRaw(
+        """CREATE INDEX IF NOT EXISTS idx_partition_migration
+          ON stored_location_table (end_timestamp)"""
+      )
+
+      def firstTimestampAfter(timestamp: Long): Option[Long] = db
+        .runRaw[Long](
+          """SELECT end_timestamp FROM stored_location_table
+          WHERE end_timestamp > ? ORDER BY end_timestamp LIMIT 1""",
+          Seq(timestamp)
+        )
+        .headOption
+
+      @tailrec
+      def migrateFrom(timestamp: Option[Long]): Unit = timestamp match {
+        case Some(endTimestamp) =>
+          val partition = LocationPartition.of(endTimestamp)
+          createPartition(partition)
+          val _ = db.updateRaw(
+            s"""INSERT INTO ${partition.tableName} (${UnpartitionedColumns})
+              SELECT ${UnpartitionedColumns} FROM stored_location_table
+              WHERE end_timestamp >= ? AND end_timestamp <= ?""",
+            Seq(partition.lowerBound, partition.upperBound)
+          )
+          migrateFrom(
+            Option.when(partition.upperBound < Long.MaxValue)(partition.upperBound)
+              .flatMap(firstTimestampAfter)
+          )
+        case None => ()
+      }
+
+      migrateFrom(
+        db.runRaw[Long](
+          "SELECT end_timestamp FROM stored_location_table ORDER BY end_timestamp LIMIT 1"
+        ).headOption
+      )
+      val _ = db.updateRaw("DROP TABLE stored_location_table")
+      refreshView()
+    }
+  }
+
+  /** Re-encodes metadata written by earlier versions with the dictionary, a batch of rows
+    * at a time: JSON TEXT before user_version 1, protobuf map bytes before user_version 2,
+    * and splits places out of metadata before user_version 3
+    * Runs once per database, recorded by its user_version
+    */
+  private def migrateMetadata()(implicit db: DbApi.Txn): Unit = {
+    val version = db.runRaw[Int]("PRAGMA user_version").head
+
+    if (version < PlaceMetadataVersion) {
+      writerPartitions().foreach { partition =>
+        val columns =
+          db.runRaw[String](s"SELECT name FROM pragma_table_info('${partition.tableName}')")
+        if (!columns.contains("place_id")) {
+          val _ = db.updateRaw(
+            s"ALTER TABLE ${partition.tableName} ADD COLUMN place_id INTEGER REFERENCES place (id)"
+          )
+        }
+
+        def readBatch(afterId: Long): IndexedSeq[(Long, Map[String, String])] = {
+          val query = sql"""
+            SELECT id, metadata FROM ${table(partition)}
+            WHERE id > ${afterId}
+            ORDER BY id
+            LIMIT ${MigrationBatchSize}
+          """
+          if (version < BinaryMetadataVersion)
+            db.runSql[(Long, JsonColumn[Map[String, String]])](query).map { case (id, json) =>
+              id -> json.value
+            }
+          else if (version < DictionaryMetadataVersion)
+            db.runSql[(Long, MetadataColumn)](query).map { case (id, binary) =>
+              id -> binary.value
+            }
+          else
+            db.runSql[(Long, BlobColumn)](query).map { case (id, blob) =>
+              id -> dictionary.decode(blob.value)
+            }
+        }
+
+        @tailrec
+        def migrateAfter(afterId: Long): Unit = {
+          val rows = readBatch(afterId)
+          rows.foreach { case (id, metadata) =>
+            val (place, rest) = Place.split(metadata)
+            // Rows already in the dictionary only need rewriting if they hold a place
+            if (version < DictionaryMetadataVersion || place.nonEmpty) {
+              val _ = db.updateSql(sql"""
+                UPDATE ${table(partition)} SET
+                  metadata = ${dictionary.encode(rest)},
+                  place_id = ${place.map(places.placeId)}
+                WHERE id = ${id}
+              """)
+            }
+          }
+          if (rows.size == MigrationBatchSize) migrateAfter(rows.last._1)
+        }
+
+        migrateAfter(0L)
+      }
+      refreshView()
+      val _ = db.updateRaw(s"PRAGMA user_version = ${PlaceMetadataVersion}")
+    }
+  }
+
+  /** Subtracts the partitions' rows from their tiles before dropping them */
+  def dropPartitions(dropped: Seq[LocationPartition])(implicit db: DbApi.Txn): Unit =
+    if (dropped.nonEmpty) {
+      dropped.foreach { partition =>
+        val _ = db.updateRaw(partitionTiles(partition, sign = "-"))
+        val _ = db.updateRaw(s"DROP TABLE ${partition.tableName}")
+        val _ = db.updateRaw(s"DROP TABLE IF EXISTS ${partition.spatialIndexName}")
+      }
+      val _ = db.updateRaw("DELETE FROM location_tile WHERE locations = 0")
+      refreshView()
+    }
+}
@@ -0,0 +1,100 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.google.protobuf.{CodedInputStream, CodedOutputStream}
+import com.jackpf.locationhistory.server.util.LazyMetadata
+import com.jackpf.locationhistory.server.util.SQLiteMapper.BlobColumn
+import scalasql.core.DbApi
+import scalasql.core.SqlStr.SqlStringSyntax
+import scalasql.SqliteDialect.*
+
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.concurrent
+
+/** Interns metadata key-value pairs in the metadata_entry table, so each distinct pair is stored
+  * once however many locations repeat it, and a location's metadata is a BLOB of entry ids
+  * Ids are sorted and delta encoded as varints, so typically take a byte or two each
+  * Entries are immutable, so are cached in both directions for the lifetime of the repo
+  */
+private[repo] class SQLiteMetadataDictionary {
+  private val ids: concurrent.Map[(String, String), Long] = concurrent.TrieMap.empty
+  private val entries: concurrent.Map[Long, (String, String)] = concurrent.TrieMap.empty
+
+  /** Ids are never reused, so one allocated by a rolled back write is never looked up */
+  private val nextId: AtomicLong = new AtomicLong(1)
+
+  private val decoder: Array[Byte] => Map[String, String] = decode
+
+  def init()(implicit db: DbApi.Txn): Unit = {
+    val _ = db.updateRaw(
+      """CREATE TABLE IF NOT EXISTS metadata_entry (
+        id INTEGER PRIMARY KEY,
+        key TEXT NOT NULL,
+        value TEXT NOT NULL,
+        UNIQUE (key, value)
+      )"""
+    )
+    db.runRaw[(Long, String, String)]("SELECT id, key, value FROM metadata_entry").foreach {
+      case (id, key, value) =>
+        ids.update((key, value), id)
+        entries.update(id, (key, value))
+        nextId.accumulateAndGet(id + 1, (a, b) => math.max(a, b)): Unit
+    }
+  }
+
+  /** Looks a pair up, inserting it if it's new
+    * Pairs missing from the cache are checked against the table,
+    * since the cache is cleared when a write is rolled back
+    */
+  private def entryId(entry: (String, String))(implicit db: DbApi.Txn): Long = synchronized {
+    ids.getOrElse(
+      entry, {
+        val (key, value) = entry
+        val id = db
+          .runSql[Long](sql"SELECT id FROM metadata_entry WHERE key = ${key} AND value = ${value}")
+          .headOption
+          .getOrElse {
+            val id = nextId.getAndIncrement()
+            val _ = db.updateSql(
+              sql"INSERT INTO metadata_entry (id, key, value) VALUES (${id}, ${key}, ${value})"
+            )
+            id
+          }
+        entries.update(id, entry)
+        ids.update(entry, id)
+        id
+      }
+    )
+  }
+
+  /** Called when a write is rolled back, as the pairs it inserted no longer exist */
+  def rollback(): Unit = ids.clear()
+
+  /** Re-encoding metadata that's not been decoded reuses its bytes */
+  def encode(metadata: Map[String, String])(implicit db: DbApi.Txn): BlobColumn =
+    metadata match {
+      case lazyMetadata: LazyMetadata if lazyMetadata.decoder eq decoder =>
+        BlobColumn(lazyMetadata.bytes)
+      case _ =>
+        val sorted = metadata.iterator.map(entryId).toArray.sorted
+        val deltas = sorted.indices.map(i => if (i == 0) sorted(i) else sorted(i) - sorted(i - 1))
+        val bytes = new Array[Byte](deltas.map(CodedOutputStream.computeUInt64SizeNoTag).sum)
+        val out = CodedOutputStream.newInstance(bytes)
+        deltas.foreach(out.writeUInt64NoTag)
+        out.checkNoSpaceLeft()
+        BlobColumn(bytes)
+    }
+
+  def decode(bytes: Array[Byte]): Map[String, String] = {
+    val in = CodedInputStream.newInstance(bytes)
+    val metadata = Map.newBuilder[String, String]
+    var id = 0L
+    while (!in.isAtEnd) {
+      id += in.readUInt64()
+      metadata += entries(id)
+    }
+    metadata.result()
+  }
+
+  def decodeLazily(blob: BlobColumn): Map[String, String] =
+    if (blob.value.isEmpty) Map.empty else new LazyMetadata(blob.value, decoder)
+}
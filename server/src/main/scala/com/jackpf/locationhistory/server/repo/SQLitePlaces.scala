@@ -0,0 +1,93 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.Place
+import com.jackpf.locationhistory.server.util.LazyMetadata
+import com.jackpf.locationhistory.server.util.SQLiteMapper.MetadataColumn
+import scalasql.core.DbApi
+import scalasql.core.SqlStr.SqlStringSyntax
+import scalasql.SqliteDialect.*
+
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.concurrent
+
+/** Stores each place locations are enriched with once in the place table, keyed by its OSM id,
+  * so a location row only references its place rather than repeating its metadata
+  * Places are immutable once stored: later enrichments with the same OSM object are assumed
+  * to describe it the same way, so are cached in both directions for the lifetime of the repo
+  * Places outlive the locations referencing them, like metadata entries
+  */
+private[repo] class SQLitePlaces {
+  private val ids: concurrent.Map[(String, Long), Long] = concurrent.TrieMap.empty
+  private val places: concurrent.Map[Long, Map[String, String]] = concurrent.TrieMap.empty
+
+  /** Ids are never reused, so one allocated by a rolled back write is never looked up */
+  private val nextId: AtomicLong = new AtomicLong(1)
+
+  def init()(implicit db: DbApi.Txn): Unit = {
+    val _ = db.updateRaw(
+      """CREATE TABLE IF NOT EXISTS place (
+        id INTEGER PRIMARY KEY,
+        osm_type TEXT NOT NULL,
+        osm_id INTEGER NOT NULL,
+        metadata BLOB NOT NULL,
+        UNIQUE (osm_type, osm_id)
+      )"""
+    )
+    db.runRaw[(Long, String, Long, MetadataColumn)](
+      "SELECT id, osm_type, osm_id, metadata FROM place"
+    ).foreach { case (id, osmType, osmId, metadata) =>
+      ids.update((osmType, osmId), id)
+      places.update(id, metadata.value)
+      nextId.accumulateAndGet(id + 1, (a, b) => math.max(a, b)): Unit
+    }
+  }
+
+  /** Looks a place up by its OSM id, inserting it if it's new
+    * Places missing from the cache are checked against the table,
+    * since the cache is cleared when a write is rolled back
+    */
+  def placeId(place: Place)(implicit db: DbApi.Txn): Long = synchronized {
+    val key = (place.osmType, place.osmId)
+    ids.getOrElse(
+      key, {
+        val id = db
+          .runSql[(Long, MetadataColumn)](sql"""
+            SELECT id, metadata FROM place
+            WHERE osm_type = ${place.osmType} AND osm_id = ${place.osmId}
+          """)
+          .headOption
+          .map { case (id, metadata) =>
+            places.update(id, metadata.value)
+            id
+          }
+          .getOrElse {
+            val id = nextId.getAndIncrement()
+            val _ = db.updateSql(sql"""
+              INSERT INTO place (id, osm_type, osm_id, metadata)
+              VALUES (${id}, ${place.osmType}, ${place.osmId}, ${MetadataColumn(place.metadata)})
+            """)
+            places.update(id, place.metadata)
+            id
+          }
+        ids.update(key, id)
+        id
+      }
+    )
+  }
+
+  /** Called when a write is rolled back, as the places it inserted no longer exist */
+  def rollback(): Unit = ids.clear()
+
+  /** Attaches a place to the rest of a location's metadata,
+    * without decoding metadata that's not been decoded yet
+    */
+  def attach(placeId: Long, metadata: Map[String, String]): Map[String, String] = {
+    val place = places(placeId)
+    metadata match {
+      case lazyMetadata: LazyMetadata =>
+        new LazyMetadata(lazyMetadata.bytes, bytes => lazyMetadata.decoder(bytes) ++ place)
+      case _ if metadata.isEmpty => place
+      case _                     => metadata ++ place
+    }
+  }
+}
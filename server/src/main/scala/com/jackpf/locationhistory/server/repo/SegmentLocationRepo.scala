@@ -0,0 +1,74 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.DeviceId
+import com.jackpf.locationhistory.server.persistence.{BinaryCodec, Journal}
+import com.jackpf.locationhistory.server.repo.SegmentLocationRepo.*
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path}
+import java.util.Base64
+import scala.concurrent.Future
+import scala.jdk.CollectionConverters.*
+import scala.util.{Try, Using}
+
+object SegmentLocationRepo {
+
+  /** 1 MiB segments */
+  val DefaultRecordsPerSegment: Int = 16_384
+  private val DevicesDirectory: String = "devices"
+
+  /** Device ids are arbitrary strings, so are encoded to be safe as directory names */
+  private def encode(deviceId: DeviceId.Type): String = Base64.getUrlEncoder
+    .withoutPadding()
+    .encodeToString(DeviceId.value(deviceId).getBytes(StandardCharsets.UTF_8))
+
+  private def decode(directoryName: String): DeviceId.Type =
+    DeviceId(new String(Base64.getUrlDecoder.decode(directoryName), StandardCharsets.UTF_8))
+}
+
+/** Location repo storing each device's history in memory-mapped segment files,
+  * suited to append-mostly time series: appends are sequential writes to the last segment,
+  * and reads are served from the page cache without copying into the heap first
+  * Metadata maps are dictionary encoded, with the dictionary journaled alongside the segments
+  * Segments are synced to disk on snapshot & close, otherwise the OS writes them back
+  */
+class SegmentLocationRepo(
+    directory: Path,
+    recordsPerSegment: Int = DefaultRecordsPerSegment
+) extends DeviceHistoryLocationRepo(journal = None) {
+  private val metadataJournal: Journal[Map[String, String]] =
+    new Journal(directory, "metadata", BinaryCodec.stringMap)
+  private val dictionary: MetadataDictionary =
+    new MetadataDictionary(metadata => metadataJournal.append(Seq(metadata)))
+
+  private def deviceDirectory(deviceId: DeviceId.Type): Path =
+    directory.resolve(DevicesDirectory).resolve(encode(deviceId))
+
+  override protected def newHistory(deviceId: DeviceId.Type): DeviceHistory =
+    new LocationSegments(deviceDirectory(deviceId), dictionary, recordsPerSegment)
+
+  override def init(): Future[Unit] = Future.fromTry {
+    Try {
+      metadataJournal.recover(dictionary.restore)
+      // Compacts the journal generations left by previous runs
+      metadataJournal.snapshot { emit =>
+        (0 until dictionary.size).map(dictionary.decode).foreach(emit)
+      }
+
+      val devices = Files.createDirectories(directory.resolve(DevicesDirectory))
+      Using.resource(Files.list(devices)) {
+        _.iterator.asScala.map(_.getFileName.toString).foreach { name =>
+          val deviceId = decode(name)
+          restore(deviceId, newHistory(deviceId))
+        }
+      }
+    }
+  }
+
+  override def snapshot(): Unit = flush()
+
+  override def close(): Unit = {
+    super.close()
+    metadataJournal.close()
+  }
+}
@@ -0,0 +1,145 @@
+package com.jackpf.locationhistory.server.retention
+
+import com.jackpf.locationhistory.server.model.{
+  DeviceId,
+  LocationCursor,
+  StoredLocation,
+  TimeRange
+}
+import com.jackpf.locationhistory.server.repo.{DeviceRepo, LocationRepo}
+import com.jackpf.locationhistory.server.retention.RetentionJob.*
+import com.jackpf.locationhistory.server.retention.RetentionPolicy.Downsampling
+import com.jackpf.locationhistory.server.util.Logging
+
+import java.util.concurrent.{Executors, ScheduledExecutorService, TimeUnit}
+import scala.collection.concurrent
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.util.{Failure, Success, Try}
+
+object RetentionJob {
+  case class Result(scanned: Long, downsampled: Long, expired: Long) {
+    def +(other: Result): Result = Result(
+      scanned = scanned + other.scanned,
+      downsampled = downsampled + other.downsampled,
+      expired = expired + other.expired
+    )
+  }
+
+  object Result {
+    val Empty: Result = Result(scanned = 0, downsampled = 0, expired = 0)
+  }
+
+  /** Where downsampling a device's history reached, and the last location it kept */
+  private case class Progress(cursor: LocationCursor, lastKept: StoredLocation)
+}
+
+/** Periodically applies a retention policy to every device's location history
+  * Works in batches of at most batchSize locations, each a separate read or delete,
+  * so ingest is never held up behind a whole history
+  * Downsampling resumes where the previous run stopped, so a run only scans newly aged locations
+  * Progress isn't persisted, but downsampling already thinned locations deletes nothing more,
+  * so after a restart the first run only rescans
+  */
+class RetentionJob(
+    policy: RetentionPolicy,
+    deviceRepo: DeviceRepo,
+    locationRepo: LocationRepo,
+    intervalSeconds: Long,
+    batchSize: Int
+)(using ExecutionContext)
+    extends AutoCloseable
+    with Logging {
+  private val progress: concurrent.Map[DeviceId.Type, Progress] = concurrent.TrieMap.empty
+  @volatile private var running: Boolean = true
+
+  private val executor: ScheduledExecutorService =
+    Executors.newSingleThreadScheduledExecutor { runnable =>
+      val thread = new Thread(runnable, "retention-job")
+      thread.setDaemon(true)
+      thread
+    }
+
+  def run(now: Long): Future[Result] = {
+    val expired = policy.expireBefore(now) match {
+      case Some(before) => locationRepo.deleteBefore(before, batchSize).flatMap(Future.fromTry)
+      case None         => Future.successful(0L)
+    }
+
+    for {
+      expiredCount <- expired
+      devices <- deviceRepo.getAll
+      deviceIds = devices.map(_.device.id)
+      _ = progress.keys.filterNot(deviceIds.contains).foreach(progress.remove)
+      downsampled <- (policy.downsampling, policy.downsampleBefore(now)) match {
+        case (Some(downsampling), Some(before)) =>
+          val range = TimeRange(from = policy.expireBefore(now), to = Some(before - 1))
+          deviceIds.foldLeft(Future.successful(Result.Empty)) { (result, deviceId) =>
+            result.flatMap(r => downsample(deviceId, downsampling, range).map(r + _))
+          }
+        case _ => Future.successful(Result.Empty)
+      }
+    } yield downsampled + Result(scanned = 0, downsampled = 0, expired = expiredCount)
+  }
+
+  /** Thins one batch of the device's history, then moves on to the next */
+  private def downsample(
+      deviceId: DeviceId.Type,
+      downsampling: Downsampling,
+      range: TimeRange
+  ): Future[Result] = {
+    val previous = progress.get(deviceId)
+
+    locationRepo
+      .getForDeviceInRange(deviceId, range, after = previous.map(_.cursor), limit = Some(batchSize))
+      .flatMap { batch =>
+        val (lastKept, thinned) =
+          batch.foldLeft((previous.map(_.lastKept), Vector.empty[Long])) {
+            case ((Some(kept), thinned), storedLocation)
+                if !downsampling.keep(kept, storedLocation) =>
+              (Some(kept), thinned :+ storedLocation.id)
+            case ((_, thinned), storedLocation) => (Some(storedLocation), thinned)
+          }
+
+        for {
+          deleted <-
+            if (thinned.isEmpty) Future.successful(0)
+            else locationRepo.deleteLocations(deviceId, thinned).flatMap(Future.fromTry)
+          _ = for {
+            last <- batch.lastOption
+            kept <- lastKept
+          } progress.update(deviceId, Progress(LocationCursor.after(last), kept))
+          rest <-
+            if (batch.size == batchSize && running) downsample(deviceId, downsampling, range)
+            else Future.successful(Result.Empty)
+        } yield rest + Result(scanned = batch.size, downsampled = deleted, expired = 0)
+      }
+  }
+
+  private def runScheduled(): Unit =
+    Try(Await.result(run(System.currentTimeMillis()), Duration.Inf)) match {
+      case Success(result) =>
+        log.info(
+          s"Retention scanned ${result.scanned} locations, " +
+            s"downsampled ${result.downsampled} and expired ${result.expired}"
+        )
+      case Failure(e) => log.error("Retention run failed", e)
+    }
+
+  def start(): RetentionJob = {
+    val _ = executor.scheduleWithFixedDelay(
+      () => runScheduled(),
+      intervalSeconds,
+      intervalSeconds,
+      TimeUnit.SECONDS
+    )
+    this
+  }
+
+  /** Stops after the batch in progress, rather than waiting for the whole run */
+  override def close(): Unit = {
+    running = false
+    executor.shutdown()
+    val _ = executor.awaitTermination(1, TimeUnit.MINUTES)
+  }
+}
@@ -0,0 +1,41 @@
+package com.jackpf.locationhistory.server.retention
+
+import com.jackpf.locationhistory.server.model.StoredLocation
+import com.jackpf.locationhistory.server.retention.RetentionPolicy.Downsampling
+import com.jackpf.locationhistory.server.util.LocationUtils
+
+import scala.concurrent.duration.FiniteDuration
+
+object RetentionPolicy {
+
+  /** Locations older than after are thinned to one per interval or per distanceMeters,
+    * whichever is reached first
+    */
+  case class Downsampling(
+      after: FiniteDuration,
+      interval: Option[FiniteDuration],
+      distanceMeters: Option[Double]
+  ) {
+
+    /** Whether a location is kept, given the last location kept before it */
+    def keep(lastKept: StoredLocation, storedLocation: StoredLocation): Boolean = {
+      val elapsed = storedLocation.metadata.endTimestamp - lastKept.metadata.endTimestamp
+      lazy val distance = LocationUtils.distanceMeters(
+        lastKept.location.lat,
+        lastKept.location.lon
+      )(
+        storedLocation.location.lat,
+        storedLocation.location.lon
+      )
+
+      interval.exists(elapsed >= _.toMillis) || distanceMeters.exists(distance >= _)
+    }
+  }
+}
+
+/** How long location history is kept at full resolution, and in total */
+case class RetentionPolicy(downsampling: Option[Downsampling], maxAge: Option[FiniteDuration]) {
+  def downsampleBefore(now: Long): Option[Long] = downsampling.map(now - _.after.toMillis)
+
+  def expireBefore(now: Long): Option[Long] = maxAge.map(now - _.toMillis)
+}
@@ -1,16 +1,26 @@
 package com.jackpf.locationhistory.server.service
 
-import com.jackpf.locationhistory.server.service.OSMService.{GeoLookupResponse, cache}
-import com.jackpf.locationhistory.server.util.ConcurrentInMemoryCache
+import com.jackpf.locationhistory.server.service.OSMService.*
+import com.jackpf.locationhistory.server.util.{
+  Cache,
+  ConcurrentInMemoryCache,
+  Logging,
+  RateLimitedScheduler
+}
 import com.jackpf.locationhistory.server.util.STTPUtils.*
 import io.circe.generic.auto.*
 import sttp.client4.*
 
 import scala.concurrent.{ExecutionContext, Future}
-import scala.util.Try
+import scala.util.{Success, Try}
 
 object OSMService {
 
+  /** Nominatim's usage policy allows at most 1 request per second */
+  val DefaultRequestsPerSecond: Double = 1.0
+  val DefaultQueueCapacity: Int = 100
+  val DefaultQueueTimeoutMillis: Long = 10_000L
+
   /** Use a simple in-memory cache for OSM responses
     * Helps in cases where we're stationary for a long time (no need to continuously look up locations)
     */
@@ -64,7 +74,22 @@ object OSMService {
   )
 }
 
-class OSMService(backend: Backend[Future]) {
+/** Lookups missing the in-memory cache are looked up in the disk cache if given, which
+  * outlives restarts, before being made at most requestsPerSecond
+  * Concurrent lookups of the same place share one load through the in-memory cache
+  * At most queueCapacity lookups wait for their turn, and those that can't be made within
+  * queueTimeoutMillis fail, see [[RateLimitedScheduler]]
+  */
+class OSMService(
+    backend: Backend[Future],
+    diskCache: Option[Cache[(Long, Long), GeoLookupResponse]] = None,
+    requestsPerSecond: Double = DefaultRequestsPerSecond,
+    queueCapacity: Int = DefaultQueueCapacity,
+    queueTimeoutMillis: Long = DefaultQueueTimeoutMillis
+) extends AutoCloseable
+    with Logging {
+  private val scheduler: RateLimitedScheduler[Try[GeoLookupResponse]] =
+    new RateLimitedScheduler("osm-lookup", requestsPerSecond, queueCapacity, queueTimeoutMillis)
 
   /** Drop precision for cache keys to 4 points (~11m accuracy)
     * Otherwise we'll never get cache hits
@@ -76,18 +101,48 @@ class OSMService(backend: Backend[Future]) {
   def reverseGeoLookup(lat: Double, lon: Double)(using
       ec: ExecutionContext
   ): Future[Try[GeoLookupResponse]] = {
+    val key = (toCacheKey(lat), toCacheKey(lon))
+
     cache.getOrElse(
-      (toCacheKey(lat), toCacheKey(lon)),
-      basicRequest
-        .header("Content-Type", "application/json")
-        .header(
-          "User-Agent",
-          "LocationHistory/1.0 (https://github.com/jackpfarrelly/location-history)"
-        )
-        .get(uri"${OSMService.geoLookupUrl(lat, lon)}")
-        .response(asTryJson[GeoLookupResponse])
-        .send(backend)
-        .map(_.body)
+      key,
+      cached(key).flatMap {
+        case Some(response) => Future.successful(Success(response))
+        case None           => lookup(key, lat, lon)
+      }
     )
   }
+
+  /** The disk cache is best effort, so errors reading it are treated as misses */
+  private def cached(key: (Long, Long))(using
+      ec: ExecutionContext
+  ): Future[Option[GeoLookupResponse]] =
+    diskCache.fold(Future.successful(None))(_.get(key)).recover { case e =>
+      log.warn("Failed to read geocode cache", e)
+      None
+    }
+
+  private def lookup(key: (Long, Long), lat: Double, lon: Double)(using
+      ec: ExecutionContext
+  ): Future[Try[GeoLookupResponse]] =
+    scheduler
+      .schedule {
+        basicRequest
+          .header("Content-Type", "application/json")
+          .header(
+            "User-Agent",
+            "LocationHistory/1.0 (https://github.com/jackpfarrelly/location-history)"
+          )
+          .get(uri"${OSMService.geoLookupUrl(lat, lon)}")
+          .response(asTryJson[GeoLookupResponse])
+          .send(backend)
+          .map(_.body)
+      }
+      .andThen { case Success(Success(response)) =>
+        diskCache.foreach(
+          _.set(key, response).failed.foreach(e => log.warn("Failed to cache geocode lookup", e))
+        )
+      }
+
+  override def close(): Unit =
+    scheduler.close()
 }
@@ -0,0 +1,127 @@
+package com.jackpf.locationhistory.server.service
+
+import com.jackpf.locationhistory.server.db.Database
+import com.jackpf.locationhistory.server.service.OSMService.GeoLookupResponse
+import com.jackpf.locationhistory.server.util.{Cache, Logging}
+import io.circe.generic.auto.*
+import io.circe.parser.decode
+import io.circe.syntax.*
+import scalasql.SqliteDialect.*
+import scalasql.core.{DbApi, DbClient}
+import scalasql.core.SqlStr.SqlStringSyntax
+
+import java.util.concurrent.atomic.AtomicLong
+import scala.concurrent.duration.*
+import scala.concurrent.{ExecutionContext, Future, blocking}
+
+object SQLiteGeocodeCache {
+  val DefaultTtl: FiniteDuration = 90.days
+  val DefaultMaxEntries: Long = 100_000L
+}
+
+/** Reverse geocode responses by rounded (lat, lon), kept across restarts
+  * Entries expire ttl after being looked up, and beyond maxEntries the oldest lookups are
+  * evicted first, as they're the closest to expiring
+  * The number of entries is counted once on init, then kept in memory
+  */
+class SQLiteGeocodeCache(
+    database: Database,
+    ttl: FiniteDuration = SQLiteGeocodeCache.DefaultTtl,
+    maxEntries: Long = SQLiteGeocodeCache.DefaultMaxEntries
+)(using executionContext: ExecutionContext)
+    extends Cache[(Long, Long), GeoLookupResponse]
+    with Logging {
+  private val writer: DbClient.DataSource = database.writer
+  private val reader: DbClient.DataSource = database.reader
+
+  /** Committed entries, updated once each write's transaction commits */
+  private val entries: AtomicLong = new AtomicLong(0L)
+
+  private def expiredBefore: Long = System.currentTimeMillis() - ttl.toMillis
+
+  def init(): Future[Unit] = Future {
+    writer.transaction { implicit db =>
+      blocking {
+        val _ = db.updateRaw(
+          """CREATE TABLE IF NOT EXISTS geocode_cache (
+            lat INTEGER NOT NULL,
+            lon INTEGER NOT NULL,
+            response TEXT NOT NULL,
+            stored_at INTEGER NOT NULL,
+            PRIMARY KEY (lat, lon)
+          ) WITHOUT ROWID"""
+        )
+        val _ = db.updateRaw(
+          "CREATE INDEX IF NOT EXISTS geocode_cache_stored_at ON geocode_cache (stored_at)"
+        )
+        val _ = db.updateSql(sql"DELETE FROM geocode_cache WHERE stored_at <= ${expiredBefore}")
+        entries.set(db.runSql[Long](sql"SELECT COUNT(*) FROM geocode_cache").head)
+      }
+    }
+  }
+
+  /** Expired entries are dropped along with the oldest beyond maxEntries
+    * @param count entries including those written in this transaction
+    * @return the number of entries dropped
+    */
+  private def evict(count: Long)(implicit db: DbApi.Txn): Long = {
+    val expired = db.updateSql(sql"DELETE FROM geocode_cache WHERE stored_at <= ${expiredBefore}")
+    val excess = count - expired - maxEntries
+
+    if (excess > 0)
+      expired + db.updateSql(sql"""
+        DELETE FROM geocode_cache WHERE (lat, lon) IN (
+          SELECT lat, lon FROM geocode_cache ORDER BY stored_at LIMIT ${excess}
+        )
+      """)
+    else expired
+  }
+
+  override def set(key: (Long, Long), value: GeoLookupResponse): Future[Unit] = Future {
+    val (lat, lon) = key
+    val response = value.asJson.noSpaces
+    val storedAt = System.currentTimeMillis()
+
+    val added = writer.transaction { implicit db =>
+      blocking {
+        val inserted = db.updateSql(sql"""
+          INSERT OR IGNORE INTO geocode_cache (lat, lon, response, stored_at)
+          VALUES (${lat}, ${lon}, ${response}, ${storedAt})
+        """)
+
+        if (inserted > 0) inserted - evict(entries.get() + inserted)
+        else {
+          val _ = db.updateSql(sql"""
+            UPDATE geocode_cache SET response = ${response}, stored_at = ${storedAt}
+            WHERE lat = ${lat} AND lon = ${lon}
+          """)
+          0L
+        }
+      }
+    }
+    entries.addAndGet(added): Unit
+  }
+
+  /** Entries that no longer decode, e.g. after the response format changed, are misses */
+  override def get(key: (Long, Long)): Future[Option[GeoLookupResponse]] = Future {
+    val (lat, lon) = key
+
+    reader
+      .transaction { implicit db =>
+        blocking {
+          db.runSql[String](sql"""
+            SELECT response FROM geocode_cache
+            WHERE lat = ${lat} AND lon = ${lon} AND stored_at > ${expiredBefore}
+          """).headOption
+        }
+      }
+      .flatMap { response =>
+        decode[GeoLookupResponse](response) match {
+          case Right(decoded) => Some(decoded)
+          case Left(error)    =>
+            log.warn(s"Ignoring undecodable geocode cache entry for ${key}", error)
+            None
+        }
+      }
+  }
+}
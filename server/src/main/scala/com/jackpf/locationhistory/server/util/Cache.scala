@@ -1,12 +1,12 @@
 package com.jackpf.locationhistory.server.util
 
 import com.jackpf.locationhistory.server.util.Cache.Cacheable
+import com.jackpf.locationhistory.server.util.ConcurrentInMemoryCache.*
 
-import java.util.concurrent.ConcurrentLinkedQueue
-import java.util.concurrent.atomic.AtomicLong
-import scala.annotation.tailrec
+import java.util.LinkedHashMap
 import scala.collection.concurrent
-import scala.concurrent.{ExecutionContext, Future}
+import scala.concurrent.duration.FiniteDuration
+import scala.concurrent.{ExecutionContext, Future, Promise}
 import scala.util.{Success, Try}
 
 object Cache {
@@ -43,48 +43,150 @@ trait Cache[K, V] {
   def get(key: K): Future[Option[V]]
 }
 
-class ConcurrentInMemoryCache[K, V](maxSize: Long) extends Cache[K, V] {
-  private val cache: concurrent.Map[K, V] = concurrent.TrieMap.empty
-  private val inserts: ConcurrentLinkedQueue[K] = new ConcurrentLinkedQueue()
-  private val size: AtomicLong = new AtomicLong()
+object ConcurrentInMemoryCache {
 
-  @tailrec
-  private def prune(): Unit = {
-    if (size.get() > maxSize) {
-      val polled = inserts.poll()
+  /** Share of the size kept for entries read since being set, as in Caffeine's SLRU */
+  private val ProtectedShare: Double = 0.8
 
-      if (polled != null) {
-        if (cache.remove(polled).isDefined) size.decrementAndGet(): Unit
-        prune()
+  private case class Entry[V](value: V, weight: Long, expiresAtNanos: Option[Long]) {
+    def isExpired(nowNanos: Long): Boolean = expiresAtNanos.exists(_ - nowNanos <= 0)
+  }
+
+  /** Entries in access order, least recently used first */
+  private class Segment[K, V] {
+    private val entries: LinkedHashMap[K, Entry[V]] = new LinkedHashMap(16, 0.75f, true)
+    var weight: Long = 0L
+
+    def isEmpty: Boolean = entries.isEmpty
+
+    /** Marks the entry as most recently used */
+    def get(key: K): Option[Entry[V]] = Option(entries.get(key))
+
+    def put(key: K, entry: Entry[V]): Unit = {
+      remove(key): Unit
+      entries.put(key, entry): Unit
+      weight += entry.weight
+    }
+
+    def remove(key: K): Option[Entry[V]] = Option(entries.remove(key)).map { entry =>
+      weight -= entry.weight
+      entry
+    }
+
+    def removeEldest(): Option[(K, Entry[V])] = {
+      val iterator = entries.entrySet().iterator()
+      Option.when(iterator.hasNext) {
+        val eldest = iterator.next()
+        iterator.remove()
+        weight -= eldest.getValue.weight
+        eldest.getKey -> eldest.getValue
       }
     }
   }
+}
+
+/** Segmented LRU cache of at most maxSize total weight
+  * New entries are probationary, and are promoted to the protected segment when read or set
+  * again. Probationary entries are evicted first, so keys seen once (e.g. passing through)
+  * don't push out keys seen repeatedly (e.g. home)
+  * Reads reorder entries, so reads and writes are serialised
+  * @param expireAfter time after being set that entries expire, if any
+  * @param weigher weight of an entry towards maxSize, 1 per entry by default
+  */
+class ConcurrentInMemoryCache[K, V](
+    maxSize: Long,
+    expireAfter: Option[FiniteDuration] = None,
+    weigher: (K, V) => Long = (_: K, _: V) => 1L
+) extends Cache[K, V] {
+  private val probation: Segment[K, V] = new Segment()
+  private val protectedSegment: Segment[K, V] = new Segment()
+  private val protectedMaxSize: Long = (maxSize * ProtectedShare).toLong
+
+  /** Loads in flight, by key
+    * Typed by the caller's Cacheable, which all callers for a key are expected to share
+    */
+  private val loading: concurrent.Map[K, Future[?]] = concurrent.TrieMap.empty
+
+  private def protect(key: K, entry: Entry[V]): Unit = {
+    protectedSegment.put(key, entry)
+
+    while (protectedSegment.weight > protectedMaxSize && !protectedSegment.isEmpty)
+      protectedSegment.removeEldest().foreach((key, entry) => probation.put(key, entry))
+  }
 
-  override def set(key: K, value: V): Future[Unit] = Future.successful {
-    if (cache.putIfAbsent(key, value).isEmpty) {
-      size.incrementAndGet()
-      inserts.add(key)
-    } else {
-      cache.replace(key, value): Unit
+  private def prune(): Unit =
+    while (probation.weight + protectedSegment.weight > maxSize) {
+      if (!probation.isEmpty) probation.removeEldest(): Unit
+      else protectedSegment.removeEldest(): Unit
     }
 
+  private def lookup(key: K): Option[V] = synchronized {
+    val now = System.nanoTime()
+
+    protectedSegment.get(key) match {
+      case Some(entry) if entry.isExpired(now) =>
+        protectedSegment.remove(key): Unit
+        None
+      case Some(entry) => Some(entry.value)
+      case None        =>
+        probation.remove(key).filterNot(_.isExpired(now)).map { entry =>
+          protect(key, entry)
+          entry.value
+        }
+    }
+  }
+
+  private def store(key: K, value: V, ttl: Option[FiniteDuration]): Unit = synchronized {
+    val entry = Entry(value, weigher(key, value), ttl.map(System.nanoTime() + _.toNanos))
+
+    if (protectedSegment.remove(key).orElse(probation.remove(key)).isDefined) protect(key, entry)
+    else probation.put(key, entry)
+
     prune()
   }
 
+  override def set(key: K, value: V): Future[Unit] = Future.successful {
+    store(key, value, expireAfter)
+  }
+
+  /** Sets an entry expiring after ttl, rather than the cache's expireAfter */
+  def set(key: K, value: V, ttl: FiniteDuration): Future[Unit] = Future.successful {
+    store(key, value, Some(ttl))
+  }
+
   override def get(key: K): Future[Option[V]] = Future.successful {
-    cache.get(key)
+    lookup(key)
   }
 
+  /** Returns the cached value, or loads it with orElse on a miss
+    * Concurrent misses for a key share the first caller's load rather than each running orElse
+    * Loads that fail, or complete without a value, aren't cached, so the next miss retries
+    */
   def getOrElse[C[_]](
       key: K,
       orElse: => Future[C[V]]
   )(using ec: ExecutionContext, conv: Cacheable[C]): Future[C[V]] = {
-    get(key).flatMap {
+    lookup(key) match {
       case Some(value) => Future.successful(conv.wrap(value))
       case None        =>
-        val result = orElse
-        result.onComplete(t => t.toOption.flatMap(conv.unwrap).foreach(set(key, _)))
-        result
+        val promise = Promise[C[V]]()
+
+        loading.putIfAbsent(key, promise.future) match {
+          case Some(pending) => pending.asInstanceOf[Future[C[V]]]
+          case None          =>
+            promise.future.onComplete { result =>
+              // Cache before removing the load, so later callers see one or the other
+              result.toOption.flatMap(conv.unwrap).foreach(set(key, _))
+              loading.remove(key, promise.future): Unit
+            }(using ExecutionContext.parasitic)
+
+            // A load may have completed between checking the cache and installing ours
+            lookup(key) match {
+              case Some(value) => promise.success(conv.wrap(value))
+              case None        => promise.completeWith(Future.delegate(orElse))
+            }
+            promise.future
+        }
     }
   }
 }
@@ -0,0 +1,23 @@
+package com.jackpf.locationhistory.server.util
+
+import scala.collection.immutable.AbstractMap
+
+/** A metadata map that's only decoded the first time it's read,
+  * so locations passing through unread (e.g. merged or moved) are never decoded
+  * Keeps its encoded bytes, so the decoder's encoder can write it back out as is
+  */
+final class LazyMetadata(val bytes: Array[Byte], val decoder: Array[Byte] => Map[String, String])
+    extends AbstractMap[String, String] {
+  private lazy val decoded: Map[String, String] = decoder(bytes)
+
+  override def get(key: String): Option[String] = decoded.get(key)
+
+  override def iterator: Iterator[(String, String)] = decoded.iterator
+
+  override def size: Int = decoded.size
+
+  override def removed(key: String): Map[String, String] = decoded.removed(key)
+
+  override def updated[V1 >: String](key: String, value: V1): Map[String, V1] =
+    decoded.updated(key, value)
+}
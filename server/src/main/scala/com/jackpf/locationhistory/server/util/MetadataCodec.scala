@@ -0,0 +1,78 @@
+package com.jackpf.locationhistory.server.util
+
+import com.google.protobuf.{CodedInputStream, CodedOutputStream, WireFormat}
+
+import scala.annotation.tailrec
+
+/** Encodes metadata maps as protobuf map<string, string> bytes, i.e. the metadata field
+  * of a Location message, without JSON's quoting or escaping
+  */
+object MetadataCodec {
+  private val EntryField: Int = 1
+  private val KeyField: Int = 1
+  private val ValueField: Int = 2
+
+  private val decoder: Array[Byte] => Map[String, String] = decode
+
+  private def entrySize(key: String, value: String): Int =
+    CodedOutputStream.computeStringSize(KeyField, key) +
+      CodedOutputStream.computeStringSize(ValueField, value)
+
+  /** Re-encoding a map that's not been decoded reuses its bytes */
+  def encode(metadata: Map[String, String]): Array[Byte] = metadata match {
+    case lazyMetadata: LazyMetadata if lazyMetadata.decoder eq decoder => lazyMetadata.bytes
+    case _ =>
+      val size = metadata.iterator.map { case (key, value) =>
+        val entry = entrySize(key, value)
+        CodedOutputStream.computeTagSize(EntryField) +
+          CodedOutputStream.computeUInt32SizeNoTag(entry) + entry
+      }.sum
+      val bytes = new Array[Byte](size)
+      val out = CodedOutputStream.newInstance(bytes)
+
+      metadata.foreach { case (key, value) =>
+        out.writeTag(EntryField, WireFormat.WIRETYPE_LENGTH_DELIMITED)
+        out.writeUInt32NoTag(entrySize(key, value))
+        out.writeString(KeyField, key)
+        out.writeString(ValueField, value)
+      }
+      out.checkNoSpaceLeft()
+      bytes
+  }
+
+  def decode(bytes: Array[Byte]): Map[String, String] = {
+    val in = CodedInputStream.newInstance(bytes)
+    val metadata = Map.newBuilder[String, String]
+
+    @tailrec
+    def readEntry(key: String, value: String): (String, String) = in.readTag() match {
+      case 0 => (key, value)
+      case tag if WireFormat.getTagFieldNumber(tag) == KeyField =>
+        readEntry(in.readString(), value)
+      case tag if WireFormat.getTagFieldNumber(tag) == ValueField =>
+        readEntry(key, in.readString())
+      case tag =>
+        val _ = in.skipField(tag)
+        readEntry(key, value)
+    }
+
+    @tailrec
+    def readEntries(): Unit = in.readTag() match {
+      case 0 => ()
+      case tag if WireFormat.getTagFieldNumber(tag) == EntryField =>
+        val limit = in.pushLimit(in.readRawVarint32())
+        metadata += readEntry(key = "", value = "")
+        in.popLimit(limit)
+        readEntries()
+      case tag =>
+        val _ = in.skipField(tag)
+        readEntries()
+    }
+
+    readEntries()
+    metadata.result()
+  }
+
+  def decodeLazily(bytes: Array[Byte]): Map[String, String] =
+    if (bytes.isEmpty) Map.empty else new LazyMetadata(bytes, decoder)
+}
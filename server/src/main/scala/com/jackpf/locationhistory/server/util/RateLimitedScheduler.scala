@@ -0,0 +1,120 @@
+package com.jackpf.locationhistory.server.util
+
+import com.jackpf.locationhistory.server.errors.ApplicationErrors.{
+  RequestDeadlineExceededException,
+  RequestQueueFullException
+}
+import com.jackpf.locationhistory.server.util.RateLimitedScheduler.Pending
+
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.{
+  ArrayBlockingQueue,
+  Executors,
+  ScheduledExecutorService,
+  ScheduledFuture,
+  TimeUnit
+}
+import scala.concurrent.{Future, Promise}
+import scala.util.Try
+
+object RateLimitedScheduler {
+
+  /** A request waiting for its turn
+    * @param started only touched on the scheduler thread
+    */
+  private class Pending[V](
+      val request: () => Future[V],
+      val promise: Promise[V],
+      var started: Boolean = false
+  ) {
+    var deadline: Option[ScheduledFuture[?]] = None
+  }
+}
+
+/** Starts requests no faster than requestsPerSecond, in the order they were scheduled
+  * At most queueCapacity requests wait for their turn, each for at most queueTimeoutMillis,
+  * beyond which they fail without being made
+  */
+class RateLimitedScheduler[V](
+    name: String,
+    requestsPerSecond: Double,
+    queueCapacity: Int,
+    queueTimeoutMillis: Long
+) extends AutoCloseable {
+  private val intervalNanos: Long = (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond).toLong
+  private val queue: ArrayBlockingQueue[Pending[V]] = new ArrayBlockingQueue(queueCapacity)
+  private val drainScheduled: AtomicBoolean = new AtomicBoolean(false)
+  @volatile private var running: Boolean = true
+
+  /** Only touched on the scheduler thread */
+  private var nextStartNanos: Long = System.nanoTime()
+
+  private val scheduler: ScheduledExecutorService =
+    Executors.newSingleThreadScheduledExecutor { runnable =>
+      val thread = new Thread(runnable, name)
+      thread.setDaemon(true)
+      thread
+    }
+
+  private def scheduleDrain(delayNanos: Long): Unit =
+    if (drainScheduled.compareAndSet(false, true)) {
+      val drainTask: Runnable = () => drain()
+      scheduler.schedule(drainTask, delayNanos, TimeUnit.NANOSECONDS): Unit
+    }
+
+  /** Starts the next queued request if its turn has come, skipping any past their deadline */
+  private def drain(): Unit = {
+    drainScheduled.set(false)
+
+    val now = System.nanoTime()
+    if (nextStartNanos > now) scheduleDrain(nextStartNanos - now)
+    else {
+      Option(queue.poll()).foreach { pending =>
+        if (!pending.promise.isCompleted) {
+          pending.started = true
+          pending.deadline.foreach(_.cancel(false))
+          pending.promise.completeWith(Try(pending.request()).fold(Future.failed, identity))
+          nextStartNanos = now + intervalNanos
+        }
+
+        if (!queue.isEmpty) scheduleDrain(nextStartNanos - now)
+      }
+    }
+  }
+
+  private def expire(pending: Pending[V]): Unit =
+    pending.promise.tryFailure(RequestDeadlineExceededException(name, queueTimeoutMillis)): Unit
+
+  private def enqueue(pending: Pending[V]): Unit = synchronized {
+    if (!running) expire(pending)
+    else {
+      val expireTask: Runnable = () => if (!pending.started) expire(pending)
+      pending.deadline =
+        Some(scheduler.schedule(expireTask, queueTimeoutMillis, TimeUnit.MILLISECONDS))
+
+      if (queue.offer(pending)) scheduleDrain(0L)
+      else {
+        pending.deadline.foreach(_.cancel(false))
+        pending.promise.tryFailure(RequestQueueFullException(name, queueCapacity)): Unit
+      }
+    }
+  }
+
+  /** Schedules a request
+    * @return the request's result, failed if it couldn't be made in time
+    */
+  def schedule(request: => Future[V]): Future[V] = {
+    val promise = Promise[V]()
+    enqueue(new Pending(() => request, promise))
+    promise.future
+  }
+
+  /** Stops starting requests, failing queued ones as if past their deadline */
+  override def close(): Unit = {
+    synchronized {
+      running = false
+      scheduler.shutdownNow(): Unit
+    }
+    Iterator.continually(queue.poll()).takeWhile(_ != null).foreach(expire)
+  }
+}
@@ -62,6 +62,37 @@ object SQLiteMapper {
     }
   }
 
+  /** Location metadata stored as a binary BLOB (see [[MetadataCodec]]),
+    * decoded lazily so rows that are never serialised don't pay for it
+    */
+  case class MetadataColumn(value: Map[String, String])
+
+  implicit val metadataTypeMapper: TypeMapper[MetadataColumn] = new TypeMapper[MetadataColumn] {
+    override def jdbcType = JDBCType.BLOB
+
+    override def put(stmt: PreparedStatement, idx: Int, wrapped: MetadataColumn): Unit =
+      stmt.setBytes(idx, MetadataCodec.encode(wrapped.value))
+
+    override def get(resultSet: ResultSet, idx: Int): MetadataColumn =
+      Option(resultSet.getBytes(idx)) match {
+        case Some(bytes) => MetadataColumn(MetadataCodec.decodeLazily(bytes))
+        case None        => MetadataColumn(Map.empty)
+      }
+  }
+
+  /** Raw bytes stored as a BLOB */
+  case class BlobColumn(value: Array[Byte])
+
+  implicit val blobTypeMapper: TypeMapper[BlobColumn] = new TypeMapper[BlobColumn] {
+    override def jdbcType = JDBCType.BLOB
+
+    override def put(stmt: PreparedStatement, idx: Int, wrapped: BlobColumn): Unit =
+      stmt.setBytes(idx, wrapped.value)
+
+    override def get(resultSet: ResultSet, idx: Int): BlobColumn =
+      BlobColumn(Option(resultSet.getBytes(idx)).getOrElse(Array.emptyByteArray))
+  }
+
   extension [T](t: Try[T]) {
 
     /** Enables mapping of certain SQLite errors to application errors, e.g.
@@ -0,0 +1,57 @@
+package com.jackpf.locationhistory.server.db
+
+import com.jackpf.locationhistory.server.model.StorageType
+import com.jackpf.locationhistory.server.testutil.{DefaultScope, DefaultSpecification}
+import org.specs2.specification.After
+
+import java.sql.SQLException
+import java.util.UUID
+
+class DataSourceFactoryTest extends DefaultSpecification {
+  trait Context extends DefaultScope with After {
+    lazy val storageType: StorageType = StorageType.SQLITE
+    lazy val database: Database = new DataSourceFactory(
+      System.getProperty("java.io.tmpdir"),
+      s"tests_${UUID.randomUUID().toString}.db"
+    ).create(storageType).get
+
+    override def after: Any = database.close()
+  }
+
+  "Data source factory" should {
+    "not create a database for in-memory storage" >> {
+      new DataSourceFactory(null, null).create(StorageType.IN_MEMORY) must beNone
+    }
+
+    "enable WAL on the writer" >> in(new Context {}) { context =>
+      context.database.writer.transaction { implicit db =>
+        db.runRaw[String]("PRAGMA journal_mode").head
+      } must beEqualTo("wal")
+    }
+
+    "apply connection settings to readers" >> in(new Context {}) { context =>
+      context.database.reader.transaction { implicit db =>
+        db.runRaw[Int]("PRAGMA busy_timeout").head
+      } must beEqualTo(SQLiteSettings.DefaultBusyTimeoutMillis)
+    }
+
+    "reject writes from readers" >> in(new Context {}) { context =>
+      context.database.reader.transaction { implicit db =>
+        db.updateRaw("CREATE TABLE test_table (id INTEGER)")
+      } must throwA[SQLException]
+    }
+
+    "share an in-memory database between the writer and readers" >> in(new Context {
+      override lazy val storageType: StorageType = StorageType.SQLITE_IN_MEMORY
+    }) { context =>
+      context.database.writer.transaction { implicit db =>
+        db.updateRaw("CREATE TABLE test_table (id INTEGER)")
+        db.updateRaw("INSERT INTO test_table VALUES (1)")
+      }
+
+      context.database.reader.transaction { implicit db =>
+        db.runRaw[Int]("SELECT COUNT(*) FROM test_table").head
+      } must beEqualTo(1)
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.jackpf.locationhistory.server.db
+
+import com.jackpf.locationhistory.server.errors.ApplicationErrors.WriteQueueFullException
+import com.jackpf.locationhistory.server.model.StorageType
+import com.jackpf.locationhistory.server.testutil.{DefaultScope, DefaultSpecification}
+import org.specs2.concurrent.ExecutionEnv
+import org.specs2.specification.After
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import scala.concurrent.Future
+import scala.util.{Failure, Success, Try}
+
+class GroupCommitWriterTest(implicit ee: ExecutionEnv) extends DefaultSpecification {
+  trait Context extends DefaultScope with After {
+    lazy val settings: SQLiteSettings = SQLiteSettings(commitIntervalMillis = 50)
+    lazy val database: Database =
+      new DataSourceFactory(null, null, settings).create(StorageType.SQLITE_IN_MEMORY).get
+    lazy val writeQueue: GroupCommitWriter = database.writeQueue
+
+    database.writer.transaction { implicit db =>
+      db.updateRaw("CREATE TABLE test_table (id INTEGER PRIMARY KEY)")
+    }
+
+    def insert(id: Int): Future[Try[Unit]] = writeQueue.submit { implicit db =>
+      db.updateRaw(s"INSERT INTO test_table VALUES (${id})")
+      ()
+    }
+
+    def count(): Int = database.reader.transaction { implicit db =>
+      db.runRaw[Int]("SELECT COUNT(*) FROM test_table").head
+    }
+
+    override def after: Any = database.close()
+  }
+
+  "Group commit writer" should {
+    "commit concurrent writes" >> in(new Context {}) { context =>
+      Future.sequence((1 to 100).map(context.insert)) must beEqualTo(
+        Seq.fill(100)(Success(()))
+      ).await
+      context.count() must beEqualTo(100)
+    }
+
+    "only roll back a failing write" >> in(new Context {}) { context =>
+      val results = Future.sequence(Seq(context.insert(1), context.insert(1), context.insert(2)))
+
+      results.map(_.map(_.isSuccess)) must beEqualTo(Seq(true, false, true)).await
+      context.count() must beEqualTo(2)
+    }
+
+    "reject writes when the queue is full" >> in(new Context {
+      override lazy val settings: SQLiteSettings =
+        SQLiteSettings(commitBatchSize = 1, writeQueueCapacity = 1)
+    }) { context =>
+      val started = new CountDownLatch(1)
+      val release = new CountDownLatch(1)
+
+      val blocked = context.writeQueue.submit { _ =>
+        started.countDown()
+        release.await(10, TimeUnit.SECONDS)
+      }
+      started.await(10, TimeUnit.SECONDS)
+      val queued = context.insert(1)
+      val rejected = context.insert(2)
+      release.countDown()
+
+      rejected must beEqualTo(Failure(WriteQueueFullException(capacity = 1))).await
+      blocked must beEqualTo(Success(true)).await
+      queued must beEqualTo(Success(())).await
+    }
+
+    "fail writes after being closed" >> in(new Context {}) { context =>
+      context.writeQueue.close()
+
+      context.insert(1).map(_.isFailure) must beTrue.await
+    }
+
+    "complete writes submitted while closing" >> in(new Context {}) { context =>
+      val writes = (1 to 200).map(id => Future(context.insert(id)).flatten)
+      context.writeQueue.close()
+
+      // Each write is either committed before the worker exits, or rejected
+      Future.sequence(writes).map { results =>
+        results.count(_.isSuccess) must beEqualTo(context.count())
+      }.await
+    }
+
+    "fail writes still queued if the worker never ran" >> in(new Context {}) { _ =>
+      val writeQueue = new GroupCommitWriter(
+        writer = null,
+        batchSize = 1,
+        commitIntervalMillis = 50,
+        queueCapacity = 1
+      )
+      val queued = writeQueue.submit(_ => ())
+      writeQueue.close()
+
+      queued.map(_.isFailure) must beTrue.await
+    }
+  }
+}
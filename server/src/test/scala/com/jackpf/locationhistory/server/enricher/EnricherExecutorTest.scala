@@ -96,6 +96,17 @@ class EnricherExecutorTest(implicit ee: ExecutionEnv) extends DefaultSpecificati
       context.result.map(_.metadata) must beEqualTo(Map.empty[String, String]).await
     }
 
+    "fail when enriching strictly and an enricher fails" >> in(new Context {
+      override val enrichers = Seq(
+        successfulEnricher(Map("from1" -> "value1")),
+        failingEnricher(new RuntimeException("Enricher failed"))
+      )
+    }) { context =>
+      context.executor.enrichOrFail(context.location) must throwA[RuntimeException](
+        "Enricher failed"
+      ).await
+    }
+
     "preserve original location coordinates" >> in(new Context {}) { context =>
       context.result.map(_.lat) must beEqualTo(context.location.lat).await
       context.result.map(_.lon) must beEqualTo(context.location.lon).await
@@ -0,0 +1,146 @@
+package com.jackpf.locationhistory.server.enricher
+
+import com.jackpf.locationhistory.server.model.{DeviceId, Location, StoredLocation}
+import com.jackpf.locationhistory.server.repo.{InMemoryLocationRepo, LocationRepo}
+import com.jackpf.locationhistory.server.testutil.{DefaultScope, DefaultSpecification, MockModels}
+import org.mockito.ArgumentMatchers.any
+import org.mockito.Mockito.{mock, timeout, verify, when}
+import org.specs2.concurrent.ExecutionEnv
+import org.specs2.specification.After
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.Try
+
+class EnrichmentPipelineTest(implicit ee: ExecutionEnv) extends DefaultSpecification {
+  trait Context extends DefaultScope with After {
+    val deviceId: DeviceId.Type = DeviceId("123")
+    val location: Location = MockModels.location(metadata = Map("raw" -> "value"))
+
+    def enricher(responses: Future[Map[String, String]]*): MetadataEnricher = {
+      val enricher = mock(classOf[MetadataEnricher])
+      when(enricher.enrich(any[Location]())(using any[ExecutionContext]()))
+        .thenReturn(responses.head, responses.tail*)
+      enricher
+    }
+
+    lazy val enrichers: Seq[MetadataEnricher] =
+      Seq(enricher(Future.successful(Map("enriched" -> "value"))))
+    lazy val maxAttempts: Int = EnrichmentPipeline.DefaultMaxAttempts
+
+    lazy val patches: Int = 1
+
+    /** Counts down as locations are patched */
+    val patched: CountDownLatch = new CountDownLatch(patches)
+    val locationRepo: LocationRepo = new InMemoryLocationRepo {
+      override def update(
+          deviceId: DeviceId.Type,
+          id: Long,
+          updateAction: StoredLocation => StoredLocation
+      ): Future[Try[Unit]] = {
+        val result = super.update(deviceId, id, updateAction)
+        patched.countDown()
+        result
+      }
+    }
+
+    lazy val pipeline: EnrichmentPipeline = new EnrichmentPipeline(
+      new EnricherExecutor(enrichers),
+      locationRepo,
+      maxAttempts = maxAttempts,
+      retryDelayMillis = 10L
+    ).start()
+
+    def storeAndEnrich(): Future[Map[String, String]] = for {
+      _ <- locationRepo.storeDeviceLocation(deviceId, location, StoredLocation.Metadata.initial(1L))
+      stored <- locationRepo.getForDevice(deviceId, limit = None)
+      _ = pipeline.submit(deviceId, stored)
+      _ = patched.await(10, TimeUnit.SECONDS)
+      enriched <- locationRepo.getForDevice(deviceId, limit = None)
+    } yield enriched.head.location.metadata
+
+    override def after: Any = pipeline.close()
+  }
+
+  "Enrichment pipeline" should {
+    "patch stored locations with enriched metadata" >> in(new Context {}) { context =>
+      context.storeAndEnrich() must beEqualTo(Map("raw" -> "value", "enriched" -> "value")).await
+    }
+
+    "retry failed enrichment" >> in(new Context {
+      override lazy val enrichers: Seq[MetadataEnricher] = Seq(
+        enricher(
+          Future.failed(new RuntimeException("Enricher failed")),
+          Future.successful(Map("enriched" -> "value"))
+        )
+      )
+    }) { context =>
+      context.storeAndEnrich() must beEqualTo(Map("raw" -> "value", "enriched" -> "value")).await
+    }
+
+    "keep the metadata of enrichers that succeed on the last attempt" >> in(new Context {
+      override lazy val enrichers: Seq[MetadataEnricher] = Seq(
+        enricher(Future.successful(Map("enriched" -> "value"))),
+        enricher(Future.failed(new RuntimeException("Enricher failed")))
+      )
+      override lazy val maxAttempts: Int = 1
+    }) { context =>
+      context.storeAndEnrich() must beEqualTo(Map("raw" -> "value", "enriched" -> "value")).await
+    }
+
+    "not patch locations the enrichers added nothing to" >> in(new Context {
+      override lazy val enrichers: Seq[MetadataEnricher] =
+        Seq(enricher(Future.successful(Map.empty)))
+    }) { context =>
+      val enriched = for {
+        _ <- context.locationRepo.storeDeviceLocation(
+          context.deviceId,
+          context.location,
+          StoredLocation.Metadata.initial(1L)
+        )
+        stored <- context.locationRepo.getForDevice(context.deviceId, limit = None)
+      } yield {
+        context.pipeline.submit(context.deviceId, stored)
+        verify(context.enrichers.head, timeout(10_000))
+          .enrich(any[Location]())(using any[ExecutionContext]())
+        // Waits for the job in progress to finish
+        context.pipeline.close()
+        context.patched.getCount
+      }
+
+      enriched must beEqualTo(1L).await
+    }
+
+    "hold up submitting locations until the queue has room" >> in(new Context {
+      override lazy val patches: Int = 3
+      override lazy val pipeline: EnrichmentPipeline = new EnrichmentPipeline(
+        new EnricherExecutor(enrichers),
+        locationRepo,
+        queueCapacity = 1
+      )
+    }) { context =>
+      val metadata = for {
+        _ <- Future.sequence((1L to 3L).map { ts =>
+          context.locationRepo.storeDeviceLocation(
+            context.deviceId,
+            context.location,
+            StoredLocation.Metadata.initial(ts)
+          )
+        })
+        stored <- context.locationRepo.getForDevice(context.deviceId, limit = None)
+        // Workers aren't started yet, so only the first location fits in the queue
+        submitted = Future(context.pipeline.submit(context.deviceId, stored))
+        _ = Thread.sleep(100)
+        heldUp = !submitted.isCompleted
+        _ = context.pipeline.start()
+        _ <- submitted
+        _ = context.patched.await(10, TimeUnit.SECONDS)
+        enriched <- context.locationRepo.getForDevice(context.deviceId, limit = None)
+      } yield (heldUp, enriched.map(_.location.metadata))
+
+      metadata must beEqualTo(
+        (true, Seq.fill(3)(Map("raw" -> "value", "enriched" -> "value")))
+      ).await
+    }
+  }
+}
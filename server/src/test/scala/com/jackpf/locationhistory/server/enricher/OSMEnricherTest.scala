@@ -1,5 +1,9 @@
 package com.jackpf.locationhistory.server.enricher
 
+import com.jackpf.locationhistory.server.errors.ApplicationErrors.{
+  RequestDeadlineExceededException,
+  RequestQueueFullException
+}
 import com.jackpf.locationhistory.server.model.Location
 import com.jackpf.locationhistory.server.service.OSMService
 import com.jackpf.locationhistory.server.service.OSMService.GeoLookupResponse
@@ -9,7 +13,7 @@ import org.mockito.Mockito.{mock, when}
 import org.specs2.concurrent.ExecutionEnv
 
 import scala.concurrent.{ExecutionContext, Future}
-import scala.util.{Success, Try}
+import scala.util.{Failure, Success, Try}
 
 class OSMEnricherTest(implicit ee: ExecutionEnv) extends DefaultSpecification {
   trait Context extends DefaultScope {
@@ -130,5 +134,26 @@ class OSMEnricherTest(implicit ee: ExecutionEnv) extends DefaultSpecification {
     "include extratags with tag: prefix" >> in(new Context {}) { context =>
       context.result must havePair("tag:building" -> "yes").await
     }
+
+    "leave the location unenriched when the lookup queue is full" >> in(new Context {
+      override def serviceResponse: Future[Try[GeoLookupResponse]] =
+        Future.failed(RequestQueueFullException("osm-lookup", 100))
+    }) { context =>
+      context.result must beEmpty[Map[String, String]].await
+    }
+
+    "leave the location unenriched when the lookup isn't made in time" >> in(new Context {
+      override def serviceResponse: Future[Try[GeoLookupResponse]] =
+        Future.failed(RequestDeadlineExceededException("osm-lookup", 10_000L))
+    }) { context =>
+      context.result must beEmpty[Map[String, String]].await
+    }
+
+    "fail when the lookup fails" >> in(new Context {
+      override def serviceResponse: Future[Try[GeoLookupResponse]] =
+        Future.successful(Failure(new RuntimeException("Lookup failed")))
+    }) { context =>
+      context.result must throwA[RuntimeException].await
+    }
   }
 }
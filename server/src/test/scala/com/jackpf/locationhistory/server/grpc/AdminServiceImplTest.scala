@@ -17,14 +17,15 @@ import com.jackpf.locationhistory.server.testutil.{
   DefaultScope,
   DefaultSpecification,
   GrpcMatchers,
-  MockModels
+  MockModels,
+  RecordingStreamObserver
 }
 import io.grpc.Status.Code
 import org.mockito.ArgumentMatchers.{any, eq as eqTo}
 import org.mockito.Mockito.{mock, when}
 import org.specs2.concurrent.ExecutionEnv
 
-import scala.concurrent.Future
+import scala.concurrent.{ExecutionContext, Future, Promise}
 import scala.util.{Failure, Success, Try}
 import com.jackpf.locationhistory.server.grpc.AdminServiceImpl.DefaultUser
 import com.jackpf.locationhistory.server.grpc.AdminServiceImpl.TokenDuration
@@ -38,13 +39,15 @@ class AdminServiceImplTest(implicit ee: ExecutionEnv)
     val deviceRepo: DeviceRepo = mock(classOf[DeviceRepo])
     val locationRepo: LocationRepo = mock(classOf[LocationRepo])
     val notificationService: NotificationService = mock(classOf[NotificationService])
+    lazy val maxConcurrentStreams: Int = AdminServiceImpl.MaxConcurrentStreams
     val adminService: AdminService =
       new AdminServiceImpl(
         authenticationManager,
         tokenService,
         deviceRepo,
         locationRepo,
-        notificationService
+        notificationService,
+        maxConcurrentStreams
       )
   }
 
@@ -225,10 +228,24 @@ class AdminServiceImplTest(implicit ee: ExecutionEnv)
       trait ListLocationsContext extends Context {
         lazy val deviceId: String = "123"
 
-        lazy val getResponse: Future[Vector[model.StoredLocation]]
-        when(locationRepo.getForDevice(DeviceId(deviceId), limit = None)).thenReturn(getResponse)
+        lazy val range: model.TimeRange = model.TimeRange.All
+        lazy val pageSize: Int = 0
+        lazy val cursor: Option[model.LocationCursor] = None
+        lazy val encodedCursor: String = cursor.map(_.encode).getOrElse("")
+        lazy val expectedLimit: Option[Int] = None
 
-        val request: ListLocationsRequest = ListLocationsRequest(deviceId = deviceId)
+        lazy val getResponse: Future[Vector[model.StoredLocation]]
+        when(
+          locationRepo.getForDeviceInRange(DeviceId(deviceId), range, cursor, expectedLimit)
+        ).thenReturn(getResponse)
+
+        lazy val request: ListLocationsRequest = ListLocationsRequest(
+          deviceId = deviceId,
+          fromTimestamp = range.from,
+          toTimestamp = range.to,
+          pageSize = pageSize,
+          cursor = encodedCursor
+        )
         lazy val result: Future[ListLocationsResponse] = adminService.listLocations(request)
       }
 
@@ -277,6 +294,301 @@ class AdminServiceImplTest(implicit ee: ExecutionEnv)
       }) { context =>
         context.result must beEqualTo(ListLocationsResponse(locations = Seq.empty)).await
       }
+
+      "return a next cursor when there are more pages" >> in(new ListLocationsContext {
+        override lazy val range: model.TimeRange = model.TimeRange(from = Some(1L), to = Some(9L))
+        override lazy val pageSize: Int = 1
+        override lazy val expectedLimit: Option[Int] = Some(2)
+        override lazy val getResponse: Future[Vector[model.StoredLocation]] = Future.successful(
+          Vector(
+            MockModels.storedLocation(1L, metadata = model.StoredLocation.Metadata.initial(2L)),
+            MockModels.storedLocation(2L, metadata = model.StoredLocation.Metadata.initial(3L))
+          )
+        )
+      }) { context =>
+        context.result.map(_.locations) must haveSize[Seq[StoredLocation]](1).await
+        context.result.map(_.nextCursor) must beEqualTo(
+          model.LocationCursor(endTimestamp = 2L, id = 1L).encode
+        ).await
+      }
+
+      "not return a next cursor on the last page" >> in(new ListLocationsContext {
+        override lazy val pageSize: Int = 2
+        override lazy val cursor: Option[model.LocationCursor] =
+          Some(model.LocationCursor(endTimestamp = 2L, id = 1L))
+        override lazy val expectedLimit: Option[Int] = Some(3)
+        override lazy val getResponse: Future[Vector[model.StoredLocation]] = Future.successful(
+          Vector(
+            MockModels.storedLocation(2L, metadata = model.StoredLocation.Metadata.initial(3L))
+          )
+        )
+      }) { context =>
+        context.result.map(_.locations) must haveSize[Seq[StoredLocation]](1).await
+        context.result.map(_.nextCursor) must beEqualTo("").await
+      }
+
+      "fail on an invalid cursor" >> in(new ListLocationsContext {
+        override lazy val encodedCursor: String = "not a cursor"
+        override lazy val getResponse: Future[Vector[model.StoredLocation]] = null
+      }) { context =>
+        context.result must throwAGrpcException(Code.INVALID_ARGUMENT, "Invalid cursor").await
+      }
+    }
+
+    "list locations in bounds endpoint" >> {
+      trait ListLocationsInBoundsContext extends Context {
+        lazy val bounds: Option[BoundingBox] =
+          Some(BoundingBox(minLat = 51.0, minLon = -1.0, maxLat = 52.0, maxLon = 1.0))
+        lazy val deviceIds: Seq[String] = Seq.empty
+        lazy val pageSize: Int = 0
+
+        lazy val expectedDevices: Option[Seq[DeviceId.Type]] = None
+        lazy val expectedLimit: Option[Int] = Some(AdminServiceImpl.MaxPageSize + 1)
+
+        lazy val getResponse: Future[Vector[(DeviceId.Type, model.StoredLocation)]]
+        when(
+          locationRepo.getInBounds(
+            model.BoundingBox(minLat = 51.0, minLon = -1.0, maxLat = 52.0, maxLon = 1.0),
+            model.TimeRange.All,
+            expectedDevices,
+            None,
+            expectedLimit
+          )
+        ).thenReturn(getResponse)
+
+        lazy val request: ListLocationsInBoundsRequest = ListLocationsInBoundsRequest(
+          bounds = bounds,
+          deviceIds = deviceIds,
+          pageSize = pageSize
+        )
+        lazy val result: Future[ListLocationsInBoundsResponse] =
+          adminService.listLocationsInBounds(request)
+      }
+
+      "list locations of each device within the bounds" >> in(new ListLocationsInBoundsContext {
+        override lazy val deviceIds: Seq[String] = Seq("123", "456")
+        override lazy val expectedDevices: Option[Seq[DeviceId.Type]] =
+          Some(Seq(DeviceId("123"), DeviceId("456")))
+        override lazy val getResponse: Future[Vector[(DeviceId.Type, model.StoredLocation)]] =
+          Future.successful(
+            Vector(
+              DeviceId("123") -> MockModels.storedLocation(1L),
+              DeviceId("456") -> MockModels.storedLocation(2L)
+            )
+          )
+      }) { context =>
+        context.result.map(_.locations.map(_.deviceId)) must beEqualTo(Seq("123", "456")).await
+        context.result.map(_.nextCursor) must beEqualTo("").await
+      }
+
+      "return a next cursor when there are more pages" >> in(new ListLocationsInBoundsContext {
+        override lazy val pageSize: Int = 1
+        override lazy val expectedLimit: Option[Int] = Some(2)
+        override lazy val getResponse: Future[Vector[(DeviceId.Type, model.StoredLocation)]] =
+          Future.successful(
+            Vector(
+              DeviceId("123") -> MockModels.storedLocation(1L),
+              DeviceId("456") -> MockModels.storedLocation(2L)
+            )
+          )
+      }) { context =>
+        context.result.map(_.locations) must haveSize[Seq[DeviceLocation]](1).await
+        context.result.map(_.nextCursor) must beEqualTo(
+          model.LocationCursor(endTimestamp = 123L, id = 1L).encode
+        ).await
+      }
+
+      "fail without bounds" >> in(new ListLocationsInBoundsContext {
+        override lazy val bounds: Option[BoundingBox] = None
+        override lazy val getResponse: Future[Vector[(DeviceId.Type, model.StoredLocation)]] =
+          null
+      }) { context =>
+        context.result must throwAGrpcException(
+          Code.INVALID_ARGUMENT,
+          "No bounding box provided"
+        ).await
+      }
+
+      "fail on invalid bounds" >> in(new ListLocationsInBoundsContext {
+        override lazy val bounds: Option[BoundingBox] =
+          Some(BoundingBox(minLat = 52.0, minLon = -1.0, maxLat = 51.0, maxLon = 1.0))
+        override lazy val getResponse: Future[Vector[(DeviceId.Type, model.StoredLocation)]] =
+          null
+      }) { context =>
+        context.result must throwAGrpcException(Code.INVALID_ARGUMENT, "Invalid bounding box").await
+      }
+    }
+
+    "get heatmap endpoint" >> {
+      trait GetHeatmapContext extends Context {
+        lazy val zoom: Int = 4
+        lazy val bounds: Option[BoundingBox] = None
+        lazy val deviceIds: Seq[String] = Seq.empty
+
+        lazy val expectedBounds: Option[model.BoundingBox] = None
+        lazy val expectedDevices: Option[Seq[DeviceId.Type]] = None
+
+        lazy val getResponse: Future[Vector[(model.Tile, model.TileAggregate)]] =
+          Future.successful(
+            Vector(
+              model.Tile(4, 7, 12) -> model.TileAggregate(1L, 2L, 60L),
+              model.Tile(4, 8, 12) -> model.TileAggregate(2L, 2L, 0L)
+            )
+          )
+        when(locationRepo.getTiles(zoom, expectedBounds, expectedDevices))
+          .thenReturn(getResponse)
+
+        lazy val request: GetHeatmapRequest =
+          GetHeatmapRequest(zoom = zoom, bounds = bounds, deviceIds = deviceIds)
+        lazy val result: Future[GetHeatmapResponse] = adminService.getHeatmap(request)
+      }
+
+      "return each tile's aggregates" >> in(new GetHeatmapContext {}) { context =>
+        context.result.map(_.tiles) must beEqualTo(
+          Seq(
+            HeatmapTile(
+              x = 7,
+              y = 12,
+              bounds = Some(
+                BoundingBox(minLat = 45.0, minLon = -22.5, maxLat = 56.25, maxLon = 0.0)
+              ),
+              locations = 1L,
+              count = 2L,
+              dwellMillis = 60L
+            ),
+            HeatmapTile(
+              x = 8,
+              y = 12,
+              bounds = Some(
+                BoundingBox(minLat = 45.0, minLon = 0.0, maxLat = 56.25, maxLon = 22.5)
+              ),
+              locations = 2L,
+              count = 2L,
+              dwellMillis = 0L
+            )
+          )
+        ).await
+      }
+
+      "restrict tiles to the bounds and devices" >> in(new GetHeatmapContext {
+        override lazy val bounds: Option[BoundingBox] =
+          Some(BoundingBox(minLat = 51.0, minLon = -1.0, maxLat = 52.0, maxLon = 1.0))
+        override lazy val deviceIds: Seq[String] = Seq("123")
+        override lazy val expectedBounds: Option[model.BoundingBox] =
+          Some(model.BoundingBox(minLat = 51.0, minLon = -1.0, maxLat = 52.0, maxLon = 1.0))
+        override lazy val expectedDevices: Option[Seq[DeviceId.Type]] = Some(Seq(DeviceId("123")))
+      }) { context =>
+        context.result.map(_.tiles.map(tile => (tile.x, tile.y))) must beEqualTo(
+          Seq((7, 12), (8, 12))
+        ).await
+      }
+
+      "fail on an invalid zoom" >> in(new GetHeatmapContext {
+        override lazy val zoom: Int = model.Tile.MaxZoom + 1
+        override lazy val getResponse: Future[Vector[(model.Tile, model.TileAggregate)]] = null
+      }) { context =>
+        context.result must throwAGrpcException(Code.INVALID_ARGUMENT, "Invalid zoom").await
+      }
+
+      "fail on invalid bounds" >> in(new GetHeatmapContext {
+        override lazy val bounds: Option[BoundingBox] =
+          Some(BoundingBox(minLat = 52.0, minLon = -1.0, maxLat = 51.0, maxLon = 1.0))
+        override lazy val getResponse: Future[Vector[(model.Tile, model.TileAggregate)]] = null
+      }) { context =>
+        context.result must throwAGrpcException(Code.INVALID_ARGUMENT, "Invalid bounding box").await
+      }
+    }
+
+    "stream locations endpoint" >> {
+      trait StreamLocationsContext extends Context {
+        lazy val deviceId: String = "123"
+        lazy val chunkSize: Int = 0
+        lazy val expectedChunkSize: Int = AdminServiceImpl.DefaultChunkSize
+
+        lazy val chunks: Vector[Vector[model.StoredLocation]]
+        lazy val streamResponse: Future[Unit] = Future.successful(())
+        when(
+          locationRepo.streamForDeviceInRange(
+            eqTo(DeviceId(deviceId)),
+            eqTo(model.TimeRange.All),
+            eqTo(expectedChunkSize)
+          )(any[Vector[model.StoredLocation] => Unit]())(using any[ExecutionContext]())
+        ).thenAnswer { invocation =>
+          val consumer = invocation.getArgument[Vector[model.StoredLocation] => Unit](3)
+          chunks.foreach(consumer)
+          streamResponse
+        }
+
+        lazy val observer: RecordingStreamObserver[StreamLocationsResponse] =
+          new RecordingStreamObserver()
+        adminService.streamLocations(
+          StreamLocationsRequest(deviceId = deviceId, chunkSize = chunkSize),
+          observer
+        )
+        lazy val result: Future[Seq[StreamLocationsResponse]] = observer.result
+      }
+
+      "stream each chunk as a response" >> in(new StreamLocationsContext {
+        override lazy val chunkSize: Int = 2
+        override lazy val expectedChunkSize: Int = 2
+        override lazy val chunks: Vector[Vector[model.StoredLocation]] = Vector(
+          Vector(MockModels.storedLocation(1L), MockModels.storedLocation(2L)),
+          Vector(MockModels.storedLocation(3L))
+        )
+      }) { context =>
+        context.result.map(_.map(_.locations.size)) must beEqualTo(Seq(2, 1)).await
+      }
+
+      "cap the chunk size" >> in(new StreamLocationsContext {
+        override lazy val chunkSize: Int = AdminServiceImpl.MaxPageSize + 1
+        override lazy val expectedChunkSize: Int = AdminServiceImpl.MaxPageSize
+        override lazy val chunks: Vector[Vector[model.StoredLocation]] = Vector.empty
+      }) { context =>
+        context.result must beEqualTo(Seq.empty).await
+      }
+
+      "fail the stream on a repo error" >> in(new StreamLocationsContext {
+        override lazy val chunks: Vector[Vector[model.StoredLocation]] = Vector.empty
+        override lazy val streamResponse: Future[Unit] =
+          Future.failed(DeviceNotFoundException(DeviceId(deviceId)))
+      }) { context =>
+        context.result must throwAGrpcException(Code.NOT_FOUND, "Device 123 does not exist").await
+      }
+
+      "reject streams beyond the concurrent limit" >> in(new StreamLocationsContext {
+        override lazy val maxConcurrentStreams: Int = 1
+        override lazy val chunks: Vector[Vector[model.StoredLocation]] = Vector.empty
+        override lazy val streamResponse: Future[Unit] = Promise[Unit]().future
+      }) { context =>
+        val rejected = new RecordingStreamObserver[StreamLocationsResponse]()
+        context.adminService.streamLocations(
+          StreamLocationsRequest(deviceId = context.deviceId),
+          rejected
+        )
+
+        rejected.result must throwAGrpcException(
+          Code.RESOURCE_EXHAUSTED,
+          "Too many concurrent streams; expected at most 1"
+        ).await
+      }
+
+      "accept a stream once an earlier one completes" >> in(new StreamLocationsContext {
+        override lazy val maxConcurrentStreams: Int = 1
+        override lazy val chunks: Vector[Vector[model.StoredLocation]] = Vector.empty
+      }) { context =>
+        val next = new RecordingStreamObserver[StreamLocationsResponse]()
+
+        {
+          for {
+            _ <- context.result
+            _ = context.adminService.streamLocations(
+              StreamLocationsRequest(deviceId = context.deviceId),
+              next
+            )
+            responses <- next.result
+          } yield responses
+        } must beEqualTo(Seq.empty).await
+      }
     }
 
     "send notification endpoint" >> {
@@ -3,8 +3,9 @@ package com.jackpf.locationhistory.server.grpc
 import com.jackpf.locationhistory.beacon_service.*
 import com.jackpf.locationhistory.beacon_service.BeaconServiceGrpc.BeaconService
 import com.jackpf.locationhistory.common.{Device, DeviceStatus, Location, PushHandler}
-import com.jackpf.locationhistory.server.enricher.EnricherExecutor
+import com.jackpf.locationhistory.server.enricher.EnrichmentPipeline
 import com.jackpf.locationhistory.server.errors.ApplicationErrors.DeviceNotFoundException
+import com.jackpf.locationhistory.server.grpc.BeaconServiceImpl.MaxBatchSize
 import com.jackpf.locationhistory.server.model
 import com.jackpf.locationhistory.server.model.{DeviceId, StoredDevice}
 import com.jackpf.locationhistory.server.repo.LocationRepoExtensions.CheckDuplicateLocationFunc
@@ -17,10 +18,10 @@ import com.jackpf.locationhistory.server.testutil.{
 }
 import io.grpc.Status.Code
 import org.mockito.ArgumentMatchers.{any, eq as eqTo}
-import org.mockito.Mockito.{mock, when}
+import org.mockito.Mockito.{mock, never, verify, when}
 import org.specs2.concurrent.ExecutionEnv
 
-import scala.concurrent.{ExecutionContext, Future}
+import scala.concurrent.Future
 import scala.util.{Failure, Success, Try}
 
 class BeaconServiceImplTest(implicit ee: ExecutionEnv)
@@ -29,9 +30,9 @@ class BeaconServiceImplTest(implicit ee: ExecutionEnv)
   trait Context extends DefaultScope {
     val deviceRepo: DeviceRepo = mock(classOf[DeviceRepo])
     val locationRepo: LocationRepo = mock(classOf[LocationRepo])
-    val enricherExecutor: EnricherExecutor = mock(classOf[EnricherExecutor])
+    val enrichmentPipeline: EnrichmentPipeline = mock(classOf[EnrichmentPipeline])
     val beaconService: BeaconService =
-      new BeaconServiceImpl(deviceRepo, locationRepo, enricherExecutor)
+      new BeaconServiceImpl(deviceRepo, locationRepo, enrichmentPipeline)
   }
 
   "Beacon service" should {
@@ -131,25 +132,19 @@ class BeaconServiceImplTest(implicit ee: ExecutionEnv)
         lazy val getResponse: Future[Try[StoredDevice]]
         when(deviceRepo.getRegisteredDevice(DeviceId(deviceId))).thenReturn(getResponse)
 
-        lazy val storeDeviceLocationResponse: Future[Try[Unit]]
-        lazy val enrichedLocation: model.Location = MockModels.location()
-        lazy val enrichedLocationResponse: Future[model.Location] =
-          Future.successful(enrichedLocation)
+        lazy val storedLocation: model.StoredLocation = MockModels.storedLocation(
+          location = model.Location(lat = 0.1, lon = 0.2, accuracy = 0.3, metadata = Map.empty)
+        )
+        lazy val appendResponse: Future[Try[Vector[model.StoredLocation]]]
 
         if (location.isDefined) {
-          given ec: ExecutionContext = any[ExecutionContext]()
-
-          when(enricherExecutor.enrich(any[model.Location]())(using any[ExecutionContext]()))
-            .thenReturn(enrichedLocationResponse)
           when(
-            locationRepo
-              .storeDeviceLocationOrUpdatePrevious(
-                eqTo(DeviceId(deviceId)),
-                eqTo(enrichedLocation),
-                eqTo(timestamp),
-                any[CheckDuplicateLocationFunc]()
-              )
-          ).thenReturn(storeDeviceLocationResponse)
+            locationRepo.appendOrMerge(
+              eqTo(DeviceId(deviceId)),
+              eqTo(Seq((storedLocation.location, timestamp))),
+              any[CheckDuplicateLocationFunc]()
+            )
+          ).thenReturn(appendResponse)
         }
 
         lazy val request: SetLocationRequest =
@@ -166,16 +161,19 @@ class BeaconServiceImplTest(implicit ee: ExecutionEnv)
             )
           )
         )
-        override lazy val storeDeviceLocationResponse: Future[Try[Unit]] =
-          Future.successful(Success(()))
+        override lazy val appendResponse: Future[Try[Vector[model.StoredLocation]]] =
+          Future.successful(Success(Vector(storedLocation)))
       }) { context =>
         context.result must beEqualTo(SetLocationResponse(success = true)).await
+        verify(context.enrichmentPipeline)
+          .submit(DeviceId(context.deviceId), Vector(context.storedLocation))
+        ok
       }
 
       "fail on empty location" >> in(new SetLocationContext {
         override lazy val location: Option[Location] = None
         override lazy val getResponse: Future[Try[StoredDevice]] = null
-        override lazy val storeDeviceLocationResponse: Future[Try[Unit]] = null
+        override lazy val appendResponse: Future[Try[Vector[model.StoredLocation]]] = null
       }) { context =>
         context.result must throwAGrpcException(Code.INVALID_ARGUMENT, "No location provided").await
       }
@@ -183,7 +181,7 @@ class BeaconServiceImplTest(implicit ee: ExecutionEnv)
       "fail on missing device" >> in(new SetLocationContext {
         override lazy val getResponse: Future[Try[StoredDevice]] =
           Future.successful(Failure(DeviceNotFoundException(DeviceId(deviceId))))
-        override lazy val storeDeviceLocationResponse: Future[Try[Unit]] = null
+        override lazy val appendResponse: Future[Try[Vector[model.StoredLocation]]] = null
       }) { context =>
         context.result must throwAGrpcException(
           Code.NOT_FOUND,
@@ -200,10 +198,91 @@ class BeaconServiceImplTest(implicit ee: ExecutionEnv)
             )
           )
         )
-        override lazy val storeDeviceLocationResponse: Future[Try[Unit]] =
+        override lazy val appendResponse: Future[Try[Vector[model.StoredLocation]]] =
           Future.successful(Failure(DeviceNotFoundException(DeviceId("123"))))
       }) { context =>
         context.result must throwAGrpcException(Code.NOT_FOUND, "Device 123 does not exist").await
+        verify(context.enrichmentPipeline, never()).submit(any(), any())
+        ok
+      }
+    }
+
+    "set locations endpoint" >> {
+      trait SetLocationsContext extends Context {
+        lazy val deviceId: String = "123"
+        lazy val locations: Seq[TimestampedLocation] = Seq(
+          TimestampedLocation(timestamp = 2L, location = Some(Location(lat = 0.4, lon = 0.5))),
+          TimestampedLocation(timestamp = 1L, location = Some(Location(lat = 0.1, lon = 0.2)))
+        )
+
+        lazy val getResponse: Future[Try[StoredDevice]] = Future.successful(
+          Success(
+            MockModels.storedDevice(
+              device = MockModels.device(id = DeviceId(deviceId)),
+              status = StoredDevice.DeviceStatus.Registered
+            )
+          )
+        )
+        when(deviceRepo.getRegisteredDevice(DeviceId(deviceId))).thenReturn(getResponse)
+
+        def raw(lat: Double, lon: Double): model.Location =
+          model.Location(lat = lat, lon = lon, accuracy = 0.0, metadata = Map.empty)
+
+        lazy val storedLocations: Vector[model.StoredLocation] = Vector(
+          MockModels.storedLocation(id = 1L, location = raw(0.1, 0.2)),
+          MockModels.storedLocation(id = 2L, location = raw(0.4, 0.5))
+        )
+        when(
+          locationRepo.appendOrMerge(
+            eqTo(DeviceId(deviceId)),
+            eqTo(Seq((raw(0.1, 0.2), 1L), (raw(0.4, 0.5), 2L))),
+            any[CheckDuplicateLocationFunc]()
+          )
+        ).thenReturn(Future.successful(Success(storedLocations)))
+
+        lazy val request: SetLocationsRequest =
+          SetLocationsRequest(deviceId = deviceId, locations = locations)
+        lazy val result: Future[SetLocationsResponse] = beaconService.setLocations(request)
+      }
+
+      "store locations in timestamp order, then queue them for enrichment" >> in(
+        new SetLocationsContext {}
+      ) { context =>
+        context.result must beEqualTo(SetLocationsResponse(success = true)).await
+        verify(context.enrichmentPipeline)
+          .submit(DeviceId(context.deviceId), context.storedLocations)
+        ok
+      }
+
+      "fail on an empty location" >> in(new SetLocationsContext {
+        override lazy val locations: Seq[TimestampedLocation] =
+          Seq(TimestampedLocation(timestamp = 1L, location = None))
+      }) { context =>
+        context.result must throwAGrpcException(Code.INVALID_ARGUMENT, "No location provided").await
+      }
+
+      "reject a batch larger than the maximum" >> in(new SetLocationsContext {
+        override lazy val locations: Seq[TimestampedLocation] =
+          Seq.fill(MaxBatchSize + 1)(
+            TimestampedLocation(timestamp = 1L, location = Some(Location(lat = 0.1, lon = 0.2)))
+          )
+      }) { context =>
+        context.result must throwAGrpcException(
+          Code.INVALID_ARGUMENT,
+          s"Too many locations: ${MaxBatchSize + 1}; expected at most ${MaxBatchSize}"
+        ).await
+        verify(context.locationRepo, never()).appendOrMerge(any(), any(), any())
+        ok
+      }
+
+      "fail on missing device" >> in(new SetLocationsContext {
+        override lazy val getResponse: Future[Try[StoredDevice]] =
+          Future.successful(Failure(DeviceNotFoundException(DeviceId(deviceId))))
+      }) { context =>
+        context.result must throwAGrpcException(
+          Code.NOT_FOUND,
+          "Device 123 does not exist"
+        ).await
       }
     }
 
@@ -0,0 +1,70 @@
+package com.jackpf.locationhistory.server.persistence
+
+import com.jackpf.locationhistory.server.testutil.{DefaultScope, DefaultSpecification}
+
+import java.io.{DataInputStream, DataOutputStream}
+import java.nio.file.{Files, Path, StandardOpenOption}
+import scala.collection.mutable.ListBuffer
+import scala.jdk.CollectionConverters.*
+import scala.util.Using
+
+class JournalTest extends DefaultSpecification {
+  private val codec: BinaryCodec[String] = new BinaryCodec[String] {
+    override def write(out: DataOutputStream, value: String): Unit =
+      BinaryCodec.writeString(out, value)
+    override def read(in: DataInputStream): String = BinaryCodec.readString(in)
+  }
+
+  trait Context extends DefaultScope {
+    val directory: Path = Files.createTempDirectory("journal-test")
+
+    def openJournal(): (Journal[String], Seq[String]) = {
+      val journal = new Journal(directory, "test", codec)
+      val replayed = ListBuffer.empty[String]
+      journal.recover(replayed += _)
+      (journal, replayed.toSeq)
+    }
+
+    def journalFiles(): Seq[Path] = Using.resource(Files.list(directory)) {
+      _.iterator.asScala.filter(_.toString.endsWith(".journal")).toSeq.sorted
+    }
+  }
+
+  "Journal" should {
+    "replay appended events" >> in(new Context {}) { context =>
+      val (journal, _) = context.openJournal()
+      journal.append(Seq("a", "b"))
+      journal.append(Seq("c"))
+      journal.close()
+
+      context.openJournal()._2 must beEqualTo(Seq("a", "b", "c"))
+    }
+
+    "replay a snapshot followed by the journal tail" >> in(new Context {}) { context =>
+      val (journal, _) = context.openJournal()
+      journal.append(Seq("a", "b"))
+      journal.snapshot(emit => Seq("snapshot").foreach(emit))
+      journal.append(Seq("c"))
+      journal.close()
+
+      context.journalFiles() must haveSize(1)
+      context.openJournal()._2 must beEqualTo(Seq("snapshot", "c"))
+    }
+
+    "discard a torn record at the tail" >> in(new Context {}) { context =>
+      val (journal, _) = context.openJournal()
+      journal.append(Seq("a", "b"))
+      journal.close()
+
+      val file = context.journalFiles().last
+      val _ = Files.write(file, Array[Byte](0, 0, 0, 10, 1, 2), StandardOpenOption.APPEND)
+
+      val (reopened, replayed) = context.openJournal()
+      reopened.append(Seq("c"))
+      reopened.close()
+
+      replayed must beEqualTo(Seq("a", "b"))
+      context.openJournal()._2 must beEqualTo(Seq("a", "b", "c"))
+    }
+  }
+}
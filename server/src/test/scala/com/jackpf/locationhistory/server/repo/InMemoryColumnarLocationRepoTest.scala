@@ -0,0 +1,79 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.{DeviceId, StoredLocation}
+import com.jackpf.locationhistory.server.testutil.MockModels
+import org.specs2.concurrent.ExecutionEnv
+
+import scala.concurrent.Future
+import scala.util.Try
+
+class InMemoryColumnarLocationRepoTest(implicit ee: ExecutionEnv) extends LocationRepoTest {
+  override def createLocationRepo: LocationRepo = {
+    lazy val maxItemsPerDevice: Long = 4
+    new InMemoryColumnarLocationRepo(maxItemsPerDevice)
+  }
+
+  "In memory columnar location repo" should {
+    "limit items per device" >> in(new Context {}) { context =>
+      val deviceId = DeviceId("123")
+
+      def storeLocation(ts: Long): Future[Try[Unit]] =
+        context.locationRepo.storeDeviceLocation(
+          deviceId,
+          MockModels.location(),
+          StoredLocation.Metadata.initial(ts)
+        )
+
+      {
+        for {
+          _ <- Future.sequence((1L to 40L).map(storeLocation))
+          locations <- context.locationRepo.getForDevice(deviceId, limit = None)
+        } yield {
+          locations must haveSize(4)
+          locations.map(_.metadata.startTimestamp) must beEqualTo(Seq(37L, 38L, 39L, 40L))
+        }
+      }.await
+    }
+
+    "store more locations than the initial capacity" >> in(new Context {}) { _ =>
+      val locationRepo = new InMemoryColumnarLocationRepo()
+      val deviceId = DeviceId("123")
+
+      {
+        for {
+          _ <- Future.sequence((1L to 40L).map { ts =>
+            locationRepo.storeDeviceLocation(
+              deviceId,
+              MockModels.location(),
+              StoredLocation.Metadata.initial(ts)
+            )
+          })
+          locations <- locationRepo.getForDevice(deviceId, limit = None)
+        } yield locations.map(_.metadata.startTimestamp) must beEqualTo(1L to 40L)
+      }.await
+    }
+
+    "decode metadata stored by reference" >> in(new Context {}) { context =>
+      val deviceId = DeviceId("123")
+      val metadata = Map("city" -> "London")
+
+      {
+        for {
+          _ <- context.locationRepo.storeDeviceLocation(
+            deviceId,
+            MockModels.location(metadata = metadata),
+            StoredLocation.Metadata.initial(1L)
+          )
+          _ <- context.locationRepo.storeDeviceLocation(
+            deviceId,
+            MockModels.location(),
+            StoredLocation.Metadata.initial(2L)
+          )
+          locations <- context.locationRepo.getForDevice(deviceId, limit = None)
+        } yield locations.map(_.location.metadata) must beEqualTo(
+          Seq(metadata, MockModels.location().metadata)
+        )
+      }.await
+    }
+  }
+}
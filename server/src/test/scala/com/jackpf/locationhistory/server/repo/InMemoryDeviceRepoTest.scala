@@ -1,7 +1,43 @@
 package com.jackpf.locationhistory.server.repo
 
+import com.jackpf.locationhistory.server.model.DeviceId
+import com.jackpf.locationhistory.server.model.StoredDevice.DeviceStatus
+import com.jackpf.locationhistory.server.persistence.Journal
+import com.jackpf.locationhistory.server.testutil.MockModels
 import org.specs2.concurrent.ExecutionEnv
 
+import java.nio.file.{Files, Path}
+
 class InMemoryDeviceRepoTest(implicit ee: ExecutionEnv) extends DeviceRepoTest {
   override def createDeviceRepo: DeviceRepo = new InMemoryDeviceRepo()
+
+  "In memory device repo" should {
+    "recover devices from a snapshot and journal" >> {
+      val directory: Path = Files.createTempDirectory("device-journal")
+
+      def openRepo(): InMemoryDeviceRepo =
+        new InMemoryDeviceRepo(Some(new Journal(directory, "devices", DeviceEvent.codec)))
+
+      {
+        val repo = openRepo()
+        for {
+          _ <- repo.init()
+          _ <- repo.register(MockModels.device(id = DeviceId("1")))
+          _ <- repo.register(MockModels.device(id = DeviceId("2")))
+          _ = repo.snapshot()
+          _ <- repo.update(DeviceId("1"), _.register())
+          _ <- repo.delete(DeviceId("2"))
+          _ <- repo.register(MockModels.device(id = DeviceId("3")))
+          _ = repo.close()
+          reopened = openRepo()
+          _ <- reopened.init()
+          devices <- reopened.getAll
+        } yield {
+          devices.map(d => (d.device.id, d.status)).toSet must beEqualTo(
+            Set(DeviceId("1") -> DeviceStatus.Registered, DeviceId("3") -> DeviceStatus.Pending)
+          )
+        }
+      }.await
+    }
+  }
 }
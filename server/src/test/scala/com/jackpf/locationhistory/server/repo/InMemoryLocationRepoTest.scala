@@ -1,9 +1,11 @@
 package com.jackpf.locationhistory.server.repo
 
 import com.jackpf.locationhistory.server.model.{DeviceId, StoredLocation}
+import com.jackpf.locationhistory.server.persistence.Journal
 import com.jackpf.locationhistory.server.testutil.MockModels
 import org.specs2.concurrent.ExecutionEnv
 
+import java.nio.file.{Files, Path}
 import scala.concurrent.Future
 import scala.util.Try
 
@@ -46,5 +48,158 @@ class InMemoryLocationRepoTest(implicit ee: ExecutionEnv) extends LocationRepoTe
         }
       }.await
     }
+
+    "update a location after the buffer wraps" >> in(new Context {}) { context =>
+      val deviceId = DeviceId("123")
+
+      {
+        for {
+          _ <- Future.sequence((1L to 10L).map { ts =>
+            context.locationRepo.storeDeviceLocation(
+              deviceId,
+              MockModels.location(),
+              StoredLocation.Metadata.initial(ts)
+            )
+          })
+          evicted <- context.locationRepo.update(deviceId, 6L, identity)
+          updated <- context.locationRepo.update(
+            deviceId,
+            8L,
+            sl => sl.copy(metadata = sl.metadata.copy(count = 5))
+          )
+          locations <- context.locationRepo.getForDevice(deviceId, limit = Some(3))
+        } yield {
+          evicted must beFailedTry
+          updated must beSuccessfulTry
+          locations.map(l => (l.id, l.metadata.count)) must beEqualTo(
+            Seq((8L, 5L), (9L, 1L), (10L, 1L))
+          )
+        }
+      }.await
+    }
+
+    "keep each device's ids ascending under concurrent stores" >> in(new Context {}) { _ =>
+      val locationRepo = new InMemoryLocationRepo()
+      val deviceIds = Seq(DeviceId("123"), DeviceId("456"))
+
+      {
+        for {
+          _ <- Future.sequence((1L to 500L).flatMap { ts =>
+            deviceIds.map { deviceId =>
+              Future(
+                locationRepo.storeDeviceLocation(
+                  deviceId,
+                  MockModels.location(),
+                  StoredLocation.Metadata.initial(ts)
+                )
+              ).flatten
+            }
+          })
+          histories <- Future.sequence(deviceIds.map(locationRepo.getForDevice(_, limit = None)))
+        } yield {
+          val ids = histories.map(_.map(_.id))
+          ids must beEqualTo(ids.map(_.sorted))
+        }
+      }.await
+    }
+
+    "recover locations from a snapshot and journal" >> {
+      val directory: Path = Files.createTempDirectory("location-journal")
+      val deviceId = DeviceId("123")
+      val otherDeviceId = DeviceId("456")
+
+      def openRepo(): InMemoryLocationRepo = new InMemoryLocationRepo(
+        maxItemsPerDevice = 4,
+        journal = Some(new Journal(directory, "locations", LocationEvent.codec))
+      )
+
+      def storeLocation(
+          repo: LocationRepo,
+          deviceId: DeviceId.Type,
+          ts: Long
+      ): Future[Try[Unit]] =
+        repo.storeDeviceLocation(
+          deviceId,
+          MockModels.location(),
+          StoredLocation.Metadata.initial(ts)
+        )
+
+      {
+        val repo = openRepo()
+        for {
+          _ <- repo.init()
+          _ <- storeLocation(repo, deviceId, 1L)
+          _ <- storeLocation(repo, otherDeviceId, 2L)
+          _ = repo.snapshot()
+          _ <- storeLocation(repo, deviceId, 3L)
+          _ <- repo.update(deviceId, 1L, sl => sl.copy(metadata = sl.metadata.copy(count = 2)))
+          _ <- repo.deleteForDevice(otherDeviceId)
+          _ = repo.close()
+          reopened = openRepo()
+          _ <- reopened.init()
+          _ <- storeLocation(reopened, deviceId, 4L)
+          locations <- reopened.getForDevice(deviceId, limit = None)
+          otherLocations <- reopened.getForDevice(otherDeviceId, limit = None)
+        } yield {
+          locations.map(l => (l.id, l.metadata.startTimestamp, l.metadata.count)) must beEqualTo(
+            Seq((1L, 1L, 2L), (3L, 3L, 1L), (4L, 4L, 1L))
+          )
+          otherLocations must beEmpty
+        }
+      }.await
+    }
+
+    "recover deletions from the journal" >> {
+      val directory: Path = Files.createTempDirectory("location-journal")
+      val deviceId = DeviceId("123")
+
+      def openRepo(): InMemoryLocationRepo = new InMemoryLocationRepo(
+        journal = Some(new Journal(directory, "locations", LocationEvent.codec))
+      )
+
+      {
+        val repo = openRepo()
+        for {
+          _ <- repo.init()
+          _ <- Future.sequence((1L to 6L).map { ts =>
+            repo.storeDeviceLocation(
+              deviceId,
+              MockModels.location(),
+              StoredLocation.Metadata.initial(ts)
+            )
+          })
+          _ <- repo.deleteLocations(deviceId, Seq(3L, 5L))
+          _ <- repo.deleteBefore(3L, batchSize = 1)
+          _ = repo.close()
+          reopened = openRepo()
+          _ <- reopened.init()
+          locations <- reopened.getForDevice(deviceId, limit = None)
+        } yield locations.map(_.id) must beEqualTo(Seq(4L, 6L))
+      }.await
+    }
+
+    "share metadata between locations" >> in(new Context {}) { context =>
+      def metadata(): Map[String, String] = Map("city" -> Seq("Lon", "don").mkString)
+
+      {
+        for {
+          _ <- context.locationRepo.storeDeviceLocation(
+            DeviceId("123"),
+            MockModels.location(metadata = metadata()),
+            StoredLocation.Metadata.initial(1L)
+          )
+          _ <- context.locationRepo.storeDeviceLocation(
+            DeviceId("456"),
+            MockModels.location(metadata = metadata()),
+            StoredLocation.Metadata.initial(2L)
+          )
+          locations <- context.locationRepo.getForDevice(DeviceId("123"), limit = None)
+          otherLocations <- context.locationRepo.getForDevice(DeviceId("456"), limit = None)
+        } yield {
+          locations.head.location.metadata must beEqualTo(metadata())
+          locations.head.location.metadata must be(otherLocations.head.location.metadata)
+        }
+      }.await
+    }
   }
 }
@@ -1,23 +1,26 @@
 package com.jackpf.locationhistory.server.repo
 
+import com.jackpf.locationhistory.server.errors.ApplicationErrors.DeviceNotFoundException
 import com.jackpf.locationhistory.server.model.{DeviceId, Location, StoredLocation}
-import com.jackpf.locationhistory.server.repo.LocationRepoExtensions.CheckDuplicateLocationFunc
+import com.jackpf.locationhistory.server.repo.LocationRepoExtensions.{
+  CheckDuplicateLocationFunc,
+  CollapsedLocations
+}
 import com.jackpf.locationhistory.server.testutil.{DefaultScope, DefaultSpecification, MockModels}
-import org.mockito.ArgumentCaptor
 import org.mockito.ArgumentMatchers.{any, eq as eqTo}
 import org.mockito.Mockito.{mock, verify, when}
 import org.mockito.internal.verification.Times
 import org.specs2.concurrent.ExecutionEnv
 
 import scala.concurrent.{ExecutionContext, Future}
-import scala.util.{Success, Try}
+import scala.util.{Failure, Success, Try}
 
 class LocationRepoExtensionsTest(using ee: ExecutionEnv) extends DefaultSpecification {
   trait Context extends DefaultScope {
     val deviceId: DeviceId.Type = DeviceId("123")
     val newLocation: Location = MockModels.location()
     val newTimestamp: Long = 123L
-    val isDuplicate: Boolean
+    val isDuplicate: CheckDuplicateLocationFunc = (_, _, _) => false
 
     val repository: LocationRepo = mock(classOf[LocationRepo])
 
@@ -30,62 +33,154 @@ class LocationRepoExtensionsTest(using ee: ExecutionEnv) extends DefaultSpecific
       )(using any[ExecutionContext]())
     ).thenCallRealMethod()
 
+    lazy val appendResponse: Future[Try[Vector[StoredLocation]]] = Future.successful(
+      Success(Vector(MockModels.storedLocation(1L, newLocation)))
+    )
+    when(
+      repository.appendOrMerge(
+        eqTo(deviceId),
+        eqTo(Seq((newLocation, newTimestamp))),
+        eqTo(isDuplicate)
+      )
+    ).thenReturn(appendResponse)
+
     lazy val result: Future[Try[Unit]] = repository.storeDeviceLocationOrUpdatePrevious(
       deviceId,
       newLocation,
       newTimestamp,
-      (_, _, _) => isDuplicate
+      isDuplicate
     )
   }
 
-  trait StoreNewLocationContext extends Context {
-    override val isDuplicate: Boolean = false
-
-    when(repository.getForDevice(deviceId, limit = Some(1))).thenReturn(
-      Future.successful(Vector.empty)
+  trait StoreBatchContext extends DefaultScope {
+    val deviceId: DeviceId.Type = DeviceId("123")
+    val repository: LocationRepo = mock(classOf[LocationRepo])
+    val previous: StoredLocation = MockModels.storedLocation(
+      1L,
+      MockModels.location(lat = 0.1),
+      StoredLocation.Metadata.initial(100L)
     )
-    when(
-      repository.storeDeviceLocation(
-        deviceId,
-        newLocation,
-        StoredLocation.Metadata.initial(newTimestamp)
-      )
-    ).thenReturn(Future.successful(Success(())))
-  }
-
-  trait UpdatePreviousLocationContext extends Context {
-    lazy val storedLocation: StoredLocation = MockModels.storedLocation()
-    override val isDuplicate: Boolean = true
-
-    val updateCaptor: ArgumentCaptor[StoredLocation => StoredLocation] =
-      ArgumentCaptor.forClass(classOf[StoredLocation => StoredLocation])
+    val locations: Seq[(Location, Long)] = Seq(
+      (MockModels.location(lat = 0.1), 200L),
+      (MockModels.location(lat = 0.5), 300L),
+      (MockModels.location(lat = 0.5), 400L),
+      (MockModels.location(lat = 0.9), 500L)
+    )
+    val sameLatitude: CheckDuplicateLocationFunc = (location, _, storedLocation) =>
+      location.lat == storedLocation.location.lat
 
-    when(repository.getForDevice(deviceId, limit = Some(1))).thenReturn(
-      Future.successful(Vector(storedLocation))
+    when(
+      repository.storeDeviceLocationsOrUpdatePrevious(
+        any[DeviceId.Type](),
+        any[Seq[(Location, Long)]](),
+        any[CheckDuplicateLocationFunc]()
+      )(using any[ExecutionContext]())
+    ).thenCallRealMethod()
+    when(repository.appendOrMerge(deviceId, locations, sameLatitude)).thenReturn(
+      Future.successful(Success(Vector(previous)))
     )
-    when(repository.update(eqTo(deviceId), eqTo(1L), updateCaptor.capture()))
-      .thenReturn(Future.successful(Success(())))
+
+    lazy val result: Future[Try[Unit]] =
+      repository.storeDeviceLocationsOrUpdatePrevious(deviceId, locations, sameLatitude)
   }
 
   "LocationRepoExtensions" should {
-    "store a new location" >> in(new StoreNewLocationContext {}) { context =>
+    "store a location with a single append" >> in(new Context {}) { context =>
       context.result must beSuccessfulTry.await
 
-      verify(context.repository, Times(1))
-        .storeDeviceLocation(
-          context.deviceId,
-          context.newLocation,
-          StoredLocation.Metadata.initial(context.newTimestamp)
-        )
+      verify(context.repository, Times(1)).appendOrMerge(
+        context.deviceId,
+        Seq((context.newLocation, context.newTimestamp)),
+        context.isDuplicate
+      )
       ok
     }
 
-    "update a duplicate location" >> in(new UpdatePreviousLocationContext {}) { context =>
-      context.result must beSuccessfulTry.await
+    "propagate append failures" >> in(new Context {
+      override lazy val appendResponse: Future[Try[Vector[StoredLocation]]] =
+        Future.successful(Failure(DeviceNotFoundException(deviceId)))
+    }) { context =>
+      context.result must beEqualTo[Try[Unit]](
+        Failure(DeviceNotFoundException(context.deviceId))
+      ).await
+    }
 
-      verify(context.repository, Times(1))
-        .update(eqTo(context.deviceId), eqTo(1L), any[StoredLocation => StoredLocation]())
-      ok
+    "store a batch of locations with a single append" >> in(new StoreBatchContext {}) {
+      context =>
+        context.result must beSuccessfulTry.await
+
+        verify(context.repository, Times(1))
+          .appendOrMerge(context.deviceId, context.locations, context.sameLatitude)
+        ok
+    }
+
+    "collapse duplicates across a batch" >> in(new StoreBatchContext {}) { context =>
+      LocationRepoExtensions.collapseDuplicates(
+        previous = None,
+        context.locations,
+        context.sameLatitude
+      ) must beEqualTo(
+        CollapsedLocations(
+          updatedPrevious = None,
+          newLocations = Vector(
+            (MockModels.location(lat = 0.1), StoredLocation.Metadata.initial(200L)),
+            (
+              MockModels.location(lat = 0.5),
+              StoredLocation.Metadata(startTimestamp = 300L, endTimestamp = 400L, count = 2L)
+            ),
+            (MockModels.location(lat = 0.9), StoredLocation.Metadata.initial(500L))
+          )
+        )
+      )
+    }
+
+    "collapse duplicates into the previous location" >> in(new StoreBatchContext {}) {
+      context =>
+        LocationRepoExtensions.collapseDuplicates(
+          Some(context.previous),
+          context.locations,
+          context.sameLatitude
+        ) must beEqualTo(
+          CollapsedLocations(
+            updatedPrevious = Some(
+              context.previous.copy(metadata =
+                StoredLocation.Metadata(startTimestamp = 100L, endTimestamp = 200L, count = 2L)
+              )
+            ),
+            newLocations = Vector(
+              (
+                MockModels.location(lat = 0.5),
+                StoredLocation.Metadata(startTimestamp = 300L, endTimestamp = 400L, count = 2L)
+              ),
+              (MockModels.location(lat = 0.9), StoredLocation.Metadata.initial(500L))
+            )
+          )
+        )
+    }
+
+    "keep the previous location's enrichment when collapsing into it" >> in(
+      new StoreBatchContext {}
+    ) { context =>
+      val enriched = context.previous.copy(location =
+        MockModels.location(lat = 0.1, metadata = Map("raw" -> "old", "enriched" -> "value"))
+      )
+
+      LocationRepoExtensions
+        .collapseDuplicates(
+          Some(enriched),
+          Seq((MockModels.location(lat = 0.1, metadata = Map("raw" -> "new")), 200L)),
+          context.sameLatitude
+        )
+        .updatedPrevious
+        .map(_.location.metadata) must beSome(Map("raw" -> "new", "enriched" -> "value"))
+    }
+
+    "not collapse an empty batch" >> in(new StoreBatchContext {}) { context =>
+      LocationRepoExtensions.collapseDuplicates(
+        Some(context.previous),
+        Seq.empty,
+        context.sameLatitude
+      ) must beEqualTo(CollapsedLocations(updatedPrevious = None, newLocations = Vector.empty))
     }
   }
 }
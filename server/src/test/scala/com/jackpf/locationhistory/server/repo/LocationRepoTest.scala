@@ -1,7 +1,17 @@
 package com.jackpf.locationhistory.server.repo
 
 import com.jackpf.locationhistory.server.errors.ApplicationErrors.LocationNotFoundException
-import com.jackpf.locationhistory.server.model.{DeviceId, Location, StoredLocation}
+import com.jackpf.locationhistory.server.model.{
+  BoundingBox,
+  DeviceId,
+  Location,
+  LocationCursor,
+  StoredLocation,
+  Tile,
+  TileAggregate,
+  TimeRange
+}
+import com.jackpf.locationhistory.server.repo.LocationRepoExtensions.CheckDuplicateLocationFunc
 import com.jackpf.locationhistory.server.testutil.{
   DefaultScope,
   DefaultSpecification,
@@ -51,6 +61,67 @@ abstract class LocationRepoTest(implicit ee: ExecutionEnv)
       context.result must beSuccessfulTry.await
     }
 
+    "append locations and merge duplicates atomically" >> in(new StoredLocationContext {
+      override lazy val locations: Seq[(DeviceId.Type, Location, Long)] = Seq(
+        (DeviceId("123"), MockModels.location(lat = 0.1, lon = 0.2, accuracy = 0.3), 100L)
+      )
+    }) { context =>
+      val sameLatitude: CheckDuplicateLocationFunc = (location, _, storedLocation) =>
+        location.lat == storedLocation.location.lat
+      val expected = Vector(
+        MockModels.storedLocation(
+          1L,
+          MockModels.location(lat = 0.1, lon = 0.3, accuracy = 0.3),
+          StoredLocation.Metadata(startTimestamp = 100L, endTimestamp = 150L, count = 2L)
+        ),
+        MockModels.storedLocation(
+          2L,
+          MockModels.location(lat = 0.4, lon = 0.6),
+          StoredLocation.Metadata(startTimestamp = 200L, endTimestamp = 300L, count = 2L)
+        )
+      )
+
+      {
+        for {
+          written <- context.locationRepo.appendOrMerge(
+            DeviceId("123"),
+            Seq(
+              (MockModels.location(lat = 0.1, lon = 0.3, accuracy = 0.3), 150L),
+              (MockModels.location(lat = 0.4, lon = 0.5), 200L),
+              (MockModels.location(lat = 0.4, lon = 0.6), 300L)
+            ),
+            sameLatitude
+          )
+          locations <- context.locationRepo.getForDevice(DeviceId("123"), limit = None)
+        } yield {
+          written must beEqualTo(Success(expected))
+          locations must beEqualTo(expected)
+        }
+      }.await
+    }
+
+    "append locations to a device without history" >> in(new StoredLocationContext {
+      override lazy val locations: Seq[(DeviceId.Type, Location, Long)] = Seq(
+        (DeviceId("123"), MockModels.location(), 100L)
+      )
+    }) { context =>
+      context.locationRepo.appendOrMerge(
+        DeviceId("456"),
+        Seq((MockModels.location(), 200L)),
+        (_, _, _) => true
+      ) must beEqualTo(
+        Success(
+          Vector(
+            MockModels.storedLocation(
+              2L,
+              MockModels.location(),
+              StoredLocation.Metadata.initial(200L)
+            )
+          )
+        )
+      ).await
+    }
+
     "get locations by device" >> in(new StoredLocationContext {}) { context =>
       context.locationRepo
         .getForDevice(DeviceId("123"), limit = None) must beEqualTo(
@@ -88,6 +159,278 @@ abstract class LocationRepoTest(implicit ee: ExecutionEnv)
       ).await
     }
 
+    "get locations by device in a time range" >> in(new StoredLocationContext {
+      override lazy val locations: Seq[(DeviceId.Type, Location, Long)] = Seq(
+        (DeviceId("123"), MockModels.location(lat = 0.1, lon = 0.2, accuracy = 0.3), 100L),
+        (DeviceId("123"), MockModels.location(lat = 0.2, lon = 0.3, accuracy = 0.4), 200L),
+        (DeviceId("456"), MockModels.location(lat = 0.3, lon = 0.4, accuracy = 0.4), 250L),
+        (DeviceId("123"), MockModels.location(lat = 0.5, lon = 0.6, accuracy = 0.4), 300L),
+        (DeviceId("123"), MockModels.location(lat = 0.7, lon = 0.8, accuracy = 0.4), 400L)
+      )
+    }) { context =>
+      context.locationRepo
+        .getForDeviceInRange(
+          DeviceId("123"),
+          TimeRange(from = Some(200L), to = Some(300L)),
+          after = None,
+          limit = None
+        )
+        .map(_.map(_.metadata.endTimestamp)) must beEqualTo(Seq(200L, 300L)).await
+    }
+
+    "page through locations by device with a cursor" >> in(new StoredLocationContext {
+      override lazy val locations: Seq[(DeviceId.Type, Location, Long)] = Seq(
+        (DeviceId("123"), MockModels.location(lat = 0.1, lon = 0.2, accuracy = 0.3), 100L),
+        (DeviceId("123"), MockModels.location(lat = 0.2, lon = 0.3, accuracy = 0.4), 100L),
+        (DeviceId("123"), MockModels.location(lat = 0.5, lon = 0.6, accuracy = 0.4), 300L)
+      )
+    }) { context =>
+      {
+        for {
+          firstPage <- context.locationRepo
+            .getForDeviceInRange(DeviceId("123"), TimeRange.All, after = None, limit = Some(1))
+          secondPage <- context.locationRepo.getForDeviceInRange(
+            DeviceId("123"),
+            TimeRange.All,
+            after = firstPage.lastOption.map(LocationCursor.after),
+            limit = Some(1)
+          )
+          thirdPage <- context.locationRepo.getForDeviceInRange(
+            DeviceId("123"),
+            TimeRange.All,
+            after = secondPage.lastOption.map(LocationCursor.after),
+            limit = Some(5)
+          )
+        } yield {
+          firstPage.map(_.id) must beEqualTo(Seq(1L))
+          secondPage.map(_.id) must beEqualTo(Seq(2L))
+          thirdPage.map(_.id) must beEqualTo(Seq(3L))
+        }
+      }.await
+    }
+
+    "get and page through locations stored out of order" >> in(new StoredLocationContext {
+      override lazy val locations: Seq[(DeviceId.Type, Location, Long)] = Seq(
+        (DeviceId("123"), MockModels.location(lat = 0.1, lon = 0.2, accuracy = 0.3), 10L),
+        (DeviceId("123"), MockModels.location(lat = 0.2, lon = 0.3, accuracy = 0.4), 20L),
+        (DeviceId("123"), MockModels.location(lat = 0.3, lon = 0.4, accuracy = 0.4), 5L),
+        (DeviceId("123"), MockModels.location(lat = 0.5, lon = 0.6, accuracy = 0.4), 30L)
+      )
+    }) { context =>
+      def page(after: Option[LocationCursor]): Future[Seq[StoredLocation]] =
+        context.locationRepo
+          .getForDeviceInRange(DeviceId("123"), TimeRange.All, after = after, limit = Some(1))
+
+      def pageAll(after: Option[LocationCursor]): Future[Seq[StoredLocation]] =
+        page(after).flatMap { locations =>
+          if (locations.isEmpty) Future.successful(locations)
+          else pageAll(locations.lastOption.map(LocationCursor.after)).map(locations ++ _)
+        }
+
+      {
+        for {
+          inRange <- context.locationRepo.getForDeviceInRange(
+            DeviceId("123"),
+            TimeRange(from = Some(15L), to = Some(25L)),
+            after = None,
+            limit = None
+          )
+          paged <- pageAll(None)
+          all <- context.locationRepo.getForDevice(DeviceId("123"), limit = None)
+        } yield {
+          inRange.map(_.metadata.endTimestamp) must beEqualTo(Seq(20L))
+          paged.map(_.metadata.endTimestamp) must beEqualTo(Seq(5L, 10L, 20L, 30L))
+          all.map(_.id) must beEqualTo(Seq(3L, 1L, 2L, 4L))
+        }
+      }.await
+    }
+
+    "stream locations by device in chunks" >> in(new StoredLocationContext {
+      override lazy val locations: Seq[(DeviceId.Type, Location, Long)] = Seq(
+        (DeviceId("123"), MockModels.location(lat = 0.1, lon = 0.2, accuracy = 0.3), 100L),
+        (DeviceId("123"), MockModels.location(lat = 0.2, lon = 0.3, accuracy = 0.4), 200L),
+        (DeviceId("456"), MockModels.location(lat = 0.3, lon = 0.4, accuracy = 0.4), 250L),
+        (DeviceId("123"), MockModels.location(lat = 0.5, lon = 0.6, accuracy = 0.4), 300L),
+        (DeviceId("123"), MockModels.location(lat = 0.7, lon = 0.8, accuracy = 0.4), 400L)
+      )
+    }) { context =>
+      val chunks = Vector.newBuilder[Vector[Long]]
+
+      context.locationRepo.streamForDeviceInRange(
+        DeviceId("123"),
+        TimeRange(from = Some(200L), to = None),
+        chunkSize = 2
+      )(chunk => chunks += chunk.map(_.metadata.endTimestamp): Unit) must beEqualTo(()).await
+
+      chunks.result() must beEqualTo(Vector(Vector(200L, 300L), Vector(400L)))
+    }
+
+    "get locations within a bounding box" >> in(new StoredLocationContext {
+      override lazy val locations: Seq[(DeviceId.Type, Location, Long)] = Seq(
+        (DeviceId("123"), MockModels.location(lat = 51.5, lon = -0.1), 100L),
+        (DeviceId("456"), MockModels.location(lat = 51.6, lon = 0.1), 150L),
+        (DeviceId("123"), MockModels.location(lat = 48.9, lon = 2.3), 200L),
+        (DeviceId("123"), MockModels.location(lat = 51.4, lon = 0.0), 300L),
+        (DeviceId("789"), MockModels.location(lat = -17.7, lon = 178.0), 400L),
+        (DeviceId("789"), MockModels.location(lat = -14.3, lon = -170.7), 500L)
+      )
+    }) { context =>
+      val london = BoundingBox(minLat = 51.0, minLon = -1.0, maxLat = 52.0, maxLon = 1.0)
+      val pacific = BoundingBox(minLat = -20.0, minLon = 170.0, maxLat = -10.0, maxLon = -170.0)
+
+      def endTimestamps(
+          bounds: BoundingBox,
+          range: TimeRange = TimeRange.All,
+          devices: Option[Seq[DeviceId.Type]] = None,
+          after: Option[LocationCursor] = None,
+          limit: Option[Int] = None
+      ): Future[Vector[(DeviceId.Type, Long)]] = context.locationRepo
+        .getInBounds(bounds, range, devices, after, limit)
+        .map(_.map { case (deviceId, location) => deviceId -> location.metadata.endTimestamp })
+
+      {
+        for {
+          all <- endTimestamps(london)
+          inRange <- endTimestamps(london, range = TimeRange(from = Some(150L), to = None))
+          forDevice <- endTimestamps(london, devices = Some(Seq(DeviceId("123"))))
+          firstPage <- endTimestamps(london, limit = Some(2))
+          secondPage <- endTimestamps(
+            london,
+            after = Some(LocationCursor(endTimestamp = 150L, id = 2L)),
+            limit = Some(2)
+          )
+          acrossAntimeridian <- endTimestamps(pacific)
+        } yield {
+          all must beEqualTo(
+            Seq(DeviceId("123") -> 100L, DeviceId("456") -> 150L, DeviceId("123") -> 300L)
+          )
+          inRange must beEqualTo(Seq(DeviceId("456") -> 150L, DeviceId("123") -> 300L))
+          forDevice must beEqualTo(Seq(DeviceId("123") -> 100L, DeviceId("123") -> 300L))
+          firstPage must beEqualTo(Seq(DeviceId("123") -> 100L, DeviceId("456") -> 150L))
+          secondPage must beEqualTo(Seq(DeviceId("123") -> 300L))
+          acrossAntimeridian must beEqualTo(Seq(DeviceId("789") -> 400L, DeviceId("789") -> 500L))
+        }
+      }.await
+    }
+
+    "get locations within a bounding box from a large history" >> in(new Context {}) { context =>
+      val deviceId = DeviceId("123")
+      // A 40x40 grid of locations, 0.1 degrees apart
+      val grid = (0 until 1600).map { i =>
+        (MockModels.location(lat = (i / 40) * 0.1, lon = (i % 40) * 0.1), i.toLong)
+      }
+      val bounds = BoundingBox(minLat = 1.05, minLon = 2.05, maxLat = 1.35, maxLon = 2.25)
+      val notDuplicate: CheckDuplicateLocationFunc = (_, _, _) => false
+
+      {
+        for {
+          _ <- context.locationRepo.appendOrMerge(deviceId, grid, notDuplicate)
+          found <- context.locationRepo.getInBounds(bounds, TimeRange.All, None, None, None)
+          // Appended after the first search, then an earlier location moved into the bounds
+          _ <- context.locationRepo.appendOrMerge(
+            deviceId,
+            Seq((MockModels.location(lat = 1.2, lon = 2.2), 2000L)),
+            notDuplicate
+          )
+          _ <- context.locationRepo.update(
+            deviceId,
+            found.head._2.id - 1,
+            l => l.copy(location = l.location.copy(lat = 1.3, lon = 2.1))
+          )
+          updated <- context.locationRepo.getInBounds(bounds, TimeRange.All, None, None, None)
+        } yield {
+          found.map(_._2.metadata.endTimestamp) must beEqualTo(
+            Seq(461L, 462L, 501L, 502L, 541L, 542L)
+          )
+          updated.map(_._2.metadata.endTimestamp) must beEqualTo(
+            Seq(460L, 461L, 462L, 501L, 502L, 541L, 542L, 2000L)
+          )
+        }
+      }.await
+    }
+
+    "get tiles" >> in(new Context {}) { context =>
+      val london = MockModels.location(lat = 51.5, lon = -0.1)
+      val paris = MockModels.location(lat = 48.9, lon = 2.3)
+      val sameCoordinates: CheckDuplicateLocationFunc = (location, _, previous) =>
+        location.lat == previous.location.lat && location.lon == previous.location.lon
+      val aroundParis = BoundingBox(minLat = 48.5, minLon = 2.0, maxLat = 49.2, maxLon = 2.5)
+
+      def tiles(
+          zoom: Int,
+          bounds: Option[BoundingBox] = None,
+          devices: Option[Seq[DeviceId.Type]] = None
+      ): Future[Vector[(Tile, TileAggregate)]] =
+        context.locationRepo.getTiles(zoom, bounds, devices)
+
+      {
+        for {
+          stored <- context.locationRepo.appendOrMerge(
+            DeviceId("123"),
+            Seq((london, 100L), (london, 160L), (paris, 200L)),
+            sameCoordinates
+          )
+          _ <- context.locationRepo.appendOrMerge(
+            DeviceId("456"),
+            Seq((MockModels.location(lat = 51.6, lon = 0.1), 300L)),
+            sameCoordinates
+          )
+          world <- tiles(zoom = 0)
+          all <- tiles(zoom = 4)
+          inBounds <- tiles(zoom = 4, bounds = Some(aroundParis))
+          forDevice <- tiles(zoom = 4, devices = Some(Seq(DeviceId("123"))))
+          _ <- context.locationRepo.deleteForDevice(DeviceId("456"))
+          // Moving a location moves its aggregates to its new tile
+          _ <- context.locationRepo.update(
+            DeviceId("123"),
+            stored.get.last.id,
+            l => l.copy(location = london)
+          )
+          updated <- tiles(zoom = 4)
+        } yield {
+          world must beEqualTo(Seq(Tile(0, 0, 0) -> TileAggregate(3L, 4L, 60L)))
+          all must beEqualTo(
+            Seq(
+              Tile(4, 7, 12) -> TileAggregate(1L, 2L, 60L),
+              Tile(4, 8, 12) -> TileAggregate(2L, 2L, 0L)
+            )
+          )
+          inBounds must beEqualTo(Seq(Tile(4, 8, 12) -> TileAggregate(2L, 2L, 0L)))
+          forDevice must beEqualTo(
+            Seq(
+              Tile(4, 7, 12) -> TileAggregate(1L, 2L, 60L),
+              Tile(4, 8, 12) -> TileAggregate(1L, 1L, 0L)
+            )
+          )
+          updated must beEqualTo(Seq(Tile(4, 7, 12) -> TileAggregate(2L, 3L, 60L)))
+        }
+      }.await
+    }
+
+    "merge into a location's tiles without moving it" >> in(new Context {}) { context =>
+      val alwaysDuplicate: CheckDuplicateLocationFunc = (_, _, _) => true
+
+      {
+        for {
+          _ <- context.locationRepo.appendOrMerge(
+            DeviceId("123"),
+            Seq((MockModels.location(lat = 51.5, lon = -0.1), 100L)),
+            alwaysDuplicate
+          )
+          _ <- context.locationRepo.appendOrMerge(
+            DeviceId("123"),
+            Seq((MockModels.location(lat = 51.50001, lon = -0.1), 160L)),
+            alwaysDuplicate
+          )
+          all <- context.locationRepo.getTiles(zoom = 4, bounds = None, devices = None)
+          finest <- context.locationRepo.getTiles(Tile.MaxZoom, bounds = None, devices = None)
+        } yield {
+          all must beEqualTo(Seq(Tile(4, 7, 12) -> TileAggregate(1L, 2L, 60L)))
+          finest.map(_._2) must beEqualTo(Seq(TileAggregate(1L, 2L, 60L)))
+        }
+      }.await
+    }
+
     "get empty locations by device" >> in(new StoredLocationContext {}) { context =>
       context.locationRepo
         .getForDevice(DeviceId("non-existing"), limit = None) must beEmpty[
@@ -131,6 +474,128 @@ abstract class LocationRepoTest(implicit ee: ExecutionEnv)
         .getForDevice(DeviceId("456"), limit = None) must beEmpty[Seq[StoredLocation]].await
     }
 
+    "delete locations by id" >> in(new StoredLocationContext {
+      override lazy val locations: Seq[(DeviceId.Type, Location, Long)] = Seq(
+        (DeviceId("123"), MockModels.location(lat = 0.1, lon = 0.2, accuracy = 0.3), 100L),
+        (DeviceId("123"), MockModels.location(lat = 0.2, lon = 0.3, accuracy = 0.3), 200L),
+        (DeviceId("123"), MockModels.location(lat = 0.3, lon = 0.4, accuracy = 0.3), 300L),
+        (DeviceId("123"), MockModels.location(lat = 0.4, lon = 0.5, accuracy = 0.3), 400L),
+        (DeviceId("456"), MockModels.location(lat = 0.5, lon = 0.6, accuracy = 0.3), 150L)
+      )
+    }) { context =>
+      {
+        for {
+          deleted <- context.locationRepo.deleteLocations(DeviceId("123"), Seq(2L, 4L, 5L, 99L))
+          locations <- context.locationRepo.getForDevice(DeviceId("123"), limit = None)
+          otherLocations <- context.locationRepo.getForDevice(DeviceId("456"), limit = None)
+          last <- context.locationRepo.getDevicesLastLocationMap(Seq(DeviceId("123")))
+        } yield {
+          deleted must beSuccessfulTry(2)
+          locations.map(_.id) must beEqualTo(Seq(1L, 3L))
+          otherLocations.map(_.id) must beEqualTo(Seq(5L))
+          last(DeviceId("123")).map(_.id) must beSome(3L)
+        }
+      }.await
+    }
+
+    "delete locations that ended before a timestamp" >> in(new StoredLocationContext {
+      override lazy val locations: Seq[(DeviceId.Type, Location, Long)] = Seq(
+        (DeviceId("123"), MockModels.location(lat = 0.1, lon = 0.2, accuracy = 0.3), 100L),
+        (DeviceId("123"), MockModels.location(lat = 0.2, lon = 0.3, accuracy = 0.3), 200L),
+        (DeviceId("123"), MockModels.location(lat = 0.3, lon = 0.4, accuracy = 0.3), 300L),
+        (DeviceId("456"), MockModels.location(lat = 0.4, lon = 0.5, accuracy = 0.3), 150L)
+      )
+    }) { context =>
+      val devices = Seq(DeviceId("123"), DeviceId("456"))
+
+      {
+        for {
+          _ <- context.locationRepo.getDevicesLastLocationMap(devices)
+          deleted <- context.locationRepo.deleteBefore(250L, batchSize = 1)
+          locations <- context.locationRepo.getForDevice(DeviceId("123"), limit = None)
+          otherLocations <- context.locationRepo.getForDevice(DeviceId("456"), limit = None)
+          last <- context.locationRepo.getDevicesLastLocationMap(devices)
+        } yield {
+          deleted must beSuccessfulTry(3L)
+          locations.map(_.metadata.endTimestamp) must beEqualTo(Seq(300L))
+          otherLocations must beEmpty
+          last(DeviceId("123")).map(_.id) must beSome(3L)
+          last(DeviceId("456")) must beNone
+        }
+      }.await
+    }
+
+    "delete locations that ended before a timestamp stored out of order" >> in(
+      new StoredLocationContext {
+        override lazy val locations: Seq[(DeviceId.Type, Location, Long)] = Seq(
+          (DeviceId("123"), MockModels.location(lat = 0.1, lon = 0.2, accuracy = 0.3), 10L),
+          (DeviceId("123"), MockModels.location(lat = 0.2, lon = 0.3, accuracy = 0.3), 20L),
+          (DeviceId("123"), MockModels.location(lat = 0.3, lon = 0.4, accuracy = 0.3), 5L),
+          (DeviceId("123"), MockModels.location(lat = 0.4, lon = 0.5, accuracy = 0.3), 30L)
+        )
+      }
+    ) { context =>
+      {
+        for {
+          deleted <- context.locationRepo.deleteBefore(15L, batchSize = 1)
+          locations <- context.locationRepo.getForDevice(DeviceId("123"), limit = None)
+        } yield {
+          deleted must beSuccessfulTry(2L)
+          locations.map(_.metadata.endTimestamp) must beEqualTo(Seq(20L, 30L))
+        }
+      }.await
+    }
+
+    "get the last location of each device" >> in(new StoredLocationContext {
+      override lazy val locations: Seq[(DeviceId.Type, Location, Long)] = Seq(
+        (DeviceId("123"), MockModels.location(lat = 0.1, lon = 0.2, accuracy = 0.3), 100L),
+        (DeviceId("123"), MockModels.location(lat = 0.2, lon = 0.3, accuracy = 0.3), 200L),
+        (DeviceId("456"), MockModels.location(lat = 0.3, lon = 0.4, accuracy = 0.3), 100L)
+      )
+    }) { context =>
+      val devices = Seq(DeviceId("123"), DeviceId("456"), DeviceId("789"))
+
+      {
+        for {
+          initial <- context.locationRepo.getDevicesLastLocationMap(devices)
+          _ <- context.locationRepo.update(
+            DeviceId("123"),
+            2L,
+            sl => sl.copy(metadata = sl.metadata.copy(count = 5))
+          )
+          _ <- context.locationRepo.deleteForDevice(DeviceId("456"))
+          updated <- context.locationRepo.getDevicesLastLocationMap(devices)
+        } yield {
+          val last = MockModels.storedLocation(
+            2L,
+            context.locations(1)._2,
+            StoredLocation.Metadata.initial(200L)
+          )
+
+          initial must beEqualTo(
+            Map(
+              DeviceId("123") -> Some(last),
+              DeviceId("456") -> Some(
+                MockModels.storedLocation(
+                  3L,
+                  context.locations(2)._2,
+                  StoredLocation.Metadata.initial(100L)
+                )
+              ),
+              DeviceId("789") -> None
+            )
+          )
+          updated must beEqualTo(
+            Map(
+              DeviceId("123") -> Some(last.copy(metadata = last.metadata.copy(count = 5))),
+              DeviceId("456") -> None,
+              DeviceId("789") -> None
+            )
+          )
+        }
+      }.await
+    }
+
     "update a location" >> in(new StoredLocationContext {
       override lazy val locations: Seq[(DeviceId.Type, Location, Long)] = Seq(
         (DeviceId("123"), MockModels.location(lat = 0.1, lon = 0.2, accuracy = 0.3), 123L),
@@ -1,24 +1,329 @@
 package com.jackpf.locationhistory.server.repo
 
 import com.jackpf.locationhistory.server.db.DataSourceFactory
-import com.jackpf.locationhistory.server.model.StorageType
+import com.jackpf.locationhistory.server.model.StoredLocation.Metadata
+import com.jackpf.locationhistory.server.model.{DeviceId, StorageType, StoredLocation, TimeRange}
+import com.jackpf.locationhistory.server.testutil.MockModels
+import com.jackpf.locationhistory.server.util.MetadataCodec
 import org.specs2.concurrent.ExecutionEnv
 
+import java.time.Instant
 import java.util.UUID
+import scala.concurrent.Future
+import scala.util.Success
 
 class SQLiteLocationRepoTest(implicit ee: ExecutionEnv) extends LocationRepoTest {
+  private def newDataSourceFactory(dbName: String): DataSourceFactory =
+    new DataSourceFactory(System.getProperty("java.io.tmpdir"), dbName)
+
   override def createLocationRepo: LocationRepo = {
     new SQLiteLocationRepo(
       // TODO Fixme - in memory doesn't work properly
 //      new DataSourceFactory(null, null)
 //        .create(StorageType.SQLITE_IN_MEMORY)
 //        .get
-      new DataSourceFactory(
-        System.getProperty("java.io.tmpdir"),
-        s"tests_${UUID.randomUUID().toString}.db"
-      )
+      newDataSourceFactory(s"tests_${UUID.randomUUID().toString}.db")
         .create(StorageType.SQLITE)
         .get
     )
   }
+
+  "SQLite location repo" should {
+    "seed the last location cache from an existing database" >> {
+      val dbName = s"tests_${UUID.randomUUID().toString}.db"
+      val deviceId = DeviceId("123")
+      val location = MockModels.location()
+
+      def openRepo(): SQLiteLocationRepo =
+        new SQLiteLocationRepo(newDataSourceFactory(dbName).create(StorageType.SQLITE).get)
+
+      {
+        val repo = openRepo()
+        for {
+          _ <- repo.init()
+          _ <- repo.storeDeviceLocation(deviceId, location, StoredLocation.Metadata.initial(1L))
+          reopened = openRepo()
+          _ <- reopened.init()
+          lastLocations <- reopened.getDevicesLastLocationMap(Seq(deviceId))
+          // The seeded location is merged with rather than appended to
+          _ <- reopened.appendOrMerge(deviceId, Seq((location, 2L)), (_, _, _) => true)
+          locations <- reopened.getForDevice(deviceId, limit = None)
+        } yield {
+          lastLocations must beEqualTo(
+            Map(
+              deviceId -> Some(
+                MockModels.storedLocation(1L, location, StoredLocation.Metadata.initial(1L))
+              )
+            )
+          )
+          locations must beEqualTo(
+            Seq(
+              MockModels.storedLocation(
+                1L,
+                location,
+                StoredLocation.Metadata(startTimestamp = 1L, endTimestamp = 2L, count = 2L)
+              )
+            )
+          )
+        }
+      }.await
+    }
+  
+    "partition locations by month" >> {
+      val deviceId = DeviceId("123")
+      val location = MockModels.location()
+      def timestamp(date: String): Long = Instant.parse(s"${date}T12:00:00Z").toEpochMilli
+      val january = timestamp("2025-01-15")
+      val february = timestamp("2025-02-15")
+      val march = timestamp("2025-03-15")
+
+      val repo = new SQLiteLocationRepo(
+        newDataSourceFactory(s"tests_${UUID.randomUUID().toString}.db")
+          .create(StorageType.SQLITE)
+          .get
+      )
+
+      {
+        for {
+          _ <- repo.init()
+          _ <- repo.storeDeviceLocation(deviceId, location, Metadata.initial(january))
+          _ <- repo.storeDeviceLocation(deviceId, location, Metadata.initial(february))
+          // Merging moves the location into the next month's partition
+          _ <- repo.appendOrMerge(deviceId, Seq((location, march)), (_, _, _) => true)
+          limited <- repo.getForDevice(deviceId, limit = Some(1))
+          inRange <- repo.getForDeviceInRange(
+            deviceId,
+            TimeRange(from = Some(january), to = Some(timestamp("2025-02-28"))),
+            after = None,
+            limit = None
+          )
+          dropped <- repo.dropPartitionsBefore(timestamp("2025-03-01"))
+          remaining <- repo.getForDevice(deviceId, limit = None)
+          lastLocations <- repo.getDevicesLastLocationMap(Seq(deviceId))
+        } yield {
+          limited.map(l => (l.id, l.metadata.endTimestamp)) must beEqualTo(Seq((2L, march)))
+          inRange.map(_.id) must beEqualTo(Seq(1L))
+          dropped must beEqualTo(Success(2))
+          remaining.map(l => (l.id, l.metadata)) must beEqualTo(
+            Seq((2L, Metadata(february, march, 2L)))
+          )
+          lastLocations(deviceId).map(_.id) must beSome(2L)
+        }
+      }.await
+    }
+
+    "see partitions created through another connection" >> {
+      val dbName = s"tests_${UUID.randomUUID().toString}.db"
+      val deviceId = DeviceId("123")
+      val location = MockModels.location()
+      def timestamp(date: String): Long = Instant.parse(s"${date}T12:00:00Z").toEpochMilli
+      val january = timestamp("2025-01-15")
+      val february = timestamp("2025-02-15")
+
+      def openRepo(): SQLiteLocationRepo =
+        new SQLiteLocationRepo(newDataSourceFactory(dbName).create(StorageType.SQLITE).get)
+
+      {
+        val repo = openRepo()
+        val other = openRepo()
+        for {
+          _ <- repo.init()
+          _ <- other.init()
+          // Each repo's partitions are recorded before the other creates any
+          _ <- repo.storeDeviceLocation(deviceId, location, Metadata.initial(january))
+          read <- other.getForDevice(deviceId, limit = None)
+          _ <- other.storeDeviceLocation(deviceId, location, Metadata.initial(february))
+          readBack <- repo.getForDevice(deviceId, limit = None)
+        } yield {
+          read.map(_.metadata.endTimestamp) must beEqualTo(Seq(january))
+          readBack.map(_.metadata.endTimestamp) must beEqualTo(Seq(january, february))
+        }
+      }.await
+    }
+
+    "migrate an unpartitioned database" >> {
+      val dbName = s"tests_${UUID.randomUUID().toString}.db"
+      val deviceId = DeviceId("123")
+      val database = newDataSourceFactory(dbName).create(StorageType.SQLITE).get
+
+      database.writer.transaction { implicit db =>
+        val _ = db.updateRaw(
+          """CREATE TABLE stored_location_table (
+            id INTEGER PRIMARY KEY, device_id TEXT, lat DOUBLE, lon DOUBLE, accuracy DOUBLE,
+            start_timestamp UNSIGNED BIG INT, end_timestamp UNSIGNED BIG INT,
+            count UNSIGNED BIG INT, metadata TEXT
+          )"""
+        )
+        Seq(1L, 2678400000L, 2678400001L).foreach { timestamp =>
+          val _ = db.updateRaw(
+            """INSERT INTO stored_location_table
+              (device_id, lat, lon, accuracy, start_timestamp, end_timestamp, count, metadata)
+              VALUES (?, 0.1, 0.2, 0.3, ?, ?, 1, '{}')""",
+            Seq(deviceId.toString, timestamp, timestamp)
+          )
+        }
+      }
+
+      val repo = new SQLiteLocationRepo(database)
+
+      {
+        for {
+          _ <- repo.init()
+          _ <- repo.storeDeviceLocation(
+            deviceId,
+            MockModels.location(),
+            StoredLocation.Metadata.initial(2678400002L)
+          )
+          locations <- repo.getForDevice(deviceId, limit = None)
+        } yield {
+          locations.map(l => (l.id, l.metadata.endTimestamp)) must beEqualTo(
+            Seq((1L, 1L), (2L, 2678400000L), (3L, 2678400001L), (4L, 2678400002L))
+          )
+        }
+      }.await
+    }
+
+    "migrate JSON metadata to binary" >> {
+      val dbName = s"tests_${UUID.randomUUID().toString}.db"
+      val deviceId = DeviceId("123")
+      val database = newDataSourceFactory(dbName).create(StorageType.SQLITE).get
+
+      database.writer.transaction { implicit db =>
+        val _ = db.updateRaw(
+          """CREATE TABLE stored_location_197001 (
+            id INTEGER PRIMARY KEY, device_id TEXT, lat DOUBLE, lon DOUBLE, accuracy DOUBLE,
+            start_timestamp UNSIGNED BIG INT, end_timestamp UNSIGNED BIG INT,
+            count UNSIGNED BIG INT, metadata TEXT
+          )"""
+        )
+        Seq(1L -> """{"city":"London"}""", 2L -> "{}").foreach { case (timestamp, metadata) =>
+          val _ = db.updateRaw(
+            """INSERT INTO stored_location_197001
+              (device_id, lat, lon, accuracy, start_timestamp, end_timestamp, count, metadata)
+              VALUES (?, 0.1, 0.2, 0.3, ?, ?, 1, ?)""",
+            Seq(deviceId.toString, timestamp, timestamp, metadata)
+          )
+        }
+      }
+
+      val repo = new SQLiteLocationRepo(database)
+
+      {
+        for {
+          _ <- repo.init()
+          locations <- repo.getForDevice(deviceId, limit = None)
+        } yield {
+          locations.map(_.location.metadata) must beEqualTo(Seq(Map("city" -> "London"), Map()))
+          database.reader.transaction { implicit db =>
+            db.runRaw[String]("SELECT typeof(metadata) FROM stored_location_197001")
+          } must beEqualTo(Seq("blob", "blob"))
+        }
+      }.await
+    }
+
+    "store each distinct metadata entry once" >> {
+      val database = newDataSourceFactory(s"tests_${UUID.randomUUID().toString}.db")
+        .create(StorageType.SQLITE)
+        .get
+      val repo = new SQLiteLocationRepo(database)
+      val deviceId = DeviceId("123")
+      val london = Map("country" -> "UK", "city" -> "London")
+      val paris = Map("country" -> "France", "city" -> "Paris")
+
+      {
+        for {
+          _ <- repo.init()
+          _ <- Future.sequence((1L to 10L).map { ts =>
+            repo.storeDeviceLocation(
+              deviceId,
+              MockModels.location(metadata = if (ts == 10L) paris else london),
+              StoredLocation.Metadata.initial(ts)
+            )
+          })
+          locations <- repo.getForDevice(deviceId, limit = None)
+        } yield {
+          locations.map(_.location.metadata) must beEqualTo(Seq.fill(9)(london) :+ paris)
+          database.reader.transaction { implicit db =>
+            db.runRaw[Long]("SELECT COUNT(*) FROM metadata_entry")
+          } must beEqualTo(Seq(4L))
+        }
+      }.await
+    }
+
+    "store each enriched place once" >> {
+      val database = newDataSourceFactory(s"tests_${UUID.randomUUID().toString}.db")
+        .create(StorageType.SQLITE)
+        .get
+      val repo = new SQLiteLocationRepo(database)
+      val deviceId = DeviceId("123")
+      val place = Map(
+        "osmType" -> "way",
+        "osmId" -> "987654321",
+        "name" -> "Home",
+        "tag:building" -> "yes"
+      )
+
+      {
+        for {
+          _ <- repo.init()
+          _ <- Future.sequence((1L to 10L).map { ts =>
+            repo.storeDeviceLocation(
+              deviceId,
+              MockModels.location(metadata = place + ("battery" -> ts.toString)),
+              StoredLocation.Metadata.initial(ts)
+            )
+          })
+          locations <- repo.getForDevice(deviceId, limit = None)
+        } yield {
+          locations.map(_.location.metadata) must beEqualTo(
+            (1L to 10L).map(ts => place + ("battery" -> ts.toString))
+          )
+          database.reader.transaction { implicit db =>
+            db.runRaw[Long]("SELECT COUNT(*) FROM place")
+          } must beEqualTo(Seq(1L))
+          database.reader.transaction { implicit db =>
+            db.runRaw[Long]("SELECT COUNT(*) FROM metadata_entry")
+          } must beEqualTo(Seq(10L))
+        }
+      }.await
+    }
+
+    "migrate binary metadata to the dictionary" >> {
+      val dbName = s"tests_${UUID.randomUUID().toString}.db"
+      val deviceId = DeviceId("123")
+      val database = newDataSourceFactory(dbName).create(StorageType.SQLITE).get
+      val metadata = Map("city" -> "London")
+
+      database.writer.transaction { implicit db =>
+        val _ = db.updateRaw(
+          """CREATE TABLE stored_location_197001 (
+            id INTEGER PRIMARY KEY, device_id TEXT, lat DOUBLE, lon DOUBLE, accuracy DOUBLE,
+            start_timestamp UNSIGNED BIG INT, end_timestamp UNSIGNED BIG INT,
+            count UNSIGNED BIG INT, metadata BLOB
+          )"""
+        )
+        val _ = db.updateRaw(
+          """INSERT INTO stored_location_197001
+            (device_id, lat, lon, accuracy, start_timestamp, end_timestamp, count, metadata)
+            VALUES (?, 0.1, 0.2, 0.3, 1, 1, 1, ?)""",
+          Seq(deviceId.toString, MetadataCodec.encode(metadata))
+        )
+        val _ = db.updateRaw("PRAGMA user_version = 1")
+      }
+
+      val repo = new SQLiteLocationRepo(database)
+
+      {
+        for {
+          _ <- repo.init()
+          locations <- repo.getForDevice(deviceId, limit = None)
+        } yield {
+          locations.map(_.location.metadata) must beEqualTo(Seq(metadata))
+          database.reader.transaction { implicit db =>
+            db.runRaw[Long]("SELECT COUNT(*) FROM metadata_entry")
+          } must beEqualTo(Seq(1L))
+        }
+      }.await
+    }
+  }
 }
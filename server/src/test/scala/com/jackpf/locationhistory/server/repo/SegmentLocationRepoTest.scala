@@ -0,0 +1,212 @@
+package com.jackpf.locationhistory.server.repo
+
+import com.jackpf.locationhistory.server.model.{DeviceId, StoredLocation, TimeRange}
+import com.jackpf.locationhistory.server.testutil.MockModels
+import org.specs2.concurrent.ExecutionEnv
+
+import java.nio.file.{Files, Path}
+import scala.concurrent.Future
+import scala.jdk.CollectionConverters.*
+import scala.util.{Success, Try, Using}
+
+class SegmentLocationRepoTest(implicit ee: ExecutionEnv) extends LocationRepoTest {
+  // Small segments, so histories span several
+  private val recordsPerSegment: Int = 3
+
+  private def segmentFile(number: Int): String = f"${number}%012d.segment"
+
+  override def createLocationRepo: LocationRepo =
+    new SegmentLocationRepo(Files.createTempDirectory("segments"), recordsPerSegment)
+
+  "Segment location repo" should {
+    "recover locations from segment files" >> {
+      val directory: Path = Files.createTempDirectory("segments")
+      val deviceId = DeviceId("123")
+      val otherDeviceId = DeviceId("456")
+
+      def openRepo(): SegmentLocationRepo = new SegmentLocationRepo(directory, recordsPerSegment)
+
+      {
+        val repo = openRepo()
+        for {
+          _ <- repo.init()
+          _ <- Future.sequence((1L to 10L).map { ts =>
+            repo.storeDeviceLocation(
+              deviceId,
+              MockModels.location(metadata = Map("ts" -> (ts % 2).toString)),
+              StoredLocation.Metadata.initial(ts)
+            )
+          })
+          _ <- repo.storeDeviceLocation(
+            otherDeviceId,
+            MockModels.location(),
+            StoredLocation.Metadata.initial(1L)
+          )
+          _ <- repo.update(deviceId, 5L, sl => sl.copy(metadata = sl.metadata.copy(count = 3)))
+          _ <- repo.deleteForDevice(otherDeviceId)
+          _ = repo.close()
+          reopened = openRepo()
+          _ <- reopened.init()
+          _ <- reopened.storeDeviceLocation(
+            deviceId,
+            MockModels.location(),
+            StoredLocation.Metadata.initial(11L)
+          )
+          locations <- reopened.getForDevice(deviceId, limit = None)
+          inRange <- reopened.getForDeviceInRange(
+            deviceId,
+            TimeRange(from = Some(4L), to = Some(7L)),
+            after = None,
+            limit = None
+          )
+          otherLocations <- reopened.getForDevice(otherDeviceId, limit = None)
+        } yield {
+          locations.map(_.metadata.endTimestamp) must beEqualTo(1L to 11L)
+          locations.take(10).map(_.id) must beEqualTo(1L to 10L)
+          locations.take(10).map(_.location.metadata("ts")) must beEqualTo(
+            (1L to 10L).map(ts => (ts % 2).toString)
+          )
+          locations(4).metadata.count must beEqualTo(3L)
+          inRange.map(_.metadata.endTimestamp) must beEqualTo(Seq(4L, 5L, 6L, 7L))
+          otherLocations must beEmpty
+        }
+      }.await
+    }
+
+    "recover late locations at their position from segment files" >> {
+      val directory: Path = Files.createTempDirectory("segments")
+      val deviceId = DeviceId("123")
+
+      def openRepo(): SegmentLocationRepo = new SegmentLocationRepo(directory, recordsPerSegment)
+
+      def storeLocation(repo: LocationRepo, ts: Long): Future[Try[Unit]] =
+        repo.storeDeviceLocation(
+          deviceId,
+          MockModels.location(),
+          StoredLocation.Metadata.initial(ts)
+        )
+
+      {
+        val repo = openRepo()
+        for {
+          _ <- repo.init()
+          _ <- Future.sequence(Seq(10L, 20L, 30L, 40L, 50L, 5L, 25L).map(storeLocation(repo, _)))
+          _ = repo.close()
+          reopened = openRepo()
+          _ <- reopened.init()
+          updated <- reopened.update(
+            deviceId,
+            7L,
+            sl => sl.copy(metadata = sl.metadata.copy(count = 3))
+          )
+          _ <- storeLocation(reopened, 60L)
+          locations <- reopened.getForDevice(deviceId, limit = None)
+          inRange <- reopened.getForDeviceInRange(
+            deviceId,
+            TimeRange(from = Some(20L), to = Some(30L)),
+            after = None,
+            limit = None
+          )
+        } yield {
+          updated must beSuccessfulTry
+          locations.map(_.id) must beEqualTo(Seq(6L, 1L, 2L, 7L, 3L, 4L, 5L, 8L))
+          locations(3).metadata.count must beEqualTo(3L)
+          inRange.map(_.metadata.endTimestamp) must beEqualTo(Seq(20L, 25L, 30L))
+        }
+      }.await
+    }
+
+    "ignore an empty segment left by a crash before its first write" >> {
+      val directory: Path = Files.createTempDirectory("segments")
+      val deviceId = DeviceId("123")
+
+      def openRepo(): SegmentLocationRepo = new SegmentLocationRepo(directory, recordsPerSegment)
+
+      def storeLocation(repo: LocationRepo, ts: Long): Future[Try[Unit]] =
+        repo.storeDeviceLocation(
+          deviceId,
+          MockModels.location(),
+          StoredLocation.Metadata.initial(ts)
+        )
+
+      {
+        val repo = openRepo()
+        for {
+          _ <- repo.init()
+          _ <- Future.sequence((1L to 6L).map(storeLocation(repo, _)))
+          _ = repo.close()
+          _ = Using.resource(Files.list(directory.resolve("devices"))) {
+            _.iterator.asScala.foreach(device => Files.createFile(device.resolve(segmentFile(2))))
+          }
+          reopened = openRepo()
+          _ <- reopened.init()
+          before <- reopened.getForDeviceInRange(
+            deviceId,
+            TimeRange(from = Some(7L), to = None),
+            after = None,
+            limit = None
+          )
+          _ <- storeLocation(reopened, 7L)
+          locations <- reopened.getForDevice(deviceId, limit = None)
+        } yield {
+          before must beEmpty
+          locations.map(_.metadata.endTimestamp) must beEqualTo(1L to 7L)
+        }
+      }.await
+    }
+
+    "expire locations by deleting whole segments and advancing the start" >> {
+      val directory: Path = Files.createTempDirectory("segments")
+      val deviceId = DeviceId("123")
+
+      def openRepo(): SegmentLocationRepo = new SegmentLocationRepo(directory, recordsPerSegment)
+
+      def storeLocation(repo: LocationRepo, ts: Long): Future[Try[Unit]] =
+        repo.storeDeviceLocation(
+          deviceId,
+          MockModels.location(),
+          StoredLocation.Metadata.initial(ts)
+        )
+
+      def segmentFiles(): Seq[String] = Using.resource(Files.list(directory.resolve("devices"))) {
+        _.iterator.asScala.flatMap { device =>
+          Using.resource(Files.list(device))(_.iterator.asScala.map(_.getFileName.toString).toSeq)
+        }.filter(_.endsWith(".segment")).toSeq.sorted
+      }
+
+      {
+        val repo = openRepo()
+        for {
+          _ <- repo.init()
+          _ <- Future.sequence((1L to 10L).map(storeLocation(repo, _)))
+          expired <- repo.deleteBefore(5L, batchSize = 100)
+          afterExpiry = segmentFiles()
+          _ = repo.close()
+          reopened = openRepo()
+          _ <- reopened.init()
+          locations <- reopened.getForDevice(deviceId, limit = None)
+          inRange <- reopened.getForDeviceInRange(
+            deviceId,
+            TimeRange(from = Some(1L), to = Some(6L)),
+            after = None,
+            limit = None
+          )
+          _ <- storeLocation(reopened, 11L)
+          expiredAll <- reopened.deleteBefore(11L, batchSize = 100)
+          _ = reopened.close()
+          reopenedAgain = openRepo()
+          _ <- reopenedAgain.init()
+          remaining <- reopenedAgain.getForDevice(deviceId, limit = None)
+        } yield {
+          expired must beEqualTo(Success(4L))
+          afterExpiry must beEqualTo((1 to 3).map(segmentFile))
+          locations.map(_.id) must beEqualTo(5L to 10L)
+          inRange.map(_.id) must beEqualTo(Seq(5L, 6L))
+          expiredAll must beEqualTo(Success(6L))
+          segmentFiles() must beEqualTo(Seq(segmentFile(3)))
+          remaining.map(_.id) must beEqualTo(Seq(11L))
+        }
+      }.await
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.jackpf.locationhistory.server.retention
+
+import com.jackpf.locationhistory.server.model.{DeviceId, Location, StoredLocation}
+import com.jackpf.locationhistory.server.repo.{
+  DeviceRepo,
+  InMemoryDeviceRepo,
+  InMemoryLocationRepo,
+  LocationRepo
+}
+import com.jackpf.locationhistory.server.retention.RetentionJob.Result
+import com.jackpf.locationhistory.server.retention.RetentionPolicy.Downsampling
+import com.jackpf.locationhistory.server.testutil.{DefaultScope, DefaultSpecification, MockModels}
+import org.specs2.concurrent.ExecutionEnv
+
+import scala.concurrent.duration.*
+import scala.concurrent.{Await, Future}
+
+class RetentionJobTest(implicit ee: ExecutionEnv) extends DefaultSpecification {
+  trait Context extends DefaultScope {
+    val deviceId: DeviceId.Type = DeviceId("123")
+    val now: Long = 100.days.toMillis
+
+    def policy: RetentionPolicy
+
+    /** (location, end timestamp) pairs, in timestamp order */
+    def locations: Seq[(Location, Long)]
+
+    val deviceRepo: DeviceRepo = new InMemoryDeviceRepo
+    val locationRepo: LocationRepo = new InMemoryLocationRepo
+    lazy val job: RetentionJob =
+      new RetentionJob(policy, deviceRepo, locationRepo, intervalSeconds = 60, batchSize = 2)
+
+    Await.result(
+      for {
+        _ <- deviceRepo.register(MockModels.device(id = deviceId))
+        _ <- Future.sequence(locations.map { case (location, ts) =>
+          locationRepo.storeDeviceLocation(deviceId, location, StoredLocation.Metadata.initial(ts))
+        })
+      } yield (),
+      Duration.Inf
+    )
+
+    def remaining: Future[Seq[Long]] =
+      locationRepo.getForDevice(deviceId, limit = None).map(_.map(_.metadata.endTimestamp))
+  }
+
+  "Retention job" should {
+    "expire and downsample locations by time" >> in(new Context {
+      override def policy: RetentionPolicy = RetentionPolicy(
+        downsampling = Some(Downsampling(10.days, interval = Some(30.minutes), None)),
+        maxAge = Some(60.days)
+      )
+
+      def old: Long = 80.days.toMillis
+      def recent: Long = 95.days.toMillis
+
+      override def locations: Seq[(Location, Long)] =
+        (Seq(30.days.toMillis) ++
+          Seq(0, 10, 20, 30, 40, 70).map(old + _.minutes.toMillis) ++
+          Seq(0, 10).map(recent + _.minutes.toMillis)).map(MockModels.location() -> _)
+    }) { context =>
+      {
+        for {
+          first <- context.job.run(context.now)
+          second <- context.job.run(context.now)
+          remaining <- context.remaining
+        } yield {
+          first must beEqualTo(Result(scanned = 6, downsampled = 3, expired = 1))
+          second must beEqualTo(Result(scanned = 0, downsampled = 0, expired = 0))
+          remaining must beEqualTo(
+            Seq(0, 30, 70).map(context.old + _.minutes.toMillis) ++
+              Seq(0, 10).map(context.recent + _.minutes.toMillis)
+          )
+        }
+      }.await
+    }
+
+    "downsample locations by distance" >> in(new Context {
+      override def policy: RetentionPolicy = RetentionPolicy(
+        downsampling = Some(Downsampling(10.days, interval = None, distanceMeters = Some(100.0))),
+        maxAge = None
+      )
+
+      // 0.001 degrees of latitude is around 111m
+      override def locations: Seq[(Location, Long)] =
+        Seq(0.0, 0.0005, 0.001, 0.0015, 0.003).zipWithIndex.map { case (lat, i) =>
+          MockModels.location(lat = lat, lon = 0.0) -> (50.days.toMillis + i)
+        }
+    }) { context =>
+      {
+        for {
+          result <- context.job.run(context.now)
+          remaining <- context.locationRepo.getForDevice(context.deviceId, limit = None)
+        } yield {
+          result must beEqualTo(Result(scanned = 5, downsampled = 2, expired = 0))
+          remaining.map(_.location.lat) must beEqualTo(Seq(0.0, 0.001, 0.003))
+        }
+      }.await
+    }
+  }
+}
@@ -2,10 +2,18 @@ package com.jackpf.locationhistory.server.service
 
 import com.jackpf.locationhistory.server.service.OSMService.GeoLookupResponse
 import com.jackpf.locationhistory.server.testutil.{DefaultScope, DefaultSpecification}
+import com.jackpf.locationhistory.server.util.ConcurrentInMemoryCache
 import io.circe.parser.decode
 import io.circe.generic.auto.*
+import org.specs2.concurrent.ExecutionEnv
+import org.specs2.specification.After
+import sttp.client4.testing.{BackendStub, ResponseStub}
 
-class OSMServiceTest extends DefaultSpecification {
+import java.util.concurrent.atomic.AtomicInteger
+import scala.concurrent.duration.*
+import scala.concurrent.{Await, Future}
+
+class OSMServiceTest(implicit ee: ExecutionEnv) extends DefaultSpecification {
   trait Context extends DefaultScope {
     val sampleJson: String =
       """{
@@ -44,6 +52,26 @@ class OSMServiceTest extends DefaultSpecification {
       decode[GeoLookupResponse](sampleJson)
   }
 
+  /** Responses are also cached in memory across services, so each test looks up its own place */
+  trait LookupContext extends Context with After {
+    val requests: AtomicInteger = new AtomicInteger()
+    val diskCache: ConcurrentInMemoryCache[(Long, Long), GeoLookupResponse] =
+      new ConcurrentInMemoryCache(maxSize = 10)
+
+    lazy val osmService: OSMService = new OSMService(
+      BackendStub.asynchronousFuture.whenAnyRequest.thenRespondF { _ =>
+        requests.incrementAndGet(): Unit
+        Future.successful(ResponseStub.adjust(sampleJson))
+      },
+      diskCache = Some(diskCache),
+      requestsPerSecond = 100.0
+    )
+
+    def await[T](f: Future[T]): T = Await.result(f, 5.seconds)
+
+    override def after: Any = osmService.close()
+  }
+
   "OSMService GeoLookupResponse decoder" should {
     "decode snake_case JSON from Nominatim API" >> in(new Context {}) { context =>
       context.decodeResponse must beRight
@@ -181,4 +209,32 @@ class OSMServiceTest extends DefaultSpecification {
       result.map(_.address.road) must beRight(None)
     }
   }
+
+  "OSMService" should {
+    "look up a place once for concurrent lookups" >> in(new LookupContext {}) { context =>
+      val results = context.await(
+        Future.sequence(Seq.fill(5)(context.osmService.reverseGeoLookup(12.3456, 65.4321)))
+      )
+
+      results.map(_.map(_.osm_id)) must contain(beSuccessfulTry(987654321L)).forall
+      context.requests.get must beEqualTo(1)
+    }
+
+    "store looked up places in the disk cache" >> in(new LookupContext {}) { context =>
+      context.await(context.osmService.reverseGeoLookup(23.4567, 76.5432)): Unit
+
+      context.await(context.diskCache.get((234567L, 765432L))).map(_.osm_id) must
+        beSome(987654321L).eventually
+    }
+
+    "return places in the disk cache without looking them up" >> in(new LookupContext {}) {
+      context =>
+        val cached = context.decodeResponse.toOption.get.copy(osm_id = 1L)
+        context.await(context.diskCache.set((345678L, 876543L), cached))
+
+        context.osmService.reverseGeoLookup(34.5678, 87.6543).map(_.map(_.osm_id)) must
+          beSuccessfulTry(1L).await
+        context.requests.get must beEqualTo(0)
+    }
+  }
 }
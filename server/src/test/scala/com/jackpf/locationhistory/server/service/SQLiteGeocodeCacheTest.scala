@@ -0,0 +1,119 @@
+package com.jackpf.locationhistory.server.service
+
+import com.jackpf.locationhistory.server.db.{DataSourceFactory, Database}
+import com.jackpf.locationhistory.server.model.StorageType
+import com.jackpf.locationhistory.server.service.OSMService.GeoLookupResponse
+import com.jackpf.locationhistory.server.testutil.{DefaultScope, DefaultSpecification}
+import org.specs2.concurrent.ExecutionEnv
+import org.specs2.specification.After
+
+import java.util.UUID
+import scala.concurrent.duration.*
+import scala.concurrent.{Await, Future}
+
+class SQLiteGeocodeCacheTest(implicit ee: ExecutionEnv) extends DefaultSpecification {
+  trait Context extends DefaultScope with After {
+    val dbName: String = s"tests_${UUID.randomUUID().toString}.db"
+    lazy val database: Database =
+      new DataSourceFactory(System.getProperty("java.io.tmpdir"), dbName)
+        .create(StorageType.SQLITE)
+        .get
+
+    def ttl: FiniteDuration = 1.hour
+    def maxEntries: Long = 10L
+
+    lazy val cache: SQLiteGeocodeCache = newCache()
+
+    def newCache(): SQLiteGeocodeCache = {
+      val cache = new SQLiteGeocodeCache(database, ttl, maxEntries)
+      await(cache.init())
+      cache
+    }
+
+    def response(osmId: Long): GeoLookupResponse = GeoLookupResponse(
+      place_id = 123456789L,
+      licence = "Data",
+      osm_type = "way",
+      osm_id = osmId,
+      lat = "51.5074",
+      lon = "-0.1278",
+      category = "building",
+      `type` = "yes",
+      place_rank = 30,
+      importance = 0.5,
+      addresstype = "building",
+      name = Some("Test Building"),
+      display_name = "Test Building, Test Road, London, UK",
+      address = GeoLookupResponse.Address(
+        road = Some("Test Road"),
+        `ISO3166-2-lvl4` = Some("GB-ENG"),
+        country_code = Some("gb")
+      ),
+      extratags = Some(Map("building" -> "yes")),
+      boundingbox = Seq("51.5073", "51.5075", "-0.1279", "-0.1277")
+    )
+
+    def await[T](f: Future[T]): T = Await.result(f, 5.seconds)
+
+    override def after: Any = database.close()
+  }
+
+  "SQLite geocode cache" should {
+    "store and retrieve responses" >> in(new Context {}) { context =>
+      context.await(context.cache.set((515074L, -1278L), context.response(1L)))
+
+      context.cache.get((515074L, -1278L)) must beSome(context.response(1L)).await
+      context.cache.get((515074L, -1279L)) must beNone.await
+    }
+
+    "replace responses" >> in(new Context {}) { context =>
+      context.await(context.cache.set((515074L, -1278L), context.response(1L)))
+      context.await(context.cache.set((515074L, -1278L), context.response(2L)))
+
+      context.cache.get((515074L, -1278L)) must beSome(context.response(2L)).await
+    }
+
+    "keep responses across restarts" >> in(new Context {}) { context =>
+      context.await(context.cache.set((515074L, -1278L), context.response(1L)))
+
+      context.newCache().get((515074L, -1278L)) must beSome(context.response(1L)).await
+    }
+
+    "expire responses after the ttl" >> in(new Context {
+      override def ttl: FiniteDuration = 50.millis
+    }) { context =>
+      context.await(context.cache.set((515074L, -1278L), context.response(1L)))
+      Thread.sleep(100)
+
+      context.cache.get((515074L, -1278L)) must beNone.await
+    }
+
+    "evict the oldest responses beyond the max entries" >> in(new Context {
+      override def maxEntries: Long = 2L
+    }) { context =>
+      (1L to 3L).foreach { i =>
+        context.await(context.cache.set((i, i), context.response(i)))
+        Thread.sleep(5)
+      }
+
+      context.cache.get((1L, 1L)) must beNone.await
+      context.cache.get((2L, 2L)) must beSome(context.response(2L)).await
+      context.cache.get((3L, 3L)) must beSome(context.response(3L)).await
+    }
+
+    "count responses stored before a restart towards the max entries" >> in(new Context {
+      override def maxEntries: Long = 2L
+    }) { context =>
+      (1L to 2L).foreach { i =>
+        context.await(context.cache.set((i, i), context.response(i)))
+        Thread.sleep(5)
+      }
+      val restarted = context.newCache()
+      context.await(restarted.set((3L, 3L), context.response(3L)))
+
+      restarted.get((1L, 1L)) must beNone.await
+      restarted.get((2L, 2L)) must beSome(context.response(2L)).await
+      restarted.get((3L, 3L)) must beSome(context.response(3L)).await
+    }
+  }
+}
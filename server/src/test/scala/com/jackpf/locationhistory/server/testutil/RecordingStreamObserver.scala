@@ -0,0 +1,26 @@
+package com.jackpf.locationhistory.server.testutil
+
+import io.grpc.stub.StreamObserver
+
+import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.{Future, Promise}
+
+/** Collects streamed values, completing [[result]] once the stream terminates */
+class RecordingStreamObserver[T] extends StreamObserver[T] {
+  private val values: ArrayBuffer[T] = ArrayBuffer.empty
+  private val promise: Promise[Seq[T]] = Promise()
+
+  def result: Future[Seq[T]] = promise.future
+
+  override def onNext(value: T): Unit = synchronized {
+    values += value: Unit
+  }
+
+  override def onError(t: Throwable): Unit = synchronized {
+    promise.failure(t): Unit
+  }
+
+  override def onCompleted(): Unit = synchronized {
+    promise.success(values.toSeq): Unit
+  }
+}
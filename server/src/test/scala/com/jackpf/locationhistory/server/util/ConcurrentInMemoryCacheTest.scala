@@ -3,14 +3,26 @@ package com.jackpf.locationhistory.server.util
 import com.jackpf.locationhistory.server.testutil.{DefaultScope, DefaultSpecification}
 import org.specs2.concurrent.ExecutionEnv
 
+import java.util.concurrent.atomic.AtomicInteger
 import scala.concurrent.duration.*
-import scala.concurrent.{Await, Future}
+import scala.concurrent.{Await, Future, Promise}
+import scala.util.{Failure, Success, Try}
 
 class ConcurrentInMemoryCacheTest(implicit ee: ExecutionEnv) extends DefaultSpecification {
   trait ConcurrentContext extends DefaultScope {
     def await[T](f: Future[T]): T = Await.result(f, 2.seconds)
   }
 
+  trait LoadingContext extends ConcurrentContext {
+    val cache = new ConcurrentInMemoryCache[String, String](maxSize = 10)
+    val loads: AtomicInteger = new AtomicInteger()
+
+    def load[T](result: Future[T]): Future[T] = {
+      loads.incrementAndGet(): Unit
+      result
+    }
+  }
+
   "ConcurrentInMemoryCache" should {
     "store and retrieve values" >> in(new ConcurrentContext {}) { context =>
       val cache = new ConcurrentInMemoryCache[String, String](maxSize = 10)
@@ -37,25 +49,93 @@ class ConcurrentInMemoryCacheTest(implicit ee: ExecutionEnv) extends DefaultSpec
       context.await(cache.get(4)) must beSome("four")
     }
 
-    "handle updates without changing size or order" >> in(new ConcurrentContext {}) { context =>
+    "keep updated items over items set once" >> in(new ConcurrentContext {}) { context =>
       val cache = new ConcurrentInMemoryCache[Int, String](maxSize = 3)
 
       context.await(cache.set(1, "one"))
       context.await(cache.set(2, "two"))
 
-      // Update '1'. Size should still be 2.
+      // Update '1', which protects it
       context.await(cache.set(1, "one-updated"))
       context.await(cache.get(1)) must beSome("one-updated")
 
       // Add '3' and '4'. This pushes size to 4 -> Eviction needed.
-      // Since '1' was only UPDATED, not re-inserted, it is still the "oldest" physically.
+      // '2' was only set once, so it's evicted before '1'
       context.await(cache.set(3, "three"))
       context.await(cache.set(4, "four"))
 
-      context.await(cache.get(1)) must beNone // It was the oldest, so it died
+      context.await(cache.get(1)) must beSome("one-updated")
+      context.await(cache.get(2)) must beNone
+    }
+
+    "keep read items over items set once" >> in(new ConcurrentContext {}) { context =>
+      val cache = new ConcurrentInMemoryCache[Int, String](maxSize = 3)
+
+      context.await(cache.set(1, "one"))
+      context.await(cache.set(2, "two"))
+      context.await(cache.get(1)) must beSome("one")
+
+      // Fill with items passing through
+      (3 to 10).foreach(i => context.await(cache.set(i, i.toString)))
+
+      context.await(cache.get(1)) must beSome("one")
+      context.await(cache.get(2)) must beNone
+      context.await(cache.get(10)) must beSome("10")
+    }
+
+    "demote the least recently read protected item" >> in(new ConcurrentContext {}) { context =>
+      val cache = new ConcurrentInMemoryCache[Int, String](maxSize = 3)
+
+      (1 to 3).foreach { i =>
+        context.await(cache.set(i, i.toString))
+        context.await(cache.get(i)): Unit
+      }
+      context.await(cache.get(1)) must beSome("1")
+      context.await(cache.set(4, "4"))
+
+      context.await(cache.get(2)) must beNone
+      context.await(cache.get(1)) must beSome("1")
+      context.await(cache.get(3)) must beSome("3")
+      context.await(cache.get(4)) must beSome("4")
+    }
+
+    "expire items after expireAfter" >> in(new ConcurrentContext {}) { context =>
+      val cache =
+        new ConcurrentInMemoryCache[Int, String](maxSize = 3, expireAfter = Some(50.millis))
+
+      context.await(cache.set(1, "one"))
+      context.await(cache.get(1)) must beSome("one")
+
+      Thread.sleep(100)
+      context.await(cache.get(1)) must beNone
+    }
+
+    "expire items after their own ttl" >> in(new ConcurrentContext {}) { context =>
+      val cache = new ConcurrentInMemoryCache[Int, String](maxSize = 3, expireAfter = Some(1.hour))
+
+      context.await(cache.set(1, "one", 50.millis))
+      context.await(cache.set(2, "two"))
+
+      Thread.sleep(100)
+      context.await(cache.get(1)) must beNone
       context.await(cache.get(2)) must beSome("two")
     }
 
+    "evict items by weight" >> in(new ConcurrentContext {}) { context =>
+      val cache = new ConcurrentInMemoryCache[Int, String](
+        maxSize = 10,
+        weigher = (_, value) => value.length.toLong
+      )
+
+      context.await(cache.set(1, "aaaa"))
+      context.await(cache.set(2, "bbbb"))
+      context.await(cache.set(3, "cccc"))
+
+      context.await(cache.get(1)) must beNone
+      context.await(cache.get(2)) must beSome("bbbb")
+      context.await(cache.get(3)) must beSome("cccc")
+    }
+
     "survive a simple concurrent blast" >> in(new ConcurrentContext {}) { context =>
       val cache = new ConcurrentInMemoryCache[Int, Int](maxSize = 100)
       val count = 200
@@ -77,5 +157,53 @@ class ConcurrentInMemoryCacheTest(implicit ee: ExecutionEnv) extends DefaultSpec
       // We accept 100 items (perfect) or slightly more (race condition tolerance)
       keysFound must beBetween(95, 105)
     }
+
+    "return a cached value without loading it" >> in(new LoadingContext {}) { context =>
+      context.await(context.cache.set("A", "Value-A"))
+
+      context.await(context.cache.getOrElse("A", context.load(Future.successful(Option("B"))))) must
+        beSome("Value-A")
+      context.loads.get must beEqualTo(0)
+    }
+
+    "load and cache a missing value" >> in(new LoadingContext {}) { context =>
+      context.await(context.cache.getOrElse("A", context.load(Future.successful(Option("B"))))) must
+        beSome("B")
+      context.await(context.cache.get("A")) must beSome("B")
+    }
+
+    "share a load between concurrent callers" >> in(new LoadingContext {}) { context =>
+      val pending = Promise[Option[String]]()
+      val results = (1 to 10).map(_ => context.cache.getOrElse("A", context.load(pending.future)))
+      pending.success(Some("B"))
+
+      context.await(Future.sequence(results)) must contain(beSome("B")).forall
+      context.loads.get must beEqualTo(1)
+    }
+
+    "not cache a failed load" >> in(new LoadingContext {}) { context =>
+      val failed = context.cache.getOrElse(
+        "A",
+        context.load(Future.failed[Option[String]](new RuntimeException("Load failed")))
+      )
+      Try(context.await(failed)) must beAFailedTry
+
+      context.await(context.cache.getOrElse("A", context.load(Future.successful(Option("B"))))) must
+        beSome("B")
+      context.loads.get must beEqualTo(2)
+    }
+
+    "not cache a load without a value" >> in(new LoadingContext {}) { context =>
+      val failure: Try[String] = Failure(new RuntimeException("Load failed"))
+      val success: Try[String] = Success("B")
+
+      context.await(context.cache.getOrElse("A", context.load(Future.successful(failure)))) must
+        beAFailedTry
+      context.await(context.cache.get("A")) must beNone
+
+      context.await(context.cache.getOrElse("A", context.load(Future.successful(success)))) must
+        beSuccessfulTry("B")
+      context.loads.get must beEqualTo(2)
+    }
   }
 }
@@ -0,0 +1,40 @@
+package com.jackpf.locationhistory.server.util
+
+import com.jackpf.locationhistory.common.Location as ProtoLocation
+import com.jackpf.locationhistory.server.testutil.{DefaultScope, DefaultSpecification}
+
+class MetadataCodecTest extends DefaultSpecification {
+  trait Context extends DefaultScope {
+    val metadata: Map[String, String] =
+      Map("country" -> "España", "city" -> "", "" -> "empty key", "road" -> "a" * 300)
+  }
+
+  "Metadata codec" should {
+    "round trip metadata" >> in(new Context {}) { context =>
+      MetadataCodec.decode(MetadataCodec.encode(context.metadata)) must beEqualTo(
+        context.metadata
+      )
+    }
+
+    "encode empty metadata as no bytes" >> in(new Context {}) { _ =>
+      MetadataCodec.encode(Map.empty) must beEmpty
+      MetadataCodec.decodeLazily(Array.emptyByteArray) must beEqualTo(Map.empty)
+    }
+
+    "decode lazily into an equivalent map" >> in(new Context {}) { context =>
+      val bytes = MetadataCodec.encode(context.metadata)
+      val decoded = MetadataCodec.decodeLazily(bytes)
+
+      decoded must beEqualTo(context.metadata)
+      decoded.hashCode must beEqualTo(context.metadata.hashCode)
+      decoded ++ Map("state" -> "Madrid") must beEqualTo(context.metadata + ("state" -> "Madrid"))
+      ProtoLocation(metadata = decoded).metadata must beEqualTo(context.metadata)
+    }
+
+    "reuse the bytes of metadata that's not been modified" >> in(new Context {}) { context =>
+      val bytes = MetadataCodec.encode(context.metadata)
+
+      MetadataCodec.encode(MetadataCodec.decodeLazily(bytes)) must be(bytes)
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package com.jackpf.locationhistory.server.util
+
+import com.jackpf.locationhistory.server.errors.ApplicationErrors.{
+  RequestDeadlineExceededException,
+  RequestQueueFullException
+}
+import com.jackpf.locationhistory.server.testutil.{DefaultScope, DefaultSpecification}
+import org.specs2.concurrent.ExecutionEnv
+import org.specs2.specification.After
+
+import java.util.concurrent.atomic.AtomicInteger
+import scala.concurrent.duration.*
+import scala.concurrent.{Await, Future}
+
+class RateLimitedSchedulerTest(implicit ee: ExecutionEnv) extends DefaultSpecification {
+  trait Context extends DefaultScope with After {
+    def requestsPerSecond: Double = 20.0
+    def queueCapacity: Int = 10
+    def queueTimeoutMillis: Long = 2_000L
+
+    lazy val scheduler: RateLimitedScheduler[Long] =
+      new RateLimitedScheduler("test", requestsPerSecond, queueCapacity, queueTimeoutMillis)
+
+    val requests: AtomicInteger = new AtomicInteger()
+
+    /** Completes with the time the request was made */
+    def request: Future[Long] = {
+      requests.incrementAndGet(): Unit
+      Future.successful(System.nanoTime())
+    }
+
+    def await[T](f: Future[T]): T = Await.result(f, 5.seconds)
+
+    override def after: Any = scheduler.close()
+  }
+
+  "RateLimitedScheduler" should {
+    "make a request" >> in(new Context {}) { context =>
+      context.scheduler.schedule(Future.successful(1L)) must beEqualTo(1L).await
+    }
+
+    "make requests no faster than the rate" >> in(new Context {}) { context =>
+      val results = Seq.fill(3)(context.scheduler.schedule(context.request))
+      val startTimes = context.await(Future.sequence(results))
+
+      startTimes(1) - startTimes(0) must beGreaterThanOrEqualTo(45.millis.toNanos)
+      startTimes(2) - startTimes(1) must beGreaterThanOrEqualTo(45.millis.toNanos)
+      context.requests.get must beEqualTo(3)
+    }
+
+    "fail requests beyond the queue capacity" >> in(new Context {
+      override def requestsPerSecond: Double = 0.1
+      override def queueCapacity: Int = 1
+    }) { context =>
+      context.await(context.scheduler.schedule(context.request)): Unit
+      context.scheduler.schedule(context.request): Unit
+
+      context.scheduler.schedule(context.request) must throwA[RequestQueueFullException].await
+    }
+
+    "fail requests that aren't made within the queue timeout" >> in(new Context {
+      override def requestsPerSecond: Double = 0.1
+      override def queueTimeoutMillis: Long = 100L
+    }) { context =>
+      val first = context.scheduler.schedule(context.request)
+      val second = context.scheduler.schedule(context.request)
+
+      context.await(first) must beGreaterThan(0L)
+      second must throwA[RequestDeadlineExceededException].await
+      context.requests.get must beEqualTo(1)
+    }
+
+    "fail requests that throw" >> in(new Context {}) { context =>
+      context.scheduler.schedule(
+        throw new RuntimeException("Request failed")
+      ) must throwA[RuntimeException].await
+    }
+  }
+}